@@ -0,0 +1,110 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Regexes and wikitext the benchmarks run against. Regexes are the kind of
+ * thing users send to source_regex and are kept in Lucene's regex syntax.
+ * Everything is loaded from the classpath so the corpus can grow without
+ * touching the benchmarks.
+ */
+public final class Corpus {
+    /**
+     * The settings source_regex uses by default so the benchmarks measure
+     * what production does.
+     */
+    public static final int GRAM_SIZE = 3;
+    public static final int MAX_EXPAND = 4;
+    public static final int MAX_STATES_TRACED = 10000;
+    public static final int MAX_DETERMINIZED_STATES = 20000;
+    public static final int MAX_NGRAMS_EXTRACTED = 100;
+
+    private static final String[] WIKITEXT = new String[] {"wikitext/river.txt", "wikitext/composer.txt",
+            "wikitext/station.txt"};
+
+    private Corpus() {
+        // Util class
+    }
+
+    /**
+     * The regexes as written.
+     */
+    public static List<String> regexes() {
+        return regexes(lines("regexes.txt"));
+    }
+
+    /**
+     * Regexes as written in a local file in the same format as the bundled
+     * regexes. Use this for corpora that can't be shipped like regexes
+     * pulled from production logs.
+     */
+    public static List<String> regexes(Path file) throws IOException {
+        return regexes(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    private static List<String> regexes(List<String> lines) {
+        List<String> regexes = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            regexes.add(line);
+        }
+        return Collections.unmodifiableList(regexes);
+    }
+
+    /**
+     * The regexes lowercased like source_regex does when it isn't case
+     * sensitive.
+     */
+    public static List<String> lowercasedRegexes() {
+        List<String> regexes = new ArrayList<>();
+        for (String regex : regexes()) {
+            regexes.add(regex.toLowerCase(Locale.ROOT));
+        }
+        return Collections.unmodifiableList(regexes);
+    }
+
+    /**
+     * Wikitext samples lowercased like source_regex does when it isn't case
+     * sensitive.
+     */
+    public static List<String> lowercasedWikitext() {
+        List<String> samples = new ArrayList<>();
+        for (String name : WIKITEXT) {
+            StringBuilder b = new StringBuilder();
+            for (String line : lines(name)) {
+                b.append(line).append('\n');
+            }
+            samples.add(b.toString().toLowerCase(Locale.ROOT));
+        }
+        return Collections.unmodifiableList(samples);
+    }
+
+    private static List<String> lines(String name) {
+        InputStream in = Corpus.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IllegalStateException("Missing corpus file: " + name);
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading corpus file: " + name, e);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,492 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.util.automaton.XAutomata;
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.apache.lucene.util.automaton.XMinimizationOperations;
+import org.apache.lucene.util.automaton.XOperations;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.ngram.NGramExtractor;
+
+/**
+ * Runs a corpus of regexes through the pipeline source_regex uses and checks
+ * that none of the stages got more expensive than a stored baseline. Unlike
+ * the JMH benchmarks this is meant to be run against thousands of regexes,
+ * like ones pulled from production logs, so it records the metrics of every
+ * regex and points at the ones that got worse.
+ * <p>
+ * Each regex is parsed with {@link XRegExp}, compiled with
+ * {@link XRegExp#toAutomaton(int)}, wrapped in <code>.*</code> and
+ * determinized and minimized like the verification automaton, turned into an
+ * ngram expression with {@link NGramExtractor} and finally compiled into an
+ * {@link XCharacterRunAutomaton} which is run against the wikitext samples.
+ * Each stage records its time and the bytes it allocated, keeping the
+ * smallest seen over the iterations. Stages that build automata record
+ * their states and transitions, the ngram stage records the number of
+ * distinct ngrams, and the run stage records the size of the run automaton.
+ * <p>
+ * It also checks each regex for correctness: the minimized automaton must
+ * accept the same language as the determinized one and every wikitext sample
+ * the regex matches must contain the ngrams its expression requires. Failures
+ * are recorded as a metric so they regress like any other.
+ * <p>
+ * Time and allocation are noisy so they are compared against their own,
+ * looser, threshold. They are compared per stage summed across all regexes
+ * and, for time, per regex only for regexes slower than a floor. Record the
+ * baseline on the machine that will compare against it. Everything else is
+ * deterministic so any growth beyond the threshold, 0 by default, fails.
+ * <p>
+ * Run it from the benchmarks directory after packaging:
+ * <pre>
+ * java -cp target/benchmarks.jar org.wikimedia.search.extra.benchmarks.CorpusRegression [options]
+ *   --corpus &lt;file&gt;          regexes to run, one per line. Defaults to the bundled regexes.
+ *   --baseline &lt;file&gt;        baseline to compare against or record. Defaults to baseline.tsv.
+ *   --record                  record the baseline instead of comparing against it.
+ *   --threshold &lt;ratio&gt;      allowed growth of deterministic metrics. Defaults to 0.
+ *   --time-threshold &lt;ratio&gt; allowed growth of time and allocation. Defaults to 0.5.
+ *   --min-nanos &lt;nanos&gt;      only compare the time of regexes slower than this. Defaults to 1000000.
+ *   --warmup &lt;passes&gt;       passes over the corpus before measuring. Defaults to 3.
+ *   --iterations &lt;passes&gt;   measured passes over the corpus. Defaults to 5.
+ * </pre>
+ * Exits with 1 if anything regressed.
+ */
+public final class CorpusRegression {
+    private static final String[] STAGES = new String[] {"parse", "to_automaton", "determinize", "minimize", "ngrams", "run"};
+    private static final String NANOS = ".nanos";
+    private static final String ALLOCATED = ".allocated";
+    private static final String ERROR = "error";
+
+    private Path corpus;
+    private Path baseline = Paths.get("baseline.tsv");
+    private boolean record;
+    private double threshold = 0;
+    private double timeThreshold = 0.5;
+    private long minNanos = 1000000;
+    private int warmup = 3;
+    private int iterations = 5;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Map<String, String> errors = new LinkedHashMap<>();
+    private List<String> wikitext;
+    private List<Set<String>> wikitextGrams;
+
+    public static void main(String[] args) throws IOException {
+        CorpusRegression regression = new CorpusRegression();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--corpus":
+                regression.corpus = Paths.get(args[++i]);
+                break;
+            case "--baseline":
+                regression.baseline = Paths.get(args[++i]);
+                break;
+            case "--record":
+                regression.record = true;
+                break;
+            case "--threshold":
+                regression.threshold = Double.parseDouble(args[++i]);
+                break;
+            case "--time-threshold":
+                regression.timeThreshold = Double.parseDouble(args[++i]);
+                break;
+            case "--min-nanos":
+                regression.minNanos = Long.parseLong(args[++i]);
+                break;
+            case "--warmup":
+                regression.warmup = Integer.parseInt(args[++i]);
+                break;
+            case "--iterations":
+                regression.iterations = Integer.parseInt(args[++i]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (!regression.run()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measure the corpus and record or compare the baseline.
+     *
+     * @return false if anything regressed
+     */
+    public boolean run() throws IOException {
+        List<String> regexes = corpus == null ? Corpus.regexes() : Corpus.regexes(corpus);
+        wikitext = Corpus.lowercasedWikitext();
+        wikitextGrams = new ArrayList<>();
+        for (String text : wikitext) {
+            wikitextGrams.add(grams(text));
+        }
+        Map<String, Map<String, Long>> current = measure(regexes);
+        if (record) {
+            write(current);
+            System.out.printf(Locale.ROOT, "Recorded %s regexes to %s%n", current.size(), baseline);
+            return true;
+        }
+        return compare(read(), current);
+    }
+
+    private Map<String, Map<String, Long>> measure(List<String> regexes) {
+        Map<String, Map<String, Long>> metrics = new LinkedHashMap<>();
+        for (String regex : regexes) {
+            metrics.put(regex, new LinkedHashMap<String, Long>());
+        }
+        for (int pass = 0; pass < warmup; pass++) {
+            for (String regex : regexes) {
+                pipeline(regex, new LinkedHashMap<String, Long>());
+            }
+        }
+        for (int pass = 0; pass < iterations; pass++) {
+            for (String regex : regexes) {
+                pipeline(regex, metrics.get(regex));
+            }
+        }
+        for (Map.Entry<String, String> error : errors.entrySet()) {
+            System.out.printf(Locale.ROOT, "Error with %s: %s%n", error.getKey(), error.getValue());
+        }
+        return metrics;
+    }
+
+    /**
+     * Run a regex through the pipeline once.
+     */
+    private void pipeline(String regex, Map<String, Long> metrics) {
+        Recorder r = new Recorder(metrics);
+        try {
+            r.start();
+            XRegExp parsed = new XRegExp(regex.toLowerCase(Locale.ROOT), XRegExp.ALL ^ XRegExp.AUTOMATON);
+            r.stop("parse");
+
+            r.start();
+            XAutomaton automaton = parsed.toAutomaton(Corpus.MAX_DETERMINIZED_STATES);
+            r.stop("to_automaton");
+            r.automaton("to_automaton", automaton);
+
+            // toAutomaton determinizes as it goes so the interesting
+            // determinization is the unanchored one source_regex verifies with
+            XAutomaton unanchored = XOperations.concatenate(Arrays.asList(XAutomata.makeAnyString(), automaton,
+                    XAutomata.makeAnyString()));
+            r.start();
+            XAutomaton determinized = XOperations.determinize(unanchored, Corpus.MAX_DETERMINIZED_STATES);
+            r.stop("determinize");
+            r.automaton("determinize", determinized);
+
+            r.start();
+            XAutomaton minimized = XMinimizationOperations.minimize(determinized, Corpus.MAX_DETERMINIZED_STATES);
+            r.stop("minimize");
+            r.automaton("minimize", minimized);
+
+            r.start();
+            Expression<String> expression = new NGramExtractor(Corpus.GRAM_SIZE, Corpus.MAX_EXPAND, Corpus.MAX_STATES_TRACED,
+                    Corpus.MAX_NGRAMS_EXTRACTED).extract(automaton);
+            r.stop("ngrams");
+            r.set("ngrams.count", expression.transform(new LeafCollector()).size());
+
+            r.start();
+            XCharacterRunAutomaton runAutomaton = new XCharacterRunAutomaton(minimized, Corpus.MAX_DETERMINIZED_STATES);
+            boolean[] matches = new boolean[wikitext.size()];
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = runAutomaton.run(wikitext.get(i));
+            }
+            r.stop("run");
+            r.set("run.bytes", runAutomaton.ramBytesUsed());
+
+            long failures = 0;
+            if (!XOperations.sameLanguage(XOperations.removeDeadStates(determinized), XOperations.removeDeadStates(minimized))) {
+                failures++;
+            }
+            for (int i = 0; i < matches.length; i++) {
+                if (matches[i] && !expression.transform(new Satisfied(wikitextGrams.get(i)))) {
+                    failures++;
+                }
+            }
+            r.set("check.failures", failures);
+            r.set(ERROR, 0);
+        } catch (RuntimeException e) {
+            errors.put(regex, e.toString());
+            r.set(ERROR, 1);
+        }
+    }
+
+    private boolean compare(Map<String, Map<String, Long>> old, Map<String, Map<String, Long>> current) {
+        int regressions = 0;
+        int improvements = 0;
+        int missing = 0;
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Long>> regex : old.entrySet()) {
+            Map<String, Long> now = current.get(regex.getKey());
+            if (now == null) {
+                missing++;
+                continue;
+            }
+            boolean bothWorked = !isError(regex.getValue()) && !isError(now);
+            for (Map.Entry<String, Long> metric : regex.getValue().entrySet()) {
+                Long value = now.get(metric.getKey());
+                if (value == null) {
+                    continue;
+                }
+                String name = metric.getKey();
+                long before = metric.getValue();
+                if (isTime(name)) {
+                    if (bothWorked) {
+                        long[] total = totals.get(name);
+                        if (total == null) {
+                            total = new long[2];
+                            totals.put(name, total);
+                        }
+                        total[0] += before;
+                        total[1] += value;
+                    }
+                    if (!name.endsWith(NANOS) || before < minNanos) {
+                        continue;
+                    }
+                }
+                double allowed = isTime(name) ? timeThreshold : threshold;
+                if (value > before * (1 + allowed)) {
+                    regressions++;
+                    System.out.printf(Locale.ROOT, "REGRESSED %s %s -> %s%s  %s%n", name, before, value, percent(before, value),
+                            regex.getKey());
+                } else if (value < before * (1 - allowed)) {
+                    improvements++;
+                }
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-24s %16s %16s%n", "stage", "baseline", "current");
+        for (String stage : STAGES) {
+            for (String suffix : new String[] {NANOS, ALLOCATED}) {
+                long[] total = totals.get(stage + suffix);
+                if (total == null) {
+                    continue;
+                }
+                String flag = "";
+                if (total[1] > total[0] * (1 + timeThreshold)) {
+                    regressions++;
+                    flag = "  REGRESSED";
+                }
+                System.out.printf(Locale.ROOT, "%-24s %16s %16s%s%s%n", stage + suffix, total[0], total[1],
+                        percent(total[0], total[1]), flag);
+            }
+        }
+        if (missing > 0) {
+            System.out.printf(Locale.ROOT, "%s regexes in the baseline aren't in the corpus%n", missing);
+        }
+        if (improvements > 0) {
+            System.out.printf(Locale.ROOT, "%s metrics improved beyond the threshold. Consider recording a new baseline.%n",
+                    improvements);
+        }
+        System.out.printf(Locale.ROOT, "%s regressions%n", regressions);
+        return regressions == 0;
+    }
+
+    private static boolean isTime(String metric) {
+        return metric.endsWith(NANOS) || metric.endsWith(ALLOCATED);
+    }
+
+    private static boolean isError(Map<String, Long> metrics) {
+        Long error = metrics.get(ERROR);
+        return error != null && error != 0;
+    }
+
+    private static String percent(long before, long after) {
+        if (before == 0) {
+            return "";
+        }
+        return String.format(Locale.ROOT, " (%+.0f%%)", (after - before) * 100.0 / before);
+    }
+
+    /**
+     * Write the baseline. One line per metric with the regex last so it can
+     * contain anything but a tab.
+     */
+    private void write(Map<String, Map<String, Long>> metrics) throws IOException {
+        try (Writer out = Files.newBufferedWriter(baseline, StandardCharsets.UTF_8)) {
+            out.write("# Recorded by CorpusRegression. metric\tvalue\tregex\n");
+            for (Map.Entry<String, Map<String, Long>> regex : metrics.entrySet()) {
+                for (Map.Entry<String, Long> metric : regex.getValue().entrySet()) {
+                    out.write(metric.getKey() + '\t' + metric.getValue() + '\t' + regex.getKey() + '\n');
+                }
+            }
+        }
+    }
+
+    private Map<String, Map<String, Long>> read() throws IOException {
+        Map<String, Map<String, Long>> metrics = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\t", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Malformed baseline line: " + line);
+            }
+            Map<String, Long> regex = metrics.get(parts[2]);
+            if (regex == null) {
+                regex = new LinkedHashMap<>();
+                metrics.put(parts[2], regex);
+            }
+            regex.put(parts[0], Long.parseLong(parts[1]));
+        }
+        return metrics;
+    }
+
+    /**
+     * All the ngrams in the text, the same way the trigram field indexes them.
+     */
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        int[] codePoints = new int[text.codePointCount(0, text.length())];
+        for (int i = 0, offset = 0; i < codePoints.length; i++) {
+            codePoints[i] = text.codePointAt(offset);
+            offset += Character.charCount(codePoints[i]);
+        }
+        for (int i = 0; i + Corpus.GRAM_SIZE <= codePoints.length; i++) {
+            grams.add(new String(codePoints, i, Corpus.GRAM_SIZE));
+        }
+        return grams;
+    }
+
+    /**
+     * Records the metrics for a single run of the pipeline.
+     */
+    private final class Recorder {
+        private final Map<String, Long> metrics;
+        private long startAllocated;
+        private long startNanos;
+
+        private Recorder(Map<String, Long> metrics) {
+            this.metrics = metrics;
+        }
+
+        void start() {
+            startAllocated = allocated();
+            startNanos = System.nanoTime();
+        }
+
+        void stop(String stage) {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = allocated() - startAllocated;
+            min(stage + NANOS, nanos);
+            min(stage + ALLOCATED, allocated);
+        }
+
+        void automaton(String stage, XAutomaton automaton) {
+            set(stage + ".states", automaton.getNumStates());
+            set(stage + ".transitions", automaton.getNumTransitions());
+        }
+
+        void set(String metric, long value) {
+            metrics.put(metric, value);
+        }
+
+        private void min(String metric, long value) {
+            Long old = metrics.get(metric);
+            if (old == null || value < old) {
+                metrics.put(metric, value);
+            }
+        }
+
+        private long allocated() {
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Collects the distinct leaves of an expression.
+     */
+    private static final class LeafCollector implements Expression.Transformer<String, Set<String>> {
+        @Override
+        public Set<String> alwaysTrue() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public Set<String> alwaysFalse() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public Set<String> leaf(String t) {
+            Set<String> leaves = new HashSet<>();
+            leaves.add(t);
+            return leaves;
+        }
+
+        @Override
+        public Set<String> and(ImmutableSet<Set<String>> js) {
+            return union(js);
+        }
+
+        @Override
+        public Set<String> or(ImmutableSet<Set<String>> js) {
+            return union(js);
+        }
+
+        private Set<String> union(ImmutableSet<Set<String>> js) {
+            Set<String> leaves = new HashSet<>();
+            for (Set<String> j : js) {
+                leaves.addAll(j);
+            }
+            return leaves;
+        }
+    }
+
+    /**
+     * Is the expression satisfied by a document containing these ngrams?
+     */
+    private static final class Satisfied implements Expression.Transformer<String, Boolean> {
+        private final Set<String> grams;
+
+        private Satisfied(Set<String> grams) {
+            this.grams = grams;
+        }
+
+        @Override
+        public Boolean alwaysTrue() {
+            return true;
+        }
+
+        @Override
+        public Boolean alwaysFalse() {
+            return false;
+        }
+
+        @Override
+        public Boolean leaf(String t) {
+            return grams.contains(t);
+        }
+
+        @Override
+        public Boolean and(ImmutableSet<Boolean> js) {
+            return !js.contains(false);
+        }
+
+        @Override
+        public Boolean or(ImmutableSet<Boolean> js) {
+            return js.contains(true);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XAutomata;
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XOperations;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Subset construction on its own. Each corpus regex is compiled once and
+ * wrapped in .* on both sides without determinizing, which is the shape of
+ * automaton the verification step has to determinize. Also an alternation
+ * of every word in the wikitext samples, the kind of regex that creates
+ * subsets of hundreds of NFA states.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class DeterminizeBenchmark {
+    private List<XAutomaton> nfas;
+    private XAutomaton alternation;
+
+    @Setup
+    public void setup() {
+        nfas = new ArrayList<>();
+        for (String regex : Corpus.lowercasedRegexes()) {
+            XAutomaton automaton = new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(Corpus.MAX_DETERMINIZED_STATES);
+            List<XAutomaton> parts = new ArrayList<>();
+            parts.add(XAutomata.makeAnyString());
+            parts.add(automaton);
+            parts.add(XAutomata.makeAnyString());
+            nfas.add(XOperations.concatenate(parts));
+        }
+        Set<String> words = new TreeSet<>();
+        for (String text : Corpus.lowercasedWikitext()) {
+            for (String word : text.split("[^a-z]+")) {
+                if (word.length() > 3) {
+                    words.add(word);
+                }
+            }
+        }
+        List<XAutomaton> wordAutomata = new ArrayList<>();
+        for (String word : words) {
+            wordAutomata.add(XAutomata.makeString(word));
+        }
+        alternation = XOperations.concatenate(XAutomata.makeAnyString(), XOperations.union(wordAutomata));
+    }
+
+    @Benchmark
+    public void determinize(Blackhole bh) {
+        for (XAutomaton nfa : nfas) {
+            bh.consume(XOperations.determinize(nfa, Corpus.MAX_DETERMINIZED_STATES));
+        }
+    }
+
+    @Benchmark
+    public XAutomaton alternation() {
+        return XOperations.determinize(alternation, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XAutomata;
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XMinimizationOperations;
+import org.apache.lucene.util.automaton.XOperations;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Minimization on its own, comparing Hopcroft's algorithm with the default
+ * pipeline. The corpus regexes are wrapped in .* and determinized up front so
+ * only minimization is measured. The word alternation from the wikitext
+ * samples is a finite language so the default pipeline minimizes it without
+ * partition refinement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class MinimizeBenchmark {
+    @Param({"hopcroft", "default"})
+    private String algorithm;
+
+    private List<XAutomaton> dfas;
+    private XAutomaton alternation;
+
+    @Setup
+    public void setup() {
+        dfas = new ArrayList<>();
+        for (String regex : Corpus.lowercasedRegexes()) {
+            XAutomaton automaton = new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(Corpus.MAX_DETERMINIZED_STATES);
+            List<XAutomaton> parts = new ArrayList<>();
+            parts.add(XAutomata.makeAnyString());
+            parts.add(automaton);
+            parts.add(XAutomata.makeAnyString());
+            dfas.add(XOperations.determinize(XOperations.concatenate(parts), Corpus.MAX_DETERMINIZED_STATES));
+        }
+        Set<String> words = new TreeSet<>();
+        for (String text : Corpus.lowercasedWikitext()) {
+            for (String word : text.split("[^a-z]+")) {
+                if (word.length() > 3) {
+                    words.add(word);
+                }
+            }
+        }
+        List<XAutomaton> wordAutomata = new ArrayList<>();
+        for (String word : words) {
+            wordAutomata.add(XAutomata.makeString(word));
+        }
+        alternation = XOperations.determinize(XOperations.union(wordAutomata), Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void minimize(Blackhole bh) {
+        for (XAutomaton dfa : dfas) {
+            bh.consume(minimize(dfa));
+        }
+    }
+
+    @Benchmark
+    public XAutomaton alternation() {
+        return minimize(alternation);
+    }
+
+    private XAutomaton minimize(XAutomaton a) {
+        if ("hopcroft".equals(algorithm)) {
+            return XMinimizationOperations.minimizeHopcroft(a, Integer.MAX_VALUE);
+        }
+        return XMinimizationOperations.minimize(a, Integer.MAX_VALUE);
+    }
+}
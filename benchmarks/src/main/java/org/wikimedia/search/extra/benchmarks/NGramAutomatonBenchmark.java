@@ -0,0 +1,77 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wikimedia.search.extra.regex.ngram.NGramAutomaton;
+
+/**
+ * Building the ngram automaton from the compiled regex, walking already built
+ * automata into their expressions, and doing both. Expressions are simplified
+ * state by state as they are built so {@link #expression(Blackhole)} is where
+ * simplification shows up. Automata remember their expressions so fresh ones
+ * are traced before every invocation of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class NGramAutomatonBenchmark {
+    private List<XAutomaton> automata;
+    private List<NGramAutomaton> ngramAutomata;
+
+    @Setup
+    public void setup() {
+        automata = new ArrayList<>();
+        for (String regex : Corpus.lowercasedRegexes()) {
+            automata.add(new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(Corpus.MAX_DETERMINIZED_STATES));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void buildNGramAutomata() {
+        ngramAutomata = new ArrayList<>();
+        for (XAutomaton automaton : automata) {
+            ngramAutomata.add(ngramAutomaton(automaton));
+        }
+    }
+
+    @Benchmark
+    public void build(Blackhole bh) {
+        for (XAutomaton automaton : automata) {
+            bh.consume(ngramAutomaton(automaton));
+        }
+    }
+
+    @Benchmark
+    public void expression(Blackhole bh) {
+        for (NGramAutomaton ngramAutomaton : ngramAutomata) {
+            bh.consume(ngramAutomaton.expression());
+        }
+    }
+
+    @Benchmark
+    public void buildAndExpression(Blackhole bh) {
+        for (XAutomaton automaton : automata) {
+            bh.consume(ngramAutomaton(automaton).expression());
+        }
+    }
+
+    static NGramAutomaton ngramAutomaton(XAutomaton automaton) {
+        return new NGramAutomaton(automaton, Corpus.GRAM_SIZE, Corpus.MAX_EXPAND, Corpus.MAX_STATES_TRACED,
+                Corpus.MAX_NGRAMS_EXTRACTED);
+    }
+}
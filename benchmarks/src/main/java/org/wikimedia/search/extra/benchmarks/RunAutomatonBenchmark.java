@@ -0,0 +1,52 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Running every corpus regex over every wikitext sample the way
+ * source_regex verifies candidate documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class RunAutomatonBenchmark {
+    private List<XCharacterRunAutomaton> automata;
+    private List<String> wikitext;
+
+    @Setup
+    public void setup() {
+        automata = new ArrayList<>();
+        for (String regex : Corpus.lowercasedRegexes()) {
+            automata.add(new XCharacterRunAutomaton(new XRegExp(".*" + regex + ".*", XRegExp.ALL ^ XRegExp.AUTOMATON)
+                    .toAutomaton(Corpus.MAX_DETERMINIZED_STATES)));
+        }
+        wikitext = Corpus.lowercasedWikitext();
+    }
+
+    @Benchmark
+    public int run() {
+        int matches = 0;
+        for (XCharacterRunAutomaton automaton : automata) {
+            for (String text : wikitext) {
+                if (automaton.run(text)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,128 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.ExpressionFactory;
+import org.wikimedia.search.extra.regex.expression.False;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.True;
+
+/**
+ * Simplifying expressions shaped like the ones the ngram automata produce.
+ * {@link org.wikimedia.search.extra.regex.ngram.NGramAutomaton#expression()}
+ * already returns simplified expressions so this undoes the factoring out
+ * simplify does: every And containing an Or is distributed back into an Or of
+ * Ands. Expressions remember that they've been simplified so the trees are
+ * rebuilt through a fresh {@link ExpressionFactory} before every invocation.
+ * That is expensive enough that Level.Invocation's overhead doesn't matter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class SimplifyBenchmark {
+    private List<Expression<String>> simplified;
+    private List<Expression<String>> expressions;
+
+    @Setup
+    public void setup() {
+        simplified = new ArrayList<>();
+        for (String regex : Corpus.lowercasedRegexes()) {
+            XAutomaton automaton = new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(Corpus.MAX_DETERMINIZED_STATES);
+            simplified.add(NGramAutomatonBenchmark.ngramAutomaton(automaton).expression());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void buildExpressions() {
+        expressions = new ArrayList<>();
+        for (Expression<String> expression : simplified) {
+            expressions.add(expression.transform(new Distribute(new ExpressionFactory<String>(Corpus.MAX_STATES_TRACED))));
+        }
+    }
+
+    @Benchmark
+    public void simplify(Blackhole bh) {
+        for (Expression<String> expression : expressions) {
+            bh.consume(expression.simplify());
+        }
+    }
+
+    /**
+     * Rebuilds an expression through a factory without simplifying it,
+     * distributing each And over the first Or it contains.
+     */
+    private static class Distribute implements Expression.Transformer<String, Expression<String>> {
+        private final ExpressionFactory<String> factory;
+        /**
+         * Components of the Ors built so far.
+         */
+        private final Map<Expression<String>, ImmutableSet<Expression<String>>> ors = new IdentityHashMap<>();
+
+        public Distribute(ExpressionFactory<String> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public Expression<String> alwaysTrue() {
+            return True.instance();
+        }
+
+        @Override
+        public Expression<String> alwaysFalse() {
+            return False.instance();
+        }
+
+        @Override
+        public Expression<String> leaf(String t) {
+            return new Leaf<>(t);
+        }
+
+        @Override
+        public Expression<String> and(ImmutableSet<Expression<String>> js) {
+            for (Expression<String> j : js) {
+                ImmutableSet<Expression<String>> branches = ors.get(j);
+                if (branches == null) {
+                    continue;
+                }
+                ImmutableSet.Builder<Expression<String>> distributed = ImmutableSet.builder();
+                for (Expression<String> branch : branches) {
+                    ImmutableSet.Builder<Expression<String>> and = ImmutableSet.builder();
+                    for (Expression<String> other : js) {
+                        if (other != j) {
+                            and.add(other);
+                        }
+                    }
+                    distributed.add(factory.and(and.add(branch).build()));
+                }
+                return or(distributed.build());
+            }
+            return factory.and(js);
+        }
+
+        @Override
+        public Expression<String> or(ImmutableSet<Expression<String>> js) {
+            Expression<String> or = factory.or(js);
+            ors.put(or, js);
+            return or;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.wikimedia.search.extra.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.automaton.XRegExp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing the corpus regexes and compiling them into automata. This is the
+ * first thing source_regex does with every regex and it does it twice: once
+ * for the ngram prefilter and once wrapped in .* for verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class ToAutomatonBenchmark {
+    private List<String> regexes;
+
+    @Setup
+    public void setup() {
+        regexes = Corpus.lowercasedRegexes();
+    }
+
+    @Benchmark
+    public void prefilter(Blackhole bh) {
+        for (String regex : regexes) {
+            bh.consume(new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(Corpus.MAX_DETERMINIZED_STATES));
+        }
+    }
+
+    @Benchmark
+    public void verification(Blackhole bh) {
+        for (String regex : regexes) {
+            bh.consume(new XRegExp(".*" + regex + ".*", XRegExp.ALL ^ XRegExp.AUTOMATON)
+                    .toAutomaton(Corpus.MAX_DETERMINIZED_STATES));
+        }
+    }
+}
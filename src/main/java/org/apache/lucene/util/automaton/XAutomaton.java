@@ -21,8 +21,6 @@ package org.apache.lucene.util.automaton;
 //import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.InPlaceMergeSorter;
@@ -582,31 +580,71 @@ public class XAutomaton {
    * Returns sorted array of all interval start points.
    */
   int[] getStartPoints() {
-    Set<Integer> pointset = new HashSet<>();
+    PointSet pointset = new PointSet();
     pointset.add(Character.MIN_CODE_POINT);
-    //System.out.println("getStartPoints");
     for (int s=0;s<nextState;s+=2) {
       int trans = states[s];
       int limit = trans+3*states[s+1];
-      //System.out.println("  state=" + (s/2) + " trans=" + trans + " limit=" + limit);
       while (trans < limit) {
-        int min = transitions[trans+1];
+        pointset.add(transitions[trans+1]);
         int max = transitions[trans+2];
-        //System.out.println("    min=" + min);
-        pointset.add(min);
         if (max < Character.MAX_CODE_POINT) {
           pointset.add(max + 1);
         }
         trans += 3;
       }
     }
-    int[] points = new int[pointset.size()];
-    int n = 0;
-    for (Integer m : pointset) {
-      points[n++] = m;
+    return pointset.sorted();
+  }
+
+  /**
+   * Open addressing set of code points. Automata have many more transitions
+   * than distinct start points so deduplicating as they are added beats
+   * sorting all of them.
+   */
+  private static final class PointSet {
+    private int[] table = newTable(64);
+    private int[] points = new int[16];
+    private int size;
+
+    void add(int point) {
+      int mask = table.length - 1;
+      int slot = (point * 0x9E3779B9) & mask;
+      while (table[slot] != -1) {
+        if (table[slot] == point) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = point;
+      if (size == points.length) {
+        points = ArrayUtil.grow(points);
+      }
+      points[size++] = point;
+      if (size * 2 > table.length) {
+        table = newTable(table.length * 2);
+        mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+          slot = (points[i] * 0x9E3779B9) & mask;
+          while (table[slot] != -1) {
+            slot = (slot + 1) & mask;
+          }
+          table[slot] = points[i];
+        }
+      }
+    }
+
+    int[] sorted() {
+      int[] result = Arrays.copyOf(points, size);
+      Arrays.sort(result);
+      return result;
+    }
+
+    private static int[] newTable(int size) {
+      int[] table = new int[size];
+      Arrays.fill(table, -1);
+      return table;
     }
-    Arrays.sort(points);
-    return points;
   }
 
   /**
@@ -620,18 +658,37 @@ public class XAutomaton {
     assert state >= 0;
     assert label >= 0;
     int trans = states[2*state];
-    int limit = trans + 3*states[2*state+1];
-    // TODO: we could do bin search; transitions are sorted
-    while (trans < limit) {
-      int dest = transitions[trans];
-      int min = transitions[trans+1];
-      int max = transitions[trans+2];
-      if (min <= label && label <= max) {
-        return dest;
+    int count = states[2*state+1];
+    if (count <= 4 || deterministic == false || state == curState) {
+      // Linear scan is faster for a few transitions and the only option
+      // if they aren't sorted and disjoint
+      int limit = trans + 3*count;
+      while (trans < limit) {
+        int dest = transitions[trans];
+        int min = transitions[trans+1];
+        int max = transitions[trans+2];
+        if (min <= label && label <= max) {
+          return dest;
+        }
+        trans += 3;
+      }
+      return -1;
+    }
+    // Finished states are sorted by min and deterministic ones don't
+    // overlap so the only candidate is the last transition with min <= label
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (transitions[trans + 3*mid + 1] > label) {
+        high = mid - 1;
+      } else {
+        low = mid + 1;
       }
-      trans += 3;
     }
-
+    if (high >= 0 && label <= transitions[trans + 3*high + 2]) {
+      return transitions[trans + 3*high];
+    }
     return -1;
   }
 
@@ -17,6 +17,11 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
 
+import java.io.IOException;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.DataInput;
+
 /**
  * Automaton representation for matching UTF-8 byte[].
  */
@@ -32,6 +37,16 @@ public class XByteRunAutomaton extends XRunAutomaton {
     super(utf8 ? a : new XUTF32ToUTF8().convert(a), 256, true, maxDeterminizedStates);
   }
 
+  /**
+   * Read an automaton written by {@link #writeTo(org.apache.lucene.store.DataOutput)}.
+   */
+  public XByteRunAutomaton(DataInput in) throws IOException {
+    super(in);
+    if (maxInterval != 256) {
+      throw new CorruptIndexException("Not a byte run automaton: max interval is " + maxInterval);
+    }
+  }
+
   /**
    * Returns true if the given byte array is accepted by this automaton
    */
@@ -17,6 +17,11 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
 
+import java.io.IOException;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.DataInput;
+
 /**
  * Automaton representation for matching char[].
  */
@@ -39,6 +44,29 @@ public class XCharacterRunAutomaton extends XRunAutomaton {
     super(a, Character.MAX_CODE_POINT, false, maxDeterminizedStates);
   }
 
+  /**
+   * Construct specifying maxDeterminizedStates and determinizing on more
+   * than one thread.
+   * @param a Automaton to match
+   * @param maxDeterminizedStates maximum number of states that the automataon
+   *   can have once determinized.  If more states are required to determinize
+   *   it then a TooComplexToDeterminizeException is thrown.
+   * @param parallel determinize on more than one thread. May be null.
+   */ 
+  public XCharacterRunAutomaton(XAutomaton a, int maxDeterminizedStates, XParallelDeterminizer parallel) {
+    super(a, Character.MAX_CODE_POINT, false, maxDeterminizedStates, parallel);
+  }
+
+  /**
+   * Read an automaton written by {@link #writeTo(org.apache.lucene.store.DataOutput)}.
+   */
+  public XCharacterRunAutomaton(DataInput in) throws IOException {
+    super(in);
+    if (maxInterval != Character.MAX_CODE_POINT) {
+      throw new CorruptIndexException("Not a character run automaton: max interval is " + maxInterval);
+    }
+  }
+
   /**
    * Returns true if the given string is accepted by this automaton.
    */
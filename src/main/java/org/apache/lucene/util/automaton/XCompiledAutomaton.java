@@ -17,9 +17,14 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
   
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.lucene.index.SingleTermsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.PrefixTermsEnum;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.XBytesRefBuilder;
 
@@ -266,31 +271,32 @@ public class XCompiledAutomaton {
     }
   }
 
-  // Too hard to backport.  Ignoring because it isn't needed.
-//  // TODO: should this take startTerm too?  This way
-//  // Terms.intersect could forward to this method if type !=
-//  // NORMAL:
-//  /** Return a {@link TermsEnum} intersecting the provided {@link Terms}
-//   *  with the terms accepted by this automaton. */
-//  public TermsEnum getTermsEnum(Terms terms) throws IOException {
-//    switch(type) {
-//    case NONE:
-//      return TermsEnum.EMPTY;
-//    case ALL:
-//      return terms.iterator(null);
-//    case SINGLE:
-//      return new SingleTermsEnum(terms.iterator(null), term);
-//    case PREFIX:
-//      // TODO: this is very likely faster than .intersect,
-//      // but we should test and maybe cutover
-//      return new PrefixTermsEnum(terms.iterator(null), term);
-//    case NORMAL:
-//      return terms.intersect(this, null);
-//    default:
-//      // unreachable
-//      throw new RuntimeException("unhandled case");
-//    }
-//  }
+  // TODO: should this take startTerm too?  This way
+  // Terms.intersect could forward to this method if type !=
+  // NORMAL:
+  /** Return a {@link TermsEnum} intersecting the provided {@link Terms}
+   *  with the terms accepted by this automaton. */
+  public TermsEnum getTermsEnum(Terms terms) throws IOException {
+    switch(type) {
+    case NONE:
+      return TermsEnum.EMPTY;
+    case ALL:
+      return terms.iterator(null);
+    case SINGLE:
+      return new SingleTermsEnum(terms.iterator(null), term);
+    case PREFIX:
+      // TODO: this is very likely faster than .intersect,
+      // but we should test and maybe cutover
+      return new PrefixTermsEnum(terms.iterator(null), term);
+    case NORMAL:
+      // Terms.intersect only takes Lucene's own CompiledAutomaton so walk
+      // the terms with the automaton instead
+      return new XAutomatonTermsEnum(terms.iterator(null), this);
+    default:
+      // unreachable
+      throw new RuntimeException("unhandled case");
+    }
+  }
 
   /** Finds largest term accepted by this Automaton, that's
    *  <= the provided input term.  The result is placed in
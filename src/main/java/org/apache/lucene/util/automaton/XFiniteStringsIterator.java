@@ -0,0 +1,247 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.BitSet;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.XIntsRefBuilder;
+
+/**
+ * Iterates all accepted strings of a finite automaton depth first without
+ * materializing them.  Memory is proportional to the length of the longest
+ * accepted string rather than to the number of strings: the stack of path
+ * nodes and the string being built are reused for every string.
+ *
+ * <p>The {@link IntsRef} returned by {@link #next()} is shared and only valid
+ * until the next call; use {@link IntsRef#deepCopyOf} to keep it.
+ *
+ * <p>If the automaton has cycles then {@link #next()} throws
+ * {@code IllegalArgumentException} when it finds one.  If the transition that
+ * closes the cycle leads to an accept state the string it accepts is returned
+ * first and the exception is thrown by the following call.  It also throws
+ * {@code IllegalArgumentException} if the path it is following would need
+ * more than the byte budget to track.
+ */
+public class XFiniteStringsIterator {
+  /** Budget that never runs out. */
+  public static final long UNLIMITED = Long.MAX_VALUE;
+
+  /** Approximate bytes needed for each character of the current path. */
+  static final long BYTES_PER_DEPTH = RamUsageEstimator.NUM_BYTES_OBJECT_REF
+      + RamUsageEstimator.NUM_BYTES_INT
+      + RamUsageEstimator.shallowSizeOfInstance(PathNode.class)
+      + RamUsageEstimator.shallowSizeOfInstance(XTransition.class);
+
+  private final XAutomaton a;
+  private final long maxBytes;
+
+  /** Tracks which states are in the current path, for cycle detection. */
+  private final BitSet pathStates;
+
+  /** Stack holding our current state in the iteration. */
+  private PathNode[] nodes = new PathNode[4];
+
+  /** The string being built, one character per node on the stack. */
+  private final XIntsRefBuilder string = new XIntsRefBuilder();
+
+  /** Shared view of string returned from next. */
+  private final IntsRef current = new IntsRef();
+
+  /** Should the next call to next emit the empty string? */
+  private boolean emitEmptyString;
+
+  /** Did the last string returned close a cycle? */
+  private boolean foundCycle;
+
+  /** Iterate all strings accepted by the automaton. */
+  public XFiniteStringsIterator(XAutomaton a) {
+    this(a, UNLIMITED);
+  }
+
+  /**
+   * Iterate all strings accepted by the automaton, throwing
+   * {@code IllegalArgumentException} if tracking the current path would take
+   * more than maxBytes.
+   */
+  public XFiniteStringsIterator(XAutomaton a, long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be > 0; got: " + maxBytes);
+    }
+    this.a = a;
+    this.maxBytes = maxBytes;
+    this.pathStates = new BitSet(a.getNumStates());
+    if (a.getNumStates() == 0) {
+      return;
+    }
+    emitEmptyString = a.isAccept(0);
+    if (a.getNumTransitions(0) > 0) {
+      pathStates.set(0);
+      getNode(0).resetState(a, 0);
+      string.append(0);
+      checkBudget();
+    }
+  }
+
+  /**
+   * Returns the next accepted string or null if there aren't any more.  The
+   * returned IntsRef is reused by the next call.
+   */
+  public IntsRef next() {
+    // Special case the empty string, as usual:
+    if (emitEmptyString) {
+      emitEmptyString = false;
+      current.ints = string.ints();
+      current.offset = 0;
+      current.length = 0;
+      return current;
+    }
+
+    if (foundCycle) {
+      throw new IllegalArgumentException("automaton has cycles");
+    }
+
+    while (string.length() > 0) {
+      int depth = string.length();
+      PathNode node = nodes[depth - 1];
+
+      // Get next label leaving the current node:
+      int label = node.nextLabel(a);
+
+      if (label != -1) {
+        string.setIntAt(depth - 1, label);
+        int to = node.to;
+
+        if (a.getNumTransitions(to) != 0) {
+          // Now recurse: the destination of this transition has
+          // outgoing transitions:
+          if (pathStates.get(to)) {
+            if (!a.isAccept(to)) {
+              throw new IllegalArgumentException("automaton has cycles");
+            }
+            // Return the string that closes the cycle before complaining
+            // so limited iteration sees the same strings it always did.
+            foundCycle = true;
+          } else {
+            pathStates.set(to);
+
+            // Push node onto stack.  The string for this transition is
+            // still the first depth characters so we can return it below.
+            getNode(depth).resetState(a, to);
+            string.setLength(depth + 1);
+            string.grow(depth + 1);
+            checkBudget();
+          }
+        }
+
+        if (a.isAccept(to)) {
+          // This transition leads to an accept state,
+          // so we return the current string:
+          current.ints = string.ints();
+          current.offset = 0;
+          current.length = depth;
+          return current;
+        }
+      } else {
+        // No more transitions leaving this state,
+        // pop/return back to previous state:
+        assert pathStates.get(node.state);
+        pathStates.clear(node.state);
+        string.setLength(depth - 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Approximate bytes used to track the current path.
+   */
+  public long ramBytesUsed() {
+    return string.length() * BYTES_PER_DEPTH + pathStates.size() / Byte.SIZE;
+  }
+
+  private void checkBudget() {
+    if (maxBytes != UNLIMITED && ramBytesUsed() > maxBytes) {
+      throw new IllegalArgumentException("path of length " + string.length()
+          + " would use more than " + maxBytes + " bytes to iterate");
+    }
+  }
+
+  private PathNode getNode(int index) {
+    if (index == nodes.length) {
+      PathNode[] newNodes = new PathNode[ArrayUtil.oversize(nodes.length+1, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+      System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+      nodes = newNodes;
+    }
+    if (nodes[index] == null) {
+      nodes[index] = new PathNode();
+    }
+    return nodes[index];
+  }
+
+  /** Nodes for the stack of the iteration. */
+  private static class PathNode {
+
+    /** Which state the path node ends on, whose
+     *  transitions we are enumerating. */
+    public int state;
+
+    /** Which state the current transition leads to. */
+    public int to;
+
+    /** Which transition we are on. */
+    public int transition;
+
+    /** Which label we are on, in the min-max range of the
+     *  current Transition */
+    public int label;
+
+    private final XTransition t = new XTransition();
+
+    public void resetState(XAutomaton a, int state) {
+      assert a.getNumTransitions(state) != 0;
+      this.state = state;
+      transition = 0;
+      a.getTransition(state, 0, t);
+      label = t.min;
+      to = t.dest;
+    }
+
+    /** Returns next label of current transition, or
+     *  advances to next transition and returns its first
+     *  label, if current one is exhausted.  If there are
+     *  no more transitions, returns -1. */
+    public int nextLabel(XAutomaton a) {
+      if (label > t.max) {
+        // We've exhaused the current transition's labels;
+        // move to next transitions:
+        transition++;
+        if (transition >= a.getNumTransitions(state)) {
+          // We're done iterating transitions leaving this state
+          return -1;
+        }
+        a.getTransition(state, transition, t);
+        label = t.min;
+        to = t.dest;
+      }
+      return label++;
+    }
+  }
+}
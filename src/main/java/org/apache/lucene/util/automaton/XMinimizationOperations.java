@@ -30,10 +30,13 @@
 package org.apache.lucene.util.automaton;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedList;
 
+import org.apache.lucene.util.ArrayUtil;
+
 /**
  * Operations for minimizing automata.
  * 
@@ -51,7 +54,47 @@ final public class XMinimizationOperations {
    *  lower to prevent memory exhaustion.
    */
   public static XAutomaton minimize(XAutomaton a, int maxDeterminizedStates) {
-    return minimizeHopcroft(a, maxDeterminizedStates);
+    return minimize(a, maxDeterminizedStates, null);
+  }
+
+  /**
+   * Minimizes (and determinizes if not already deterministic) the given
+   * automaton.
+   * @param maxDeterminizedStates maximum number of states determinizing the
+   *  automaton can result in.  Set higher to allow more complex queries and
+   *  lower to prevent memory exhaustion.
+   * @param parallel determinize on more than one thread. May be null.
+   */
+  public static XAutomaton minimize(XAutomaton a, int maxDeterminizedStates, XParallelDeterminizer parallel) {
+    if (a.getNumStates() == 0 || (a.isAccept(0) == false && a.getNumTransitions(0) == 0)) {
+      // Fastmatch for common case
+      return new XAutomaton();
+    }
+    a = XOperations.determinize(a, maxDeterminizedStates, parallel);
+    // Finite languages are minimized by merging identical states bottom up
+    // which is linear. Everything else needs partition refinement.
+    XAutomaton minimal = minimizeAcyclic(a);
+    if (minimal != null) {
+      return minimal;
+    }
+    return new Valmari(a).minimize();
+  }
+
+  /**
+   * Minimizes the given automaton using Valmari and Lehtinen's partition
+   * refinement algorithm. It runs in O(m log n) time for m transitions and
+   * n states and works on partial automata so unlike Hopcroft's algorithm it
+   * doesn't have to totalize the automaton first.
+   * @param maxDeterminizedStates maximum number of states determinizing the
+   *  automaton can result in.  Set higher to allow more complex queries and
+   *  lower to prevent memory exhaustion.
+   */
+  public static XAutomaton minimizeValmari(XAutomaton a, int maxDeterminizedStates) {
+    if (a.getNumStates() == 0 || (a.isAccept(0) == false && a.getNumTransitions(0) == 0)) {
+      // Fastmatch for common case
+      return new XAutomaton();
+    }
+    return new Valmari(XOperations.determinize(a, maxDeterminizedStates)).minimize();
   }
   
   /**
@@ -61,11 +104,22 @@ final public class XMinimizationOperations {
    *  lower to prevent memory exhaustion.
    */
   public static XAutomaton minimizeHopcroft(XAutomaton a, int maxDeterminizedStates) {
+    return minimizeHopcroft(a, maxDeterminizedStates, null);
+  }
+
+  /**
+   * Minimizes the given automaton using Hopcroft's algorithm.
+   * @param maxDeterminizedStates maximum number of states determinizing the
+   *  automaton can result in.  Set higher to allow more complex queries and
+   *  lower to prevent memory exhaustion.
+   * @param parallel determinize on more than one thread. May be null.
+   */
+  public static XAutomaton minimizeHopcroft(XAutomaton a, int maxDeterminizedStates, XParallelDeterminizer parallel) {
     if (a.getNumStates() == 0 || (a.isAccept(0) == false && a.getNumTransitions(0) == 0)) {
       // Fastmatch for common case
       return new XAutomaton();
     }
-    a = XOperations.determinize(a, maxDeterminizedStates);
+    a = XOperations.determinize(a, maxDeterminizedStates, parallel);
     //a.writeDot("adet");
     if (a.getNumTransitions(0) == 1) {
       XTransition t = new XTransition();
@@ -261,6 +315,496 @@ final public class XMinimizationOperations {
     return XOperations.removeDeadStates(result);
   }
   
+  /**
+   * Minimizes a deterministic automaton that accepts a finite language by
+   * walking it in post order and merging states with identical accept flags
+   * and transitions (Revuz's algorithm). Dead and unreachable states are
+   * dropped along the way.
+   * @return the minimal automaton, the automaton itself if it was already
+   *  minimal, or null if the automaton has a cycle
+   */
+  static XAutomaton minimizeAcyclic(XAutomaton a) {
+    final int numStates = a.getNumStates();
+    // -2 is unvisited, -3 is on the stack, -1 is dead, otherwise the class
+    final int[] canonical = new int[numStates];
+    Arrays.fill(canonical, -2);
+    int[] stack = new int[16];
+    int[] stackNext = new int[16];
+    int stackSize = 0;
+    final XTransition t = new XTransition();
+    final Signatures signatures = new Signatures();
+
+    canonical[0] = -3;
+    stack[stackSize++] = 0;
+    while (stackSize > 0) {
+      final int q = stack[stackSize - 1];
+      final int next = stackNext[stackSize - 1];
+      if (next < a.getNumTransitions(q)) {
+        stackNext[stackSize - 1]++;
+        a.getTransition(q, next, t);
+        if (canonical[t.dest] == -3) {
+          // Cycle - leave it to partition refinement
+          return null;
+        }
+        if (canonical[t.dest] == -2) {
+          canonical[t.dest] = -3;
+          if (stackSize == stack.length) {
+            stack = ArrayUtil.grow(stack);
+            stackNext = ArrayUtil.grow(stackNext, stack.length);
+          }
+          stack[stackSize] = t.dest;
+          stackNext[stackSize] = 0;
+          stackSize++;
+        }
+        continue;
+      }
+      stackSize--;
+      canonical[q] = signatures.canonicalize(a, q, canonical, t);
+    }
+
+    if (canonical[0] == -1) {
+      return new XAutomaton();
+    }
+    final int numClasses = signatures.count;
+    if (numClasses == numStates) {
+      return a;
+    }
+    // The initial state is always the last class created so numbering
+    // classes backwards makes it state 0.
+    XAutomaton result = new XAutomaton();
+    for (int state = 0; state < numClasses; state++) {
+      result.createState();
+    }
+    for (int state = 0; state < numClasses; state++) {
+      final int c = numClasses - 1 - state;
+      int i = signatures.starts[c];
+      result.setAccept(state, signatures.values[i++] == 1);
+      final int end = signatures.starts[c + 1];
+      while (i < end) {
+        result.addTransition(state, numClasses - 1 - signatures.values[i + 2], signatures.values[i], signatures.values[i + 1]);
+        i += 3;
+      }
+    }
+    result.finishState();
+    return result;
+  }
+
+  /**
+   * Hash consed accept flag and transitions of each equivalence class found
+   * by {@link #minimizeAcyclic(XAutomaton)}. Classes are stored back to back
+   * in one pooled array and looked up with an open addressing table.
+   */
+  private static final class Signatures {
+    int count;
+    int[] values = new int[64];
+    int[] starts = new int[17];
+    private int[] hashes = new int[16];
+    private int[] table = new int[32];
+    private int shift = 32 - 5;
+    private int[] scratch = new int[16];
+
+    /**
+     * Find the class of a state whose destinations have all been
+     * canonicalized, creating it if needed.
+     * @return the class or -1 if the state is dead
+     */
+    int canonicalize(XAutomaton a, int q, int[] canonical, XTransition t) {
+      final boolean accept = a.isAccept(q);
+      int length = 1;
+      scratch[0] = accept ? 1 : 0;
+      final int numTransitions = a.initTransition(q, t);
+      for (int i = 0; i < numTransitions; i++) {
+        a.getNextTransition(t);
+        final int dest = canonical[t.dest];
+        if (dest == -1) {
+          continue;
+        }
+        if (length > 1 && scratch[length - 1] == dest && scratch[length - 2] + 1 == t.min) {
+          // Destinations that were merged can make neighboring ranges line up
+          scratch[length - 2] = t.max;
+          continue;
+        }
+        if (length + 3 > scratch.length) {
+          scratch = ArrayUtil.grow(scratch, length + 3);
+        }
+        scratch[length++] = t.min;
+        scratch[length++] = t.max;
+        scratch[length++] = dest;
+      }
+      if (length == 1 && accept == false) {
+        return -1;
+      }
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        hash = 31 * hash + scratch[i];
+      }
+      final int mask = table.length - 1;
+      int slot = (hash * 0x9E3779B9) >>> shift;
+      while (table[slot] != 0) {
+        final int c = table[slot] - 1;
+        if (hashes[c] == hash && same(c, length)) {
+          return c;
+        }
+        slot = (slot + 1) & mask;
+      }
+      final int c = count++;
+      if (c == hashes.length) {
+        hashes = ArrayUtil.grow(hashes);
+        starts = ArrayUtil.grow(starts, hashes.length + 1);
+      }
+      final int start = starts[c];
+      if (start + length > values.length) {
+        values = ArrayUtil.grow(values, start + length);
+      }
+      System.arraycopy(scratch, 0, values, start, length);
+      starts[c + 1] = start + length;
+      hashes[c] = hash;
+      table[slot] = c + 1;
+      if (count * 2 > table.length) {
+        rehash();
+      }
+      return c;
+    }
+
+    private boolean same(int c, int length) {
+      final int start = starts[c];
+      if (starts[c + 1] - start != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (values[start + i] != scratch[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehash() {
+      table = new int[table.length * 2];
+      shift--;
+      final int mask = table.length - 1;
+      for (int c = 0; c < count; c++) {
+        int slot = (hashes[c] * 0x9E3779B9) >>> shift;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = c + 1;
+      }
+    }
+  }
+
+  /**
+   * Valmari and Lehtinen's DFA minimization from "Fast brief practical DFA
+   * minimization". Transitions are split on the automaton's start points so
+   * each one carries a single label. States and transitions live in two
+   * refinable partitions backed by primitive arrays. Unreachable and dead
+   * states are removed before refining.
+   */
+  private static final class Valmari {
+    private final XAutomaton a;
+    private final int numStates;
+    private int numTransitions;
+    private final int[] tails;
+    private final int[] labels;
+    private final int[] heads;
+    private final Partition blocks;
+    /**
+     * Transitions grouped by tail or head. See {@link #makeAdjacent(int[])}.
+     */
+    private final int[] adjacent;
+    private final int[] adjacentStarts;
+    private int reached;
+
+    Valmari(XAutomaton a) {
+      this.a = a;
+      numStates = a.getNumStates();
+      final int[] points = a.getStartPoints();
+      final XTransition t = new XTransition();
+      long total = 0;
+      for (int q = 0; q < numStates; q++) {
+        final int count = a.initTransition(q, t);
+        for (int i = 0; i < count; i++) {
+          a.getNextTransition(t);
+          total += pointIndexAfter(points, t.max) - Arrays.binarySearch(points, t.min);
+        }
+      }
+      if (total > ArrayUtil.MAX_ARRAY_LENGTH) {
+        throw new IllegalArgumentException("Automaton has too many transitions to minimize: " + total);
+      }
+      numTransitions = (int) total;
+      tails = new int[numTransitions];
+      labels = new int[numTransitions];
+      heads = new int[numTransitions];
+      int n = 0;
+      for (int q = 0; q < numStates; q++) {
+        final int count = a.initTransition(q, t);
+        for (int i = 0; i < count; i++) {
+          a.getNextTransition(t);
+          final int end = pointIndexAfter(points, t.max);
+          for (int label = Arrays.binarySearch(points, t.min); label < end; label++) {
+            tails[n] = q;
+            labels[n] = label;
+            heads[n] = t.dest;
+            n++;
+          }
+        }
+      }
+      blocks = new Partition(numStates);
+      adjacent = new int[numTransitions];
+      adjacentStarts = new int[numStates + 1];
+    }
+
+    /**
+     * Index of the first point after max.
+     */
+    private static int pointIndexAfter(int[] points, int max) {
+      if (max == Character.MAX_CODE_POINT) {
+        return points.length;
+      }
+      return Arrays.binarySearch(points, max + 1);
+    }
+
+    XAutomaton minimize() {
+      // Throw out states we can't reach from the initial state
+      reach(0);
+      removeUnreachable(tails, heads);
+      // Then states that can't reach an accept state
+      for (int q = 0; q < numStates; q++) {
+        if (a.isAccept(q) && blocks.location[q] < blocks.past[0]) {
+          reach(q);
+        }
+      }
+      final int numAccept = reached;
+      removeUnreachable(heads, tails);
+      final int numLive = blocks.past[0];
+      if (blocks.location[0] >= numLive) {
+        return new XAutomaton();
+      }
+
+      // Accept states are at the front of the live states so they split off
+      blocks.marked[0] = numAccept;
+      blocks.touched[blocks.numTouched++] = 0;
+      blocks.split();
+
+      // Group the transitions by label
+      final int[] labelStarts = new int[a.getStartPoints().length + 1];
+      for (int t = 0; t < numTransitions; t++) {
+        labelStarts[labels[t] + 1]++;
+      }
+      for (int l = 1; l < labelStarts.length; l++) {
+        labelStarts[l] += labelStarts[l - 1];
+      }
+      final Partition cords = new Partition(numTransitions);
+      cords.numSets = 0;
+      final int[] fill = Arrays.copyOf(labelStarts, labelStarts.length);
+      for (int t = 0; t < numTransitions; t++) {
+        final int i = fill[labels[t]]++;
+        cords.elements[i] = t;
+        cords.location[t] = i;
+      }
+      for (int l = 0; l + 1 < labelStarts.length; l++) {
+        if (labelStarts[l] == labelStarts[l + 1]) {
+          continue;
+        }
+        final int c = cords.numSets++;
+        cords.first[c] = labelStarts[l];
+        cords.past[c] = labelStarts[l + 1];
+        for (int i = labelStarts[l]; i < labelStarts[l + 1]; i++) {
+          cords.setOf[cords.elements[i]] = c;
+        }
+      }
+
+      // Refine until the blocks are stable
+      makeAdjacent(heads);
+      int b = 1;
+      int c = 0;
+      while (c < cords.numSets) {
+        for (int i = cords.first[c]; i < cords.past[c]; i++) {
+          blocks.mark(tails[cords.elements[i]]);
+        }
+        blocks.split();
+        c++;
+        while (b < blocks.numSets) {
+          for (int i = blocks.first[b]; i < blocks.past[b]; i++) {
+            final int q = blocks.elements[i];
+            for (int j = adjacentStarts[q]; j < adjacentStarts[q + 1]; j++) {
+              cords.mark(adjacent[j]);
+            }
+          }
+          cords.split();
+          b++;
+        }
+      }
+
+      final int numBlocks = blocks.numSets;
+      if (numBlocks == numStates) {
+        // Every state is live and distinct so it was already minimal
+        return a;
+      }
+      // Number the blocks so the initial state's block is state 0
+      final int[] blockState = new int[numBlocks];
+      final int[] stateBlock = new int[numBlocks];
+      final int initialBlock = blocks.setOf[0];
+      int next = 1;
+      for (int block = 0; block < numBlocks; block++) {
+        final int state = block == initialBlock ? 0 : next++;
+        blockState[block] = state;
+        stateBlock[state] = block;
+      }
+      XAutomaton result = new XAutomaton();
+      for (int state = 0; state < numBlocks; state++) {
+        result.createState();
+      }
+      final XTransition t = new XTransition();
+      for (int state = 0; state < numBlocks; state++) {
+        final int representative = blocks.elements[blocks.first[stateBlock[state]]];
+        result.setAccept(state, a.isAccept(representative));
+        final int count = a.initTransition(representative, t);
+        for (int i = 0; i < count; i++) {
+          a.getNextTransition(t);
+          if (blocks.location[t.dest] < numLive) {
+            result.addTransition(state, blockState[blocks.setOf[t.dest]], t.min, t.max);
+          }
+        }
+      }
+      result.finishState();
+      return result;
+    }
+
+    /**
+     * Group transition indexes by the state in by so adjacent[adjacentStarts[q]]
+     * through adjacent[adjacentStarts[q + 1] - 1] are the transitions with q in
+     * by.
+     */
+    private void makeAdjacent(int[] by) {
+      Arrays.fill(adjacentStarts, 0);
+      for (int t = 0; t < numTransitions; t++) {
+        adjacentStarts[by[t]]++;
+      }
+      for (int q = 0; q < numStates; q++) {
+        adjacentStarts[q + 1] += adjacentStarts[q];
+      }
+      for (int t = numTransitions - 1; t >= 0; t--) {
+        adjacent[--adjacentStarts[by[t]]] = t;
+      }
+    }
+
+    /**
+     * Move a state to the front of the first block if it isn't already
+     * there.
+     */
+    private void reach(int q) {
+      final int i = blocks.location[q];
+      if (i >= reached) {
+        blocks.elements[i] = blocks.elements[reached];
+        blocks.location[blocks.elements[i]] = i;
+        blocks.elements[reached] = q;
+        blocks.location[q] = reached++;
+      }
+    }
+
+    /**
+     * Reach everything reachable from the states already reached following
+     * transitions from their from side to their to side then drop the rest
+     * of the states and their transitions.
+     */
+    private void removeUnreachable(int[] from, int[] to) {
+      makeAdjacent(from);
+      for (int i = 0; i < reached; i++) {
+        final int q = blocks.elements[i];
+        for (int j = adjacentStarts[q]; j < adjacentStarts[q + 1]; j++) {
+          reach(to[adjacent[j]]);
+        }
+      }
+      int kept = 0;
+      for (int t = 0; t < numTransitions; t++) {
+        if (blocks.location[from[t]] < reached) {
+          tails[kept] = tails[t];
+          labels[kept] = labels[t];
+          heads[kept] = heads[t];
+          kept++;
+        }
+      }
+      numTransitions = kept;
+      blocks.past[0] = reached;
+      reached = 0;
+    }
+  }
+
+  /**
+   * Refinable partition of the integers [0, size). Elements of each set are
+   * contiguous in elements. Marking moves an element to the front of its set
+   * and splitting moves the marked or unmarked elements of each touched set,
+   * whichever is smaller, to a new set.
+   */
+  static final class Partition {
+    int numSets;
+    final int[] elements;
+    final int[] location;
+    final int[] setOf;
+    final int[] first;
+    final int[] past;
+    final int[] marked;
+    final int[] touched;
+    int numTouched;
+
+    Partition(int size) {
+      elements = new int[size];
+      location = new int[size];
+      setOf = new int[size];
+      first = new int[size + 1];
+      past = new int[size + 1];
+      marked = new int[size + 1];
+      touched = new int[size + 1];
+      for (int i = 0; i < size; i++) {
+        elements[i] = i;
+        location[i] = i;
+      }
+      if (size > 0) {
+        numSets = 1;
+        past[0] = size;
+      }
+    }
+
+    void mark(int e) {
+      final int s = setOf[e];
+      final int i = location[e];
+      final int j = first[s] + marked[s];
+      elements[i] = elements[j];
+      location[elements[i]] = i;
+      elements[j] = e;
+      location[e] = j;
+      if (marked[s]++ == 0) {
+        touched[numTouched++] = s;
+      }
+    }
+
+    void split() {
+      while (numTouched > 0) {
+        final int s = touched[--numTouched];
+        final int j = first[s] + marked[s];
+        if (j == past[s]) {
+          marked[s] = 0;
+          continue;
+        }
+        if (marked[s] <= past[s] - j) {
+          first[numSets] = first[s];
+          past[numSets] = j;
+          first[s] = j;
+        } else {
+          past[numSets] = past[s];
+          first[numSets] = j;
+          past[s] = j;
+        }
+        for (int i = first[numSets]; i < past[numSets]; i++) {
+          setOf[elements[i]] = numSets;
+        }
+        marked[s] = 0;
+        marked[numSets++] = 0;
+      }
+    }
+  }
+
   static final class IntPair {
     
     final int n1, n2;
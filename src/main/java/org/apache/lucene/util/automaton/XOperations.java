@@ -37,13 +37,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IntsRef;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.apache.lucene.util.XBytesRefBuilder;
 import org.apache.lucene.util.XIntsRefBuilder;
 
@@ -652,6 +656,151 @@ final public class XOperations {
     }
   }
 
+  /**
+   * The subsets of NFA states that became DFA states while determinizing,
+   * indexed by DFA state. Members of all subsets are packed into one pooled
+   * int[] and found again through an open addressing table of state ids so
+   * nothing is boxed and adding a DFA state doesn't allocate.
+   */
+  private final static class SubsetStates {
+    // Members of subset i are values[starts[i]] to values[starts[i+1]-1]
+    int[] values = new int[16];
+    int[] starts = new int[17];
+    // XSortedIntSet style hash of each subset
+    int[] hashes = new int[16];
+    int count;
+
+    // 1+subset or 0 for empty slots
+    private int[] table = new int[32];
+    private int mask = 31;
+    // 32 - log2(table.length)
+    private int shift = 27;
+
+    /**
+     * Add the subset holding only the initial state.
+     */
+    void addInitial() {
+      assert count == 0;
+      values[0] = 0;
+      starts[1] = 1;
+      // Same as XSortedIntSet#computeHash for {0}
+      hashes[0] = 683;
+      count = 1;
+      insert(0);
+    }
+
+    /**
+     * Find the DFA state for the subset in set or -1 if there isn't one.
+     * set must have had computeHash called on it since it was modified.
+     */
+    int find(XSortedIntSet set) {
+      return find(set.values, 0, set.upto, set.hashCode());
+    }
+
+    /**
+     * Find the DFA state for the subset in members[start] to
+     * members[start+length-1] with the given XSortedIntSet style hash or -1
+     * if there isn't one.
+     */
+    int find(int[] members, int start, int length, int hash) {
+      for (int slot = slot(hash);; slot = (slot + 1) & mask) {
+        final int entry = table[slot];
+        if (entry == 0) {
+          return -1;
+        }
+        final int subset = entry - 1;
+        if (hashes[subset] == hash && sameMembers(subset, members, start, length)) {
+          return subset;
+        }
+      }
+    }
+
+    /**
+     * Add the subset in set as the next DFA state and return it.
+     */
+    int add(XSortedIntSet set) {
+      return add(set.values, 0, set.upto, set.hashCode());
+    }
+
+    /**
+     * Add the subset in members[start] to members[start+length-1] as the
+     * next DFA state and return it.
+     */
+    int add(int[] members, int start, int length, int hash) {
+      final int subset = count;
+      final int valuesStart = starts[subset];
+      final int end = valuesStart + length;
+      if (end > values.length) {
+        values = ArrayUtil.grow(values, end);
+      }
+      System.arraycopy(members, start, values, valuesStart, length);
+      if (subset + 2 > starts.length) {
+        starts = ArrayUtil.grow(starts, subset + 2);
+      }
+      starts[subset + 1] = end;
+      if (subset + 1 > hashes.length) {
+        hashes = ArrayUtil.grow(hashes, subset + 1);
+      }
+      hashes[subset] = hash;
+      count++;
+      if (count * 2 > table.length) {
+        rehash();
+      } else {
+        insert(subset);
+      }
+      return subset;
+    }
+
+    private boolean sameMembers(int subset, int[] members, int start, int length) {
+      final int valuesStart = starts[subset];
+      if (starts[subset + 1] - valuesStart != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (values[valuesStart + i] != members[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void insert(int subset) {
+      int slot = slot(hashes[subset]);
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = subset + 1;
+    }
+
+    private void rehash() {
+      table = new int[table.length * 2];
+      mask = table.length - 1;
+      shift--;
+      for (int subset = 0; subset < count; subset++) {
+        insert(subset);
+      }
+    }
+
+    /**
+     * Fibonacci hashing - the high bits of the product depend on all of the
+     * hash's bits while the low bits of 683*hash+state cluster badly.
+     */
+    private int slot(int hash) {
+      return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    String toString(int subset) {
+      StringBuilder sb = new StringBuilder().append('[');
+      for (int i = starts[subset]; i < starts[subset + 1]; i++) {
+        if (i > starts[subset]) {
+          sb.append(' ');
+        }
+        sb.append(values[i]);
+      }
+      return sb.append(']').toString();
+    }
+  }
+
   /**
    * Determinizes the given automaton.
    * <p>
@@ -680,18 +829,14 @@ final public class XOperations {
     //System.out.println("DET:");
     //a.writeDot("/l/la/lucene/core/detin.dot");
 
-    XSortedIntSet.FrozenIntSet initialset = new XSortedIntSet.FrozenIntSet(0, 0);
+    // DFA states are numbered in the order their subsets are added and
+    // processed in that same order so the subsets are also the worklist.
+    final SubsetStates subsets = new SubsetStates();
 
     // Create state 0:
     b.createState();
-
-    LinkedList<XSortedIntSet.FrozenIntSet> worklist = new LinkedList<>();
-    Map<XSortedIntSet.FrozenIntSet,Integer> newstate = new HashMap<>();
-
-    worklist.add(initialset);
-
+    subsets.addInitial();
     b.setAccept(0, a.isAccept(0));
-    newstate.put(initialset, 0);
 
     // like Set<Integer,PointTransitions>
     final PointTransitionSet points = new PointTransitionSet();
@@ -701,13 +846,14 @@ final public class XOperations {
 
     XTransition t = new XTransition();
 
-    while (worklist.size() > 0) {
-      XSortedIntSet.FrozenIntSet s = worklist.removeFirst();
-      //System.out.println("det: pop set=" + s);
+    for (int r = 0; r < subsets.count; r++) {
+      //System.out.println("det: pop set=" + subsets.toString(r));
 
       // Collate all outgoing transitions by min/1+max:
-      for(int i=0;i<s.values.length;i++) {
-        final int s0 = s.values[i];
+      final int[] values = subsets.values;
+      final int end = subsets.starts[r+1];
+      for(int i=subsets.starts[r];i<end;i++) {
+        final int s0 = values[i];
         int numTransitions = a.getNumTransitions(s0);
         a.initTransition(s0, t);
         for(int j=0;j<numTransitions;j++) {
@@ -726,8 +872,6 @@ final public class XOperations {
       int lastPoint = -1;
       int accCount = 0;
 
-      final int r = s.state;
-
       for(int i=0;i<points.count;i++) {
 
         final int point = points.points[i].point;
@@ -737,17 +881,16 @@ final public class XOperations {
 
           statesSet.computeHash();
           
-          Integer q = newstate.get(statesSet);
-          if (q == null) {
+          int q = subsets.find(statesSet);
+          if (q == -1) {
             q = b.createState();
             if (q >= maxDeterminizedStates) {
               throw new XTooComplexToDeterminizeException(a, maxDeterminizedStates);
             }
-            final XSortedIntSet.FrozenIntSet p = statesSet.freeze(q);
-            //System.out.println("  make new state=" + q + " -> " + p + " accCount=" + accCount);
-            worklist.add(p);
+            final int added = subsets.add(statesSet);
+            assert added == q;
+            //System.out.println("  make new state=" + q + " -> " + statesSet + " accCount=" + accCount);
             b.setAccept(q, accCount > 0);
-            newstate.put(p, q);
           } else {
             assert (accCount > 0 ? true:false) == b.isAccept(q): "accCount=" + accCount + " vs existing accept=" +
               b.isAccept(q) + " states=" + statesSet;
@@ -790,6 +933,267 @@ final public class XOperations {
     return result;
   }
 
+  /**
+   * Determinizes the given automaton, optionally computing the transitions
+   * out of each breadth first level of new states on more than one thread.
+   * New states are numbered on the calling thread in the same order as
+   * {@link #determinize(XAutomaton, int)} numbers them so the result is
+   * identical.
+   * @param parallel how to spread the work across threads. If null this is
+   *   the same as {@link #determinize(XAutomaton, int)}.
+   * @throws XTooComplexToDeterminizeException if determinizing a creates an
+   *   automaton with more than maxDeterminizedStates
+   */
+  public static XAutomaton determinize(XAutomaton a, int maxDeterminizedStates, XParallelDeterminizer parallel) {
+    if (parallel == null || parallel.parallelism <= 1) {
+      return determinize(a, maxDeterminizedStates);
+    }
+    if (a.isDeterministic()) {
+      // Already determinized
+      return a;
+    }
+    if (a.getNumStates() <= 1) {
+      // Already determinized
+      return a;
+    }
+
+    XAutomaton.Builder b = new XAutomaton.Builder();
+    final SubsetStates subsets = new SubsetStates();
+
+    // Create state 0:
+    b.createState();
+    subsets.addInitial();
+    b.setAccept(0, a.isAccept(0));
+
+    final SubsetSteps steps = new SubsetSteps();
+    int levelStart = 0;
+    while (levelStart < subsets.count) {
+      final int levelEnd = subsets.count;
+      final SubsetStep[] level = steps.compute(a, subsets, levelStart, levelEnd, parallel);
+      for (int r = levelStart; r < levelEnd; r++) {
+        final SubsetStep step = level[r - levelStart];
+        for (int i = 0; i < step.count; i++) {
+          final int start = step.starts[i];
+          final int length = step.starts[i+1] - start;
+          int q = subsets.find(step.members, start, length, step.hashes[i]);
+          if (q == -1) {
+            q = b.createState();
+            if (q >= maxDeterminizedStates) {
+              throw new XTooComplexToDeterminizeException(a, maxDeterminizedStates);
+            }
+            final int added = subsets.add(step.members, start, length, step.hashes[i]);
+            assert added == q;
+            b.setAccept(q, step.accepts[i]);
+          }
+          b.addTransition(r, q, step.mins[i], step.maxes[i]);
+        }
+      }
+      levelStart = levelEnd;
+    }
+
+    XAutomaton result = b.finish();
+    assert result.isDeterministic();
+    return result;
+  }
+
+  /**
+   * The transitions out of one DFA state: a range of characters and the
+   * subset of NFA states it leads to for each.
+   */
+  private final static class SubsetStep {
+    int count;
+    int[] mins = new int[4];
+    int[] maxes = new int[4];
+    boolean[] accepts = new boolean[4];
+    int[] hashes = new int[4];
+    // Members of transition i's subset are members[starts[i]] to
+    // members[starts[i+1]-1]
+    int[] starts = new int[5];
+    int[] members = new int[16];
+
+    void add(int min, int max, XSortedIntSet set, boolean accept) {
+      if (count == mins.length) {
+        final int size = ArrayUtil.oversize(1+count, RamUsageEstimator.NUM_BYTES_INT);
+        mins = Arrays.copyOf(mins, size);
+        maxes = Arrays.copyOf(maxes, size);
+        accepts = Arrays.copyOf(accepts, size);
+        hashes = Arrays.copyOf(hashes, size);
+        starts = Arrays.copyOf(starts, size + 1);
+      }
+      final int start = starts[count];
+      final int end = start + set.upto;
+      if (end > members.length) {
+        members = ArrayUtil.grow(members, end);
+      }
+      System.arraycopy(set.values, 0, members, start, set.upto);
+      mins[count] = min;
+      maxes[count] = max;
+      accepts[count] = accept;
+      hashes[count] = set.hashCode();
+      starts[count+1] = end;
+      count++;
+    }
+  }
+
+  /**
+   * Computes {@link SubsetStep}s for a level of DFA states, spreading them
+   * across threads if the level is big enough.
+   */
+  private final static class SubsetSteps {
+    // How many states a thread claims at a time
+    private final static int CHUNK = 16;
+
+    SubsetStep[] compute(final XAutomaton a, final SubsetStates subsets, final int levelStart, final int levelEnd,
+        XParallelDeterminizer parallel) {
+      final int size = levelEnd - levelStart;
+      final SubsetStep[] level = new SubsetStep[size];
+      if (size < parallel.minParallelLevel) {
+        new Worker(a, subsets, levelStart, level).steps(0, size);
+        return level;
+      }
+      final int chunks = (size + CHUNK - 1) / CHUNK;
+      final AtomicInteger nextChunk = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(chunks);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final Runnable work = new Runnable() {
+        @Override
+        public void run() {
+          Worker worker = new Worker(a, subsets, levelStart, level);
+          int chunk;
+          while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+            try {
+              worker.steps(chunk * CHUNK, Math.min(size, (chunk + 1) * CHUNK));
+            } catch (Throwable t) {
+              failure.compareAndSet(null, t);
+            } finally {
+              done.countDown();
+            }
+          }
+        }
+      };
+      final int helpers = Math.min(parallel.parallelism, chunks) - 1;
+      for (int i = 0; i < helpers; i++) {
+        try {
+          parallel.executor.execute(work);
+        } catch (RejectedExecutionException e) {
+          // The calling thread will pick up the slack
+          break;
+        }
+      }
+      // Work on this thread too so a busy executor only slows us down.
+      // Helpers that start after all the chunks are claimed do nothing.
+      work.run();
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      }
+      Throwable t = failure.get();
+      if (t != null) {
+        if (t instanceof RuntimeException) {
+          throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+          throw (Error) t;
+        }
+        throw new RuntimeException(t);
+      }
+      return level;
+    }
+
+    /**
+     * Per thread buffers for computing steps.
+     */
+    private final static class Worker {
+      private final XAutomaton a;
+      private final SubsetStates subsets;
+      private final int levelStart;
+      private final SubsetStep[] level;
+      private final PointTransitionSet points = new PointTransitionSet();
+      private final XSortedIntSet statesSet = new XSortedIntSet(5);
+      private final XTransition t = new XTransition();
+
+      Worker(XAutomaton a, SubsetStates subsets, int levelStart, SubsetStep[] level) {
+        this.a = a;
+        this.subsets = subsets;
+        this.levelStart = levelStart;
+        this.level = level;
+      }
+
+      void steps(int from, int to) {
+        for (int i = from; i < to; i++) {
+          level[i] = step(levelStart + i);
+        }
+      }
+
+      /**
+       * Same as the body of the worklist loop in determinize but collecting
+       * the transitions rather than adding them to a builder.
+       */
+      private SubsetStep step(int r) {
+        final SubsetStep step = new SubsetStep();
+
+        // Collate all outgoing transitions by min/1+max:
+        final int end = subsets.starts[r+1];
+        for(int i=subsets.starts[r];i<end;i++) {
+          final int s0 = subsets.values[i];
+          int numTransitions = a.getNumTransitions(s0);
+          a.initTransition(s0, t);
+          for(int j=0;j<numTransitions;j++) {
+            a.getNextTransition(t);
+            points.add(t);
+          }
+        }
+
+        if (points.count == 0) {
+          // No outgoing transitions -- skip it
+          return step;
+        }
+
+        points.sort();
+
+        int lastPoint = -1;
+        int accCount = 0;
+
+        for(int i=0;i<points.count;i++) {
+          final int point = points.points[i].point;
+
+          if (statesSet.upto > 0) {
+            assert lastPoint != -1;
+            statesSet.computeHash();
+            step.add(lastPoint, point-1, statesSet, accCount > 0);
+          }
+
+          // process transitions that end on this point
+          // (closes an overlapping interval)
+          int[] transitions = points.points[i].ends.transitions;
+          int limit = points.points[i].ends.next;
+          for(int j=0;j<limit;j+=3) {
+            int dest = transitions[j];
+            statesSet.decr(dest);
+            accCount -= a.isAccept(dest) ? 1:0;
+          }
+          points.points[i].ends.next = 0;
+
+          // process transitions that start on this point
+          // (opens a new interval)
+          transitions = points.points[i].starts.transitions;
+          limit = points.points[i].starts.next;
+          for(int j=0;j<limit;j+=3) {
+            int dest = transitions[j];
+            statesSet.incr(dest);
+            accCount += a.isAccept(dest) ? 1:0;
+          }
+          lastPoint = point;
+          points.points[i].starts.next = 0;
+        }
+        points.reset();
+        assert statesSet.upto == 0: "upto=" + statesSet.upto;
+        return step;
+      }
+    }
+  }
+
   /**
    * Returns true if the given automaton accepts no strings.
    */
@@ -1194,65 +1598,9 @@ final public class XOperations {
     return result;
   }
 
-  private static class PathNode {
-
-    /** Which state the path node ends on, whose
-     *  transitions we are enumerating. */
-    public int state;
-
-    /** Which state the current transition leads to. */
-    public int to;
-
-    /** Which transition we are on. */
-    public int transition;
-
-    /** Which label we are on, in the min-max range of the
-     *  current Transition */
-    public int label;
-
-    private final XTransition t = new XTransition();
-
-    public void resetState(XAutomaton a, int state) {
-      assert a.getNumTransitions(state) != 0;
-      this.state = state;
-      transition = 0;
-      a.getTransition(state, 0, t);
-      label = t.min;
-      to = t.dest;
-    }
-
-    /** Returns next label of current transition, or
-     *  advances to next transition and returns its first
-     *  label, if current one is exhausted.  If there are
-     *  no more transitions, returns -1. */
-    public int nextLabel(XAutomaton a) {
-      if (label > t.max) {
-        // We've exhaused the current transition's labels;
-        // move to next transitions:
-        transition++;
-        if (transition >= a.getNumTransitions(state)) {
-          // We're done iterating transitions leaving this state
-          return -1;
-        }
-        a.getTransition(state, transition, t);
-        label = t.min;
-        to = t.dest;
-      }
-      return label++;
-    }
-  }
-
-  private static PathNode getNode(PathNode[] nodes, int index) {
-    assert index < nodes.length;
-    if (nodes[index] == null) {
-      nodes[index] = new PathNode();
-    }
-    return nodes[index];
-  }
-
   // TODO: this is a dangerous method ... Automaton could be
   // huge ... and it's better in general for caller to
-  // enumerate & process in a single walk:
+  // enumerate & process in a single walk with XFiniteStringsIterator:
 
   /** Returns the set of accepted strings, up to at most
    *  <code>limit</code> strings. If more than <code>limit</code> 
@@ -1270,75 +1618,10 @@ final public class XOperations {
       throw new IllegalArgumentException("limit must be -1 (which means no limit), or > 0; got: " + limit);
     }
 
-    if (a.isAccept(0)) {
-      // Special case the empty string, as usual:
-      results.add(new IntsRef());
-    }
-
-    if (a.getNumTransitions(0) > 0 && (limit == -1 || results.size() < limit)) {
-
-      int numStates = a.getNumStates();
-
-      // Tracks which states are in the current path, for
-      // cycle detection:
-      BitSet pathStates = new BitSet(numStates);
-
-      // Stack to hold our current state in the
-      // recursion/iteration:
-      PathNode[] nodes = new PathNode[4];
-
-      pathStates.set(0);
-      PathNode root = getNode(nodes, 0);
-      root.resetState(a, 0);
-
-      XIntsRefBuilder string = new XIntsRefBuilder();
-      string.append(0);
-
-      while (string.length() > 0) {
-
-        PathNode node = nodes[string.length()-1];
-
-        // Get next label leaving the current node:
-        int label = node.nextLabel(a);
-
-        if (label != -1) {
-          string.setIntAt(string.length()-1, label);
-
-          if (a.isAccept(node.to)) {
-            // This transition leads to an accept state,
-            // so we save the current string:
-            results.add(string.toIntsRef());
-            if (results.size() == limit) {
-              break;
-            }
-          }
-
-          if (a.getNumTransitions(node.to) != 0) {
-            // Now recurse: the destination of this transition has
-            // outgoing transitions:
-            if (pathStates.get(node.to)) {
-              throw new IllegalArgumentException("automaton has cycles");
-            }
-            pathStates.set(node.to);
-
-            // Push node onto stack:
-            if (nodes.length == string.length()) {
-              PathNode[] newNodes = new PathNode[ArrayUtil.oversize(nodes.length+1, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
-              System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
-              nodes = newNodes;
-            }
-            getNode(nodes, string.length()).resetState(a, node.to);
-            string.setLength(string.length() + 1);
-            string.grow(string.length());
-          }
-        } else {
-          // No more transitions leaving this state,
-          // pop/return back to previous state:
-          assert pathStates.get(node.state);
-          pathStates.clear(node.state);
-          string.setLength(string.length() - 1);
-        }
-      }
+    XFiniteStringsIterator iterator = new XFiniteStringsIterator(a);
+    IntsRef string;
+    while ((limit == -1 || results.size() < limit) && (string = iterator.next()) != null) {
+      results.add(IntsRef.deepCopyOf(string));
     }
 
     return results;
@@ -0,0 +1,80 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Executor;
+
+/**
+ * Determinizes automata on more than one thread. Subset construction is
+ * breadth first so the transitions out of all states at the same depth can
+ * be computed concurrently. The calling thread still numbers the new states
+ * so the result is identical to {@link XOperations#determinize(XAutomaton, int)}.
+ * The calling thread also does its share of the work so a busy executor
+ * slows determinizing down but never blocks it.
+ * @lucene.experimental
+ */
+public class XParallelDeterminizer {
+  /**
+   * Levels with fewer states than this are computed on the calling thread.
+   * Most regexes never have a level this big.
+   */
+  public static final int DEFAULT_MIN_PARALLEL_LEVEL = 256;
+
+  final Executor executor;
+  final int parallelism;
+  final int minParallelLevel;
+
+  /**
+   * Build with the default minimum level size.
+   * @param executor runs the helper threads
+   * @param parallelism maximum number of threads, including the calling
+   *   thread, working on a level at once
+   */
+  public XParallelDeterminizer(Executor executor, int parallelism) {
+    this(executor, parallelism, DEFAULT_MIN_PARALLEL_LEVEL);
+  }
+
+  /**
+   * Build.
+   * @param executor runs the helper threads
+   * @param parallelism maximum number of threads, including the calling
+   *   thread, working on a level at once
+   * @param minParallelLevel levels with fewer states than this are computed
+   *   on the calling thread
+   */
+  public XParallelDeterminizer(Executor executor, int parallelism, int minParallelLevel) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+    }
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.minParallelLevel = Math.max(1, minParallelLevel);
+  }
+
+  /**
+   * Determinize a.
+   * @throws XTooComplexToDeterminizeException if determinizing a creates an
+   *   automaton with more than maxDeterminizedStates
+   */
+  public XAutomaton determinize(XAutomaton a, int maxDeterminizedStates) {
+    return XOperations.determinize(a, maxDeterminizedStates, this);
+  }
+}
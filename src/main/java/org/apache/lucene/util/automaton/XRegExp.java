@@ -424,7 +424,7 @@ public class XRegExp {
    * as <code>toAutomaton(null)</code> (empty automaton map).
    */
   public XAutomaton toAutomaton() {
-    return toAutomaton(null, null, XOperations.DEFAULT_MAX_DETERMINIZED_STATES);
+    return toAutomaton(null, null, XOperations.DEFAULT_MAX_DETERMINIZED_STATES, null);
   }
 
   /**
@@ -443,7 +443,27 @@ public class XRegExp {
    */
   public XAutomaton toAutomaton(int maxDeterminizedStates)
       throws IllegalArgumentException, XTooComplexToDeterminizeException {
-    return toAutomaton(null, null, maxDeterminizedStates);
+    return toAutomaton(null, null, maxDeterminizedStates, null);
+  }
+
+  /**
+   * Constructs new <code>Automaton</code> from this <code>RegExp</code>. The
+   * constructed automaton is minimal and deterministic and has no transitions
+   * to dead states.
+   * 
+   * @param maxDeterminizedStates maximum number of states in the resulting
+   *   automata.  If the automata would need more than this many states
+   *   TooComplextToDeterminizeException is thrown.  Higher number require more
+   *   space but can process more complex regexes.
+   * @param parallel determinize on more than one thread. May be null.
+   * @exception IllegalArgumentException if this regular expression uses a named
+   *              identifier that is not available from the automaton provider
+   * @exception XTooComplexToDeterminizeException if determinizing this regexp
+   *   requires more than maxDeterminizedStates states
+   */
+  public XAutomaton toAutomaton(int maxDeterminizedStates, XParallelDeterminizer parallel)
+      throws IllegalArgumentException, XTooComplexToDeterminizeException {
+    return toAutomaton(null, null, maxDeterminizedStates, parallel);
   }
 
   /**
@@ -464,7 +484,7 @@ public class XRegExp {
   public XAutomaton toAutomaton(XAutomatonProvider automaton_provider,
       int maxDeterminizedStates) throws IllegalArgumentException,
       XTooComplexToDeterminizeException {
-    return toAutomaton(null, automaton_provider, maxDeterminizedStates);
+    return toAutomaton(null, automaton_provider, maxDeterminizedStates, null);
   }
   
   /**
@@ -486,22 +506,24 @@ public class XRegExp {
   public XAutomaton toAutomaton(Map<String,XAutomaton> automata,
       int maxDeterminizedStates) throws IllegalArgumentException,
       XTooComplexToDeterminizeException {
-    return toAutomaton(automata, null, maxDeterminizedStates);
+    return toAutomaton(automata, null, maxDeterminizedStates, null);
   }
 
   private XAutomaton toAutomaton(Map<String,XAutomaton> automata,
-      XAutomatonProvider automaton_provider, int maxDeterminizedStates)
+      XAutomatonProvider automaton_provider, int maxDeterminizedStates,
+      XParallelDeterminizer parallel)
       throws IllegalArgumentException, XTooComplexToDeterminizeException {
     try {
       return toAutomatonInternal(automata, automaton_provider,
-        maxDeterminizedStates);
+        maxDeterminizedStates, parallel);
     } catch (XTooComplexToDeterminizeException e) {
       throw new XTooComplexToDeterminizeException(this, e);
     }
   }
 
   private XAutomaton toAutomatonInternal(Map<String,XAutomaton> automata,
-      XAutomatonProvider automaton_provider, int maxDeterminizedStates)
+      XAutomatonProvider automaton_provider, int maxDeterminizedStates,
+      XParallelDeterminizer parallel)
       throws IllegalArgumentException {
     List<XAutomaton> list;
     XAutomaton a = null;
@@ -509,60 +531,60 @@ public class XRegExp {
       case REGEXP_UNION:
         list = new ArrayList<>();
         findLeaves(exp1, Kind.REGEXP_UNION, list, automata, automaton_provider,
-          maxDeterminizedStates);
+          maxDeterminizedStates, parallel);
         findLeaves(exp2, Kind.REGEXP_UNION, list, automata, automaton_provider,
-          maxDeterminizedStates);
+          maxDeterminizedStates, parallel);
         a = XOperations.union(list);
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_CONCATENATION:
         list = new ArrayList<>();
         findLeaves(exp1, Kind.REGEXP_CONCATENATION, list, automata,
-            automaton_provider, maxDeterminizedStates);
+            automaton_provider, maxDeterminizedStates, parallel);
         findLeaves(exp2, Kind.REGEXP_CONCATENATION, list, automata,
-            automaton_provider, maxDeterminizedStates);
+            automaton_provider, maxDeterminizedStates, parallel);
         a = XOperations.concatenate(list);
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_INTERSECTION:
         a = XOperations.intersection(
             exp1.toAutomatonInternal(
-              automata, automaton_provider, maxDeterminizedStates),
+              automata, automaton_provider, maxDeterminizedStates, parallel),
             exp2.toAutomatonInternal(
-              automata, automaton_provider, maxDeterminizedStates));
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+              automata, automaton_provider, maxDeterminizedStates, parallel));
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_OPTIONAL:
         a = XOperations.optional(exp1.toAutomatonInternal(automata,
-          automaton_provider, maxDeterminizedStates));
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+          automaton_provider, maxDeterminizedStates, parallel));
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_REPEAT:
         a = XOperations.repeat(exp1.toAutomatonInternal(
-          automata, automaton_provider, maxDeterminizedStates));
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+          automata, automaton_provider, maxDeterminizedStates, parallel));
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_REPEAT_MIN:
         a = XOperations.repeat(
           exp1.toAutomatonInternal(automata, automaton_provider,
-            maxDeterminizedStates),
+            maxDeterminizedStates, parallel),
           min);
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_REPEAT_MINMAX:
         a = XOperations.repeat(
           exp1.toAutomatonInternal(automata, automaton_provider,
-            maxDeterminizedStates),
+            maxDeterminizedStates, parallel),
           min,
           max);
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_COMPLEMENT:
         a = XOperations.complement(
           exp1.toAutomatonInternal(automata, automaton_provider,
-            maxDeterminizedStates),
+            maxDeterminizedStates, parallel),
           maxDeterminizedStates);
-        a = XMinimizationOperations.minimize(a, maxDeterminizedStates);
+        a = XMinimizationOperations.minimize(a, maxDeterminizedStates, parallel);
         break;
       case REGEXP_CHAR:
         a = XAutomata.makeChar(c);
@@ -608,15 +630,15 @@ public class XRegExp {
   
   private void findLeaves(XRegExp exp, Kind kind, List<XAutomaton> list,
       Map<String,XAutomaton> automata, XAutomatonProvider automaton_provider,
-      int maxDeterminizedStates) {
+      int maxDeterminizedStates, XParallelDeterminizer parallel) {
     if (exp.kind == kind) {
       findLeaves(exp.exp1, kind, list, automata, automaton_provider,
-        maxDeterminizedStates);
+        maxDeterminizedStates, parallel);
       findLeaves(exp.exp2, kind, list, automata, automaton_provider,
-        maxDeterminizedStates);
+        maxDeterminizedStates, parallel);
     } else {
       list.add(exp.toAutomatonInternal(automata, automaton_provider, 
-        maxDeterminizedStates));
+        maxDeterminizedStates, parallel));
     }
   }
 
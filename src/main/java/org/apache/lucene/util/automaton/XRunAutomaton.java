@@ -29,8 +29,13 @@
 
 package org.apache.lucene.util.automaton;
 
+import java.io.IOException;
 import java.util.Arrays;
 
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+
 /**
  * Finite-state automaton with fast run operation.
  * 
@@ -134,8 +139,22 @@ public abstract class XRunAutomaton {
    */
   public XRunAutomaton(XAutomaton a, int maxInterval, boolean tableize,
       int maxDeterminizedStates) {
+    this(a, maxInterval, tableize, maxDeterminizedStates, null);
+  }
+
+  /**
+   * Constructs a new <code>RunAutomaton</code> from a deterministic
+   * <code>Automaton</code>.
+   * 
+   * @param a an automaton
+   * @param maxDeterminizedStates maximum number of states that can be created
+   *   while determinizing a
+   * @param parallel determinize on more than one thread. May be null.
+   */
+  public XRunAutomaton(XAutomaton a, int maxInterval, boolean tableize,
+      int maxDeterminizedStates, XParallelDeterminizer parallel) {
     this.maxInterval = maxInterval;
-    a = XOperations.determinize(a, maxDeterminizedStates);
+    a = XOperations.determinize(a, maxDeterminizedStates, parallel);
     this.automaton = a;
     points = a.getStartPoints();
     initial = 0;
@@ -143,12 +162,24 @@ public abstract class XRunAutomaton {
     accept = new boolean[size];
     transitions = new int[size * points.length];
     Arrays.fill(transitions, -1);
-    for (int n=0;n<size;n++) {
+    XTransition t = new XTransition();
+    for (int n=0;n<a.getNumStates();n++) {
       accept[n] = a.isAccept(n);
-      for (int c = 0; c < points.length; c++) {
-        int dest = a.step(n, points[c]);
-        assert dest == -1 || dest < size;
-        transitions[n * points.length + c] = dest;
+      // Every transition's min and max+1 are points so each transition
+      // covers a run of whole intervals. Transitions are sorted by min so
+      // walk them and the points together rather than stepping every point.
+      int numTransitions = a.initTransition(n, t);
+      int c = 0;
+      for (int i = 0; i < numTransitions; i++) {
+        a.getNextTransition(t);
+        assert t.dest < size;
+        while (points[c] < t.min) {
+          c++;
+        }
+        while (c < points.length && points[c] <= t.max) {
+          transitions[n * points.length + c] = t.dest;
+          c++;
+        }
       }
     }
 
@@ -168,6 +199,99 @@ public abstract class XRunAutomaton {
       classmap = null;
     }
   }
+
+  /**
+   * Reads a <code>RunAutomaton</code> written by {@link #writeTo(DataOutput)}.
+   * The run tables are read straight from in so nothing is determinized.
+   * Pair with a memory mapped input to load precompiled automata quickly.
+   * The loaded automaton doesn't keep the <code>Automaton</code> it was
+   * built from.
+   */
+  protected XRunAutomaton(DataInput in) throws IOException {
+    automaton = null;
+    maxInterval = in.readVInt();
+    initial = in.readVInt();
+    size = in.readVInt();
+    int numPoints = in.readVInt();
+    points = new int[numPoints];
+    int point = 0;
+    for (int i = 0; i < numPoints; i++) {
+      point += in.readVInt();
+      points[i] = point;
+    }
+    if (numPoints == 0 || points[0] != 0 || initial >= size) {
+      throw new CorruptIndexException("Invalid run automaton: " + numPoints + " points, initial state "
+          + initial + " of " + size);
+    }
+    accept = new boolean[size];
+    for (int i = 0; i < size; i += 8) {
+      int bits = in.readByte() & 0xFF;
+      for (int j = 0; j < 8 && i + j < size; j++) {
+        accept[i + j] = (bits & (1 << j)) != 0;
+      }
+    }
+    transitions = new int[size * numPoints];
+    for (int i = 0; i < transitions.length; i++) {
+      int dest = in.readVInt() - 1;
+      if (dest >= size) {
+        throw new CorruptIndexException("Invalid run automaton: transition to " + dest + " of " + size);
+      }
+      transitions[i] = dest;
+    }
+    if (in.readByte() != 0) {
+      classmap = new int[maxInterval + 1];
+      int i = 0;
+      for (int j = 0; j <= maxInterval; j++) {
+        if (i + 1 < points.length && j == points[i + 1]) {
+          i++;
+        }
+        classmap[j] = i;
+      }
+    } else {
+      classmap = null;
+    }
+  }
+
+  /**
+   * Writes the run tables in a compact format that
+   * {@link #XRunAutomaton(DataInput)} can read.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeVInt(maxInterval);
+    out.writeVInt(initial);
+    out.writeVInt(size);
+    out.writeVInt(points.length);
+    int last = 0;
+    for (int point : points) {
+      out.writeVInt(point - last);
+      last = point;
+    }
+    for (int i = 0; i < size; i += 8) {
+      int bits = 0;
+      for (int j = 0; j < 8 && i + j < size; j++) {
+        if (accept[i + j]) {
+          bits |= 1 << j;
+        }
+      }
+      out.writeByte((byte) bits);
+    }
+    for (int dest : transitions) {
+      // -1 means no transition so shift everything up to keep it positive
+      out.writeVInt(dest + 1);
+    }
+    out.writeByte((byte) (classmap == null ? 0 : 1));
+  }
+
+  /**
+   * Approximate heap used by the run tables in bytes.
+   */
+  public long ramBytesUsed() {
+    long bytes = size + 4L * (transitions.length + points.length);
+    if (classmap != null) {
+      bytes += 4L * classmap.length;
+    }
+    return bytes;
+  }
   
   /**
    * Returns the state obtained by reading the given char from the given state.
@@ -17,14 +17,14 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
 
-import java.util.TreeMap;
-import java.util.Map;
+import java.util.Arrays;
+
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.RamUsageEstimator;
 
 // Just holds a set of int[] states, plus a corresponding
 // int[] count per state.  Used by
-// BasicOperations.determinize
+// XOperations.determinize
 final class XSortedIntSet {
   int[] values;
   int[] counts;
@@ -32,14 +32,18 @@ final class XSortedIntSet {
   private int hashCode;
 
   // If we hold more than this many states, we switch from
-  // O(N^2) linear ops to O(N log(N)) TreeMap
-  private final static int TREE_MAP_CUTOVER = 30;
-
-  private final Map<Integer,Integer> map = new TreeMap<>();
+  // O(N^2) linear ops to O(1) counts indexed by state and
+  // sort only when computing the hash
+  private final static int DENSE_CUTOVER = 30;
 
-  private boolean useTreeMap;
+  // Count of each state, indexed by state, when useDense
+  private int[] denseCounts = new int[0];
+  // States with a non-zero count in denseCounts in no
+  // particular order and the index of each state in members
+  private int[] members = new int[0];
+  private int[] memberIndex = new int[0];
 
-  int state;
+  private boolean useDense;
 
   public XSortedIntSet(int capacity) {
     values = new int[capacity];
@@ -48,14 +52,8 @@ final class XSortedIntSet {
 
   // Adds this state to the set
   public void incr(int num) {
-    if (useTreeMap) {
-      final Integer key = num;
-      Integer val = map.get(key);
-      if (val == null) {
-        map.put(key, 1);
-      } else {
-        map.put(key, 1+val);
-      }
+    if (useDense) {
+      incrDense(num, 1);
       return;
     }
 
@@ -88,28 +86,49 @@ final class XSortedIntSet {
     counts[upto] = 1;
     upto++;
 
-    if (upto == TREE_MAP_CUTOVER) {
-      useTreeMap = true;
-      for(int i=0;i<upto;i++) {
-        map.put(values[i], counts[i]);
+    if (upto == DENSE_CUTOVER) {
+      useDense = true;
+      // upto counts members from here on
+      final int size = upto;
+      upto = 0;
+      for(int i=0;i<size;i++) {
+        incrDense(values[i], counts[i]);
       }
     }
   }
 
+  private void incrDense(int num, int count) {
+    if (num >= denseCounts.length) {
+      final int size = ArrayUtil.oversize(1+num, RamUsageEstimator.NUM_BYTES_INT);
+      denseCounts = Arrays.copyOf(denseCounts, size);
+      memberIndex = Arrays.copyOf(memberIndex, size);
+    }
+    if (denseCounts[num] == 0) {
+      if (upto == members.length) {
+        members = ArrayUtil.grow(members, 1+upto);
+      }
+      memberIndex[num] = upto;
+      members[upto++] = num;
+    }
+    denseCounts[num] += count;
+  }
+
   // Removes this state from the set, if count decrs to 0
   public void decr(int num) {
 
-    if (useTreeMap) {
-      final int count = map.get(num);
-      if (count == 1) {
-        map.remove(num);
-      } else {
-        map.put(num, count-1);
+    if (useDense) {
+      assert denseCounts[num] > 0;
+      if (--denseCounts[num] == 0) {
+        // Swap the last member into this one's place
+        final int index = memberIndex[num];
+        final int last = members[--upto];
+        members[index] = last;
+        memberIndex[last] = index;
       }
-      // Fall back to simple arrays once we touch zero again
-      if (map.size() == 0) {
-        useTreeMap = false;
-        upto = 0;
+      // Fall back to simple arrays once we touch zero again.
+      // denseCounts is all zeros again so it can be reused.
+      if (upto == 0) {
+        useDense = false;
       }
       return;
     }
@@ -133,17 +152,17 @@ final class XSortedIntSet {
   }
 
   public void computeHash() {
-    if (useTreeMap) {
-      if (map.size() > values.length) {
-        final int size = ArrayUtil.oversize(map.size(), RamUsageEstimator.NUM_BYTES_INT);
+    if (useDense) {
+      if (upto > values.length) {
+        final int size = ArrayUtil.oversize(upto, RamUsageEstimator.NUM_BYTES_INT);
         values = new int[size];
         counts = new int[size];
       }
-      hashCode = map.size();
-      upto = 0;
-      for(int state : map.keySet()) {
-        hashCode = 683*hashCode + state;
-        values[upto++] = state;
+      System.arraycopy(members, 0, values, 0, upto);
+      Arrays.sort(values, 0, upto);
+      hashCode = upto;
+      for(int i=0;i<upto;i++) {
+        hashCode = 683*hashCode + values[i];
       }
     } else {
       hashCode = upto;
@@ -153,41 +172,11 @@ final class XSortedIntSet {
     }
   }
 
-  public FrozenIntSet freeze(int state) {
-    final int[] c = new int[upto];
-    System.arraycopy(values, 0, c, 0, upto);
-    return new FrozenIntSet(c, hashCode, state);
-  }
-
   @Override
   public int hashCode() {
     return hashCode;
   }
 
-  @Override
-  public boolean equals(Object _other) {
-    if (_other == null) {
-      return false;
-    }
-    if (!(_other instanceof FrozenIntSet)) {
-      return false;
-    }
-    FrozenIntSet other = (FrozenIntSet) _other;
-    if (hashCode != other.hashCode) {
-      return false;
-    }
-    if (other.values.length != upto) {
-      return false;
-    }
-    for(int i=0;i<upto;i++) {
-      if (other.values[i] != values[i]) {
-        return false;
-      }
-    }
-
-    return true;
-  }
-
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder().append('[');
@@ -200,79 +189,4 @@ final class XSortedIntSet {
     sb.append(']');
     return sb.toString();
   }
-  
-  public final static class FrozenIntSet {
-    final int[] values;
-    final int hashCode;
-    final int state;
-
-    public FrozenIntSet(int[] values, int hashCode, int state) {
-      this.values = values;
-      this.hashCode = hashCode;
-      this.state = state;
-    }
-
-    public FrozenIntSet(int num, int state) {
-      this.values = new int[] {num};
-      this.state = state;
-      this.hashCode = 683+num;
-    }
-
-    @Override
-    public int hashCode() {
-      return hashCode;
-    }
-
-    @Override
-    public boolean equals(Object _other) {
-      if (_other == null) {
-        return false;
-      }
-      if (_other instanceof FrozenIntSet) {
-        FrozenIntSet other = (FrozenIntSet) _other;
-        if (hashCode != other.hashCode) {
-          return false;
-        }
-        if (other.values.length != values.length) {
-          return false;
-        }
-        for(int i=0;i<values.length;i++) {
-          if (other.values[i] != values[i]) {
-            return false;
-          }
-        }
-        return true;
-      } else if (_other instanceof XSortedIntSet) {
-        XSortedIntSet other = (XSortedIntSet) _other;
-        if (hashCode != other.hashCode) {
-          return false;
-        }
-        if (other.values.length != values.length) {
-          return false;
-        }
-        for(int i=0;i<values.length;i++) {
-          if (other.values[i] != values[i]) {
-            return false;
-          }
-        }
-        return true;
-      }
-
-      return false;
-    }
-
-    @Override
-    public String toString() {
-      StringBuilder sb = new StringBuilder().append('[');
-      for(int i=0;i<values.length;i++) {
-        if (i > 0) {
-          sb.append(' ');
-        }
-        sb.append(values[i]);
-      }
-      sb.append(']');
-      return sb.toString();
-    }
-  }
 }
-  
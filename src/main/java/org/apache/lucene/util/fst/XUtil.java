@@ -362,6 +362,32 @@ public final class XUtil {
       }
     }
 
+    /** Adds all leaving arcs, including 'finished' arc, if
+     *  the node is final, from this node into the queue.  */
+    public void addStartPaths(FST.Arc<T> node, T startOutput, boolean allowEmptyString, XIntsRefBuilder input) throws IOException {
+
+      // De-dup NO_OUTPUT since it must be a singleton:
+      if (startOutput.equals(fst.outputs.getNoOutput())) {
+        startOutput = fst.outputs.getNoOutput();
+      }
+
+      FSTPath<T> path = new FSTPath<>(startOutput, node, input);
+      fst.readFirstTargetArc(node, path.arc, bytesReader);
+
+      //System.out.println("add start paths");
+
+      // Bootstrap: find the min starting arc
+      while (true) {
+        if (allowEmptyString || path.arc.label != FST.END_LABEL) {
+          addIfCompetitive(path);
+        }
+        if (path.arc.isLast()) {
+          break;
+        }
+        fst.readNextArc(path.arc, bytesReader);
+      }
+    }
+
     public TopResults<T> search() throws IOException {
 
       final List<Result<T>> results = new ArrayList<>();
@@ -489,7 +515,7 @@ public final class XUtil {
   }
 
   /** Holds a single input (IntsRef) + output, returned by
-   *  {@link #shortestPaths shortestPaths()}. */
+   *  {@link TopNSearcher#search()}. */
   public final static class Result<T> {
     public final IntsRef input;
     public final T output;
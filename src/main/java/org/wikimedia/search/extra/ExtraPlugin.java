@@ -2,19 +2,39 @@ package org.wikimedia.search.extra;
 
 import java.util.Collection;
 
+import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.inject.multibindings.Multibinder;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.analysis.AnalysisModule;
+import org.elasticsearch.index.query.FilterParser;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.functionscore.FunctionScoreModule;
 import org.elasticsearch.indices.query.IndicesQueriesModule;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.script.ScriptModule;
+import org.wikimedia.search.extra.analysis.SparseGramTokenizerFactory;
 import org.wikimedia.search.extra.fieldvaluefactor.FieldValueFactorFunctionWithDefaultParser;
 import org.wikimedia.search.extra.idhashmod.IdHashModFilterParser;
+import org.wikimedia.search.extra.regex.CompiledRegexCache;
+import org.wikimedia.search.extra.regex.RegexResultCache;
 import org.wikimedia.search.extra.regex.SourceRegexFilterParser;
+import org.wikimedia.search.extra.regex.SourceRegexSetFilterParser;
+import org.wikimedia.search.extra.regex.dictionary.DictionaryRegexFilterParser;
+import org.wikimedia.search.extra.regex.dictionary.TermFSTCache;
+import org.wikimedia.search.extra.regex.scan.RegexScanAction;
+import org.wikimedia.search.extra.regex.scan.RegexScanCache;
+import org.wikimedia.search.extra.regex.scan.RestRegexScanAction;
+import org.wikimedia.search.extra.regex.scan.TransportRegexScanAction;
+import org.wikimedia.search.extra.regex.signature.RegisterNGramSignatureType;
+import org.wikimedia.search.extra.regex.stats.RegexStats;
+import org.wikimedia.search.extra.regex.stats.RegexStatsAction;
+import org.wikimedia.search.extra.regex.stats.RestRegexStatsAction;
+import org.wikimedia.search.extra.regex.stats.TransportRegexStatsAction;
 import org.wikimedia.search.extra.safer.ActionModuleParser;
 import org.wikimedia.search.extra.safer.SaferQueryParser;
 import org.wikimedia.search.extra.safer.phrase.PhraseTooLargeActionModuleParser;
@@ -24,6 +44,7 @@ import org.wikimedia.search.extra.superdetectnoop.SetHandler;
 import org.wikimedia.search.extra.superdetectnoop.SuperDetectNoopScript;
 import org.wikimedia.search.extra.superdetectnoop.WithinAbsoluteHandler;
 import org.wikimedia.search.extra.superdetectnoop.WithinPercentageHandler;
+import org.wikimedia.search.extra.util.FieldValueCache;
 
 /**
  * Setup the Elasticsearch plugin.
@@ -44,7 +65,9 @@ public class ExtraPlugin extends AbstractPlugin {
      */
     @SuppressWarnings("unchecked")
     public void onModule(IndicesQueriesModule module) {
-        module.addFilter(new SourceRegexFilterParser());
+        module.addFilter((Class<FilterParser>) (Class<?>) SourceRegexFilterParser.class);
+        module.addFilter((Class<FilterParser>) (Class<?>) SourceRegexSetFilterParser.class);
+        module.addFilter((Class<FilterParser>) (Class<?>) DictionaryRegexFilterParser.class);
         module.addFilter(new IdHashModFilterParser());
         module.addQuery((Class<QueryParser>) (Class<?>) SaferQueryParser.class);
     }
@@ -56,6 +79,13 @@ public class ExtraPlugin extends AbstractPlugin {
         module.registerScript("super_detect_noop", SuperDetectNoopScript.Factory.class);
     }
 
+    /**
+     * Register our analysis components.
+     */
+    public void onModule(AnalysisModule module) {
+        module.addTokenizer("sparse_gram", SparseGramTokenizerFactory.class);
+    }
+
     /**
      * Register our function scores.
      */
@@ -63,9 +93,37 @@ public class ExtraPlugin extends AbstractPlugin {
         module.registerParser(FieldValueFactorFunctionWithDefaultParser.class);
     }
 
+    /**
+     * Register our actions.
+     */
+    public void onModule(ActionModule module) {
+        module.registerAction(RegexScanAction.INSTANCE, TransportRegexScanAction.class);
+        module.registerAction(RegexStatsAction.INSTANCE, TransportRegexStatsAction.class);
+    }
+
+    /**
+     * Register our rest endpoints.
+     */
+    public void onModule(RestModule module) {
+        module.addRestAction(RestRegexScanAction.class);
+        module.addRestAction(RestRegexStatsAction.class);
+    }
+
     @Override
     public Collection<Class<? extends Module>> modules() {
-        return ImmutableList.<Class<? extends Module>> of(SafeifierActionsModule.class, CloseEnoughDetectorsModule.class);
+        return ImmutableList.<Class<? extends Module>> of(SafeifierActionsModule.class, CloseEnoughDetectorsModule.class,
+                CachesModule.class);
+    }
+
+    @Override
+    public Collection<Class<? extends Module>> indexModules() {
+        return ImmutableList.<Class<? extends Module>> of(MappersModule.class);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return ImmutableList.<Class<? extends LifecycleComponent>> of(CompiledRegexCache.class);
     }
 
     public static class SafeifierActionsModule extends AbstractModule {
@@ -95,4 +153,29 @@ public class ExtraPlugin extends AbstractPlugin {
             handlers.addBinding().toInstance(new SetHandler.Recognizer());
         }
     }
+
+    public static class CachesModule extends AbstractModule {
+        public CachesModule(Settings settings) {
+        }
+
+        @Override
+        protected void configure() {
+            bind(FieldValueCache.class).asEagerSingleton();
+            bind(RegexStats.class).asEagerSingleton();
+            bind(CompiledRegexCache.class).asEagerSingleton();
+            bind(RegexResultCache.class).asEagerSingleton();
+            bind(TermFSTCache.class).asEagerSingleton();
+            bind(RegexScanCache.class).asEagerSingleton();
+        }
+    }
+
+    public static class MappersModule extends AbstractModule {
+        public MappersModule(Settings settings) {
+        }
+
+        @Override
+        protected void configure() {
+            bind(RegisterNGramSignatureType.class).asEagerSingleton();
+        }
+    }
 }
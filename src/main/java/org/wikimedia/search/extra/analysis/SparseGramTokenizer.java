@@ -0,0 +1,105 @@
+package org.wikimedia.search.extra.analysis;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.wikimedia.search.extra.regex.ngram.SparseGrams;
+
+/**
+ * Emits the {@link SparseGrams} of the input. Reads the whole input on reset
+ * because a sparse gram can't be emitted until the bigram after it is
+ * known. Follow it with a lowercase filter so its grams line up with the
+ * ones extracted from lowercased regexes.
+ */
+public final class SparseGramTokenizer extends Tokenizer {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final int maxGram;
+    private char[] buffer = new char[1024];
+    private int length;
+    private int[] codePoints = new int[1024];
+    /**
+     * Offset into buffer of each code point plus one more for the end.
+     */
+    private int[] offsets = new int[1025];
+    /**
+     * Start and end code point of each gram, interleaved.
+     */
+    private int[] grams = new int[2048];
+    private int gramCount;
+    private int next;
+
+    public SparseGramTokenizer(Reader input, int maxGram) {
+        super(input);
+        if (maxGram < SparseGrams.MIN_GRAM) {
+            throw new IllegalArgumentException("maxGram must be at least " + SparseGrams.MIN_GRAM + " but was " + maxGram);
+        }
+        this.maxGram = maxGram;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        read();
+        int count = 0;
+        offsets = ArrayUtil.grow(offsets, length + 1);
+        codePoints = ArrayUtil.grow(codePoints, length);
+        for (int offset = 0; offset < length; count++) {
+            int codePoint = Character.codePointAt(buffer, offset, length);
+            codePoints[count] = codePoint;
+            offsets[count] = offset;
+            offset += Character.charCount(codePoint);
+        }
+        offsets[count] = length;
+        gramCount = 0;
+        next = 0;
+        SparseGrams.sparseGrams(codePoints, count, maxGram, new SparseGrams.GramConsumer() {
+            @Override
+            public void gram(int start, int end) {
+                grams = ArrayUtil.grow(grams, gramCount * 2 + 2);
+                grams[gramCount * 2] = start;
+                grams[gramCount * 2 + 1] = end;
+                gramCount++;
+            }
+        });
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (next >= gramCount) {
+            return false;
+        }
+        clearAttributes();
+        int start = offsets[grams[next * 2]];
+        int end = offsets[grams[next * 2 + 1]];
+        next++;
+        termAtt.copyBuffer(buffer, start, end - start);
+        offsetAtt.setOffset(correctOffset(start), correctOffset(end));
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        int finalOffset = correctOffset(length);
+        offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
+    private void read() throws IOException {
+        length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                buffer = ArrayUtil.grow(buffer, length + 1);
+            }
+            int read = input.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                return;
+            }
+            length += read;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.wikimedia.search.extra.analysis;
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.assistedinject.Assisted;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.analysis.AbstractTokenizerFactory;
+import org.elasticsearch.index.settings.IndexSettings;
+import org.wikimedia.search.extra.regex.ngram.SparseGrams;
+
+/**
+ * Builds {@link SparseGramTokenizer}s. Supports max_gram which defaults to
+ * {@link SparseGrams#DEFAULT_MAX_GRAM}.
+ */
+public class SparseGramTokenizerFactory extends AbstractTokenizerFactory {
+    private final int maxGram;
+
+    @Inject
+    public SparseGramTokenizerFactory(Index index, @IndexSettings Settings indexSettings, @Assisted String name,
+            @Assisted Settings settings) {
+        super(index, indexSettings, name, settings);
+        maxGram = settings.getAsInt("max_gram", SparseGrams.DEFAULT_MAX_GRAM);
+        if (maxGram < SparseGrams.MIN_GRAM) {
+            throw new IllegalArgumentException("max_gram must be at least " + SparseGrams.MIN_GRAM + " but was " + maxGram);
+        }
+    }
+
+    @Override
+    public Tokenizer create(Reader reader) {
+        return new SparseGramTokenizer(reader, maxGram);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Analysis components for indexing fields that accelerate regexes.
+ */
+package org.wikimedia.search.extra.analysis;
@@ -0,0 +1,283 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.CollectionUtil;
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.apache.lucene.util.automaton.XParallelDeterminizer;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.env.NodeEnvironment;
+
+/**
+ * Node level cache of the automata that verify source_regex matches. Building
+ * them means determinizing ".*regex.*" which is often the most expensive part
+ * of running a regex that is only checked against a few documents. Entries are
+ * keyed on the regex after case folding and the maximum number of determinized
+ * states and the cache is bounded by the approximate size of the run tables.
+ * When the node stops the most used automata are written to the node's data
+ * directory and when it starts they are read back so the cache starts warm.
+ */
+public class CompiledRegexCache extends AbstractLifecycleComponent<CompiledRegexCache> {
+    /**
+     * Setting controlling the maximum size of the cache. Defaults to 0 which
+     * disables the cache entirely.
+     */
+    public static final String SIZE_SETTING = "wikimedia.extra.regex.compiled_cache.size";
+    /**
+     * Setting controlling the number of automata saved when the node stops.
+     * Defaults to 100. 0 disables saving and loading.
+     */
+    public static final String PERSIST_SETTING = "wikimedia.extra.regex.compiled_cache.persist";
+    static final String FILE_NAME = "compiled_regexes";
+    static final String CODEC = "wikimedia_extra_compiled_regexes";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+    /**
+     * Rough guess at the overhead of each entry in the cache including the
+     * key.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, Entry> cache;
+    private final int persist;
+    private final Path path;
+
+    @Inject
+    public CompiledRegexCache(Settings settings, NodeEnvironment nodeEnvironment) {
+        this(settings, settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0)), settings.getAsInt(PERSIST_SETTING, 100),
+                nodeEnvironment.hasNodeFile() ? nodeEnvironment.nodeDataPaths()[0].resolve("wikimedia_extra") : null);
+    }
+
+    /**
+     * Build the cache.
+     *
+     * @param persist number of automata to save on stop
+     * @param path directory to save automata in. If null automata aren't
+     *            saved.
+     */
+    public CompiledRegexCache(Settings settings, ByteSizeValue size, int persist, Path path) {
+        super(settings);
+        this.persist = persist;
+        this.path = path;
+        if (size.bytes() <= 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder().maximumWeight(size.bytes()).weigher(new Weigher<Key, Entry>() {
+            @Override
+            public int weigh(Key key, Entry entry) {
+                long weight = ENTRY_OVERHEAD + key.regex.length() * 2 + entry.automaton.ramBytesUsed();
+                return (int) Math.min(Integer.MAX_VALUE, weight);
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * Is the cache enabled?
+     */
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Approximate number of entries in the cache.
+     */
+    public long size() {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.size();
+    }
+
+    /**
+     * Build the automaton that finds the regex anywhere in a field value or
+     * fetch it from the cache if it has already been built. See
+     * {@link SourceRegexFilter#runAutomaton(String, boolean, Locale, int, XParallelDeterminizer)}.
+     */
+    public XCharacterRunAutomaton runAutomaton(String regex, boolean caseSensitive, Locale locale, int maxDeterminizedStates,
+            XParallelDeterminizer determinizer) {
+        if (cache == null) {
+            return SourceRegexFilter.runAutomaton(regex, caseSensitive, locale, maxDeterminizedStates, determinizer);
+        }
+        if (!caseSensitive) {
+            regex = regex.toLowerCase(locale);
+        }
+        Key key = new Key(regex, maxDeterminizedStates);
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            // Two threads might build the same automaton at the same time but
+            // that is better than making one wait on the other.
+            entry = new Entry(SourceRegexFilter.runAutomaton(regex, true, locale, maxDeterminizedStates, determinizer), 0);
+            cache.put(key, entry);
+        }
+        entry.hits.incrementAndGet();
+        return entry.automaton;
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (cache == null || persist <= 0 || path == null || !Files.exists(path.resolve(FILE_NAME))) {
+            return;
+        }
+        try {
+            int loaded = load();
+            logger.debug("Loaded {} compiled regexes", loaded);
+        } catch (IOException e) {
+            logger.warn("Failed to load compiled regexes from {}. Starting with an empty cache.", e, path);
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (cache == null || persist <= 0 || path == null) {
+            return;
+        }
+        try {
+            int saved = save();
+            logger.debug("Saved {} compiled regexes", saved);
+        } catch (IOException e) {
+            logger.warn("Failed to save compiled regexes to {}", e, path);
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+    }
+
+    /**
+     * Load saved automata into the cache. The file is memory mapped so only
+     * the run tables end up on the heap.
+     *
+     * @return the number of automata loaded
+     */
+    int load() throws IOException {
+        try (Directory dir = new MMapDirectory(path.toFile()); IndexInput in = dir.openInput(FILE_NAME, IOContext.READONCE)) {
+            CodecUtil.checksumEntireFile(in);
+            in.seek(0);
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            int count = in.readVInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readString(), in.readVInt());
+                long hits = in.readVLong();
+                cache.put(key, new Entry(new XCharacterRunAutomaton(in), hits));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Save the most used automata. They are written to a temporary file which
+     * is then moved over the old one so a crash never leaves a half written
+     * file behind.
+     *
+     * @return the number of automata saved
+     */
+    int save() throws IOException {
+        // Snapshot the hit counts so they don't change while sorting
+        List<Saved> saved = new ArrayList<>();
+        for (Map.Entry<Key, Entry> entry : cache.asMap().entrySet()) {
+            saved.add(new Saved(entry.getKey(), entry.getValue().automaton, entry.getValue().hits.get()));
+        }
+        CollectionUtil.timSort(saved, new Comparator<Saved>() {
+            @Override
+            public int compare(Saved lhs, Saved rhs) {
+                return Long.compare(rhs.hits, lhs.hits);
+            }
+        });
+        if (saved.size() > persist) {
+            saved = saved.subList(0, persist);
+        }
+        Files.createDirectories(path);
+        String tempName = FILE_NAME + ".tmp";
+        try (Directory dir = new MMapDirectory(path.toFile())) {
+            try (IndexOutput out = dir.createOutput(tempName, IOContext.DEFAULT)) {
+                CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+                out.writeVInt(saved.size());
+                for (Saved entry : saved) {
+                    out.writeString(entry.key.regex);
+                    out.writeVInt(entry.key.maxDeterminizedStates);
+                    out.writeVLong(entry.hits);
+                    entry.automaton.writeTo(out);
+                }
+                CodecUtil.writeFooter(out);
+            }
+            dir.sync(ImmutableSet.of(tempName));
+        }
+        Files.move(path.resolve(tempName), path.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return saved.size();
+    }
+
+    private static final class Key {
+        private final String regex;
+        private final int maxDeterminizedStates;
+
+        private Key(String regex, int maxDeterminizedStates) {
+            this.regex = regex;
+            this.maxDeterminizedStates = maxDeterminizedStates;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * regex.hashCode() + maxDeterminizedStates;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return maxDeterminizedStates == other.maxDeterminizedStates && regex.equals(other.regex);
+        }
+    }
+
+    private static final class Entry {
+        private final XCharacterRunAutomaton automaton;
+        private final AtomicLong hits;
+
+        private Entry(XCharacterRunAutomaton automaton, long hits) {
+            this.automaton = automaton;
+            this.hits = new AtomicLong(hits);
+        }
+    }
+
+    private static final class Saved {
+        private final Key key;
+        private final XCharacterRunAutomaton automaton;
+        private final long hits;
+
+        private Saved(Key key, XCharacterRunAutomaton automaton, long hits) {
+            this.key = key;
+            this.automaton = automaton;
+            this.hits = hits;
+        }
+    }
+}
@@ -1,23 +1,36 @@
 package org.wikimedia.search.extra.regex;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.queries.TermFilter;
 import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.collect.ImmutableSet;
 import org.wikimedia.search.extra.regex.expression.Expression;
 
 /**
- * Transforms expressions to filters.
+ * Transforms expressions to filters. Sub-expressions that appear more than
+ * once in the expression become a single filter and, if they are composite,
+ * that filter only builds its DocIdSet once per segment. Because of that each
+ * instance should only be used to transform a single expression.
  */
 public class ExpressionToFilterTransformer implements Expression.Transformer<String, Filter> {
     private final String ngramField;
+    private final Map<String, Filter> leaves = new HashMap<>();
+    private final Map<ImmutableSet<Filter>, SharedFilter> ands = new HashMap<>();
+    private final Map<ImmutableSet<Filter>, SharedFilter> ors = new HashMap<>();
 
     public ExpressionToFilterTransformer(String ngramField) {
         this.ngramField = ngramField;
@@ -35,20 +48,46 @@ public class ExpressionToFilterTransformer implements Expression.Transformer<Str
 
     @Override
     public Filter leaf(String t) {
-        return new TermFilter(new Term(ngramField, t));
+        // Leaves are shared but not cached because reading a term's postings
+        // is about as cheap as reading them from a cache. They also have to
+        // stay TermFilters so or can merge them into a TermsFilter.
+        Filter filter = leaves.get(t);
+        if (filter == null) {
+            filter = new TermFilter(new Term(ngramField, t));
+            leaves.put(t, filter);
+        }
+        return filter;
     }
 
     @Override
     public Filter and(ImmutableSet<Filter> js) {
+        SharedFilter shared = ands.get(js);
+        if (shared != null) {
+            shared.share();
+            return shared;
+        }
         BooleanFilter filter = new BooleanFilter();
         for (Filter j : js) {
             filter.add(j, Occur.MUST);
         }
-        return filter;
+        shared = new SharedFilter(filter);
+        ands.put(js, shared);
+        return shared;
     }
 
     @Override
     public Filter or(ImmutableSet<Filter> js) {
+        SharedFilter shared = ors.get(js);
+        if (shared != null) {
+            shared.share();
+            return shared;
+        }
+        shared = new SharedFilter(buildOr(js));
+        ors.put(js, shared);
+        return shared;
+    }
+
+    private Filter buildOr(ImmutableSet<Filter> js) {
         // Array containing all terms if this is contains only term filters
         boolean allTermFilters = true;
         List<BytesRef> allTerms = null;
@@ -70,4 +109,54 @@ public class ExpressionToFilterTransformer implements Expression.Transformer<Str
         }
         return new TermsFilter(ngramField, allTerms);
     }
+
+    /**
+     * Filter for a composite sub-expression. Once it is used more than once in
+     * the expression it caches its DocIdSet per segment so every use after the
+     * first gets it from the cache.
+     */
+    static class SharedFilter extends Filter {
+        private final Filter filter;
+        private Filter cached;
+
+        SharedFilter(Filter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Called when the filter is used again.
+         */
+        private void share() {
+            if (cached == null) {
+                cached = new CachingWrapperFilter(filter);
+            }
+        }
+
+        /**
+         * Is this filter used more than once?
+         */
+        boolean shared() {
+            return cached != null;
+        }
+
+        /**
+         * The filter this wraps.
+         */
+        Filter filter() {
+            return filter;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            if (cached == null) {
+                return filter.getDocIdSet(context, acceptDocs);
+            }
+            return cached.getDocIdSet(context, acceptDocs);
+        }
+
+        @Override
+        public String toString() {
+            return filter.toString();
+        }
+    }
 }
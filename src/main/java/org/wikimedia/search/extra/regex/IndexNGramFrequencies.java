@@ -0,0 +1,47 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.elasticsearch.ElasticsearchException;
+import org.wikimedia.search.extra.regex.ngram.NGramFrequencies;
+
+/**
+ * Looks up ngram frequencies in the terms dictionary of the ngram field.
+ * Remembers each ngram's frequency because the selector asks for the same
+ * ngram every time it appears in the expression.
+ */
+public class IndexNGramFrequencies implements NGramFrequencies {
+    private final IndexReader reader;
+    private final String ngramField;
+    private final Map<String, Long> docFreqs = new HashMap<>();
+
+    /**
+     * Build it.
+     *
+     * @param reader top level reader to check. Looking at a single segment
+     *            would make the choice of ngrams depend on the segment.
+     * @param ngramField field containing the ngrams
+     */
+    public IndexNGramFrequencies(IndexReader reader, String ngramField) {
+        this.reader = reader;
+        this.ngramField = ngramField;
+    }
+
+    @Override
+    public long docFreq(String ngram) {
+        Long docFreq = docFreqs.get(ngram);
+        if (docFreq == null) {
+            try {
+                docFreq = (long) reader.docFreq(new Term(ngramField, ngram));
+            } catch (IOException e) {
+                throw new ElasticsearchException("Error loading ngram frequency", e);
+            }
+            docFreqs.put(ngram, docFreq);
+        }
+        return docFreq;
+    }
+}
@@ -0,0 +1,73 @@
+package org.wikimedia.search.extra.regex;
+
+import java.util.List;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+
+/**
+ * Runs many character automata against a string in a single pass. Each
+ * automaton is identified by its index in the list used to build this. Rather
+ * than determinizing the union of all the automata up front, which can explode
+ * exponentially, this steps all of the automata at once for each code point.
+ * Automata drop out of the pass as soon as they hit a dead state. Not thread
+ * safe.
+ */
+public class MultiCharacterRunAutomaton {
+    private final XCharacterRunAutomaton[] automata;
+    private final int[] states;
+    private final int[] live;
+
+    public MultiCharacterRunAutomaton(List<XCharacterRunAutomaton> automata) {
+        this.automata = automata.toArray(new XCharacterRunAutomaton[automata.size()]);
+        states = new int[this.automata.length];
+        live = new int[this.automata.length];
+    }
+
+    /**
+     * Number of automata being run.
+     */
+    public int size() {
+        return automata.length;
+    }
+
+    /**
+     * Run all automata that haven't already matched against s, setting the
+     * bit in matched for each automaton that accepts s.
+     *
+     * @return true if all automata have matched
+     */
+    public boolean run(String s, FixedBitSet matched) {
+        int liveCount = 0;
+        for (int i = 0; i < automata.length; i++) {
+            if (!matched.get(i)) {
+                live[liveCount] = i;
+                states[liveCount] = automata[i].getInitialState();
+                liveCount++;
+            }
+        }
+        if (liveCount == 0) {
+            return true;
+        }
+        int l = s.length();
+        for (int i = 0, cp = 0; i < l && liveCount > 0; i += Character.charCount(cp)) {
+            cp = s.codePointAt(i);
+            int stillLive = 0;
+            for (int a = 0; a < liveCount; a++) {
+                int next = automata[live[a]].step(states[a], cp);
+                if (next != -1) {
+                    live[stillLive] = live[a];
+                    states[stillLive] = next;
+                    stillLive++;
+                }
+            }
+            liveCount = stillLive;
+        }
+        for (int a = 0; a < liveCount; a++) {
+            if (automata[live[a]].isAccept(states[a])) {
+                matched.set(live[a]);
+            }
+        }
+        return matched.cardinality() == automata.length;
+    }
+}
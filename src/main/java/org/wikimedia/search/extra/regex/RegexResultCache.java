@@ -0,0 +1,271 @@
+package org.wikimedia.search.extra.regex;
+
+import java.util.Locale;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReader.CoreClosedListener;
+import org.apache.lucene.util.WAH8DocIdSet;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.wikimedia.search.extra.util.FieldValues;
+import org.wikimedia.search.extra.util.SegmentCacheKeys;
+
+/**
+ * Node level cache of the documents in a segment that match a regex.
+ * Segments are immutable so the matches never change until the segment is
+ * closed and then they are removed from the cache. After a refresh only the
+ * new segments have to be verified. Deleted documents stay in the cached sets
+ * so filter them out with the reader's live docs. Sets verified against a
+ * reader's live docs are missing the documents it had deleted so they can only
+ * be used by readers of the segment that have deleted at least as many. The cache is bounded by the
+ * approximate size of the compressed sets. Each entry remembers how many
+ * documents were inspected to find its matches so filters can charge them
+ * against their max_inspect.
+ */
+public class RegexResultCache {
+    /**
+     * Setting controlling the maximum size of the cache. Defaults to 0 which
+     * disables the cache entirely.
+     */
+    public static final String SIZE_SETTING = "wikimedia.extra.regex.result_cache.size";
+    /**
+     * Setting controlling the maximum number of documents inspected to verify
+     * a segment for the cache. Segments with more candidates are verified
+     * lazily and not cached. Defaults to 10000.
+     */
+    public static final String MAX_INSPECT_SETTING = "wikimedia.extra.regex.result_cache.max_inspect";
+    /**
+     * Rough guess at the overhead of each entry in the cache including the
+     * key.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache<Key, Matches> cache;
+    private final int maxInspect;
+    private final SegmentCacheKeys<Key> keys = new SegmentCacheKeys<>();
+    private final CoreClosedListener invalidator = new CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            invalidate(ownerCoreCacheKey);
+        }
+    };
+
+    @Inject
+    public RegexResultCache(Settings settings) {
+        this(settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0)), settings.getAsInt(MAX_INSPECT_SETTING, 10000));
+    }
+
+    public RegexResultCache(ByteSizeValue size, int maxInspect) {
+        this.maxInspect = maxInspect;
+        if (size.bytes() <= 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder().removalListener(keys).maximumWeight(size.bytes()).weigher(new Weigher<Key, Matches>() {
+            @Override
+            public int weigh(Key key, Matches matches) {
+                long weight = ENTRY_OVERHEAD + key.regex.regex.length() * 2 + key.regex.fieldPath.length() * 2
+                        + matches.docs.ramBytesUsed();
+                return (int) Math.min(Integer.MAX_VALUE, weight);
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * Is the cache enabled?
+     */
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Maximum number of documents to inspect to verify a segment for the
+     * cache.
+     */
+    public int maxInspect() {
+        return maxInspect;
+    }
+
+    /**
+     * Hit, miss, and eviction statistics.
+     */
+    public CacheStats stats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0);
+        }
+        return cache.stats();
+    }
+
+    /**
+     * Approximate number of entries in the cache.
+     */
+    public long size() {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.size();
+    }
+
+    /**
+     * Fetch the matches for a regex in a segment.
+     *
+     * @return the cached matches or null if they aren't cached
+     */
+    public Matches get(AtomicReader reader, RegexKey regex) {
+        return cache.getIfPresent(new Key(reader.getCoreCacheKey(), regex));
+    }
+
+    /**
+     * Store the matches for a regex in a segment. Only store complete
+     * matches, ignoring nothing but deleted documents.
+     */
+    public void put(AtomicReader reader, RegexKey regex, Matches matches) {
+        Key key = new Key(reader.getCoreCacheKey(), regex);
+        if (!keys.track(reader, invalidator, key)) {
+            // We'd never hear about the segment closing so we can't cache it.
+            return;
+        }
+        cache.put(key, matches);
+    }
+
+    /**
+     * Remove all entries for a segment.
+     */
+    private void invalidate(Object coreKey) {
+        cache.invalidateAll(keys.remove(coreKey));
+    }
+
+    /**
+     * The documents in a segment that match a regex.
+     */
+    public static final class Matches {
+        private final WAH8DocIdSet docs;
+        private final int inspected;
+        private final int deletedDocs;
+
+        /**
+         * @param docs the matches, including deleted documents
+         * @param inspected the number of documents inspected to find them
+         * @param deletedDocs the number of deleted documents in the reader
+         *            whose live docs the matches were verified against or 0
+         *            if they were verified ignoring deletes
+         */
+        public Matches(WAH8DocIdSet docs, int inspected, int deletedDocs) {
+            this.docs = docs;
+            this.inspected = inspected;
+            this.deletedDocs = deletedDocs;
+        }
+
+        /**
+         * The number of deleted documents in the reader whose live docs the
+         * matches were verified against or 0 if they were verified ignoring
+         * deletes.
+         */
+        public int deletedDocs() {
+            return deletedDocs;
+        }
+
+        /**
+         * Can a reader of the segment use these matches? Documents are only
+         * ever deleted from a segment so a reader that has deleted at least as
+         * many documents has deleted every document the matches are missing.
+         */
+        public boolean usableBy(AtomicReader reader) {
+            return reader.numDeletedDocs() >= deletedDocs;
+        }
+
+        /**
+         * The matches, including deleted documents.
+         */
+        public WAH8DocIdSet docs() {
+            return docs;
+        }
+
+        /**
+         * The number of documents inspected to find the matches.
+         */
+        public int inspected() {
+            return inspected;
+        }
+    }
+
+    /**
+     * Everything that decides which documents in a segment match a regex.
+     */
+    public static final class RegexKey {
+        private final String fieldPath;
+        private final FieldValues.Loader loader;
+        private final String regex;
+        private final boolean caseSensitive;
+        private final Locale locale;
+
+        public RegexKey(String fieldPath, FieldValues.Loader loader, String regex, boolean caseSensitive, Locale locale) {
+            this.fieldPath = fieldPath;
+            this.loader = loader;
+            this.regex = caseSensitive ? regex : regex.toLowerCase(locale);
+            this.caseSensitive = caseSensitive;
+            this.locale = locale;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = fieldPath.hashCode();
+            result = prime * result + loader.hashCode();
+            result = prime * result + regex.hashCode();
+            result = prime * result + (caseSensitive ? 1231 : 1237);
+            result = prime * result + locale.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            RegexKey other = (RegexKey) obj;
+            return fieldPath.equals(other.fieldPath) && loader.equals(other.loader) && regex.equals(other.regex)
+                    && caseSensitive == other.caseSensitive && locale.equals(other.locale);
+        }
+    }
+
+    private static final class Key implements SegmentCacheKeys.Key {
+        private final Object coreKey;
+        private final RegexKey regex;
+
+        private Key(Object coreKey, RegexKey regex) {
+            this.coreKey = coreKey;
+            this.regex = regex;
+        }
+
+        @Override
+        public Object coreKey() {
+            return coreKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(coreKey) + regex.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && regex.equals(other.regex);
+        }
+    }
+}
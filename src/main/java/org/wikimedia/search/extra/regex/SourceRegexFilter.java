@@ -4,22 +4,40 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
 
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.search.BitsFilteredDocIdSet;
 import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.WAH8DocIdSet;
 import org.apache.lucene.util.automaton.XAutomaton;
 import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.apache.lucene.util.automaton.XOperations;
+import org.apache.lucene.util.automaton.XParallelDeterminizer;
 import org.apache.lucene.util.automaton.XRegExp;
+import org.apache.lucene.util.automaton.XTooComplexToDeterminizeException;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.lucene.docset.AllDocIdSet;
+import org.elasticsearch.common.lucene.docset.AndDocIdSet;
 import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.search.internal.SearchContext;
 import org.wikimedia.search.extra.regex.expression.Expression;
 import org.wikimedia.search.extra.regex.ngram.AutomatonTooComplexException;
 import org.wikimedia.search.extra.regex.ngram.NGramExtractor;
+import org.wikimedia.search.extra.regex.ngram.NGramFrequencies;
+import org.wikimedia.search.extra.regex.ngram.SparseGramExtractor;
+import org.wikimedia.search.extra.regex.signature.NGramSignature;
+import org.wikimedia.search.extra.regex.stats.RegexProfile;
+import org.wikimedia.search.extra.regex.stats.RegexStats;
 import org.wikimedia.search.extra.util.FieldValues;
 
 public class SourceRegexFilter extends Filter {
@@ -27,75 +45,616 @@ public class SourceRegexFilter extends Filter {
     private final String regex;
     private final FieldValues.Loader loader;
     private final String ngramFieldPath;
+    private final String ngramFieldCaseSensitivePath;
     private final int gramSize;
+    private final boolean sparseNgrams;
     private final int maxExpand;
     private final int maxStatesTraced;
     private final int maxDeterminizedStates;
     private final int maxNgramsExtracted;
+    private final boolean selectRareNgrams;
+    private final String signatureFieldPath;
+    private final int maxSignatureNgrams;
     private final int maxInspect;
     private final boolean caseSensitive;
     private final Locale locale;
     private final boolean rejectUnaccelerated;
+    private final RegexStats stats;
+    private final boolean profile;
+    private final XParallelDeterminizer determinizer;
+    private final CompiledRegexCache compiledRegexCache;
+    private final RegexResultCache resultCache;
+    private final String previousRegex;
     private int inspected = 0;
+    private RegexResultCache.RegexKey resultKey;
+    private RegexResultCache.RegexKey previousKey;
+    /**
+     * Does every string the regex finds also contain a match for
+     * previousRegex? Null until it is needed.
+     */
+    private Boolean refinesPrevious;
+    private boolean compiledNgrams;
     private Filter prefilter;
+    private NGramSignature.Matcher signatureMatcher;
     private XCharacterRunAutomaton charRun;
+    private RegexProfile regexProfile;
 
 
-    public SourceRegexFilter(String fieldPath, FieldValues.Loader loader, String regex, String ngramFieldPath, int gramSize, int maxExpand,
-            int maxStatesTraced, int maxDeterminizedStates, int maxNgramsExtracted, int maxInspect, boolean caseSensitive, Locale locale,
-            boolean rejectUnaccelerated) {
+    /**
+     * Build the filter.
+     *
+     * @param options options controlling how the regex is accelerated and
+     *            verified. Copied so later changes don't affect the filter.
+     * @param stats node level stats to record this filter's profile into. If
+     *            null then nothing is profiled.
+     * @param determinizer determinizes the regex on more than one thread. If
+     *            null then the regex is determinized on the calling thread.
+     * @param compiledRegexCache cache of automata used to verify matches. If
+     *            null then the automaton is built every time.
+     * @param resultCache cache of the matches in each segment. If null then
+     *            every segment is verified every time.
+     */
+    public SourceRegexFilter(String fieldPath, FieldValues.Loader loader, String regex, Options options, RegexStats stats,
+            XParallelDeterminizer determinizer, CompiledRegexCache compiledRegexCache, RegexResultCache resultCache) {
         this.fieldPath = fieldPath;
         this.loader = loader;
         this.regex = regex;
-        this.ngramFieldPath = ngramFieldPath;
-        this.gramSize = gramSize;
-        this.maxExpand = maxExpand;
-        this.maxStatesTraced = maxStatesTraced;
-        this.maxDeterminizedStates = maxDeterminizedStates;
-        this.maxNgramsExtracted = maxNgramsExtracted;
-        this.maxInspect = maxInspect;
-        this.caseSensitive = caseSensitive;
-        this.locale = locale;
-        this.rejectUnaccelerated = rejectUnaccelerated;
+        this.ngramFieldPath = options.ngramFieldPath;
+        this.ngramFieldCaseSensitivePath = options.ngramFieldCaseSensitivePath;
+        this.gramSize = options.gramSize;
+        this.sparseNgrams = options.sparseNgrams;
+        this.maxExpand = options.maxExpand;
+        this.maxStatesTraced = options.maxStatesTraced;
+        this.maxDeterminizedStates = options.maxDeterminizedStates;
+        this.maxNgramsExtracted = options.maxNgramsExtracted;
+        this.selectRareNgrams = options.selectRareNgrams;
+        this.signatureFieldPath = options.signatureFieldPath;
+        this.maxSignatureNgrams = options.maxSignatureNgrams;
+        this.maxInspect = options.maxInspect;
+        this.caseSensitive = options.caseSensitive;
+        this.locale = options.locale;
+        this.rejectUnaccelerated = options.rejectUnaccelerated;
+        this.profile = options.profile;
+        this.previousRegex = options.previousRegex;
+        this.stats = stats;
+        this.determinizer = determinizer;
+        this.compiledRegexCache = compiledRegexCache;
+        this.resultCache = resultCache;
     }
 
     @Override
     public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        startProfile();
+        if (!compiledNgrams && (prefilterFieldPath() != null || signatureFieldPath != null)) {
+            // Compile even if the matches are cached so regexes that are too
+            // complex or can't be accelerated are always rejected
+            compileNgrams(context);
+        }
+        if (resultCache != null && resultCache.enabled()) {
+            return cachedMatches(context, acceptDocs);
+        }
+        return verify(context, acceptDocs, null);
+    }
+
+    /**
+     * Fetch the segment's matches from the result cache or verify and cache
+     * them. Verifying for the cache inspects every candidate in the segment
+     * against its live docs rather than acceptDocs so the matches are correct
+     * for any later search of the segment that sees at least as many deleted
+     * docs. Older point in time readers of the segment, like scroll contexts
+     * and searches still running on the searcher from before a refresh, can
+     * see fewer deleted docs. They'd lose hits from a set cached by a newer
+     * reader so they verify the segment ignoring deletes instead and cache
+     * that for every reader. Cached matches are charged against
+     * maxInspect as though their candidates were inspected again so the cache
+     * never changes how many documents are found. If there aren't enough
+     * inspections left, or the segment has more candidates than the cache
+     * will verify, it is verified lazily like it would be without the cache
+     * and isn't cached.
+     * <p>
+     * If the previous regex's matches are cached, usable by this reader, and
+     * bound this regex's matches then only they are verified. They are
+     * missing at most the docs this reader has deleted so they are still a
+     * superset of this regex's matches. Matches verified within them can only
+     * be used by readers that can use the previous matches.
+     */
+    private DocIdSet cachedMatches(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        AtomicReader reader = context.reader();
+        if (resultKey == null) {
+            resultKey = new RegexResultCache.RegexKey(fieldPath, loader, regex, caseSensitive, locale);
+        }
+        RegexResultCache.Matches matches = resultCache.get(reader, resultKey);
+        Bits liveDocs = reader.getLiveDocs();
+        if (matches != null && !matches.usableBy(reader)) {
+            // Cached by a newer reader that has deleted docs this one can see
+            matches = null;
+            liveDocs = null;
+        }
+        if (matches != null && matches.inspected() <= maxInspect - inspected) {
+            inspected += matches.inspected();
+            return BitsFilteredDocIdSet.wrap(matches.docs(), acceptDocs);
+        }
+        RegexResultCache.Matches previous = previousMatches(reader);
+        if (matches == null) {
+            matches = verifyAll(context, liveDocs, previous, Math.min(maxInspect - inspected, resultCache.maxInspect()));
+            if (matches != null) {
+                resultCache.put(reader, resultKey, matches);
+                return BitsFilteredDocIdSet.wrap(matches.docs(), acceptDocs);
+            }
+        }
+        return verify(context, acceptDocs, previous == null ? null : previous.docs());
+    }
+
+    /**
+     * Verify every candidate in the segment so the matches can be cached.
+     * Candidates are collected before any are inspected so segments over
+     * budget cost nothing but the prefilter and signature checks.
+     *
+     * @param liveDocs the segment's live docs or null to verify deleted docs
+     *            too
+     * @param bound cached matches of a regex that bounds this one or null if
+     *            every document accepted by the prefilter might match
+     * @param budget maximum number of candidates to inspect
+     * @return the matches or null if more than budget candidates would have
+     *         to be inspected
+     */
+    private RegexResultCache.Matches verifyAll(AtomicReaderContext context, Bits liveDocs, RegexResultCache.Matches bound,
+            int budget) throws IOException {
+        int deletedDocs = liveDocs == null ? 0 : context.reader().numDeletedDocs();
+        DocIdSet boundDocs = null;
+        if (bound != null) {
+            deletedDocs = Math.max(deletedDocs, bound.deletedDocs());
+            boundDocs = bound.docs();
+        }
+        WAH8DocIdSet.Builder builder = new WAH8DocIdSet.Builder();
+        RegexAcceptsDocIdSet verifier = verify(context, liveDocs, boundDocs);
+        DocIdSetIterator iterator = verifier == null ? null : verifier.candidates.iterator();
+        if (iterator == null) {
+            return new RegexResultCache.Matches(builder.build(), 0, deletedDocs);
+        }
+        int candidates = 0;
+        int[] toInspect = new int[0];
+        int count = 0;
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            candidates++;
+            if (!verifier.signatureAccepts(doc)) {
+                continue;
+            }
+            if (count >= budget) {
+                return null;
+            }
+            toInspect = ArrayUtil.grow(toInspect, count + 1);
+            toInspect[count++] = doc;
+        }
+        if (regexProfile != null) {
+            regexProfile.addCandidates(candidates);
+        }
+        inspected += count;
+        for (int i = 0; i < count; i++) {
+            if (verifier.inspect(toInspect[i])) {
+                builder.add(toInspect[i]);
+            }
+        }
+        return new RegexResultCache.Matches(builder.build(), count, deletedDocs);
+    }
+
+    /**
+     * The previous regex's cached matches in the segment if they bound this
+     * regex's matches. Null if they don't, they aren't cached, or they were
+     * cached by a newer reader that has deleted docs this one can see.
+     */
+    private RegexResultCache.Matches previousMatches(AtomicReader reader) {
+        if (previousRegex == null) {
+            return null;
+        }
+        if (previousKey == null) {
+            previousKey = new RegexResultCache.RegexKey(fieldPath, loader, previousRegex, caseSensitive, locale);
+        }
+        RegexResultCache.Matches matches = resultCache.get(reader, previousKey);
+        if (matches == null || !matches.usableBy(reader)) {
+            return null;
+        }
+        if (refinesPrevious == null) {
+            long start = System.nanoTime();
+            refinesPrevious = refines(regex, previousRegex, caseSensitive, locale, maxDeterminizedStates, determinizer);
+            if (regexProfile != null) {
+                regexProfile.addCompileNanos(System.nanoTime() - start);
+            }
+        }
+        return refinesPrevious ? matches : null;
+    }
+
+    /**
+     * Find the documents in the segment that match the regex.
+     *
+     * @param bound documents that might match or null if every document
+     *            accepted by the prefilter might match
+     */
+    private RegexAcceptsDocIdSet verify(AtomicReaderContext context, Bits acceptDocs, DocIdSet bound) throws IOException {
         DocIdSet filtered = getFilteredDocIdSet(context, acceptDocs);
         if (filtered == null) {
             return null;
         }
-        return new RegexAcceptsDocIdSet(BitsFilteredDocIdSet.wrap(filtered, acceptDocs), context.reader());
+        if (bound != null) {
+            filtered = new AndDocIdSet(new DocIdSet[] {bound, filtered});
+        }
+        BinaryDocValues signatures = null;
+        if (signatureMatcher != null) {
+            signatures = context.reader().getBinaryDocValues(signatureFieldPath);
+        }
+        return new RegexAcceptsDocIdSet(BitsFilteredDocIdSet.wrap(filtered, acceptDocs), context.reader(), signatures);
     }
 
     private DocIdSet getFilteredDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
-        if (ngramFieldPath == null) {
-            // Don't bother expanding the regex if there isn't a field to check
-            // it against. Its unlikely to resolve to all false anyway.
+        if (prefilter == null) {
+            // There isn't an ngram field to prefilter against so every
+            // document is a candidate.
             return new AllDocIdSet(context.reader().maxDoc());
         }
-        if (prefilter == null) {
-            try {
-                // The accelerating filter is always assumed to be case insensitive/always lowercased
-                XAutomaton automaton = new XRegExp(regex.toLowerCase(locale), XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(maxDeterminizedStates);
-                Expression<String> expression = new NGramExtractor(gramSize, maxExpand, maxStatesTraced, maxNgramsExtracted).extract(automaton).simplify();
-                if (expression.alwaysTrue()) {
-                    if (rejectUnaccelerated) {
-                        throw new UnableToAccelerateRegexException(regex, gramSize, ngramFieldPath);
-                    }
-                    prefilter = Queries.MATCH_ALL_FILTER;
-                } else if (expression.alwaysFalse()) {
-                    prefilter = Queries.MATCH_NO_FILTER;
-                } else {
-                    prefilter = expression.transform(new ExpressionToFilterTransformer(ngramFieldPath));
-                }
-            } catch (AutomatonTooComplexException e) {
-                throw new IllegalArgumentException(String.format(Locale.ROOT,
-                        "Regex /%s/ too complex for maxStatesTraced setting [%s].  Use a simpler regex or raise maxStatesTraced.", regex,
-                        maxStatesTraced), e);
+        return prefilter.getDocIdSet(context, acceptDocs);
+    }
+
+    /**
+     * Extract the ngram expressions for the prefilter and the signature check.
+     * The signature check doesn't have to run a term query per ngram so it
+     * gets to check a bigger expression. If it'd be the same as the prefilter
+     * expression then it can't reject anything the prefilter accepts so it is
+     * skipped.
+     */
+    private void compileNgrams(AtomicReaderContext context) {
+        long start = System.nanoTime();
+        String prefilterFieldPath = prefilterFieldPath();
+        boolean exactCase = prefilterFieldPath != null && prefilterFieldPath.equals(ngramFieldCaseSensitivePath);
+        XAutomaton automaton = ngramAutomaton(regex, exactCase, locale, maxDeterminizedStates, determinizer);
+        Expression<String> expression = null;
+        if (prefilterFieldPath != null) {
+            NGramFrequencies frequencies = null;
+            if (selectRareNgrams) {
+                frequencies = new IndexNGramFrequencies(ReaderUtil.getTopLevelContext(context).reader(), prefilterFieldPath);
             }
+            expression = ngramExpression(regex, automaton, gramSize, sparseNgrams, maxExpand, maxStatesTraced, maxNgramsExtracted,
+                    frequencies);
+            if (expression.alwaysTrue() && rejectUnaccelerated) {
+                throw new UnableToAccelerateRegexException(regex, gramSize, prefilterFieldPath);
+            }
+            prefilter = expressionToFilter(expression, prefilterFieldPath);
+        }
+        if (signatureFieldPath != null) {
+            if (exactCase) {
+                // Signatures are always lowercased
+                automaton = ngramAutomaton(regex, false, locale, maxDeterminizedStates, determinizer);
+                expression = null;
+            }
+            Expression<String> signatureExpression = ngramExpression(regex, automaton, gramSize, sparseNgrams, maxExpand,
+                    maxStatesTraced, maxSignatureNgrams, null);
+            if (!signatureExpression.alwaysTrue() && !signatureExpression.equals(expression)) {
+                signatureMatcher = NGramSignature.matcher(signatureExpression);
+            }
+        }
+        compiledNgrams = true;
+        if (regexProfile != null) {
+            regexProfile.addCompileNanos(System.nanoTime() - start);
+            if (expression != null) {
+                regexProfile.expressionSize(expression.transform(ExpressionNGrams.INSTANCE).size());
+            }
+        }
+    }
+
+    /**
+     * The ngram field to prefilter against or null if there isn't one.
+     */
+    private String prefilterFieldPath() {
+        if (caseSensitive && ngramFieldCaseSensitivePath != null) {
+            return ngramFieldCaseSensitivePath;
+        }
+        return ngramFieldPath;
+    }
+
+    /**
+     * Start profiling if this filter is being run in a search context and
+     * hasn't started already. The profile is recorded when the context is
+     * released because that is the only time we know the filter is done.
+     */
+    private void startProfile() {
+        if (stats == null || regexProfile != null) {
+            return;
+        }
+        SearchContext searchContext = SearchContext.current();
+        if (searchContext == null) {
+            return;
+        }
+        final RegexProfile newProfile = new RegexProfile(regex, stats.timed(profile));
+        if (searchContext.shardTarget() != null) {
+            newProfile.shard(searchContext.shardTarget().index() + "/" + searchContext.shardTarget().shardId());
+        }
+        searchContext.addReleasable(new Releasable() {
+            @Override
+            public void close() {
+                stats.record(newProfile, profile);
+            }
+        }, SearchContext.Lifetime.CONTEXT);
+        regexProfile = newProfile;
+    }
+
+    /**
+     * Extract the simplified ngram expression that must match for the regex
+     * to match. The accelerating expression is always assumed to be case
+     * insensitive/always lowercased.
+     */
+    public static Expression<String> ngramExpression(String regex, Locale locale, int gramSize, int maxExpand, int maxStatesTraced,
+            int maxDeterminizedStates, int maxNgramsExtracted) {
+        return ngramExpression(regex, ngramAutomaton(regex, false, locale, maxDeterminizedStates, null), gramSize, false, maxExpand,
+                maxStatesTraced, maxNgramsExtracted, null);
+    }
+
+    /**
+     * Build the automaton that ngrams are extracted from, lowercasing the
+     * regex unless exactCase is true.
+     */
+    private static XAutomaton ngramAutomaton(String regex, boolean exactCase, Locale locale, int maxDeterminizedStates,
+            XParallelDeterminizer determinizer) {
+        if (!exactCase) {
+            regex = regex.toLowerCase(locale);
+        }
+        return new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(maxDeterminizedStates, determinizer);
+    }
+
+    private static Expression<String> ngramExpression(String regex, XAutomaton automaton, int gramSize, boolean sparseNgrams,
+            int maxExpand, int maxStatesTraced, int maxNgramsExtracted, NGramFrequencies frequencies) {
+        try {
+            if (sparseNgrams) {
+                return new SparseGramExtractor(gramSize, maxExpand, maxStatesTraced, maxNgramsExtracted, frequencies)
+                        .extract(automaton).simplify();
+            }
+            return new NGramExtractor(gramSize, maxExpand, maxStatesTraced, maxNgramsExtracted, frequencies).extract(automaton)
+                    .simplify();
+        } catch (AutomatonTooComplexException e) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "Regex /%s/ too complex for maxStatesTraced setting [%s].  Use a simpler regex or raise maxStatesTraced.", regex,
+                    maxStatesTraced), e);
+        }
+    }
+
+    /**
+     * Convert an ngram expression into a filter against the ngram field.
+     */
+    public static Filter expressionToFilter(Expression<String> expression, String ngramFieldPath) {
+        if (expression.alwaysTrue()) {
+            return Queries.MATCH_ALL_FILTER;
+        }
+        if (expression.alwaysFalse()) {
+            return Queries.MATCH_NO_FILTER;
+        }
+        return expression.transform(new ExpressionToFilterTransformer(ngramFieldPath));
+    }
+
+    /**
+     * Build the automaton that finds the regex anywhere in a field value.
+     */
+    public static XCharacterRunAutomaton runAutomaton(String regex, boolean caseSensitive, Locale locale, int maxDeterminizedStates) {
+        return runAutomaton(regex, caseSensitive, locale, maxDeterminizedStates, null);
+    }
+
+    /**
+     * Build the automaton that finds the regex anywhere in a field value,
+     * determinizing on more than one thread if determinizer isn't null.
+     */
+    public static XCharacterRunAutomaton runAutomaton(String regex, boolean caseSensitive, Locale locale, int maxDeterminizedStates,
+            XParallelDeterminizer determinizer) {
+        return new XCharacterRunAutomaton(findAnywhereAutomaton(regex, caseSensitive, locale, maxDeterminizedStates, determinizer));
+    }
+
+    /**
+     * Does every string that contains a match for regex also contain a match
+     * for previousRegex? If so then every document regex matches was also
+     * matched by previousRegex. Returns false if it can't tell because
+     * determinizing either regex would take more than maxDeterminizedStates.
+     */
+    public static boolean refines(String regex, String previousRegex, boolean caseSensitive, Locale locale,
+            int maxDeterminizedStates, XParallelDeterminizer determinizer) {
+        try {
+            // subsetOf needs deterministic automata without dead states.
+            // toAutomaton minimizes but an empty language still leaves one.
+            XAutomaton automaton = XOperations.removeDeadStates(findAnywhereAutomaton(regex, caseSensitive, locale,
+                    maxDeterminizedStates, determinizer));
+            XAutomaton previous = XOperations.removeDeadStates(findAnywhereAutomaton(previousRegex, caseSensitive, locale,
+                    maxDeterminizedStates, determinizer));
+            return XOperations.subsetOf(automaton, previous);
+        } catch (XTooComplexToDeterminizeException e) {
+            return false;
+        }
+    }
+
+    private static XAutomaton findAnywhereAutomaton(String regex, boolean caseSensitive, Locale locale, int maxDeterminizedStates,
+            XParallelDeterminizer determinizer) {
+        if (!caseSensitive) {
+            regex = regex.toLowerCase(locale);
+        }
+        return new XRegExp(".*" + regex + ".*", XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(maxDeterminizedStates, determinizer);
+    }
+
+    /**
+     * Options for the filter. Defaults match the source_regex filter's
+     * defaults.
+     */
+    public static final class Options {
+        private String ngramFieldPath;
+        private String ngramFieldCaseSensitivePath;
+        private int gramSize = 3;
+        private boolean sparseNgrams;
+        private int maxExpand = 4;
+        private int maxStatesTraced = 10000;
+        private int maxDeterminizedStates = 20000;
+        private int maxNgramsExtracted = 100;
+        private boolean selectRareNgrams;
+        private String signatureFieldPath;
+        private int maxSignatureNgrams = 1000;
+        private int maxInspect = Integer.MAX_VALUE;
+        private boolean caseSensitive;
+        private Locale locale = Locale.ROOT;
+        private boolean rejectUnaccelerated;
+        private boolean profile;
+        private String previousRegex;
+
+        /**
+         * Ngram field to prefilter candidates against. If null every document
+         * is a candidate unless a case sensitive regex uses
+         * ngramFieldCaseSensitivePath.
+         */
+        public Options ngramFieldPath(String ngramFieldPath) {
+            this.ngramFieldPath = ngramFieldPath;
+            return this;
+        }
+
+        /**
+         * Ngram field that isn't lowercased. Used instead of ngramFieldPath if
+         * caseSensitive is true. If null then case sensitive regexes use
+         * ngramFieldPath.
+         */
+        public Options ngramFieldCaseSensitivePath(String ngramFieldCaseSensitivePath) {
+            this.ngramFieldCaseSensitivePath = ngramFieldCaseSensitivePath;
+            return this;
+        }
+
+        /**
+         * Size of the ngrams in the ngram field.
+         */
+        public Options gramSize(int gramSize) {
+            this.gramSize = gramSize;
+            return this;
+        }
+
+        public int gramSize() {
+            return gramSize;
+        }
+
+        /**
+         * Is the ngram field made with the sparse_gram tokenizer? If so then
+         * gramSize is its max_gram.
+         */
+        public Options sparseNgrams(boolean sparseNgrams) {
+            this.sparseNgrams = sparseNgrams;
+            return this;
+        }
+
+        public boolean sparseNgrams() {
+            return sparseNgrams;
+        }
+
+        /**
+         * Maximum range of characters expanded into ngrams before treating it
+         * as matching anything.
+         */
+        public Options maxExpand(int maxExpand) {
+            this.maxExpand = maxExpand;
+            return this;
+        }
+
+        /**
+         * Maximum number of automaton states traced while extracting ngrams
+         * before the regex is rejected as too complex.
+         */
+        public Options maxStatesTraced(int maxStatesTraced) {
+            this.maxStatesTraced = maxStatesTraced;
+            return this;
+        }
+
+        /**
+         * Maximum number of states the regex may determinize into.
+         */
+        public Options maxDeterminizedStates(int maxDeterminizedStates) {
+            this.maxDeterminizedStates = maxDeterminizedStates;
+            return this;
+        }
+
+        /**
+         * Maximum number of ngrams extracted from the regex for the prefilter.
+         */
+        public Options maxNgramsExtracted(int maxNgramsExtracted) {
+            this.maxNgramsExtracted = maxNgramsExtracted;
+            return this;
+        }
+
+        /**
+         * If the regex has more than maxNgramsExtracted ngrams should we keep
+         * the ones that are rarest in the ngram field? If false we keep the
+         * first ones we find.
+         */
+        public Options selectRareNgrams(boolean selectRareNgrams) {
+            this.selectRareNgrams = selectRareNgrams;
+            return this;
+        }
+
+        /**
+         * Ngram_signature field checked before loading each candidate's source.
+         * If null candidates aren't checked.
+         */
+        public Options signatureFieldPath(String signatureFieldPath) {
+            this.signatureFieldPath = signatureFieldPath;
+            return this;
+        }
+
+        /**
+         * The maximum number of ngrams extracted from the regex to check
+         * against the signature field.
+         */
+        public Options maxSignatureNgrams(int maxSignatureNgrams) {
+            this.maxSignatureNgrams = maxSignatureNgrams;
+            return this;
+        }
+
+        /**
+         * Maximum number of candidates to load and run the regex against.
+         */
+        public Options maxInspect(int maxInspect) {
+            this.maxInspect = maxInspect;
+            return this;
+        }
+
+        /**
+         * Is the regex case sensitive?
+         */
+        public Options caseSensitive(boolean caseSensitive) {
+            this.caseSensitive = caseSensitive;
+            return this;
+        }
+
+        /**
+         * Locale used to lowercase the regex and field values.
+         */
+        public Options locale(Locale locale) {
+            this.locale = locale;
+            return this;
+        }
+
+        /**
+         * Throw rather than verify every document if no ngrams can be extracted
+         * from the regex?
+         */
+        public Options rejectUnaccelerated(boolean rejectUnaccelerated) {
+            this.rejectUnaccelerated = rejectUnaccelerated;
+            return this;
+        }
+
+        /**
+         * Was a profile explicitly requested? If so it is logged and kept with
+         * the stats.
+         */
+        public Options profile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * A regex run earlier against the same field. If its matches are in the
+         * result cache and every match for this regex must also match it then
+         * only its matches are verified. If null then every candidate is
+         * verified.
+         */
+        public Options previousRegex(String previousRegex) {
+            this.previousRegex = previousRegex;
+            return this;
         }
-        return prefilter.getDocIdSet(context, acceptDocs);
     }
 
     /**
@@ -103,29 +662,82 @@ public class SourceRegexFilter extends Filter {
      * source) that matches an automaton.
      */
     private final class RegexAcceptsDocIdSet extends FilteredDocIdSet {
+        private final DocIdSet candidates;
         private final IndexReader reader;
+        private final BinaryDocValues signatures;
 
-        public RegexAcceptsDocIdSet(DocIdSet innerSet, IndexReader reader) {
+        /**
+         * @param signatures ngram signatures to check before loading source.
+         *            If null then source is loaded for every candidate.
+         */
+        public RegexAcceptsDocIdSet(DocIdSet innerSet, IndexReader reader, BinaryDocValues signatures) {
             super(innerSet);
+            this.candidates = innerSet;
             this.reader = reader;
+            this.signatures = signatures;
         }
 
         @Override
         protected boolean match(int docid) {
+            if (regexProfile != null) {
+                regexProfile.candidate();
+            }
+            if (!signatureAccepts(docid)) {
+                // Rejecting by signature is cheap so it doesn't count as an
+                // inspection
+                return false;
+            }
             if (inspected >= maxInspect) {
                 // TODO hook into the generic timeout mechanism when it is ready
                 return false;
             }
             inspected++;
+            return inspect(docid);
+        }
+
+        /**
+         * Might the candidate match according to its ngram signature?
+         */
+        private boolean signatureAccepts(int docid) {
+            return signatures == null || signatureMatcher.matches(signatures.get(docid));
+        }
+
+        /**
+         * Load the candidate's field values and run the regex against them.
+         * Doesn't count against maxInspect.
+         */
+        private boolean inspect(int docid) {
             if (charRun == null) {
-                String regexString = regex;
-                if (!caseSensitive) {
-                    regexString = regexString.toLowerCase(locale);
+                long start = System.nanoTime();
+                if (compiledRegexCache == null) {
+                    charRun = runAutomaton(regex, caseSensitive, locale, maxDeterminizedStates, determinizer);
+                } else {
+                    charRun = compiledRegexCache.runAutomaton(regex, caseSensitive, locale, maxDeterminizedStates, determinizer);
                 }
-                XAutomaton automaton = new XRegExp(".*" + regexString + ".*", XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(maxDeterminizedStates);
-                charRun = new XCharacterRunAutomaton(automaton);
+                if (regexProfile != null) {
+                    regexProfile.addCompileNanos(System.nanoTime() - start);
+                }
+            }
+            if (regexProfile == null || !regexProfile.timed()) {
+                boolean matched = run(load(docid));
+                if (regexProfile != null) {
+                    regexProfile.inspected(matched);
+                }
+                return matched;
             }
+            long start = System.nanoTime();
             List<String> values = load(docid);
+            long loaded = System.nanoTime();
+            boolean matched = run(values);
+            long chars = 0;
+            for (String value : values) {
+                chars += value.length();
+            }
+            regexProfile.inspected(matched, chars, loaded - start, System.nanoTime() - loaded);
+            return matched;
+        }
+
+        private boolean run(List<String> values) {
             for (String value : values) {
                 if (!caseSensitive) {
                     value = value.toLowerCase(locale);
@@ -145,4 +757,44 @@ public class SourceRegexFilter extends Filter {
             }
         }
     }
+
+    /**
+     * Collects the distinct ngrams in an expression.
+     */
+    private static final class ExpressionNGrams implements Expression.Transformer<String, ImmutableSet<String>> {
+        private static final ExpressionNGrams INSTANCE = new ExpressionNGrams();
+
+        @Override
+        public ImmutableSet<String> alwaysTrue() {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public ImmutableSet<String> alwaysFalse() {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public ImmutableSet<String> leaf(String t) {
+            return ImmutableSet.of(t);
+        }
+
+        @Override
+        public ImmutableSet<String> and(ImmutableSet<ImmutableSet<String>> js) {
+            return union(js);
+        }
+
+        @Override
+        public ImmutableSet<String> or(ImmutableSet<ImmutableSet<String>> js) {
+            return union(js);
+        }
+
+        private ImmutableSet<String> union(ImmutableSet<ImmutableSet<String>> js) {
+            ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+            for (ImmutableSet<String> j : js) {
+                builder.addAll(j);
+            }
+            return builder.build();
+        }
+    }
 }
@@ -14,15 +14,22 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
     private final String regex;
     private Boolean loadFromSource;
     private String ngramField;
+    private String ngramFieldCaseSensitive;
     private Integer gramSize;
+    private Boolean sparseNgrams;
     private Integer maxExpand;
     private Integer maxStatesTraced;
     private Integer maxDeterminizedStates;
     private Integer maxNgramsExtracted;
+    private Boolean selectRareNgrams;
+    private String signatureField;
+    private Integer maxSignatureNgrams;
     private Integer maxInspect;
     private Boolean caseSensitive;
     private Locale locale;
     private Boolean rejectUnaccelerated;
+    private Boolean profile;
+    private String previousRegex;
 
     /**
      * Start building.
@@ -54,6 +61,18 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * @param ngramFieldCaseSensitive field containing ngrams that aren't
+     *            lowercased. Used instead of ngramField to prefilter case
+     *            sensitive regexes. If not set then case sensitive regexes
+     *            use ngramField.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder ngramFieldCaseSensitive(String ngramFieldCaseSensitive) {
+        this.ngramFieldCaseSensitive = ngramFieldCaseSensitive;
+        return this;
+    }
+
     /**
      * @param gramSize size of the gram. Defaults to 3 because everyone loves
      *            trigrams.
@@ -64,6 +83,17 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * @param sparseNgrams is the ngram field made with the sparse_gram
+     *            tokenizer? If so then gramSize must be its max_gram. Defaults
+     *            to false.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder sparseNgrams(boolean sparseNgrams) {
+        this.sparseNgrams = sparseNgrams;
+        return this;
+    }
+
     public SourceRegexFilterBuilder maxExpand(int maxExpand) {
         this.maxExpand = maxExpand;
         return this;
@@ -111,6 +141,40 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * @param selectRareNgrams if the regex has more than maxNgramsExtracted
+     *            ngrams should the filter keep the ones that are rarest in the
+     *            ngram field? Otherwise it keeps the first ones it finds.
+     *            Defaults to false.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder selectRareNgrams(boolean selectRareNgrams) {
+        this.selectRareNgrams = selectRareNgrams;
+        return this;
+    }
+
+    /**
+     * @param signatureField an ngram_signature field built with the same
+     *            analyzer as the ngram field. If set then each candidate's
+     *            signature is checked before its source is loaded.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder signatureField(String signatureField) {
+        this.signatureField = signatureField;
+        return this;
+    }
+
+    /**
+     * @param maxSignatureNgrams the maximum number of ngrams extracted from the
+     *            regex to check against the signature field. Defaults to
+     *            1000.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder maxSignatureNgrams(int maxSignatureNgrams) {
+        this.maxSignatureNgrams = maxSignatureNgrams;
+        return this;
+    }
+
     /**
      * @param maxInspect the maximum number of source documents to run the regex
      *            against per shard. All others after that are assumed not to
@@ -142,6 +206,28 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         return this;
     }
 
+    /**
+     * @param profile should the filter log its profile and keep it in the
+     *            regex stats?
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder profile(boolean profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * @param previousRegex a regex run earlier against the same field. If its
+     *            matches are still in the regex result cache and every match
+     *            for this regex must also match it then only its matches are
+     *            checked.
+     * @return this for chaining
+     */
+    public SourceRegexFilterBuilder previousRegex(String previousRegex) {
+        this.previousRegex = previousRegex;
+        return this;
+    }
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(SourceRegexFilterParser.NAMES[0]);
@@ -154,9 +240,15 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         if (ngramField != null) {
             builder.field("ngram_field", ngramField);
         }
+        if (ngramFieldCaseSensitive != null) {
+            builder.field("ngram_field_case_sensitive", ngramFieldCaseSensitive);
+        }
         if (gramSize != null) {
             builder.field("gram_size", gramSize);
         }
+        if (sparseNgrams != null) {
+            builder.field("sparse_ngrams", sparseNgrams);
+        }
         if (maxExpand != null) {
             builder.field("max_expand", maxExpand);
         }
@@ -169,6 +261,15 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         if (maxNgramsExtracted != null) {
             builder.field("max_ngrams_extracted", maxNgramsExtracted);
         }
+        if (selectRareNgrams != null) {
+            builder.field("select_rare_ngrams", selectRareNgrams);
+        }
+        if (signatureField != null) {
+            builder.field("signature_field", signatureField);
+        }
+        if (maxSignatureNgrams != null) {
+            builder.field("max_signature_ngrams", maxSignatureNgrams);
+        }
         if (maxInspect != null) {
             builder.field("max_inspect", maxInspect);
         }
@@ -181,6 +282,12 @@ public class SourceRegexFilterBuilder extends BaseFilterBuilder {
         if (rejectUnaccelerated != null) {
             builder.field("reject_unaccelerated", rejectUnaccelerated);
         }
+        if (profile != null) {
+            builder.field("profile", profile);
+        }
+        if (previousRegex != null) {
+            builder.field("previous_regex", previousRegex);
+        }
 
         builder.endObject();
     }
@@ -1,15 +1,21 @@
 package org.wikimedia.search.extra.regex;
 
 import java.io.IOException;
-import java.util.Locale;
 
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.automaton.XParallelDeterminizer;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.LocaleUtils;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
 import org.elasticsearch.index.query.FilterParser;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.wikimedia.search.extra.regex.ngram.SparseGrams;
+import org.wikimedia.search.extra.regex.stats.RegexStats;
+import org.wikimedia.search.extra.util.FieldValueCache;
 import org.wikimedia.search.extra.util.FieldValues;
 
 /**
@@ -17,6 +23,29 @@ import org.wikimedia.search.extra.util.FieldValues;
  */
 public class SourceRegexFilterParser implements FilterParser {
     public static final String[] NAMES = new String[] { "source_regex", "source-regex", "sourceRegex" };
+    /**
+     * Number of threads used to determinize each regex. Defaults to 1 which
+     * determinizes on the search thread. Higher values borrow threads from
+     * the generic thread pool but only for regexes with many states.
+     */
+    public static final String DETERMINIZE_THREADS_SETTING = "wikimedia.extra.regex.determinize.threads";
+
+    private final FieldValueCache fieldValueCache;
+    private final RegexStats regexStats;
+    private final XParallelDeterminizer determinizer;
+    private final CompiledRegexCache compiledRegexCache;
+    private final RegexResultCache resultCache;
+
+    @Inject
+    public SourceRegexFilterParser(Settings settings, ThreadPool threadPool, FieldValueCache fieldValueCache, RegexStats regexStats,
+            CompiledRegexCache compiledRegexCache, RegexResultCache resultCache) {
+        this.fieldValueCache = fieldValueCache;
+        this.regexStats = regexStats;
+        this.compiledRegexCache = compiledRegexCache;
+        this.resultCache = resultCache;
+        int determinizeThreads = settings.getAsInt(DETERMINIZE_THREADS_SETTING, 1);
+        determinizer = determinizeThreads > 1 ? new XParallelDeterminizer(threadPool.generic(), determinizeThreads) : null;
+    }
 
     @Override
     public String[] names() {
@@ -29,16 +58,7 @@ public class SourceRegexFilterParser implements FilterParser {
         String regex = null;
         String fieldPath = null;
         FieldValues.Loader loader = FieldValues.loadFromSource();
-        String ngramFieldPath = null;
-        int gramSize = 3;
-        int maxExpand = 4;
-        int maxStatesTraced = 10000;
-        int maxDeterminizedStates = 20000;
-        int maxNgramsExtracted = 100;
-        int maxInspect = Integer.MAX_VALUE;
-        boolean caseSensitive = false;
-        Locale locale = Locale.ROOT;
-        boolean rejectUnaccelerated = false;
+        SourceRegexFilter.Options options = new SourceRegexFilter.Options();
 
         // Stuff all filters have
         String filterName = null;
@@ -69,43 +89,73 @@ public class SourceRegexFilterParser implements FilterParser {
                     break;
                 case "ngram_field":
                 case "ngramField":
-                    ngramFieldPath = parser.text();
+                    options.ngramFieldPath(parser.text());
+                    break;
+                case "ngram_field_case_sensitive":
+                case "ngramFieldCaseSensitive":
+                    options.ngramFieldCaseSensitivePath(parser.text());
                     break;
                 case "gram_size":
                 case "gramSize":
-                    gramSize = parser.intValue();
+                    options.gramSize(parser.intValue());
+                    break;
+                case "sparse_ngrams":
+                case "sparseNgrams":
+                case "sparseNGrams":
+                    options.sparseNgrams(parser.booleanValue());
                     break;
                 case "max_expand":
                 case "maxExpand":
-                    maxExpand = parser.intValue();
+                    options.maxExpand(parser.intValue());
                     break;
                 case "max_states_traced":
                 case "maxStatesTraced":
-                    maxStatesTraced = parser.intValue();
+                    options.maxStatesTraced(parser.intValue());
                     break;
                 case "max_inspect":
                 case "maxInspect":
-                    maxInspect = parser.intValue();
+                    options.maxInspect(parser.intValue());
                     break;
                 case "max_determinized_states":
                 case "maxDeterminizedStates":
-                    maxDeterminizedStates = parser.intValue();
+                    options.maxDeterminizedStates(parser.intValue());
                     break;
                 case "max_ngrams_extracted":
                 case "maxNgramsExtracted":
                 case "maxNGramsExtracted":
-                    maxNgramsExtracted = parser.intValue();
+                    options.maxNgramsExtracted(parser.intValue());
+                    break;
+                case "select_rare_ngrams":
+                case "selectRareNgrams":
+                case "selectRareNGrams":
+                    options.selectRareNgrams(parser.booleanValue());
+                    break;
+                case "signature_field":
+                case "signatureField":
+                    options.signatureFieldPath(parser.text());
+                    break;
+                case "max_signature_ngrams":
+                case "maxSignatureNgrams":
+                case "maxSignatureNGrams":
+                    options.maxSignatureNgrams(parser.intValue());
                     break;
                 case "case_sensitive":
                 case "caseSensitive":
-                    caseSensitive = parser.booleanValue();
+                    options.caseSensitive(parser.booleanValue());
                     break;
                 case "locale":
-                    locale = LocaleUtils.parse(parser.text());
+                    options.locale(LocaleUtils.parse(parser.text()));
                     break;
                 case "reject_unaccelerated":
                 case "rejectUnaccelerated":
-                    rejectUnaccelerated = parser.booleanValue();
+                    options.rejectUnaccelerated(parser.booleanValue());
+                    break;
+                case "profile":
+                    options.profile(parser.booleanValue());
+                    break;
+                case "previous_regex":
+                case "previousRegex":
+                    options.previousRegex(parser.text());
                     break;
                 case "_cache":
                     cache = parser.booleanValue();
@@ -130,8 +180,13 @@ public class SourceRegexFilterParser implements FilterParser {
         if (fieldPath == null) {
             throw new QueryParsingException(parseContext.index(), "[source-regex] filter must specify [field]");
         }
-        Filter filter = new SourceRegexFilter(fieldPath, loader, regex, ngramFieldPath, gramSize, maxExpand, maxStatesTraced,
-                maxDeterminizedStates, maxNgramsExtracted, maxInspect, caseSensitive, locale, rejectUnaccelerated);
+        if (options.sparseNgrams() && options.gramSize() < SparseGrams.MIN_GRAM) {
+            throw new QueryParsingException(parseContext.index(), "[source-regex] filter's [gram_size] must be at least "
+                    + SparseGrams.MIN_GRAM + " with [sparse_ngrams]");
+        }
+        loader = FieldValues.cache(loader, fieldValueCache);
+        Filter filter = new SourceRegexFilter(fieldPath, loader, regex, options, regexStats, determinizer, compiledRegexCache,
+                resultCache);
         if (cache) {
             filter = parseContext.cacheFilter(filter, cacheKey);
         }
@@ -0,0 +1,220 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.lucene.docset.AllDocIdSet;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.util.FieldValues;
+
+/**
+ * Like {@link SourceRegexFilter} but for many regexes at once. The ngram
+ * prefilters of all the regexes are ORed together and each candidate document
+ * is loaded only once and checked against all the regexes in a single pass.
+ * Documents match if any of the regexes match. Use
+ * {@link #patternFilter(int)} to get a filter that matches only documents
+ * matching a particular regex. These share the work done by this filter so
+ * they are cheap to use as named filters to report which regexes matched.
+ */
+public class SourceRegexSetFilter extends Filter {
+    private final String fieldPath;
+    private final ImmutableList<String> regexes;
+    private final FieldValues.Loader loader;
+    private final String ngramFieldPath;
+    private final int gramSize;
+    private final int maxExpand;
+    private final int maxStatesTraced;
+    private final int maxDeterminizedStates;
+    private final int maxNgramsExtracted;
+    private final int maxInspect;
+    private final boolean caseSensitive;
+    private final Locale locale;
+    private final boolean rejectUnaccelerated;
+    private int inspected = 0;
+    private Filter prefilter;
+    private MultiCharacterRunAutomaton multiRun;
+    /**
+     * Core cache key of the last reader checked by {@link #matches}.
+     */
+    private Object lastCoreKey;
+    /**
+     * Last document checked by {@link #matches}.
+     */
+    private int lastDocId = -1;
+    /**
+     * Regexes that matched the last document checked by {@link #matches}.
+     */
+    private FixedBitSet lastMatched;
+
+    public SourceRegexSetFilter(String fieldPath, FieldValues.Loader loader, List<String> regexes, String ngramFieldPath, int gramSize,
+            int maxExpand, int maxStatesTraced, int maxDeterminizedStates, int maxNgramsExtracted, int maxInspect,
+            boolean caseSensitive, Locale locale, boolean rejectUnaccelerated) {
+        this.fieldPath = fieldPath;
+        this.loader = loader;
+        this.regexes = ImmutableList.copyOf(regexes);
+        this.ngramFieldPath = ngramFieldPath;
+        this.gramSize = gramSize;
+        this.maxExpand = maxExpand;
+        this.maxStatesTraced = maxStatesTraced;
+        this.maxDeterminizedStates = maxDeterminizedStates;
+        this.maxNgramsExtracted = maxNgramsExtracted;
+        this.maxInspect = maxInspect;
+        this.caseSensitive = caseSensitive;
+        this.locale = locale;
+        this.rejectUnaccelerated = rejectUnaccelerated;
+    }
+
+    /**
+     * Build a filter that matches documents that match the regex at index
+     * pattern. It shares the prefilter and loaded documents with this filter.
+     */
+    public Filter patternFilter(int pattern) {
+        return new PatternFilter(pattern);
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        DocIdSet filtered = getFilteredDocIdSet(context, acceptDocs);
+        if (filtered == null) {
+            return null;
+        }
+        return new RegexSetAcceptsDocIdSet(BitsFilteredDocIdSet.wrap(filtered, acceptDocs), context.reader(), -1);
+    }
+
+    private DocIdSet getFilteredDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        if (ngramFieldPath == null) {
+            return new AllDocIdSet(context.reader().maxDoc());
+        }
+        if (prefilter == null) {
+            ImmutableSet.Builder<Expression<String>> expressions = ImmutableSet.builder();
+            for (String regex : regexes) {
+                Expression<String> expression = SourceRegexFilter.ngramExpression(regex, locale, gramSize, maxExpand, maxStatesTraced,
+                        maxDeterminizedStates, maxNgramsExtracted);
+                if (expression.alwaysTrue() && rejectUnaccelerated) {
+                    throw new UnableToAccelerateRegexException(regex, gramSize, ngramFieldPath);
+                }
+                expressions.add(expression);
+            }
+            prefilter = SourceRegexFilter.expressionToFilter(new Or<>(expressions.build()).simplify(), ngramFieldPath);
+        }
+        return prefilter.getDocIdSet(context, acceptDocs);
+    }
+
+    /**
+     * Find the regexes that match a document. Repeated calls for the same
+     * document only load and check it once.
+     *
+     * @param limited should this check count against maxInspect? Checks for
+     *            single regexes don't because they are only used to report
+     *            on documents that have already matched.
+     * @return regexes that matched or null if we've already inspected
+     *         maxInspect documents
+     */
+    private FixedBitSet matches(AtomicReader reader, int docId, boolean limited) {
+        if (lastDocId == docId && lastCoreKey == reader.getCoreCacheKey()) {
+            return lastMatched;
+        }
+        if (limited) {
+            if (inspected >= maxInspect) {
+                return null;
+            }
+            inspected++;
+        }
+        if (multiRun == null) {
+            List<XCharacterRunAutomaton> automata = new ArrayList<>(regexes.size());
+            for (String regex : regexes) {
+                automata.add(SourceRegexFilter.runAutomaton(regex, caseSensitive, locale, maxDeterminizedStates));
+            }
+            multiRun = new MultiCharacterRunAutomaton(automata);
+            lastMatched = new FixedBitSet(regexes.size());
+        }
+        lastMatched.clear(0, regexes.size());
+        List<String> values = load(reader, docId);
+        for (String value : values) {
+            if (!caseSensitive) {
+                value = value.toLowerCase(locale);
+            }
+            if (multiRun.run(value, lastMatched)) {
+                break;
+            }
+        }
+        lastCoreKey = reader.getCoreCacheKey();
+        lastDocId = docId;
+        return lastMatched;
+    }
+
+    private List<String> load(AtomicReader reader, int docId) {
+        try {
+            return loader.load(fieldPath, reader, docId);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Error loading field values", e);
+        }
+    }
+
+    /**
+     * Filters a DocIdSet to those that contain a field value that matches one
+     * of the regexes or, if pattern isn't -1, a particular regex.
+     */
+    private final class RegexSetAcceptsDocIdSet extends FilteredDocIdSet {
+        private final AtomicReader reader;
+        private final int pattern;
+
+        public RegexSetAcceptsDocIdSet(DocIdSet innerSet, AtomicReader reader, int pattern) {
+            super(innerSet);
+            this.reader = reader;
+            this.pattern = pattern;
+        }
+
+        @Override
+        protected boolean match(int docid) {
+            FixedBitSet matched = matches(reader, docid, pattern < 0);
+            if (matched == null) {
+                return false;
+            }
+            if (pattern < 0) {
+                return matched.cardinality() > 0;
+            }
+            return matched.get(pattern);
+        }
+    }
+
+    /**
+     * Matches documents that match a single regex in the set.
+     */
+    private final class PatternFilter extends Filter {
+        private final int pattern;
+
+        public PatternFilter(int pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            DocIdSet filtered = getFilteredDocIdSet(context, acceptDocs);
+            if (filtered == null) {
+                return null;
+            }
+            return new RegexSetAcceptsDocIdSet(BitsFilteredDocIdSet.wrap(filtered, acceptDocs), context.reader(), pattern);
+        }
+
+        @Override
+        public String toString() {
+            return "source_regex_set[" + regexes.get(pattern) + "]";
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BaseFilterBuilder;
+
+/**
+ * Builds source_regex_set filters.
+ */
+public class SourceRegexSetFilterBuilder extends BaseFilterBuilder {
+    private final String field;
+    private final Map<String, String> regexes = new LinkedHashMap<>();
+    private Boolean loadFromSource;
+    private String ngramField;
+    private Integer gramSize;
+    private Integer maxExpand;
+    private Integer maxStatesTraced;
+    private Integer maxDeterminizedStates;
+    private Integer maxNgramsExtracted;
+    private Integer maxInspect;
+    private Boolean caseSensitive;
+    private Locale locale;
+    private Boolean rejectUnaccelerated;
+
+    /**
+     * Start building.
+     * @param field the field to load and run the regexes against
+     */
+    public SourceRegexSetFilterBuilder(String field) {
+        this.field = field;
+    }
+
+    /**
+     * @param name name of the regex. Reported in the matched_filters of hits
+     *            the regex matches.
+     * @param regex the regex to run
+     * @return this for chaining
+     */
+    public SourceRegexSetFilterBuilder regex(String name, String regex) {
+        regexes.put(name, regex);
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#loadFromSource(boolean)
+     */
+    public SourceRegexSetFilterBuilder loadFromSource(boolean loadFromSource) {
+        this.loadFromSource = loadFromSource;
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#ngramField(String)
+     */
+    public SourceRegexSetFilterBuilder ngramField(String ngramField) {
+        this.ngramField = ngramField;
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#gramSize(int)
+     */
+    public SourceRegexSetFilterBuilder gramSize(int gramSize) {
+        this.gramSize = gramSize;
+        return this;
+    }
+
+    public SourceRegexSetFilterBuilder maxExpand(int maxExpand) {
+        this.maxExpand = maxExpand;
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#maxStatesTraced(int)
+     */
+    public SourceRegexSetFilterBuilder maxStatesTraced(int maxStatesTraced) {
+        this.maxStatesTraced = maxStatesTraced;
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#maxDeterminizedStates(int)
+     */
+    public SourceRegexSetFilterBuilder maxDeterminizedStates(int maxDeterminizedStates) {
+        this.maxDeterminizedStates = maxDeterminizedStates;
+        return this;
+    }
+
+    /**
+     * @param maxNgramsExtracted the maximum number of ngrams extracted from
+     *            each regex.
+     * @see SourceRegexFilterBuilder#maxNgramsExtracted(int)
+     */
+    public SourceRegexSetFilterBuilder maxNgramsExtracted(int maxNgramsExtracted) {
+        this.maxNgramsExtracted = maxNgramsExtracted;
+        return this;
+    }
+
+    /**
+     * @see SourceRegexFilterBuilder#maxInspect(int)
+     */
+    public SourceRegexSetFilterBuilder maxInspect(int maxInspect) {
+        this.maxInspect = maxInspect;
+        return this;
+    }
+
+    public SourceRegexSetFilterBuilder caseSensitive(boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+        return this;
+    }
+
+    public SourceRegexSetFilterBuilder locale(Locale locale) {
+        this.locale = locale;
+        return this;
+    }
+
+    /**
+     * @param rejectUnaccelerated should the filter reject the set if it cannot
+     *            accelerate any of the regexes?
+     * @return this for chaining
+     */
+    public SourceRegexSetFilterBuilder rejectUnaccelerated(boolean rejectUnaccelerated) {
+        this.rejectUnaccelerated = rejectUnaccelerated;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(SourceRegexSetFilterParser.NAMES[0]);
+        builder.field("field", field);
+        builder.field("regexes", regexes);
+
+        if (loadFromSource != null) {
+            builder.field("load_from_source", loadFromSource);
+        }
+        if (ngramField != null) {
+            builder.field("ngram_field", ngramField);
+        }
+        if (gramSize != null) {
+            builder.field("gram_size", gramSize);
+        }
+        if (maxExpand != null) {
+            builder.field("max_expand", maxExpand);
+        }
+        if (maxStatesTraced != null) {
+            builder.field("max_states_traced", maxStatesTraced);
+        }
+        if (maxDeterminizedStates != null) {
+            builder.field("max_determinized_states", maxDeterminizedStates);
+        }
+        if (maxNgramsExtracted != null) {
+            builder.field("max_ngrams_extracted", maxNgramsExtracted);
+        }
+        if (maxInspect != null) {
+            builder.field("max_inspect", maxInspect);
+        }
+        if (caseSensitive != null) {
+            builder.field("case_sensitive", caseSensitive);
+        }
+        if (locale != null) {
+            builder.field("locale", locale);
+        }
+        if (rejectUnaccelerated != null) {
+            builder.field("reject_unaccelerated", rejectUnaccelerated);
+        }
+
+        builder.endObject();
+    }
+}
@@ -0,0 +1,192 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.search.Filter;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.util.LocaleUtils;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.query.FilterParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParsingException;
+import org.wikimedia.search.extra.util.FieldValueCache;
+import org.wikimedia.search.extra.util.FieldValues;
+
+/**
+ * Parses source_regex_set filters.
+ */
+public class SourceRegexSetFilterParser implements FilterParser {
+    public static final String[] NAMES = new String[] { "source_regex_set", "source-regex-set", "sourceRegexSet" };
+
+    private final FieldValueCache fieldValueCache;
+
+    @Inject
+    public SourceRegexSetFilterParser(FieldValueCache fieldValueCache) {
+        this.fieldValueCache = fieldValueCache;
+    }
+
+    @Override
+    public String[] names() {
+        return NAMES;
+    }
+
+    @Override
+    public Filter parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        // Stuff for our filter
+        List<String> regexes = new ArrayList<>();
+        List<String> regexNames = new ArrayList<>();
+        String fieldPath = null;
+        FieldValues.Loader loader = FieldValues.loadFromSource();
+        String ngramFieldPath = null;
+        int gramSize = 3;
+        int maxExpand = 4;
+        int maxStatesTraced = 10000;
+        int maxDeterminizedStates = 20000;
+        int maxNgramsExtracted = 100;
+        int maxInspect = Integer.MAX_VALUE;
+        boolean caseSensitive = false;
+        Locale locale = Locale.ROOT;
+        boolean rejectUnaccelerated = false;
+
+        // Stuff all filters have
+        String filterName = null;
+        boolean cache = false; // Not cached by default
+        CacheKeyFilter.Key cacheKey = null;
+
+        XContentParser parser = parseContext.parser();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                if (!"regexes".equals(currentFieldName)) {
+                    throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter does not support ["
+                            + currentFieldName + "]");
+                }
+                // Named regexes - the names are reported as matched filters
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        regexNames.add(parser.currentName());
+                    } else if (token == XContentParser.Token.VALUE_STRING) {
+                        regexes.add(parser.text());
+                    } else {
+                        throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter's [regexes] must be strings but ["
+                                + regexNames.get(regexNames.size() - 1) + "] isn't");
+                    }
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                if (!"regexes".equals(currentFieldName)) {
+                    throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter does not support ["
+                            + currentFieldName + "]");
+                }
+                while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                    if (token != XContentParser.Token.VALUE_STRING) {
+                        throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter's [regexes] must be strings");
+                    }
+                    regexNames.add(null);
+                    regexes.add(parser.text());
+                }
+            } else if (token.isValue()) {
+                switch (currentFieldName) {
+                case "field":
+                    fieldPath = parser.text();
+                    break;
+                case "load_from_source":
+                case "loadFromSource":
+                    if (parser.booleanValue()) {
+                        loader = FieldValues.loadFromSource();
+                    } else {
+                        loader = FieldValues.loadFromStoredField();
+                    }
+                    break;
+                case "ngram_field":
+                case "ngramField":
+                    ngramFieldPath = parser.text();
+                    break;
+                case "gram_size":
+                case "gramSize":
+                    gramSize = parser.intValue();
+                    break;
+                case "max_expand":
+                case "maxExpand":
+                    maxExpand = parser.intValue();
+                    break;
+                case "max_states_traced":
+                case "maxStatesTraced":
+                    maxStatesTraced = parser.intValue();
+                    break;
+                case "max_inspect":
+                case "maxInspect":
+                    maxInspect = parser.intValue();
+                    break;
+                case "max_determinized_states":
+                case "maxDeterminizedStates":
+                    maxDeterminizedStates = parser.intValue();
+                    break;
+                case "max_ngrams_extracted":
+                case "maxNgramsExtracted":
+                case "maxNGramsExtracted":
+                    maxNgramsExtracted = parser.intValue();
+                    break;
+                case "case_sensitive":
+                case "caseSensitive":
+                    caseSensitive = parser.booleanValue();
+                    break;
+                case "locale":
+                    locale = LocaleUtils.parse(parser.text());
+                    break;
+                case "reject_unaccelerated":
+                case "rejectUnaccelerated":
+                    rejectUnaccelerated = parser.booleanValue();
+                    break;
+                case "_cache":
+                    cache = parser.booleanValue();
+                    break;
+                case "_name":
+                    filterName = parser.text();
+                    break;
+                case "_cache_key":
+                case "_cacheKey":
+                    cacheKey = new CacheKeyFilter.Key(parser.text());
+                    break;
+                default:
+                    throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter does not support ["
+                            + currentFieldName + "]");
+                }
+            }
+        }
+
+        if (regexes.isEmpty()) {
+            throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter must specify [regexes]");
+        }
+        for (String regex : regexes) {
+            if ("".equals(regex)) {
+                throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter doesn't support empty regexes");
+            }
+        }
+        if (fieldPath == null) {
+            throw new QueryParsingException(parseContext.index(), "[source-regex-set] filter must specify [field]");
+        }
+        loader = FieldValues.cache(loader, fieldValueCache);
+        SourceRegexSetFilter setFilter = new SourceRegexSetFilter(fieldPath, loader, regexes, ngramFieldPath, gramSize, maxExpand,
+                maxStatesTraced, maxDeterminizedStates, maxNgramsExtracted, maxInspect, caseSensitive, locale, rejectUnaccelerated);
+        for (int i = 0; i < regexNames.size(); i++) {
+            if (regexNames.get(i) != null) {
+                parseContext.addNamedFilter(regexNames.get(i), setFilter.patternFilter(i));
+            }
+        }
+        Filter filter = setFilter;
+        if (cache) {
+            filter = parseContext.cacheFilter(filter, cacheKey);
+        }
+        if (filterName != null) {
+            parseContext.addNamedFilter(filterName, filter);
+        }
+        return filter;
+    }
+}
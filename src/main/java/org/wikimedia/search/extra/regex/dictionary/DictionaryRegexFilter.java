@@ -0,0 +1,303 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.XBytesRefBuilder;
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.apache.lucene.util.automaton.XAutomatonTermsEnum;
+import org.apache.lucene.util.automaton.XByteRunAutomaton;
+import org.apache.lucene.util.automaton.XCompiledAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+
+/**
+ * Filters documents to those with a term in a field that matches a regex. The
+ * regex has to match the whole term so it is best used against not_analyzed
+ * fields like page titles. Rather than loading any documents it walks the
+ * field's terms and collects the postings of the matching ones. Without the
+ * cache the terms dictionary is walked with an {@link XAutomatonTermsEnum}
+ * which seeks past all the terms the regex can't match. If the
+ * {@link TermFSTCache} is enabled the terms are walked as an FST in lock step
+ * with the regex's automaton so whole subtrees of terms that can't match are
+ * skipped. If topN is set only documents containing the topN highest weighted
+ * matching terms in each segment match. A term's weight is the largest value
+ * of the weight field in any document containing it. With the cache enabled
+ * those are found with a {@link TopTermsSearcher} which usually doesn't have to
+ * visit all of the matching terms. If too many of the best terms have been
+ * deleted for it to find the top ones every matching term is scanned instead.
+ */
+public class DictionaryRegexFilter extends Filter {
+    private final String field;
+    private final String regex;
+    private final int maxDeterminizedStates;
+    private final int topN;
+    private final IndexNumericFieldData weights;
+    private final TermFSTCache termFSTCache;
+    private XAutomaton regexAutomaton;
+    private XByteRunAutomaton byteRunAutomaton;
+    private XCompiledAutomaton compiledAutomaton;
+    private TopTermsSearcher topTermsSearcher;
+
+    /**
+     * Build the filter.
+     *
+     * @param field index name of the field whose terms are matched
+     * @param regex regex that must match the entire term
+     * @param maxDeterminizedStates maximum number of states the regex may
+     *            determinize into
+     * @param topN only match documents containing the topN highest weighted
+     *            matching terms in each segment. 0 means match all of them.
+     * @param weights weights for topN. Required if topN is greater than 0.
+     * @param termFSTCache cache of term FSTs. If null or disabled the terms
+     *            are read straight from the terms dictionary.
+     */
+    public DictionaryRegexFilter(String field, String regex, int maxDeterminizedStates, int topN, IndexNumericFieldData weights,
+            TermFSTCache termFSTCache) {
+        this.field = field;
+        this.regex = regex;
+        this.maxDeterminizedStates = maxDeterminizedStates;
+        this.topN = topN;
+        this.weights = weights;
+        this.termFSTCache = termFSTCache;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        AtomicReader reader = context.reader();
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator(null);
+        boolean useFST = termFSTCache != null && termFSTCache.enabled();
+        List<BytesRef> matched;
+        if (topN > 0) {
+            SortedNumericDocValues weightValues = weights.load(context).getLongValues();
+            if (useFST) {
+                FST<Long> fst = termFSTCache.weightedFst(reader, field, weights.getFieldNames().indexName(), weightValues);
+                if (fst == null) {
+                    return null;
+                }
+                if (topTermsSearcher == null) {
+                    topTermsSearcher = new TopTermsSearcher(byteRunAutomaton());
+                }
+                matched = topTermsSearcher.search(fst, topN, termsEnum, acceptDocs);
+            } else {
+                matched = null;
+            }
+            if (matched == null) {
+                // Either the cache is disabled or too many of the best terms
+                // only appear in deleted documents for the FST to find them.
+                matched = scanTopN(compiledAutomaton().getTermsEnum(terms), weightValues, acceptDocs);
+            }
+        } else if (useFST) {
+            FST<Object> fst = termFSTCache.fst(reader, field);
+            if (fst == null) {
+                return null;
+            }
+            matched = intersect(fst, byteRunAutomaton());
+        } else {
+            return collect(compiledAutomaton().getTermsEnum(terms), reader.maxDoc(), acceptDocs);
+        }
+        if (matched.isEmpty()) {
+            return null;
+        }
+        FixedBitSet result = new FixedBitSet(reader.maxDoc());
+        DocsEnum docs = null;
+        for (BytesRef term : matched) {
+            if (!termsEnum.seekExact(term)) {
+                continue;
+            }
+            docs = termsEnum.docs(acceptDocs, docs, DocsEnum.FLAG_NONE);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                result.set(doc);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collect the documents containing every term in the enum.
+     *
+     * @return the documents or null if there weren't any terms
+     */
+    private DocIdSet collect(TermsEnum termsEnum, int maxDoc, Bits acceptDocs) throws IOException {
+        FixedBitSet result = null;
+        DocsEnum docs = null;
+        while (termsEnum.next() != null) {
+            if (result == null) {
+                result = new FixedBitSet(maxDoc);
+            }
+            docs = termsEnum.docs(acceptDocs, docs, DocsEnum.FLAG_NONE);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                result.set(doc);
+            }
+        }
+        return result;
+    }
+
+    private XAutomaton regexAutomaton() {
+        if (regexAutomaton == null) {
+            regexAutomaton = new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(maxDeterminizedStates);
+        }
+        return regexAutomaton;
+    }
+
+    /**
+     * Automaton for walking the FSTs.
+     */
+    private XByteRunAutomaton byteRunAutomaton() {
+        if (byteRunAutomaton == null) {
+            byteRunAutomaton = new XByteRunAutomaton(regexAutomaton(), false, maxDeterminizedStates);
+        }
+        return byteRunAutomaton;
+    }
+
+    /**
+     * Automaton for walking the terms dictionary. Compiling it spots regexes
+     * that are just a prefix or a single term.
+     */
+    private XCompiledAutomaton compiledAutomaton() {
+        if (compiledAutomaton == null) {
+            compiledAutomaton = new XCompiledAutomaton(regexAutomaton(), null, true, maxDeterminizedStates);
+        }
+        return compiledAutomaton;
+    }
+
+    /**
+     * Find the topN highest weighted terms by checking the weights of every
+     * matching term.
+     */
+    private List<BytesRef> scanTopN(TermsEnum termsEnum, SortedNumericDocValues weightValues, Bits acceptDocs) throws IOException {
+        // Lowest weight first so the head is the one to replace
+        PriorityQueue<WeightedTerm> best = new PriorityQueue<>(topN, new Comparator<WeightedTerm>() {
+            @Override
+            public int compare(WeightedTerm lhs, WeightedTerm rhs) {
+                int cmp = Long.compare(lhs.weight, rhs.weight);
+                if (cmp != 0) {
+                    return cmp;
+                }
+                return rhs.term.compareTo(lhs.term);
+            }
+        });
+        DocsEnum docs = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            if (acceptDocs != null) {
+                docs = termsEnum.docs(acceptDocs, docs, DocsEnum.FLAG_NONE);
+                if (docs.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                    continue;
+                }
+            }
+            docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+            long weight = TermFSTCache.maxWeight(docs, weightValues);
+            if (best.size() >= topN && weight <= best.peek().weight) {
+                // Ties go to the earlier term which is already in the queue
+                continue;
+            }
+            best.add(new WeightedTerm(BytesRef.deepCopyOf(term), weight));
+            if (best.size() > topN) {
+                best.poll();
+            }
+        }
+        List<BytesRef> matched = new ArrayList<>(best.size());
+        for (WeightedTerm weighted : best) {
+            matched.add(weighted.term);
+        }
+        return matched;
+    }
+
+    /**
+     * Walk the FST depth first stepping the automaton along with it. Arcs the
+     * automaton rejects are never followed so the walk only visits prefixes
+     * that could still match.
+     *
+     * @return the matching terms in sorted order
+     */
+    static List<BytesRef> intersect(FST<Object> fst, XByteRunAutomaton automaton) throws IOException {
+        List<BytesRef> matched = new ArrayList<>();
+        FST.BytesReader in = fst.getBytesReader();
+        FST.Arc<Object> root = fst.getFirstArc(new FST.Arc<Object>());
+        int initial = automaton.getInitialState();
+        if (root.isFinal() && automaton.isAccept(initial)) {
+            matched.add(new BytesRef());
+        }
+        if (!FST.targetHasArcs(root)) {
+            return matched;
+        }
+        // arcs[depth] is the arc being followed from the node at depth and
+        // states[depth] is the automaton's state at that node
+        List<FST.Arc<Object>> arcs = new ArrayList<>();
+        int[] states = new int[16];
+        XBytesRefBuilder term = new XBytesRefBuilder();
+        arcs.add(fst.readFirstTargetArc(root, new FST.Arc<Object>(), in));
+        states[0] = initial;
+        int depth = 0;
+        while (depth >= 0) {
+            FST.Arc<Object> arc = arcs.get(depth);
+            if (arc.label != FST.END_LABEL) {
+                int next = automaton.step(states[depth], arc.label);
+                if (next != -1) {
+                    term.setLength(depth);
+                    term.append((byte) arc.label);
+                    if (arc.isFinal() && automaton.isAccept(next)) {
+                        matched.add(term.toBytesRef());
+                    }
+                    if (FST.targetHasArcs(arc)) {
+                        depth++;
+                        if (depth == arcs.size()) {
+                            arcs.add(new FST.Arc<Object>());
+                        }
+                        states = ArrayUtil.grow(states, depth + 1);
+                        states[depth] = next;
+                        fst.readFirstTargetArc(arc, arcs.get(depth), in);
+                        continue;
+                    }
+                }
+            }
+            // Move on to the next sibling, popping any finished nodes
+            while (depth >= 0 && arcs.get(depth).isLast()) {
+                depth--;
+            }
+            if (depth >= 0) {
+                fst.readNextArc(arcs.get(depth), in);
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public String toString() {
+        return "dictionary_regex(" + field + ":" + regex + ")";
+    }
+
+    private static final class WeightedTerm {
+        private final BytesRef term;
+        private final long weight;
+
+        private WeightedTerm(BytesRef term, long weight) {
+            this.term = term;
+            this.weight = weight;
+        }
+    }
+}
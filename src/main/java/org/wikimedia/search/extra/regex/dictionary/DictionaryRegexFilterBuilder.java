@@ -0,0 +1,67 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BaseFilterBuilder;
+
+/**
+ * Builds dictionary_regex filters.
+ */
+public class DictionaryRegexFilterBuilder extends BaseFilterBuilder {
+    private final String field;
+    private final String regex;
+    private Integer maxDeterminizedStates;
+    private Integer topN;
+    private String weightField;
+
+    /**
+     * Start building.
+     *
+     * @param field the field whose terms are matched
+     * @param regex the regex to match against entire terms
+     */
+    public DictionaryRegexFilterBuilder(String field, String regex) {
+        this.field = field;
+        this.regex = regex;
+    }
+
+    /**
+     * @param maxDeterminizedStates the maximum number of automaton states that
+     *            Lucene's regex compilation can expand to (even temporarily)
+     * @return this for chaining
+     */
+    public DictionaryRegexFilterBuilder maxDeterminizedStates(int maxDeterminizedStates) {
+        this.maxDeterminizedStates = maxDeterminizedStates;
+        return this;
+    }
+
+    /**
+     * Only match documents containing the highest weighted matching terms.
+     *
+     * @param topN number of terms to match in each segment
+     * @param weightField numeric field containing the weights. A term's
+     *            weight is the largest weight of any document containing it.
+     * @return this for chaining
+     */
+    public DictionaryRegexFilterBuilder topN(int topN, String weightField) {
+        this.topN = topN;
+        this.weightField = weightField;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(DictionaryRegexFilterParser.NAMES[0]);
+        builder.field("field", field);
+        builder.field("regex", regex);
+        if (maxDeterminizedStates != null) {
+            builder.field("max_determinized_states", maxDeterminizedStates);
+        }
+        if (topN != null) {
+            builder.field("top_n", topN);
+            builder.field("weight_field", weightField);
+        }
+        builder.endObject();
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.Filter;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.query.FilterParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParsingException;
+
+/**
+ * Parses dictionary_regex filters.
+ */
+public class DictionaryRegexFilterParser implements FilterParser {
+    public static final String[] NAMES = new String[] { "dictionary_regex", "dictionary-regex", "dictionaryRegex", "term_regex",
+            "term-regex", "termRegex" };
+
+    private final TermFSTCache termFSTCache;
+
+    @Inject
+    public DictionaryRegexFilterParser(TermFSTCache termFSTCache) {
+        this.termFSTCache = termFSTCache;
+    }
+
+    @Override
+    public String[] names() {
+        return NAMES;
+    }
+
+    @Override
+    public Filter parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        // Stuff for our filter
+        String regex = null;
+        String fieldPath = null;
+        int maxDeterminizedStates = 20000;
+        int topN = 0;
+        String weightFieldPath = null;
+
+        // Stuff all filters have
+        String filterName = null;
+        boolean cache = false; // Not cached by default
+        CacheKeyFilter.Key cacheKey = null;
+
+        XContentParser parser = parseContext.parser();
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                switch (currentFieldName) {
+                case "regex":
+                    regex = parser.text();
+                    break;
+                case "field":
+                    fieldPath = parser.text();
+                    break;
+                case "max_determinized_states":
+                case "maxDeterminizedStates":
+                    maxDeterminizedStates = parser.intValue();
+                    break;
+                case "top_n":
+                case "topN":
+                    topN = parser.intValue();
+                    break;
+                case "weight_field":
+                case "weightField":
+                    weightFieldPath = parser.text();
+                    break;
+                case "_cache":
+                    cache = parser.booleanValue();
+                    break;
+                case "_name":
+                    filterName = parser.text();
+                    break;
+                case "_cache_key":
+                case "_cacheKey":
+                    cacheKey = new CacheKeyFilter.Key(parser.text());
+                    break;
+                default:
+                    throw new QueryParsingException(parseContext.index(), "[dictionary-regex] filter does not support ["
+                            + currentFieldName + "]");
+                }
+            }
+        }
+
+        if (regex == null) {
+            throw new QueryParsingException(parseContext.index(), "[dictionary-regex] filter must specify [regex]");
+        }
+        if (fieldPath == null) {
+            throw new QueryParsingException(parseContext.index(), "[dictionary-regex] filter must specify [field]");
+        }
+        IndexNumericFieldData weights = null;
+        if (topN < 0) {
+            throw new QueryParsingException(parseContext.index(), "[dictionary-regex] [top_n] must not be negative");
+        }
+        if (topN > 0) {
+            if (weightFieldPath == null) {
+                throw new QueryParsingException(parseContext.index(), "[dictionary-regex] filter must specify [weight_field] with [top_n]");
+            }
+            FieldMapper<?> weightMapper = parseContext.fieldMapper(weightFieldPath);
+            if (weightMapper == null) {
+                throw new QueryParsingException(parseContext.index(), "[dictionary-regex] unknown [weight_field] [" + weightFieldPath
+                        + "]");
+            }
+            IndexFieldData<?> weightFieldData = parseContext.getForField(weightMapper);
+            if (!(weightFieldData instanceof IndexNumericFieldData)) {
+                throw new QueryParsingException(parseContext.index(), "[dictionary-regex] [weight_field] [" + weightFieldPath
+                        + "] must be numeric");
+            }
+            weights = (IndexNumericFieldData) weightFieldData;
+        }
+        FieldMapper<?> mapper = parseContext.fieldMapper(fieldPath);
+        String field = mapper == null ? fieldPath : mapper.names().indexName();
+        Filter filter = new DictionaryRegexFilter(field, regex, maxDeterminizedStates, topN, weights, termFSTCache);
+        if (cache) {
+            filter = parseContext.cacheFilter(filter, cacheKey);
+        }
+        if (filterName != null) {
+            parseContext.addNamedFilter(filterName, filter);
+        }
+        return filter;
+    }
+}
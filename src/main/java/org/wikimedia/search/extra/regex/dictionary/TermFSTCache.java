@@ -0,0 +1,273 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReader.CoreClosedListener;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.XIntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.XUtil;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.wikimedia.search.extra.util.SegmentCacheKeys;
+
+/**
+ * Node level cache of FSTs containing every term of a field in a segment. The
+ * FST shares both prefixes and suffixes so it is usually much smaller than the
+ * terms dictionary and walking it doesn't need to decode any postings blocks.
+ * FSTs can also carry a weight for each term for finding the top weighted
+ * terms without visiting all of them. Segments are immutable so the FST never
+ * changes until the segment is closed and then it is removed from the cache.
+ * The cache is bounded by the size of the FSTs.
+ */
+public class TermFSTCache {
+    /**
+     * Setting controlling the maximum size of the cache. Defaults to 0 which
+     * disables the cache entirely.
+     */
+    public static final String SIZE_SETTING = "wikimedia.extra.dictionary_regex.fst_cache.size";
+    /**
+     * Rough guess at the overhead of each entry in the cache including the
+     * key.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Cache<Key, FST<?>> cache;
+    private final SegmentCacheKeys<Key> keys = new SegmentCacheKeys<>();
+    private final CoreClosedListener invalidator = new CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            invalidate(ownerCoreCacheKey);
+        }
+    };
+
+    @Inject
+    public TermFSTCache(Settings settings) {
+        this(settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0)));
+    }
+
+    public TermFSTCache(ByteSizeValue size) {
+        if (size.bytes() <= 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder().removalListener(keys).maximumWeight(size.bytes()).weigher(new Weigher<Key, FST<?>>() {
+            @Override
+            public int weigh(Key key, FST<?> fst) {
+                long weight = ENTRY_OVERHEAD + (key.field.length() + key.weightField.length()) * 2 + fst.ramBytesUsed();
+                return (int) Math.min(Integer.MAX_VALUE, weight);
+            }
+        }).build();
+    }
+
+    /**
+     * Is the cache enabled?
+     */
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Approximate number of entries in the cache.
+     */
+    public long size() {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.size();
+    }
+
+    /**
+     * Fetch the FST of all terms in a field, building it if it isn't cached.
+     * Only call this if the cache is {@link #enabled()}.
+     *
+     * @return the FST or null if the field has no terms in the segment
+     */
+    public FST<Object> fst(AtomicReader reader, String field) throws IOException {
+        Key key = new Key(reader.getCoreCacheKey(), field, "");
+        FST<Object> fst = get(key);
+        if (fst != null) {
+            return fst;
+        }
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return null;
+        }
+        fst = build(terms.iterator(null));
+        put(reader, key, fst);
+        return fst;
+    }
+
+    /**
+     * Fetch the FST of all terms in a field weighted by the largest value of
+     * another field in any document containing the term, building it if it
+     * isn't cached. The outputs are {@link #encodeWeight(long) encoded} so the
+     * highest weighted terms have the lowest cost. Only call this if the cache
+     * is {@link #enabled()}.
+     *
+     * @param weightField index name of the field containing the weights
+     * @param weights the weights for the segment
+     * @return the FST or null if the field has no terms in the segment
+     */
+    public FST<Long> weightedFst(AtomicReader reader, String field, String weightField, SortedNumericDocValues weights)
+            throws IOException {
+        Key key = new Key(reader.getCoreCacheKey(), field, weightField);
+        FST<Long> fst = get(key);
+        if (fst != null) {
+            return fst;
+        }
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return null;
+        }
+        fst = buildWeighted(terms.iterator(null), weights);
+        put(reader, key, fst);
+        return fst;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> FST<T> get(Key key) {
+        return (FST<T>) cache.getIfPresent(key);
+    }
+
+    private void put(AtomicReader reader, Key key, FST<?> fst) {
+        if (fst == null) {
+            return;
+        }
+        if (!keys.track(reader, invalidator, key)) {
+            // We'd never hear about the segment closing so we can't cache it.
+            return;
+        }
+        // Two threads might build the same FST at the same time but that is
+        // better than making one wait on the other.
+        cache.put(key, fst);
+    }
+
+    /**
+     * Build an FST containing every term in a terms enum. The terms come out
+     * of the enum sorted which is just what the FST builder needs.
+     *
+     * @return the FST or null if the enum had no terms
+     */
+    static FST<Object> build(TermsEnum terms) throws IOException {
+        Object output = NoOutputs.getSingleton().getNoOutput();
+        Builder<Object> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, NoOutputs.getSingleton());
+        XIntsRefBuilder scratch = new XIntsRefBuilder();
+        BytesRef term;
+        while ((term = terms.next()) != null) {
+            builder.add(XUtil.toIntsRef(term, scratch), output);
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Build an FST containing every term in a terms enum with the
+     * {@link #encodeWeight(long) encoded} weight of the term as its output.
+     *
+     * @return the FST or null if the enum had no terms
+     */
+    static FST<Long> buildWeighted(TermsEnum terms, SortedNumericDocValues weights) throws IOException {
+        Builder<Long> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+        XIntsRefBuilder scratch = new XIntsRefBuilder();
+        DocsEnum docs = null;
+        BytesRef term;
+        while ((term = terms.next()) != null) {
+            docs = terms.docs(null, docs, DocsEnum.FLAG_NONE);
+            builder.add(XUtil.toIntsRef(term, scratch), encodeWeight(maxWeight(docs, weights)));
+        }
+        return builder.finish();
+    }
+
+    /**
+     * The largest weight of any of the documents. Documents without a weight
+     * and negative weights count as 0.
+     */
+    static long maxWeight(DocsEnum docs, SortedNumericDocValues weights) throws IOException {
+        long weight = 0;
+        int doc;
+        while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            weights.setDocument(doc);
+            for (int i = 0; i < weights.count(); i++) {
+                weight = Math.max(weight, weights.valueAt(i));
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Turn a weight into an FST output. FST outputs have to be positive and
+     * the best paths through the FST are the ones with the lowest total
+     * output so higher weights must encode to lower outputs.
+     */
+    static long encodeWeight(long weight) {
+        return Long.MAX_VALUE - Math.max(0, weight);
+    }
+
+    /**
+     * Turn an FST output back into a weight.
+     */
+    static long decodeWeight(long cost) {
+        return Long.MAX_VALUE - cost;
+    }
+
+    /**
+     * Remove all entries for a segment.
+     */
+    private void invalidate(Object coreKey) {
+        cache.invalidateAll(keys.remove(coreKey));
+    }
+
+    private static final class Key implements SegmentCacheKeys.Key {
+        private final Object coreKey;
+        private final String field;
+        /**
+         * Field containing weights or "" if the FST isn't weighted.
+         */
+        private final String weightField;
+
+        private Key(Object coreKey, String field, String weightField) {
+            this.coreKey = coreKey;
+            this.field = field;
+            this.weightField = weightField;
+        }
+
+        @Override
+        public Object coreKey() {
+            return coreKey;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = System.identityHashCode(coreKey);
+            result = prime * result + field.hashCode();
+            result = prime * result + weightField.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && field.equals(other.field) && weightField.equals(other.weightField);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CollectionUtil;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.XIntsRefBuilder;
+import org.apache.lucene.util.automaton.XAutomata;
+import org.apache.lucene.util.automaton.XByteRunAutomaton;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.XUtil;
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Finds the highest weighted terms in a {@link TermFSTCache#weightedFst weighted
+ * FST} that match an automaton without visiting all of the matches. The FST is
+ * walked in lock step with the automaton until the automaton reaches a state
+ * that accepts any suffix. Everything below that point matches so the walk
+ * hands it to {@link XUtil.TopNSearcher} which only follows the best weighted
+ * paths. The walk is pruned by the worst of the best topN costs that some
+ * match is known to have - FST outputs are pushed towards the root so the
+ * output of a prefix is never more than the cost of any of its completions.
+ * Regexes like "Foo.*" are almost entirely handled by the TopNSearcher while
+ * ones like ".*foo" degrade to a pruned walk. Not thread safe but can be
+ * reused for many segments.
+ */
+class TopTermsSearcher {
+    /**
+     * Extra room in the TopNSearcher's queue for terms whose documents have
+     * all been deleted. If more than this many of the best terms are rejected
+     * the search gives up.
+     */
+    private static final int REJECT_SLACK = 64;
+    /**
+     * Accepts any valid UTF-8 string. Used to find the states of other
+     * automata that accept any suffix.
+     */
+    private static final XByteRunAutomaton ANY_STRING = new XByteRunAutomaton(XAutomata.makeAnyString());
+    private static final Comparator<Long> COST_ORDER = new Comparator<Long>() {
+        @Override
+        public int compare(Long lhs, Long rhs) {
+            return Long.compare(lhs, rhs);
+        }
+    };
+    private static final Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            int cmp = Long.compare(lhs.cost, rhs.cost);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return lhs.term.compareTo(rhs.term);
+        }
+    };
+    private static final Comparator<Match> WORST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            return BEST_FIRST.compare(rhs, lhs);
+        }
+    };
+
+    private final XByteRunAutomaton automaton;
+    /**
+     * Is each state known to accept any suffix? 0 means not yet checked, 1
+     * means it does, and 2 means it doesn't.
+     */
+    private final byte[] universal;
+    private FixedBitSet seenPairs;
+    private int[] pairStack = new int[16];
+    private int[] seenList = new int[16];
+
+    TopTermsSearcher(XByteRunAutomaton automaton) {
+        this.automaton = automaton;
+        universal = new byte[automaton.getSize()];
+    }
+
+    /**
+     * Find the best terms.
+     *
+     * @param termsEnum terms enum over the same terms as the FST. Used to
+     *            skip terms without any accepted documents.
+     * @param acceptDocs accepted documents or null if all are accepted
+     * @return up to topN of the highest weighted matching terms, highest
+     *         weight first, or null if so many of the best terms had no
+     *         accepted documents that the TopNSearcher might have dropped
+     *         some of the top terms
+     */
+    List<BytesRef> search(FST<Long> fst, int topN, final TermsEnum termsEnum, final Bits acceptDocs) throws IOException {
+        XUtil.TopNSearcher<Long> searcher = new XUtil.TopNSearcher<Long>(fst, topN, topN + REJECT_SLACK, COST_ORDER) {
+            @Override
+            protected boolean acceptResult(IntsRef input, Long output) {
+                try {
+                    return live(termsEnum, toBytesRef(input), acceptDocs);
+                } catch (IOException e) {
+                    throw new ElasticsearchException("Error checking for live documents", e);
+                }
+            }
+        };
+        PriorityQueue<Match> exact = new PriorityQueue<>(topN, WORST_FIRST);
+        walk(fst, topN, searcher, exact, termsEnum, acceptDocs);
+
+        XUtil.TopResults<Long> results = searcher.search();
+        if (!results.isComplete) {
+            return null;
+        }
+        List<Match> matches = new ArrayList<>(exact);
+        for (XUtil.Result<Long> result : results) {
+            BytesRef term = toBytesRef(result.input);
+            // Results reached through the "empty string" path skip acceptResult
+            if (live(termsEnum, term, acceptDocs)) {
+                matches.add(new Match(term, result.output));
+            }
+        }
+        CollectionUtil.timSort(matches, BEST_FIRST);
+        List<BytesRef> terms = new ArrayList<>(Math.min(topN, matches.size()));
+        for (Match match : matches) {
+            if (terms.size() >= topN) {
+                break;
+            }
+            terms.add(match.term);
+        }
+        return terms;
+    }
+
+    /**
+     * Walk the FST depth first collecting exact matches and handing the
+     * subtrees that match any suffix to the searcher.
+     */
+    private void walk(FST<Long> fst, int topN, XUtil.TopNSearcher<Long> searcher, PriorityQueue<Match> exact,
+            TermsEnum termsEnum, Bits acceptDocs) throws IOException {
+        FST.BytesReader in = fst.getBytesReader();
+        FST.Arc<Long> root = fst.getFirstArc(new FST.Arc<Long>());
+        XIntsRefBuilder input = new XIntsRefBuilder();
+        int initial = automaton.getInitialState();
+        if (isUniversal(initial)) {
+            searcher.addStartPaths(root, fst.outputs.getNoOutput(), true, input);
+            return;
+        }
+        // Costs that some match is known to have. Once there are topN of them
+        // any prefix costing more than the worst can't lead to a top match.
+        PriorityQueue<Long> bounds = new PriorityQueue<>(topN, Collections.reverseOrder(COST_ORDER));
+        if (root.isFinal() && automaton.isAccept(initial)) {
+            if (offer(exact, topN, new BytesRef(), root.nextFinalOutput, termsEnum, acceptDocs)) {
+                bound(bounds, topN, root.nextFinalOutput);
+            }
+        }
+        if (!FST.targetHasArcs(root)) {
+            return;
+        }
+        // arcs[depth] is the arc being followed from the node at depth,
+        // states[depth] is the automaton's state at that node, and
+        // costs[depth] is the output accumulated to reach that node
+        List<FST.Arc<Long>> arcs = new ArrayList<>();
+        int[] states = new int[16];
+        long[] costs = new long[16];
+        arcs.add(fst.readFirstTargetArc(root, new FST.Arc<Long>(), in));
+        states[0] = initial;
+        costs[0] = 0;
+        int depth = 0;
+        while (depth >= 0) {
+            FST.Arc<Long> arc = arcs.get(depth);
+            int next = arc.label == FST.END_LABEL ? -1 : automaton.step(states[depth], arc.label);
+            long cost = costs[depth] + arc.output;
+            if (next != -1 && (bounds.size() < topN || cost <= bounds.peek())) {
+                input.setLength(depth);
+                input.append(arc.label);
+                if (isUniversal(next)) {
+                    XIntsRefBuilder prefix = new XIntsRefBuilder();
+                    prefix.copyInts(input.get());
+                    searcher.addStartPaths(arc, cost, true, prefix);
+                    if (acceptDocs == null) {
+                        // Outputs are pushed as close to the root as possible
+                        // so some completion costs exactly as much as the
+                        // prefix. If documents might be deleted that
+                        // completion might not count.
+                        bound(bounds, topN, cost);
+                    }
+                } else {
+                    if (arc.isFinal() && automaton.isAccept(next)) {
+                        long matchCost = cost + arc.nextFinalOutput;
+                        if (offer(exact, topN, toBytesRef(input.get()), matchCost, termsEnum, acceptDocs)) {
+                            bound(bounds, topN, matchCost);
+                        }
+                    }
+                    if (FST.targetHasArcs(arc)) {
+                        depth++;
+                        if (depth == arcs.size()) {
+                            arcs.add(new FST.Arc<Long>());
+                        }
+                        states = ArrayUtil.grow(states, depth + 1);
+                        costs = ArrayUtil.grow(costs, depth + 1);
+                        states[depth] = next;
+                        costs[depth] = cost;
+                        fst.readFirstTargetArc(arc, arcs.get(depth), in);
+                        continue;
+                    }
+                }
+            }
+            // Move on to the next sibling, popping any finished nodes
+            while (depth >= 0 && arcs.get(depth).isLast()) {
+                depth--;
+            }
+            if (depth >= 0) {
+                fst.readNextArc(arcs.get(depth), in);
+            }
+        }
+    }
+
+    /**
+     * Add a match to the exact matches if it is competitive and has accepted
+     * documents.
+     *
+     * @return was the match added?
+     */
+    private boolean offer(PriorityQueue<Match> exact, int topN, BytesRef term, long cost, TermsEnum termsEnum, Bits acceptDocs)
+            throws IOException {
+        Match match = new Match(term, cost);
+        if (exact.size() >= topN && WORST_FIRST.compare(match, exact.peek()) <= 0) {
+            return false;
+        }
+        if (!live(termsEnum, term, acceptDocs)) {
+            return false;
+        }
+        exact.add(match);
+        if (exact.size() > topN) {
+            exact.poll();
+        }
+        return true;
+    }
+
+    private void bound(PriorityQueue<Long> bounds, int topN, long cost) {
+        if (bounds.size() >= topN) {
+            if (cost >= bounds.peek()) {
+                return;
+            }
+            bounds.poll();
+        }
+        bounds.add(cost);
+    }
+
+    /**
+     * Does this state accept every valid UTF-8 suffix? Checked by walking all
+     * pairs of states reachable in this automaton and {@link #ANY_STRING} by
+     * the same bytes. The state is universal if this automaton never rejects
+     * a byte or fails to accept where {@link #ANY_STRING} doesn't.
+     */
+    boolean isUniversal(int state) {
+        if (universal[state] == 0) {
+            universal[state] = checkUniversal(state) ? (byte) 1 : (byte) 2;
+        }
+        return universal[state] == 1;
+    }
+
+    private boolean checkUniversal(int state) {
+        int anySize = ANY_STRING.getSize();
+        if (seenPairs == null) {
+            seenPairs = new FixedBitSet(automaton.getSize() * anySize);
+        }
+        int stackSize = 0;
+        int seenSize = 0;
+        int start = state * anySize + ANY_STRING.getInitialState();
+        pairStack[stackSize++] = start;
+        seenPairs.set(start);
+        seenList[seenSize++] = start;
+        boolean result = true;
+        search: while (stackSize > 0) {
+            int pair = pairStack[--stackSize];
+            int s = pair / anySize;
+            int any = pair % anySize;
+            if (ANY_STRING.isAccept(any) && !automaton.isAccept(s)) {
+                result = false;
+                break;
+            }
+            for (int b = 0; b < 256; b++) {
+                int nextAny = ANY_STRING.step(any, b);
+                if (nextAny == -1) {
+                    continue;
+                }
+                int nextS = automaton.step(s, b);
+                if (nextS == -1 || (universal[nextS] == 2 && nextAny == ANY_STRING.getInitialState())) {
+                    result = false;
+                    break search;
+                }
+                int next = nextS * anySize + nextAny;
+                if (seenPairs.get(next)) {
+                    continue;
+                }
+                seenPairs.set(next);
+                seenList = ArrayUtil.grow(seenList, seenSize + 1);
+                seenList[seenSize++] = next;
+                pairStack = ArrayUtil.grow(pairStack, stackSize + 1);
+                pairStack[stackSize++] = next;
+            }
+        }
+        // Clear only what we set so the next check is cheap
+        for (int i = 0; i < seenSize; i++) {
+            seenPairs.clear(seenList[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Does the term have any accepted documents?
+     */
+    static boolean live(TermsEnum termsEnum, BytesRef term, Bits acceptDocs) throws IOException {
+        if (!termsEnum.seekExact(term)) {
+            return false;
+        }
+        if (acceptDocs == null) {
+            return true;
+        }
+        DocsEnum docs = termsEnum.docs(acceptDocs, null, DocsEnum.FLAG_NONE);
+        return docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    private static BytesRef toBytesRef(IntsRef input) {
+        BytesRef term = new BytesRef(input.length);
+        for (int i = 0; i < input.length; i++) {
+            term.bytes[i] = (byte) input.ints[input.offset + i];
+        }
+        term.length = input.length;
+        return term;
+    }
+
+    private static final class Match {
+        private final BytesRef term;
+        private final long cost;
+
+        private Match(BytesRef term, long cost) {
+            this.term = term;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Regular expression filter that walks a field's terms dictionary rather than
+ * loading documents. See docs/dictionary_regex.md for how to use it.
+ */
+package org.wikimedia.search.extra.regex.dictionary;
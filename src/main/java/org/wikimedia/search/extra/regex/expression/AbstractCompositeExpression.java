@@ -17,7 +17,18 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
     private static final int MAX_COMPONENTS_SIZE_FOR_TO_STRING = 10;
     private final ImmutableSet<Expression<T>> components;
     private boolean simplified;
+    /**
+     * The result of simplifying this expression if it has been simplified
+     * and simplifying changed it.
+     */
+    private Expression<T> simplifiedForm;
+    private int hashCode;
     private String toString = null;
+    /**
+     * The factory that interned this expression or null if it wasn't
+     * interned.
+     */
+    ExpressionFactory<T> internedBy;
 
     public AbstractCompositeExpression(ImmutableSet<Expression<T>> components) {
         this.components = components;
@@ -38,7 +49,8 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
 
     /**
      * Build an expression of this type with a list of components. Used in
-     * simplification.
+     * simplification. Interned expressions should build interned expressions
+     * from the same factory.
      */
     protected abstract AbstractCompositeExpression<T> newFrom(ImmutableSet<Expression<T>> components);
 
@@ -72,6 +84,22 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
         if (simplified) {
             return this;
         }
+        if (simplifiedForm != null) {
+            return simplifiedForm;
+        }
+        // Out of budget expressions still fold True and False so callers can
+        // rely on them never containing either but they don't spend time
+        // factoring out common components.
+        boolean extractCommon = internedBy == null || internedBy.spendSimplification();
+        simplifiedForm = doSimplify(extractCommon);
+        if (simplifiedForm == this) {
+            simplifiedForm = null;
+            simplified = true;
+        }
+        return simplifiedForm == null ? this : simplifiedForm;
+    }
+
+    private Expression<T> doSimplify(boolean extractCommon) {
         Iterator<Expression<T>> componentsItr = components.iterator();
         List<Expression<T>> newComponentsBuilder = null;
         boolean changed = false;
@@ -108,9 +136,11 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
             return newComponentsBuilder.get(0);
         default:
         }
-        Expression<T> commonExtracted = extractCommon(changed ? newComponentsBuilder : components);
-        if (commonExtracted != null) {
-            return commonExtracted;
+        if (extractCommon) {
+            Expression<T> commonExtracted = extractCommon(changed ? newComponentsBuilder : components);
+            if (commonExtracted != null) {
+                return commonExtracted;
+            }
         }
 
         if (!changed) {
@@ -262,7 +292,10 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
 
     @Override
     public int hashCode() {
-        return components.hashCode();
+        if (hashCode == 0) {
+            hashCode = components.hashCode();
+        }
+        return hashCode;
     }
 
     @Override
@@ -275,6 +308,10 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T> {
             return false;
         @SuppressWarnings("rawtypes")
         AbstractCompositeExpression other = (AbstractCompositeExpression) obj;
-        return components.equals(other.components);
+        if (internedBy != null && internedBy == other.internedBy) {
+            // Interned expressions are only equal to themselves
+            return false;
+        }
+        return hashCode() == other.hashCode() && components.equals(other.components);
     }
 }
@@ -30,6 +30,9 @@ public final class And<T> extends AbstractCompositeExpression<T> {
 
     @Override
     protected AbstractCompositeExpression<T> newFrom(ImmutableSet<Expression<T>> components) {
+        if (internedBy != null) {
+            return internedBy.and(components);
+        }
         return new And<>(components);
     }
 
@@ -0,0 +1,130 @@
+package org.wikimedia.search.extra.regex.expression;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.collect.ImmutableSet;
+
+/**
+ * Builds hash-consed expressions. Every {@link And} and {@link Or} built by
+ * the factory is interned so there is only ever one copy of each distinct
+ * expression. That turns equality checks between them into identity checks
+ * and lets every place an expression appears share the memoized result of
+ * {@link Expression#simplify()}. Simplifying builds its results with the
+ * factory that built the expression being simplified so the results are
+ * interned too. Leaves aren't interned because comparing them is already
+ * cheap.
+ * <p>
+ * The factory also bounds the work spent simplifying its expressions. Once
+ * it has simplified maxSimplifications composites it stops factoring common
+ * components out of them. It still removes True and False from them so
+ * simplified expressions never contain either. They are still correct, just
+ * bigger than they could be.
+ * <p>
+ * Not thread safe. Build and simplify expressions on one thread.
+ *
+ * @param <T> type stored in leaves
+ */
+public class ExpressionFactory<T> {
+    private final Map<AbstractCompositeExpression<T>, AbstractCompositeExpression<T>> interned = new HashMap<>();
+    private final int maxSimplifications;
+    private int simplifications;
+
+    /**
+     * Build a factory that doesn't limit simplification.
+     */
+    public ExpressionFactory() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build a factory that stops factoring out common components after
+     * maxSimplifications composites have been simplified.
+     */
+    public ExpressionFactory(int maxSimplifications) {
+        this.maxSimplifications = maxSimplifications;
+    }
+
+    /**
+     * The interned conjunction of the components. Doesn't simplify it.
+     */
+    public And<T> and(ImmutableSet<Expression<T>> components) {
+        return canonical(new And<>(components));
+    }
+
+    /**
+     * The interned conjunction of the components. Doesn't simplify it.
+     */
+    @SafeVarargs
+    public final And<T> and(Expression<T>... components) {
+        return and(ImmutableSet.copyOf(components));
+    }
+
+    /**
+     * The interned disjunction of the components. Doesn't simplify it.
+     */
+    public Or<T> or(ImmutableSet<Expression<T>> components) {
+        return canonical(new Or<>(components));
+    }
+
+    /**
+     * The interned disjunction of the components. Doesn't simplify it.
+     */
+    @SafeVarargs
+    public final Or<T> or(Expression<T>... components) {
+        return or(ImmutableSet.copyOf(components));
+    }
+
+    /**
+     * Like {@link Or#fromExpressionSources(List)} but interns the result.
+     */
+    public Expression<T> fromExpressionSources(List<? extends ExpressionSource<T>> sources) {
+        switch (sources.size()) {
+        case 0:
+            return True.instance();
+        case 1:
+            return sources.get(0).expression();
+        default:
+            ImmutableSet.Builder<Expression<T>> or = ImmutableSet.builder();
+            for (ExpressionSource<T> source : sources) {
+                or.add(source.expression());
+            }
+            return or(or.build()).simplify();
+        }
+    }
+
+    /**
+     * Number of distinct expressions built by this factory.
+     */
+    public int size() {
+        return interned.size();
+    }
+
+    /**
+     * Spend one simplification from the budget.
+     *
+     * @return false if the budget has run out
+     */
+    boolean spendSimplification() {
+        if (simplifications >= maxSimplifications) {
+            return false;
+        }
+        simplifications++;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends AbstractCompositeExpression<T>> E canonical(E candidate) {
+        // Most candidates are new so try to add them first and only fix up
+        // the map on the rare hit. Equals checks the class so the cast is
+        // safe.
+        E existing = (E) interned.put(candidate, candidate);
+        if (existing == null) {
+            candidate.internedBy = this;
+            return candidate;
+        }
+        interned.put(existing, existing);
+        return existing;
+    }
+}
@@ -47,6 +47,9 @@ public final class Or<T> extends AbstractCompositeExpression<T> {
 
     @Override
     protected AbstractCompositeExpression<T> newFrom(ImmutableSet<Expression<T>> components) {
+        if (internedBy != null) {
+            return internedBy.or(components);
+        }
         return new Or<>(components);
     }
 
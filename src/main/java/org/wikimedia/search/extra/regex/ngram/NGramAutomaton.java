@@ -1,27 +1,53 @@
 package org.wikimedia.search.extra.regex.ngram;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.automaton.XAutomaton;
 import org.apache.lucene.util.automaton.XTransition;
 import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.hppc.IntArrayList;
+import org.elasticsearch.common.hppc.LongIntOpenHashMap;
 import org.wikimedia.search.extra.regex.expression.And;
 import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.ExpressionFactory;
 import org.wikimedia.search.extra.regex.expression.ExpressionSource;
 import org.wikimedia.search.extra.regex.expression.False;
 import org.wikimedia.search.extra.regex.expression.Leaf;
-import org.wikimedia.search.extra.regex.expression.Or;
 import org.wikimedia.search.extra.regex.expression.True;
 
 /**
  * A finite automaton who's transitions are ngrams that must be in the string or
  * ngrams we can't check for. Not thread safe one bit.
+ * <p>
+ * Tracing works on primitives: prefixes are interned into int ids, states are
+ * keyed by their prefix id and source state packed into a long, and
+ * transitions live in parallel int arrays. Ngrams only become Strings when
+ * they are turned into {@link Leaf}s.
  */
 public class NGramAutomaton {
+    /**
+     * Bits needed to hold any code point.
+     */
+    private static final int BITS_PER_CODE_POINT = 21;
+    /**
+     * Code point we use to stand in for code points we can't match.
+     */
+    private static final int INVALID_CODE_POINT = 0;
+    /**
+     * String form of the code point we can't match.
+     */
+    private static final String INVALID_CHAR = new String(new int[] { INVALID_CODE_POINT }, 0, 1);
+    /**
+     * We print code points we can't match as double underscores.
+     */
+    private static final String INVALID_PRINT_CHAR = "__";
+
     private final XAutomaton source;
     private final int gramSize;
     private final int maxExpand;
@@ -29,7 +55,69 @@ public class NGramAutomaton {
     private final int maxTransitions;
     private final List<NGramState> initialStates = new ArrayList<>();
     private final List<NGramState> acceptStates = new ArrayList<>();
-    private final Map<NGramState, NGramState> states = new HashMap<>();
+    /**
+     * All states, indexed by their id.
+     */
+    private final List<NGramState> states = new ArrayList<>();
+    /**
+     * Maps state keys built by {@link #stateKey(int, int)} to state ids.
+     */
+    private final LongIntOpenHashMap stateIds = new LongIntOpenHashMap();
+    /**
+     * Length of the prefix of each ngram that is stored in the state.
+     */
+    private final int prefixLength;
+    /**
+     * Code points of every interned prefix, prefixLength per prefix id.
+     */
+    private int[] prefixCodePoints = new int[0];
+    /**
+     * Number of interned prefixes.
+     */
+    private int prefixCount;
+    /**
+     * Prefixes containing the invalid code point. Transitions from them don't
+     * make checkable ngrams.
+     */
+    private final BitSet invalidPrefixes = new BitSet();
+    /**
+     * Maps prefix content to prefix id when the prefix fits into a long,
+     * otherwise null.
+     */
+    private final LongIntOpenHashMap packedPrefixIds;
+    /**
+     * Maps prefix content to prefix id when the prefix doesn't fit into a
+     * long, otherwise null.
+     */
+    private final Map<String, Integer> prefixDictionary;
+    /**
+     * Memoizes shifting a code point into a prefix. Keyed by prefix id and
+     * code point.
+     */
+    private final LongIntOpenHashMap shifts = new LongIntOpenHashMap();
+    /**
+     * State each transition comes from.
+     */
+    private int[] transitionFrom = new int[16];
+    /**
+     * State each transition goes to.
+     */
+    private int[] transitionTo = new int[16];
+    /**
+     * Last code point of each transition's ngram. The rest of the ngram is the
+     * prefix of the state that it comes from.
+     */
+    private int[] transitionCodePoint = new int[16];
+    /**
+     * Number of transitions.
+     */
+    private int transitionCount;
+    /**
+     * Interns the expressions built from the states so equal expressions are
+     * only simplified once. Bounded by maxStatesTraced so simplifying can't
+     * take longer than tracing did.
+     */
+    private final ExpressionFactory<String> factory;
 
     /**
      * Build it.
@@ -49,11 +137,20 @@ public class NGramAutomaton {
         this.maxExpand = maxExpand;
         this.maxStatesTraced = maxStatesTraced;
         this.maxTransitions = maxTransitions;
+        this.factory = new ExpressionFactory<>(maxStatesTraced);
+        this.prefixLength = gramSize - 1;
+        if (prefixLength * BITS_PER_CODE_POINT < Long.SIZE) {
+            packedPrefixIds = new LongIntOpenHashMap();
+            prefixDictionary = null;
+        } else {
+            packedPrefixIds = null;
+            prefixDictionary = new HashMap<>();
+        }
         if (source.getNumStates() == 0) {
             return;
         }
         // Build the initial states using the first gramSize transitions
-        int[] codePoints = new int[gramSize - 1];
+        int[] codePoints = new int[prefixLength];
         buildInitial(codePoints, 0, 0);
         traceRemainingStates();
     }
@@ -66,9 +163,9 @@ public class NGramAutomaton {
         StringBuilder b = new StringBuilder("digraph Automaton {\n");
         b.append("  rankdir = LR;\n");
         b.append("  initial [shape=plaintext,label=\"\"];\n");
-        for (NGramState state : states.keySet()) {
+        for (NGramState state : states) {
             b.append("  ").append(state.dotName());
-            if (acceptStates.contains(state)) {
+            if (state.accept) {
                 b.append(" [shape=doublecircle,label=\"").append(state).append("\"];\n");
             } else {
                 b.append(" [shape=circle,label=\"").append(state).append("\"];\n");
@@ -76,20 +173,26 @@ public class NGramAutomaton {
             if (state.initial) {
                 b.append("  initial -> ").append(state.dotName()).append("\n");
             }
-            for (NGramTransition transition : state.outgoingTransitions) {
-                b.append("  ").append(transition).append("\n");
+        }
+        for (int transition = 0; transition < transitionCount; transition++) {
+            b.append("  ").append(states.get(transitionFrom[transition]).dotName());
+            b.append(" -> ").append(states.get(transitionTo[transition]).dotName());
+            String ngram = ngram(transition);
+            if (ngram != null) {
+                b.append(" [label=\"" + ngram.replace(" ", "_") + "\"]");
             }
+            b.append("\n");
         }
         return b.append("}\n").toString();
     }
 
     /**
      * Convert this automaton into an expression of ngrams that must be found
-     * for the entire automaton to match. The automaton isn't simplified so you
-     * probably should call {@link Expression#simplify()} on it.
+     * for the entire automaton to match. Each state's expression is
+     * simplified as it is built so the result is already simplified.
      */
     public Expression<String> expression() {
-        return Or.fromExpressionSources(acceptStates);
+        return factory.fromExpressionSources(acceptStates);
     }
 
     /**
@@ -109,18 +212,22 @@ public class NGramAutomaton {
             // later. In that case we just give up.
             initialStates.clear();
             states.clear();
+            stateIds.clear();
             return false;
         }
-        if (offset == gramSize - 1) {
+        if (offset == prefixLength) {
             // We've walked deeply enough to find an initial state.
-            NGramState state = new NGramState(currentState, new String(codePoints, 0, gramSize - 1), true);
+            int prefix = internPrefix(codePoints);
+            long key = stateKey(prefix, currentState);
             // Only add one copy of each state - if we've already seen this
             // state just ignore it.
-            if (states.containsKey(state)) {
+            if (stateIds.containsKey(key)) {
                 return true;
             }
+            NGramState state = new NGramState(states.size(), currentState, prefix, true);
             initialStates.add(state);
-            states.put(state, state);
+            states.add(state);
+            stateIds.put(key, state.id);
             return true;
         }
         // TODO build fewer of these
@@ -131,8 +238,8 @@ public class NGramAutomaton {
             int min, max;
             if (transition.max - transition.min >= maxExpand) {
                 // Consider this transition useless.
-                min = 0;
-                max = 0;
+                min = INVALID_CODE_POINT;
+                max = INVALID_CODE_POINT;
             } else {
                 min = transition.min;
                 max = transition.max;
@@ -148,26 +255,23 @@ public class NGramAutomaton {
     }
 
     private void traceRemainingStates() {
-        LinkedList<NGramState> leftToProcess = new LinkedList<NGramState>();
-        leftToProcess.addAll(initialStates);
-        int[] codePoint = new int[1];
+        ArrayDeque<NGramState> leftToProcess = new ArrayDeque<>(initialStates);
         int statesTraced = 0;
         XTransition transition = new XTransition();
-        int currentTransitions = 0;
         while (!leftToProcess.isEmpty()) {
             if (statesTraced >= maxStatesTraced) {
                 throw new AutomatonTooComplexException();
             }
             statesTraced++;
             NGramState from = leftToProcess.pop();
-            if (acceptStates.contains(from)) {
+            if (from.accept) {
                 // Any transitions out of accept states aren't interesting for
                 // finding required ngrams
                 continue;
             }
             int totalLeavingState = source.initTransition(from.sourceState, transition);
-            if (currentTransitions >= maxTransitions) {
-                acceptStates.add(from);
+            if (transitionCount >= maxTransitions) {
+                markAccept(from);
                 continue;
             }
             for (int currentLeavingState = 0; currentLeavingState < totalLeavingState; currentLeavingState++) {
@@ -175,83 +279,236 @@ public class NGramAutomaton {
                 int min, max;
                 if (transition.max - transition.min >= maxExpand) {
                     // Consider this transition useless.
-                    min = 0;
-                    max = 0;
+                    min = INVALID_CODE_POINT;
+                    max = INVALID_CODE_POINT;
                 } else {
                     min = transition.min;
                     max = transition.max;
                 }
                 for (int c = min; c <= max; c++) {
-                    codePoint[0] = c;
-                    String ngram = from.prefix + new String(codePoint, 0, 1);
-                    NGramState next = buildOrFind(leftToProcess, transition.dest, ngram.substring(1));
-                    // Transitions containing an invalid character contain no
-                    // prefix.
-                    if (ngram.indexOf(0) >= 0) {
-                        ngram = null;
-                    }
-                    if (currentTransitions >= maxTransitions) {
-                        acceptStates.add(from);
+                    NGramState next = buildOrFind(leftToProcess, transition.dest, shift(from.prefix, c));
+                    if (transitionCount >= maxTransitions) {
+                        markAccept(from);
                         continue;
                     }
-                    currentTransitions++;
-                    NGramTransition ngramTransition = new NGramTransition(from, next, ngram);
-                    from.outgoingTransitions.add(ngramTransition);
-                    ngramTransition.to.incomingTransitions.add(ngramTransition);
+                    addTransition(from, next, c);
                 }
             }
         }
     }
 
-    private NGramState buildOrFind(LinkedList<NGramState> leftToProcess, int sourceState, String prefix) {
-        NGramState built = new NGramState(sourceState, prefix, false);
-        NGramState found = states.get(built);
-        if (found != null) {
-            return found;
+    private NGramState buildOrFind(ArrayDeque<NGramState> leftToProcess, int sourceState, int prefix) {
+        long key = stateKey(prefix, sourceState);
+        int found = stateIds.getOrDefault(key, -1);
+        if (found >= 0) {
+            return states.get(found);
         }
+        NGramState built = new NGramState(states.size(), sourceState, prefix, false);
         if (source.isAccept(sourceState)) {
-            acceptStates.add(built);
+            markAccept(built);
         }
-        states.put(built, built);
+        states.add(built);
+        stateIds.put(key, built.id);
         leftToProcess.add(built);
         return built;
     }
 
+    private void markAccept(NGramState state) {
+        if (!state.accept) {
+            state.accept = true;
+            acceptStates.add(state);
+        }
+    }
+
+    private void addTransition(NGramState from, NGramState to, int codePoint) {
+        if (transitionCount == transitionFrom.length) {
+            transitionFrom = ArrayUtil.grow(transitionFrom);
+            transitionTo = ArrayUtil.grow(transitionTo, transitionFrom.length);
+            transitionCodePoint = ArrayUtil.grow(transitionCodePoint, transitionFrom.length);
+        }
+        transitionFrom[transitionCount] = from.id;
+        transitionTo[transitionCount] = to.id;
+        transitionCodePoint[transitionCount] = codePoint;
+        to.incomingTransitions.add(transitionCount);
+        transitionCount++;
+    }
+
     /**
-     * State in the ngram graph. Equals and hashcode only use the sourceState
-     * and prefix.
+     * The ngram checked by a transition or null if the transition doesn't check
+     * anything because it contains a code point we can't match.
      */
-    private static class NGramState implements ExpressionSource<String> {
-        /**
-         * We use the 0 char to stand in for code points we can't match.
-         */
-        private static final String INVALID_CHAR = new String(new int[] { 0 }, 0, 1);
+    private String ngram(int transition) {
+        int prefix = states.get(transitionFrom[transition]).prefix;
+        int codePoint = transitionCodePoint[transition];
+        if (codePoint == INVALID_CODE_POINT || invalidPrefixes.get(prefix)) {
+            return null;
+        }
+        int[] codePoints = new int[gramSize];
+        System.arraycopy(prefixCodePoints, prefix * prefixLength, codePoints, 0, prefixLength);
+        codePoints[prefixLength] = codePoint;
+        return new String(codePoints, 0, gramSize);
+    }
+
+    /**
+     * Build the expression matching all strings incoming to a state. Walks
+     * incoming transitions depth first like a recursive walk would, but keeps
+     * its own stack so long chains of states can't overflow the call stack.
+     * Transitions from states already on the stack are cycles and become
+     * FALSE. Each state's expression is finished only after the expressions
+     * of all states it depends on so they are built in topological order.
+     */
+    private Expression<String> buildExpression(NGramState root) {
+        ArrayDeque<NGramState> stack = new ArrayDeque<>();
+        push(stack, root);
+        while (!stack.isEmpty()) {
+            NGramState state = stack.peek();
+            if (state.nextIncoming < state.incomingTransitions.size()) {
+                int transition = state.incomingTransitions.get(state.nextIncoming);
+                NGramState from = states.get(transitionFrom[transition]);
+                if (from.inPath) {
+                    state.pending.add(False.<String>instance());
+                } else if (from.expression == null) {
+                    // Finish the state we come from first and then come back
+                    // to this transition.
+                    push(stack, from);
+                    continue;
+                } else {
+                    state.pending.add(transitionExpression(from, transition));
+                }
+                state.nextIncoming++;
+                continue;
+            }
+            stack.pop();
+            state.finishExpression();
+        }
+        return root.expression;
+    }
+
+    private void push(ArrayDeque<NGramState> stack, NGramState state) {
+        if (state.initial) {
+            // Initial states are potential starts of the regex and thus don't
+            // need any incoming transitions.
+            state.expression = True.instance();
+            return;
+        }
+        state.inPath = true;
+        state.pending = new ArrayList<>(state.incomingTransitions.size());
+        state.nextIncoming = 0;
+        stack.push(state);
+    }
+
+    /**
+     * Expression matching all strings that use a transition from a state who's
+     * expression has been built.
+     */
+    private Expression<String> transitionExpression(NGramState from, int transition) {
+        String ngram = ngram(transition);
+        if (ngram == null) {
+            return from.expression;
+        }
+        return new And<>(ImmutableSet.of(from.expression, new Leaf<>(ngram)));
+    }
+
+    /**
+     * Key for a state in {@link #stateIds}.
+     */
+    private static long stateKey(int prefix, int sourceState) {
+        return ((long) prefix << Integer.SIZE) | (sourceState & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The id of the prefix made by dropping the first code point of a prefix
+     * and appending a code point.
+     */
+    private int shift(int prefix, int codePoint) {
+        if (prefixLength == 0) {
+            // There is only one empty prefix
+            return prefix;
+        }
+        long key = ((long) prefix << BITS_PER_CODE_POINT) | codePoint;
+        int shifted = shifts.getOrDefault(key, -1);
+        if (shifted < 0) {
+            int[] codePoints = new int[prefixLength];
+            System.arraycopy(prefixCodePoints, prefix * prefixLength + 1, codePoints, 0, prefixLength - 1);
+            codePoints[prefixLength - 1] = codePoint;
+            shifted = internPrefix(codePoints);
+            shifts.put(key, shifted);
+        }
+        return shifted;
+    }
+
+    /**
+     * The id of the prefix with these code points, assigning a new one if it
+     * hasn't been seen yet.
+     */
+    private int internPrefix(int[] codePoints) {
+        if (packedPrefixIds != null) {
+            long packed = 0;
+            for (int codePoint : codePoints) {
+                packed = (packed << BITS_PER_CODE_POINT) | codePoint;
+            }
+            int prefix = packedPrefixIds.getOrDefault(packed, -1);
+            if (prefix < 0) {
+                prefix = addPrefix(codePoints);
+                packedPrefixIds.put(packed, prefix);
+            }
+            return prefix;
+        }
+        String key = new String(codePoints, 0, prefixLength);
+        Integer prefix = prefixDictionary.get(key);
+        if (prefix == null) {
+            prefix = addPrefix(codePoints);
+            prefixDictionary.put(key, prefix);
+        }
+        return prefix;
+    }
+
+    private int addPrefix(int[] codePoints) {
+        int prefix = prefixCount++;
+        int offset = prefix * prefixLength;
+        if (offset + prefixLength > prefixCodePoints.length) {
+            prefixCodePoints = ArrayUtil.grow(prefixCodePoints, offset + prefixLength);
+        }
+        System.arraycopy(codePoints, 0, prefixCodePoints, offset, prefixLength);
+        for (int codePoint : codePoints) {
+            if (codePoint == INVALID_CODE_POINT) {
+                invalidPrefixes.set(prefix);
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * State in the ngram graph.
+     */
+    private class NGramState implements ExpressionSource<String> {
         /**
-         * We print code points we can't match as double underscores.
+         * Index of this state in states.
          */
-        private static final String INVALID_PRINT_CHAR = "__";
-
+        private final int id;
         /**
          * State in the source automaton.
          */
         private final int sourceState;
         /**
-         * Prefix of the ngram transitions that come from this state.
+         * Id of the prefix of the ngram transitions that come from this state.
          */
-        private final String prefix;
+        private final int prefix;
         /**
          * Is this an initial state? Initial states are potential starts of the
          * regex and thus all incoming transitions are not required.
          */
         private final boolean initial;
         /**
-         * Transitions leading from this state.
+         * Is this an accept state? Set at most once and then the state is added
+         * to acceptStates.
          */
-        private final List<NGramTransition> outgoingTransitions = new ArrayList<>();
+        private boolean accept;
         /**
-         * Transitions coming into this state.
+         * Ids of the transitions coming into this state.
          */
-        private final List<NGramTransition> incomingTransitions = new ArrayList<>();
+        private final IntArrayList incomingTransitions = new IntArrayList(2);
         /**
          * Lazily initialized expression matching all strings incoming to this
          * state.
@@ -261,8 +518,19 @@ public class NGramAutomaton {
          * Is this state in the path being turned into an expression.
          */
         private boolean inPath = false;
+        /**
+         * Index of the next incoming transition to turn into an expression
+         * while this state is on the stack.
+         */
+        private int nextIncoming;
+        /**
+         * Expressions for the incoming transitions handled so far while this
+         * state is on the stack.
+         */
+        private List<Expression<String>> pending;
 
-        private NGramState(int sourceState, String prefix, boolean initial) {
+        private NGramState(int id, int sourceState, int prefix, boolean initial) {
+            this.id = id;
             this.sourceState = sourceState;
             this.prefix = prefix;
             this.initial = initial;
@@ -281,82 +549,38 @@ public class NGramAutomaton {
         }
 
         public String prettyPrefix() {
-            return prefix.replace(INVALID_CHAR, INVALID_PRINT_CHAR);
+            return new String(prefixCodePoints, prefix * prefixLength, prefixLength).replace(INVALID_CHAR, INVALID_PRINT_CHAR);
         }
 
         @Override
         public Expression<String> expression() {
             if (expression == null) {
-                if (initial) {
-                    expression = True.instance();
-                } else {
-                    inPath = true;
-                    expression = Or.fromExpressionSources(incomingTransitions);
-                    inPath = false;
-                }
+                buildExpression(this);
             }
             return expression;
         }
 
-        // Equals and hashcode from Eclipse.
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((prefix == null) ? 0 : prefix.hashCode());
-            result = prime * result + sourceState;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            NGramState other = (NGramState) obj;
-            if (prefix == null) {
-                if (other.prefix != null)
-                    return false;
-            } else if (!prefix.equals(other.prefix))
-                return false;
-            if (sourceState != other.sourceState)
-                return false;
-            return true;
-        }
-    }
-
-    private static class NGramTransition implements ExpressionSource<String> {
-        private final NGramState from;
-        private final NGramState to;
-        private final String ngram;
-
-        private NGramTransition(NGramState from, NGramState to, String ngram) {
-            this.from = from;
-            this.to = to;
-            this.ngram = ngram;
-        }
-
-        @Override
-        public Expression<String> expression() {
-            if (from.inPath) {
-                return False.<String>instance();
-            }
-            if (ngram == null) {
-                return from.expression();
-            }
-            return new And<>(ImmutableSet.of(from.expression(), new Leaf<>(ngram)));
-        }
-
-        public String toString() {
-            StringBuilder b = new StringBuilder();
-            b.append(from.dotName()).append(" -> ").append(to.dotName());
-            if (ngram != null) {
-                b.append(" [label=\"" + ngram.replace(" ", "_") + "\"]");
+        /**
+         * Like {@link ExpressionFactory#fromExpressionSources(List)} over the
+         * expressions of the incoming transitions.
+         */
+        private void finishExpression() {
+            switch (pending.size()) {
+            case 0:
+                expression = True.instance();
+                break;
+            case 1:
+                expression = pending.get(0);
+                break;
+            default:
+                expression = factory.or(ImmutableSet.copyOf(pending));
             }
-            return b.toString();
+            // Simplify as we go so simplifying the final expression finds the
+            // simplified forms of the states it depends on already memoized
+            // rather than recursing through the whole chain of states.
+            expression = expression.simplify();
+            pending = null;
+            inPath = false;
         }
     }
 }
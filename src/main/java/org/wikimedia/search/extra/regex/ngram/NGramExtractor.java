@@ -8,10 +8,18 @@ import org.wikimedia.search.extra.regex.expression.True;
  * Extracts ngrams from automatons.
  */
 public class NGramExtractor {
+    /**
+     * How many more transitions than maxNgrams are traced when selecting the
+     * rarest ngrams. Gives the selector some ngrams to choose from without
+     * tracing the whole automaton.
+     */
+    static final int OVERSAMPLE = 4;
+
     private final int gramSize;
     private final int maxExpand;
     private final int maxStatesTraced;
     private final int maxNgrams;
+    private final NGramFrequencies frequencies;
 
     /**
      * Build it.
@@ -28,10 +36,31 @@ public class NGramExtractor {
      *            If more could be exracted from the regex they are ignored.
      */
     public NGramExtractor(int gramSize, int maxExpand, int maxStatesTraced, int maxNgrams) {
+        this(gramSize, maxExpand, maxStatesTraced, maxNgrams, null);
+    }
+
+    /**
+     * Build it.
+     *
+     * @param gramSize size of the ngram. The "n" in ngram.
+     * @param maxExpand Maximum size of range transitions to expand into single
+     *            transitions. Its roughly analogous to the number of character
+     *            in a character class before it is considered a wildcard for
+     *            optimization purposes.
+     * @param maxStatesTraced maximum number of states traced during automaton
+     *            functions. Higher number allow more complex automata to be
+     *            converted to ngram expressions at the cost of more time.
+     * @param maxNgrams the maximum number of ngrams extracted from the regex.
+     * @param frequencies if not null then more ngrams are extracted than
+     *            maxNgrams and the rarest ones are kept. If null then once
+     *            maxNgrams have been extracted the rest are ignored.
+     */
+    public NGramExtractor(int gramSize, int maxExpand, int maxStatesTraced, int maxNgrams, NGramFrequencies frequencies) {
         this.gramSize = gramSize;
         this.maxExpand = maxExpand;
         this.maxStatesTraced = maxStatesTraced;
         this.maxNgrams = maxNgrams;
+        this.frequencies = frequencies;
     }
 
     /**
@@ -41,6 +70,12 @@ public class NGramExtractor {
         if (automaton.isAccept(0)) {
             return True.<String> instance();
         }
-        return new NGramAutomaton(automaton, gramSize, maxExpand, maxStatesTraced, maxNgrams).expression().simplify();
+        if (frequencies == null) {
+            return new NGramAutomaton(automaton, gramSize, maxExpand, maxStatesTraced, maxNgrams).expression().simplify();
+        }
+        int maxTransitions = (int) Math.min(Integer.MAX_VALUE, (long) maxNgrams * OVERSAMPLE);
+        Expression<String> expression = new NGramAutomaton(automaton, gramSize, maxExpand, maxStatesTraced, maxTransitions).expression()
+                .simplify();
+        return new NGramSelector(frequencies).select(expression, maxNgrams);
     }
 }
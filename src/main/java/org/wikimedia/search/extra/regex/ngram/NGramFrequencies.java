@@ -0,0 +1,13 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+/**
+ * Estimates how many documents contain an ngram. Used to keep the most
+ * selective ngrams when a regex has more of them than we're willing to check.
+ */
+public interface NGramFrequencies {
+    /**
+     * Number of documents containing the ngram. Doesn't have to be exact but
+     * rarer ngrams should have lower frequencies.
+     */
+    long docFreq(String ngram);
+}
@@ -0,0 +1,209 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.util.CollectionUtil;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.wikimedia.search.extra.regex.expression.And;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.False;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.regex.expression.True;
+
+/**
+ * Shrinks ngram expressions to a maximum number of ngrams, keeping the rarest
+ * ones. Ngrams are dropped by replacing them with TRUE which only ever makes
+ * the expression match more so the result is still a necessary condition for
+ * the regex to match.
+ * <p>
+ * The frequency of an AND is estimated as the frequency of its rarest
+ * component and the frequency of an OR as the sum of its components. ANDs keep
+ * their rarest components first. ORs are TRUE if any of their components are
+ * so they split their budget evenly between their components and give up if
+ * it isn't enough.
+ */
+class NGramSelector {
+    private final NGramFrequencies frequencies;
+
+    NGramSelector(NGramFrequencies frequencies) {
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Shrink the expression to at most maxNgrams ngrams. Returns the
+     * expression unchanged if it is already small enough.
+     */
+    Expression<String> select(Expression<String> expression, int maxNgrams) {
+        Node node = expression.transform(new ToNode());
+        if (node.ngrams <= maxNgrams) {
+            return expression;
+        }
+        return node.select(maxNgrams).simplify();
+    }
+
+    /**
+     * Expression annotated with its estimated frequency and the number of
+     * ngrams in it.
+     */
+    private abstract static class Node {
+        protected final long frequency;
+        protected final int ngrams;
+
+        Node(long frequency, int ngrams) {
+            this.frequency = frequency;
+            this.ngrams = ngrams;
+        }
+
+        /**
+         * Build an expression from this node using no more than maxNgrams
+         * ngrams.
+         */
+        abstract Expression<String> select(int maxNgrams);
+    }
+
+    private static class ConstantNode extends Node {
+        private final Expression<String> expression;
+
+        ConstantNode(long frequency, Expression<String> expression) {
+            super(frequency, 0);
+            this.expression = expression;
+        }
+
+        @Override
+        Expression<String> select(int maxNgrams) {
+            return expression;
+        }
+    }
+
+    private static class LeafNode extends Node {
+        private final String ngram;
+
+        LeafNode(long frequency, String ngram) {
+            super(frequency, 1);
+            this.ngram = ngram;
+        }
+
+        @Override
+        Expression<String> select(int maxNgrams) {
+            if (maxNgrams < 1) {
+                return True.instance();
+            }
+            return new Leaf<>(ngram);
+        }
+    }
+
+    private static class AndNode extends Node {
+        private final List<Node> components;
+
+        AndNode(List<Node> components, long frequency, int ngrams) {
+            super(frequency, ngrams);
+            this.components = components;
+        }
+
+        @Override
+        Expression<String> select(int maxNgrams) {
+            ImmutableSet.Builder<Expression<String>> selected = ImmutableSet.builder();
+            int remaining = maxNgrams;
+            // Components are sorted rarest first
+            for (Node component : components) {
+                if (remaining < 1) {
+                    break;
+                }
+                Expression<String> expression = component.select(remaining);
+                if (expression.alwaysTrue()) {
+                    continue;
+                }
+                selected.add(expression);
+                remaining -= Math.min(component.ngrams, remaining);
+            }
+            return new And<>(selected.build());
+        }
+    }
+
+    private static class OrNode extends Node {
+        private final List<Node> components;
+
+        OrNode(List<Node> components, long frequency, int ngrams) {
+            super(frequency, ngrams);
+            this.components = components;
+        }
+
+        @Override
+        Expression<String> select(int maxNgrams) {
+            int share = maxNgrams / components.size();
+            if (share < 1) {
+                return True.instance();
+            }
+            ImmutableSet.Builder<Expression<String>> selected = ImmutableSet.builder();
+            for (Node component : components) {
+                Expression<String> expression = component.select(share);
+                if (expression.alwaysTrue()) {
+                    return expression;
+                }
+                selected.add(expression);
+            }
+            return new Or<>(selected.build());
+        }
+    }
+
+    private static final Comparator<Node> RAREST_FIRST = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            int cmp = Long.compare(lhs.frequency, rhs.frequency);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Integer.compare(lhs.ngrams, rhs.ngrams);
+        }
+    };
+
+    private class ToNode implements Expression.Transformer<String, Node> {
+        @Override
+        public Node alwaysTrue() {
+            return new ConstantNode(Long.MAX_VALUE, True.<String> instance());
+        }
+
+        @Override
+        public Node alwaysFalse() {
+            return new ConstantNode(0, False.<String> instance());
+        }
+
+        @Override
+        public Node leaf(String ngram) {
+            return new LeafNode(frequencies.docFreq(ngram), ngram);
+        }
+
+        @Override
+        public Node and(ImmutableSet<Node> js) {
+            List<Node> components = new ArrayList<>(js);
+            CollectionUtil.timSort(components, RAREST_FIRST);
+            long frequency = Long.MAX_VALUE;
+            int ngrams = 0;
+            for (Node component : components) {
+                frequency = Math.min(frequency, component.frequency);
+                ngrams += component.ngrams;
+            }
+            return new AndNode(components, frequency, ngrams);
+        }
+
+        @Override
+        public Node or(ImmutableSet<Node> js) {
+            List<Node> components = new ArrayList<>(js);
+            long frequency = 0;
+            int ngrams = 0;
+            for (Node component : components) {
+                frequency = saturatedAdd(frequency, component.frequency);
+                ngrams += component.ngrams;
+            }
+            return new OrNode(components, frequency, ngrams);
+        }
+
+        private long saturatedAdd(long lhs, long rhs) {
+            long sum = lhs + rhs;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.util.automaton.XAutomaton;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.wikimedia.search.extra.regex.expression.And;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.False;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.regex.expression.True;
+
+/**
+ * Extracts the {@link SparseGrams} that must be in a field for an automaton
+ * to match it. Traces the automaton for ngrams as long as the longest sparse
+ * gram in the field and replaces each of them with its covering sparse
+ * grams. If the regex doesn't have any literals that long it tries shorter
+ * and shorter ngrams until it finds some, ending at trigrams which are their
+ * own covering sparse gram.
+ */
+public class SparseGramExtractor {
+    private final int maxGram;
+    private final int maxExpand;
+    private final int maxStatesTraced;
+    private final int maxNgrams;
+    private final NGramFrequencies frequencies;
+
+    /**
+     * Build it.
+     *
+     * @param maxGram size of the longest sparse gram in the field
+     * @param maxExpand Maximum size of range transitions to expand into single
+     *            transitions. See {@link NGramExtractor}.
+     * @param maxStatesTraced maximum number of states traced during automaton
+     *            functions. See {@link NGramExtractor}.
+     * @param maxNgrams the maximum number of ngrams traced from the regex.
+     *            Each one becomes a couple of sparse grams.
+     * @param frequencies if not null then more ngrams are traced than
+     *            maxNgrams and only the rarest maxNgrams sparse grams are
+     *            kept. If null then once maxNgrams have been traced the rest
+     *            are ignored.
+     */
+    public SparseGramExtractor(int maxGram, int maxExpand, int maxStatesTraced, int maxNgrams, NGramFrequencies frequencies) {
+        if (maxGram < SparseGrams.MIN_GRAM) {
+            throw new IllegalArgumentException("maxGram must be at least " + SparseGrams.MIN_GRAM + " but was " + maxGram);
+        }
+        this.maxGram = maxGram;
+        this.maxExpand = maxExpand;
+        this.maxStatesTraced = maxStatesTraced;
+        this.maxNgrams = maxNgrams;
+        this.frequencies = frequencies;
+    }
+
+    /**
+     * Extract an Expression containing sparse grams from an automaton.
+     */
+    public Expression<String> extract(XAutomaton automaton) {
+        int maxTransitions = maxNgrams;
+        if (frequencies != null) {
+            maxTransitions = (int) Math.min(Integer.MAX_VALUE, (long) maxNgrams * NGramExtractor.OVERSAMPLE);
+        }
+        AutomatonTooComplexException tooComplex = null;
+        for (int gramSize = maxGram; gramSize >= SparseGrams.MIN_GRAM; gramSize--) {
+            Expression<String> ngrams;
+            try {
+                ngrams = new NGramExtractor(gramSize, maxExpand, maxStatesTraced, maxTransitions).extract(automaton);
+            } catch (AutomatonTooComplexException e) {
+                // Longer ngrams need more states so shorter ones might work
+                tooComplex = e;
+                continue;
+            }
+            if (ngrams.alwaysTrue()) {
+                continue;
+            }
+            Expression<String> expression = ngrams.transform(new Cover()).expression().simplify();
+            if (frequencies == null) {
+                return expression;
+            }
+            return new NGramSelector(frequencies).select(expression, maxNgrams);
+        }
+        if (tooComplex != null) {
+            throw tooComplex;
+        }
+        return True.instance();
+    }
+
+    /**
+     * An expression with the sparse grams in its conjunction broken out so
+     * they can be merged with the sparse grams of its siblings.
+     */
+    private static final class Covered {
+        /**
+         * Sparse grams that must all be present.
+         */
+        private final Set<String> grams;
+        /**
+         * Other expressions that must all be present.
+         */
+        private final List<Expression<String>> rest;
+
+        private Covered(Set<String> grams, List<Expression<String>> rest) {
+            this.grams = grams;
+            this.rest = rest;
+        }
+
+        private Expression<String> expression() {
+            ImmutableSet.Builder<Expression<String>> components = ImmutableSet.builder();
+            for (String gram : grams) {
+                components.add(new Leaf<>(gram));
+            }
+            components.addAll(rest);
+            ImmutableSet<Expression<String>> built = components.build();
+            switch (built.size()) {
+            case 0:
+                return True.instance();
+            case 1:
+                return built.iterator().next();
+            default:
+                return new And<>(built);
+            }
+        }
+    }
+
+    /**
+     * Replaces ngrams with their covering sparse grams, dropping sparse grams
+     * that are inside of others that must also be present.
+     */
+    private final class Cover implements Expression.Transformer<String, Covered> {
+        @Override
+        public Covered alwaysTrue() {
+            return new Covered(new HashSet<String>(), new ArrayList<Expression<String>>());
+        }
+
+        @Override
+        public Covered alwaysFalse() {
+            List<Expression<String>> rest = new ArrayList<>();
+            rest.add(False.<String> instance());
+            return new Covered(new HashSet<String>(), rest);
+        }
+
+        @Override
+        public Covered leaf(String t) {
+            return new Covered(new HashSet<>(SparseGrams.covering(t, maxGram)), new ArrayList<Expression<String>>());
+        }
+
+        @Override
+        public Covered and(ImmutableSet<Covered> js) {
+            Set<String> grams = new HashSet<>();
+            List<Expression<String>> rest = new ArrayList<>();
+            for (Covered j : js) {
+                grams.addAll(j.grams);
+                rest.addAll(j.rest);
+            }
+            Set<String> outermost = new HashSet<>();
+            for (String gram : grams) {
+                if (!insideAnother(gram, grams)) {
+                    outermost.add(gram);
+                }
+            }
+            return new Covered(outermost, rest);
+        }
+
+        @Override
+        public Covered or(ImmutableSet<Covered> js) {
+            ImmutableSet.Builder<Expression<String>> components = ImmutableSet.builder();
+            for (Covered j : js) {
+                components.add(j.expression());
+            }
+            List<Expression<String>> rest = new ArrayList<>();
+            rest.add(new Or<>(components.build()));
+            return new Covered(new HashSet<String>(), rest);
+        }
+
+        private boolean insideAnother(String gram, Set<String> grams) {
+            for (String other : grams) {
+                if (other.length() > gram.length() && other.contains(gram)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds sparse grams: substrings whose first and last bigrams weigh more than
+ * every bigram between them. Weights come from a fixed hash of the bigram so
+ * whether a substring is a sparse gram depends only on the substring itself.
+ * That means every sparse gram of a string is also a sparse gram of every
+ * document containing that string, so a regex only has to look up the
+ * longest sparse grams of its literals instead of every trigram.
+ * <p>
+ * Every trigram is a sparse gram (there aren't any bigrams between its
+ * first and last) so a sparse gram field can answer anything a trigram field
+ * can. Weights are computed on lowercased code points so a field that
+ * lowercases its grams finds the same grams as the lowercased regex. Changing
+ * the weight function changes the grams so it requires a reindex.
+ */
+public final class SparseGrams {
+    /**
+     * Shortest sparse gram.
+     */
+    public static final int MIN_GRAM = 3;
+    /**
+     * Default longest sparse gram.
+     */
+    public static final int DEFAULT_MAX_GRAM = 8;
+
+    private SparseGrams() {
+        // Util class
+    }
+
+    /**
+     * Receives sparse grams.
+     */
+    public interface GramConsumer {
+        /**
+         * Receive a sparse gram.
+         *
+         * @param start index of the first code point in the gram
+         * @param end index after the last code point in the gram
+         */
+        void gram(int start, int end);
+    }
+
+    /**
+     * Weight of the bigram made from two code points.
+     */
+    public static int weight(int first, int second) {
+        int h = Character.toLowerCase(first) * 0x9E3779B1 + Character.toLowerCase(second);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Find all the sparse grams in some code points that are no longer than
+     * maxGram. There are at most two per code point. They are sent to the
+     * consumer in order of their end.
+     */
+    public static void sparseGrams(int[] codePoints, int length, int maxGram, GramConsumer consumer) {
+        if (length < MIN_GRAM) {
+            return;
+        }
+        int bigrams = length - 1;
+        /*
+         * Bigrams that might start a sparse gram. Their weights are strictly
+         * decreasing towards the top and every bigram between two of them
+         * weighs less than both.
+         */
+        int[] stack = new int[bigrams];
+        int[] stackWeights = new int[bigrams];
+        int size = 0;
+        for (int bigram = 0; bigram < bigrams; bigram++) {
+            int weight = weight(codePoints[bigram], codePoints[bigram + 1]);
+            while (size > 0 && stackWeights[size - 1] < weight) {
+                size--;
+                emit(stack[size], bigram, maxGram, consumer);
+            }
+            if (size > 0) {
+                emit(stack[size - 1], bigram, maxGram, consumer);
+                if (stackWeights[size - 1] == weight) {
+                    // An equal bigram can't be between the ends of a gram
+                    size--;
+                }
+            }
+            stack[size] = bigram;
+            stackWeights[size] = weight;
+            size++;
+        }
+    }
+
+    /**
+     * The sparse grams of a string that are no longer than maxGram and aren't
+     * inside of another such sparse gram of the string. Any document that
+     * contains the string contains all of them and once you've checked for
+     * them checking for the rest of the string's sparse grams is redundant.
+     */
+    public static List<String> covering(String string, int maxGram) {
+        final int[] codePoints = codePoints(string);
+        final List<int[]> grams = new ArrayList<>();
+        sparseGrams(codePoints, codePoints.length, maxGram, new GramConsumer() {
+            @Override
+            public void gram(int start, int end) {
+                grams.add(new int[] {start, end});
+            }
+        });
+        List<String> covering = new ArrayList<>();
+        for (int[] gram : grams) {
+            if (!inside(gram, grams)) {
+                covering.add(new String(codePoints, gram[0], gram[1] - gram[0]));
+            }
+        }
+        return covering;
+    }
+
+    private static void emit(int firstBigram, int lastBigram, int maxGram, GramConsumer consumer) {
+        // The gram runs from the first character of the first bigram to the
+        // last character of the last bigram
+        int end = lastBigram + 2;
+        if (end - firstBigram <= maxGram) {
+            consumer.gram(firstBigram, end);
+        }
+    }
+
+    private static boolean inside(int[] gram, List<int[]> grams) {
+        for (int[] other : grams) {
+            if (other != gram && other[0] <= gram[0] && gram[1] <= other[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] codePoints(String string) {
+        int[] codePoints = new int[string.codePointCount(0, string.length())];
+        int i = 0;
+        for (int offset = 0; offset < string.length(); offset += Character.charCount(codePoints[i - 1])) {
+            codePoints[i++] = string.codePointAt(offset);
+        }
+        return codePoints;
+    }
+}
@@ -0,0 +1,26 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import org.elasticsearch.action.ClientAction;
+import org.elasticsearch.client.Client;
+
+/**
+ * Scans all the documents in some indices for a regex, a page at a time.
+ */
+public class RegexScanAction extends ClientAction<RegexScanRequest, RegexScanResponse, RegexScanRequestBuilder> {
+    public static final RegexScanAction INSTANCE = new RegexScanAction();
+    public static final String NAME = "indices:data/read/regex_scan";
+
+    private RegexScanAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RegexScanResponse newResponse() {
+        return new RegexScanResponse();
+    }
+
+    @Override
+    public RegexScanRequestBuilder newRequestBuilder(Client client) {
+        return new RegexScanRequestBuilder(client);
+    }
+}
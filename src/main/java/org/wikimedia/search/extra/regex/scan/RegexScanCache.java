@@ -0,0 +1,135 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Node level cache of {@link RegexScanner}s so the pages of a scan share the
+ * compiled automata and the prefilter candidates of each segment rather than
+ * rebuilding them for every page. Scanners are keyed on the index and
+ * everything in the request that decides what matches, not on the page's size
+ * or limits. Scanners expire when no page has used them for a while.
+ */
+public class RegexScanCache {
+    /**
+     * Setting controlling the maximum number of scanners in the cache.
+     * Defaults to 20. 0 disables the cache.
+     */
+    public static final String SIZE_SETTING = "wikimedia.extra.regex_scan.cache.size";
+    /**
+     * Setting controlling how long a scanner is kept after the last page that
+     * used it. Defaults to 5 minutes.
+     */
+    public static final String EXPIRE_SETTING = "wikimedia.extra.regex_scan.cache.expire";
+
+    private final Cache<Key, RegexScanner> cache;
+
+    @Inject
+    public RegexScanCache(Settings settings) {
+        this(settings.getAsInt(SIZE_SETTING, 20), settings.getAsTime(EXPIRE_SETTING, TimeValue.timeValueMinutes(5)));
+    }
+
+    public RegexScanCache(int size, TimeValue expire) {
+        if (size <= 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder().maximumSize(size).expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * Fetch the scanner for a request, building it if it isn't cached.
+     */
+    public RegexScanner scanner(RegexScanRequest request, String index) {
+        if (cache == null) {
+            return new RegexScanner(request, index);
+        }
+        Key key = new Key(request, index);
+        RegexScanner scanner = cache.getIfPresent(key);
+        if (scanner == null) {
+            // Two threads might build the same scanner at the same time but
+            // that is better than making one wait on the other.
+            scanner = new RegexScanner(request, index);
+            cache.put(key, scanner);
+        }
+        return scanner;
+    }
+
+    private static final class Key {
+        private final String index;
+        private final String field;
+        private final String regex;
+        private final boolean loadFromSource;
+        private final String ngramField;
+        private final int gramSize;
+        private final int maxExpand;
+        private final int maxStatesTraced;
+        private final int maxDeterminizedStates;
+        private final int maxNgramsExtracted;
+        private final boolean caseSensitive;
+        private final Locale locale;
+        private final boolean rejectUnaccelerated;
+        private final boolean offsets;
+
+        private Key(RegexScanRequest request, String index) {
+            this.index = index;
+            this.field = request.field();
+            this.regex = request.regex();
+            this.loadFromSource = request.loadFromSource();
+            this.ngramField = request.ngramField();
+            this.gramSize = request.gramSize();
+            this.maxExpand = request.maxExpand();
+            this.maxStatesTraced = request.maxStatesTraced();
+            this.maxDeterminizedStates = request.maxDeterminizedStates();
+            this.maxNgramsExtracted = request.maxNgramsExtracted();
+            this.caseSensitive = request.caseSensitive();
+            this.locale = request.locale();
+            this.rejectUnaccelerated = request.rejectUnaccelerated();
+            this.offsets = request.offsets();
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = index.hashCode();
+            result = prime * result + field.hashCode();
+            result = prime * result + regex.hashCode();
+            result = prime * result + (loadFromSource ? 1231 : 1237);
+            result = prime * result + (ngramField == null ? 0 : ngramField.hashCode());
+            result = prime * result + gramSize;
+            result = prime * result + maxExpand;
+            result = prime * result + maxStatesTraced;
+            result = prime * result + maxDeterminizedStates;
+            result = prime * result + maxNgramsExtracted;
+            result = prime * result + (caseSensitive ? 1231 : 1237);
+            result = prime * result + locale.hashCode();
+            result = prime * result + (rejectUnaccelerated ? 1231 : 1237);
+            result = prime * result + (offsets ? 1231 : 1237);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return index.equals(other.index) && field.equals(other.field) && regex.equals(other.regex)
+                    && loadFromSource == other.loadFromSource
+                    && (ngramField == null ? other.ngramField == null : ngramField.equals(other.ngramField))
+                    && gramSize == other.gramSize && maxExpand == other.maxExpand && maxStatesTraced == other.maxStatesTraced
+                    && maxDeterminizedStates == other.maxDeterminizedStates && maxNgramsExtracted == other.maxNgramsExtracted
+                    && caseSensitive == other.caseSensitive && locale.equals(other.locale)
+                    && rejectUnaccelerated == other.rejectUnaccelerated && offsets == other.offsets;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * A document that matched a regex scan.
+ */
+public class RegexScanMatch implements Streamable, ToXContent {
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private String index;
+    private String type;
+    private String id;
+    /**
+     * Triples of (value index, start, end) for each match or empty if offsets
+     * weren't requested.
+     */
+    private int[] offsets;
+
+    RegexScanMatch() {
+    }
+
+    RegexScanMatch(String index, String type, String id, int[] offsets) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+        this.offsets = offsets == null ? NO_OFFSETS : offsets;
+    }
+
+    static RegexScanMatch readMatch(StreamInput in) throws IOException {
+        RegexScanMatch match = new RegexScanMatch();
+        match.readFrom(in);
+        return match;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Offsets of the matches as triples of (value index, start, end). Start
+     * and end are in utf-16 code units. Empty if offsets weren't requested.
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("_index", index);
+        builder.field("_type", type);
+        builder.field("_id", id);
+        if (offsets.length > 0) {
+            builder.startArray("offsets");
+            for (int i = 0; i < offsets.length; i += 3) {
+                builder.startObject();
+                builder.field("value", offsets[i]);
+                builder.field("start", offsets[i + 1]);
+                builder.field("end", offsets[i + 2]);
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        index = in.readString();
+        type = in.readString();
+        id = in.readString();
+        offsets = new int[in.readVInt()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.readVInt();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeString(type);
+        out.writeString(id);
+        out.writeVInt(offsets.length);
+        for (int offset : offsets) {
+            out.writeVInt(offset);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.LocaleUtils;
+
+/**
+ * Request to scan all documents in some indices for a regex. Pages through
+ * each shard in _uid order so the cursor survives refreshes and merges.
+ */
+public class RegexScanRequest extends ActionRequest<RegexScanRequest> implements IndicesRequest {
+    private String[] indices = Strings.EMPTY_ARRAY;
+    private IndicesOptions indicesOptions = IndicesOptions.strictExpandOpenAndForbidClosed();
+    private String field;
+    private String regex;
+    private boolean loadFromSource = true;
+    private String ngramField;
+    private int gramSize = 3;
+    private int maxExpand = 4;
+    private int maxStatesTraced = 10000;
+    private int maxDeterminizedStates = 20000;
+    private int maxNgramsExtracted = 100;
+    private boolean caseSensitive = false;
+    private Locale locale = Locale.ROOT;
+    private boolean rejectUnaccelerated = false;
+    private int size = 100;
+    private int maxInspect = 10000;
+    private int maxWalk = 1000000;
+    private boolean offsets = false;
+    private int concurrency = 5;
+    private Map<String, String> after;
+
+    public RegexScanRequest() {
+    }
+
+    public RegexScanRequest(String... indices) {
+        this.indices = indices;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (field == null) {
+            validationException = addValidationError("[field] is required", validationException);
+        }
+        if (regex == null || regex.isEmpty()) {
+            validationException = addValidationError("[regex] is required", validationException);
+        }
+        if (size <= 0) {
+            validationException = addValidationError("[size] must be positive", validationException);
+        }
+        if (maxInspect <= 0) {
+            validationException = addValidationError("[max_inspect] must be positive", validationException);
+        }
+        if (maxWalk <= 0) {
+            validationException = addValidationError("[max_walk] must be positive", validationException);
+        }
+        if (concurrency <= 0) {
+            validationException = addValidationError("[concurrency] must be positive", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public String[] indices() {
+        return indices;
+    }
+
+    public RegexScanRequest indices(String... indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    @Override
+    public IndicesOptions indicesOptions() {
+        return indicesOptions;
+    }
+
+    public RegexScanRequest indicesOptions(IndicesOptions indicesOptions) {
+        this.indicesOptions = indicesOptions;
+        return this;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    /**
+     * The field to load and run the regex against. Required.
+     */
+    public RegexScanRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String regex() {
+        return regex;
+    }
+
+    /**
+     * The regex to run. Required.
+     */
+    public RegexScanRequest regex(String regex) {
+        this.regex = regex;
+        return this;
+    }
+
+    public boolean loadFromSource() {
+        return loadFromSource;
+    }
+
+    public RegexScanRequest loadFromSource(boolean loadFromSource) {
+        this.loadFromSource = loadFromSource;
+        return this;
+    }
+
+    public String ngramField() {
+        return ngramField;
+    }
+
+    public RegexScanRequest ngramField(String ngramField) {
+        this.ngramField = ngramField;
+        return this;
+    }
+
+    public int gramSize() {
+        return gramSize;
+    }
+
+    public RegexScanRequest gramSize(int gramSize) {
+        this.gramSize = gramSize;
+        return this;
+    }
+
+    public int maxExpand() {
+        return maxExpand;
+    }
+
+    public RegexScanRequest maxExpand(int maxExpand) {
+        this.maxExpand = maxExpand;
+        return this;
+    }
+
+    public int maxStatesTraced() {
+        return maxStatesTraced;
+    }
+
+    public RegexScanRequest maxStatesTraced(int maxStatesTraced) {
+        this.maxStatesTraced = maxStatesTraced;
+        return this;
+    }
+
+    public int maxDeterminizedStates() {
+        return maxDeterminizedStates;
+    }
+
+    public RegexScanRequest maxDeterminizedStates(int maxDeterminizedStates) {
+        this.maxDeterminizedStates = maxDeterminizedStates;
+        return this;
+    }
+
+    public int maxNgramsExtracted() {
+        return maxNgramsExtracted;
+    }
+
+    public RegexScanRequest maxNgramsExtracted(int maxNgramsExtracted) {
+        this.maxNgramsExtracted = maxNgramsExtracted;
+        return this;
+    }
+
+    public boolean caseSensitive() {
+        return caseSensitive;
+    }
+
+    public RegexScanRequest caseSensitive(boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+        return this;
+    }
+
+    public Locale locale() {
+        return locale;
+    }
+
+    public RegexScanRequest locale(Locale locale) {
+        this.locale = locale;
+        return this;
+    }
+
+    public boolean rejectUnaccelerated() {
+        return rejectUnaccelerated;
+    }
+
+    /**
+     * Should the scan fail if the regex can't be accelerated by the ngram
+     * field rather than inspect every document?
+     */
+    public RegexScanRequest rejectUnaccelerated(boolean rejectUnaccelerated) {
+        this.rejectUnaccelerated = rejectUnaccelerated;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Maximum number of matches returned per shard per page.
+     */
+    public RegexScanRequest size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public int maxInspect() {
+        return maxInspect;
+    }
+
+    /**
+     * Maximum number of candidate documents checked per shard per page. Pages
+     * that hit this limit return fewer than size matches but still have a
+     * cursor to continue from.
+     */
+    public RegexScanRequest maxInspect(int maxInspect) {
+        this.maxInspect = maxInspect;
+        return this;
+    }
+
+    public int maxWalk() {
+        return maxWalk;
+    }
+
+    /**
+     * Maximum number of _uids walked per shard per page whether they are
+     * candidates or not. Bounds the work of pages where the candidates are
+     * sparse. Pages that hit this limit return fewer than size matches but
+     * still have a cursor to continue from.
+     */
+    public RegexScanRequest maxWalk(int maxWalk) {
+        this.maxWalk = maxWalk;
+        return this;
+    }
+
+    public boolean offsets() {
+        return offsets;
+    }
+
+    /**
+     * Should the offsets of the matches be returned?
+     */
+    public RegexScanRequest offsets(boolean offsets) {
+        this.offsets = offsets;
+        return this;
+    }
+
+    public int concurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Maximum number of shards scanned at once.
+     */
+    public RegexScanRequest concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public Map<String, String> after() {
+        return after;
+    }
+
+    /**
+     * Cursor returned by the last page. Null means this is the first page.
+     */
+    public RegexScanRequest after(Map<String, String> after) {
+        this.after = after;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        indices = in.readStringArray();
+        indicesOptions = IndicesOptions.readIndicesOptions(in);
+        field = in.readString();
+        regex = in.readString();
+        loadFromSource = in.readBoolean();
+        ngramField = in.readOptionalString();
+        gramSize = in.readVInt();
+        maxExpand = in.readVInt();
+        maxStatesTraced = in.readVInt();
+        maxDeterminizedStates = in.readVInt();
+        maxNgramsExtracted = in.readVInt();
+        caseSensitive = in.readBoolean();
+        String localeString = in.readString();
+        locale = localeString.isEmpty() ? Locale.ROOT : LocaleUtils.parse(localeString);
+        rejectUnaccelerated = in.readBoolean();
+        size = in.readVInt();
+        maxInspect = in.readVInt();
+        maxWalk = in.readVInt();
+        offsets = in.readBoolean();
+        concurrency = in.readVInt();
+        if (in.readBoolean()) {
+            int afterSize = in.readVInt();
+            after = new HashMap<>(afterSize);
+            for (int i = 0; i < afterSize; i++) {
+                after.put(in.readString(), in.readString());
+            }
+        } else {
+            after = null;
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(indices);
+        indicesOptions.writeIndicesOptions(out);
+        out.writeString(field);
+        out.writeString(regex);
+        out.writeBoolean(loadFromSource);
+        out.writeOptionalString(ngramField);
+        out.writeVInt(gramSize);
+        out.writeVInt(maxExpand);
+        out.writeVInt(maxStatesTraced);
+        out.writeVInt(maxDeterminizedStates);
+        out.writeVInt(maxNgramsExtracted);
+        out.writeBoolean(caseSensitive);
+        out.writeString(locale.toString());
+        out.writeBoolean(rejectUnaccelerated);
+        out.writeVInt(size);
+        out.writeVInt(maxInspect);
+        out.writeVInt(maxWalk);
+        out.writeBoolean(offsets);
+        out.writeVInt(concurrency);
+        if (after == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeVInt(after.size());
+            for (Map.Entry<String, String> e : after.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeString(e.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.Client;
+
+/**
+ * Builds regex scan requests.
+ */
+public class RegexScanRequestBuilder extends ActionRequestBuilder<RegexScanRequest, RegexScanResponse, RegexScanRequestBuilder, Client> {
+    public RegexScanRequestBuilder(Client client) {
+        super(client, new RegexScanRequest());
+    }
+
+    public RegexScanRequestBuilder setIndices(String... indices) {
+        request.indices(indices);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setRegex(String regex) {
+        request.regex(regex);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setLoadFromSource(boolean loadFromSource) {
+        request.loadFromSource(loadFromSource);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setNgramField(String ngramField) {
+        request.ngramField(ngramField);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setGramSize(int gramSize) {
+        request.gramSize(gramSize);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxExpand(int maxExpand) {
+        request.maxExpand(maxExpand);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxStatesTraced(int maxStatesTraced) {
+        request.maxStatesTraced(maxStatesTraced);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxDeterminizedStates(int maxDeterminizedStates) {
+        request.maxDeterminizedStates(maxDeterminizedStates);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxNgramsExtracted(int maxNgramsExtracted) {
+        request.maxNgramsExtracted(maxNgramsExtracted);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setCaseSensitive(boolean caseSensitive) {
+        request.caseSensitive(caseSensitive);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setLocale(Locale locale) {
+        request.locale(locale);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setRejectUnaccelerated(boolean rejectUnaccelerated) {
+        request.rejectUnaccelerated(rejectUnaccelerated);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setSize(int size) {
+        request.size(size);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxInspect(int maxInspect) {
+        request.maxInspect(maxInspect);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setMaxWalk(int maxWalk) {
+        request.maxWalk(maxWalk);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setOffsets(boolean offsets) {
+        request.offsets(offsets);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setConcurrency(int concurrency) {
+        request.concurrency(concurrency);
+        return this;
+    }
+
+    public RegexScanRequestBuilder setAfter(Map<String, String> after) {
+        request.after(after);
+        return this;
+    }
+
+    @Override
+    protected void doExecute(ActionListener<RegexScanResponse> listener) {
+        client.execute(RegexScanAction.INSTANCE, request, listener);
+    }
+}
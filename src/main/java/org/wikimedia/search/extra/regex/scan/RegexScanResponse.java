@@ -0,0 +1,149 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * A page of regex scan results.
+ */
+public class RegexScanResponse extends ActionResponse implements ToXContent {
+    private int totalShards;
+    private int successfulShards;
+    private List<ShardOperationFailedException> shardFailures;
+    private List<RegexScanMatch> matches;
+    private Map<String, String> cursor;
+
+    RegexScanResponse() {
+    }
+
+    RegexScanResponse(int totalShards, int successfulShards, List<ShardOperationFailedException> shardFailures,
+            List<RegexScanMatch> matches, Map<String, String> cursor) {
+        this.totalShards = totalShards;
+        this.successfulShards = successfulShards;
+        this.shardFailures = shardFailures;
+        this.matches = matches;
+        this.cursor = cursor;
+    }
+
+    public int getTotalShards() {
+        return totalShards;
+    }
+
+    public int getSuccessfulShards() {
+        return successfulShards;
+    }
+
+    public int getFailedShards() {
+        return shardFailures.size();
+    }
+
+    public List<ShardOperationFailedException> getShardFailures() {
+        return shardFailures;
+    }
+
+    /**
+     * Documents that matched the regex in this page.
+     */
+    public List<RegexScanMatch> getMatches() {
+        return matches;
+    }
+
+    /**
+     * Cursor to send with the next request to get the next page. Shards that
+     * have been completely scanned aren't in the cursor.
+     */
+    public Map<String, String> getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Have all shards been scanned?
+     */
+    public boolean isDone() {
+        return cursor.isEmpty();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.startObject("_shards");
+        builder.field("total", totalShards);
+        builder.field("successful", successfulShards);
+        builder.field("failed", getFailedShards());
+        if (!shardFailures.isEmpty()) {
+            builder.startArray("failures");
+            for (ShardOperationFailedException failure : shardFailures) {
+                builder.startObject();
+                builder.field("index", failure.index());
+                builder.field("shard", failure.shardId());
+                builder.field("status", failure.status().name());
+                builder.field("reason", failure.reason());
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        builder.endObject();
+        builder.startArray("matches");
+        for (RegexScanMatch match : matches) {
+            match.toXContent(builder, params);
+        }
+        builder.endArray();
+        builder.field("cursor", cursor);
+        builder.field("done", isDone());
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        totalShards = in.readVInt();
+        successfulShards = in.readVInt();
+        int size = in.readVInt();
+        shardFailures = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            shardFailures.add(DefaultShardOperationFailedException.readShardOperationFailed(in));
+        }
+        size = in.readVInt();
+        matches = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            matches.add(RegexScanMatch.readMatch(in));
+        }
+        size = in.readVInt();
+        cursor = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            cursor.put(in.readString(), in.readString());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(totalShards);
+        out.writeVInt(successfulShards);
+        out.writeVInt(shardFailures.size());
+        for (ShardOperationFailedException failure : shardFailures) {
+            failure.writeTo(out);
+        }
+        out.writeVInt(matches.size());
+        for (RegexScanMatch match : matches) {
+            match.writeTo(out);
+        }
+        out.writeVInt(cursor.size());
+        for (Map.Entry<String, String> e : cursor.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeString(e.getValue());
+        }
+    }
+}
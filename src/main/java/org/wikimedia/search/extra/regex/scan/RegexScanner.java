@@ -0,0 +1,436 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.index.fieldvisitor.JustUidFieldsVisitor;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.internal.UidFieldMapper;
+import org.wikimedia.search.extra.regex.SourceRegexFilter;
+import org.wikimedia.search.extra.regex.UnableToAccelerateRegexException;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.util.FieldValues;
+
+/**
+ * Scans pages of a shard for documents matching a regex. Documents are
+ * visited in _uid order so the cursor stays valid across refreshes and merges.
+ * With a prefilter each segment's candidates are sorted by _uid once and
+ * merged so pages only touch candidates. The compiled automata and the sorted
+ * candidates are kept between pages so {@link RegexScanCache} can reuse
+ * scanners across pages.
+ */
+public class RegexScanner {
+    /**
+     * Maximum number of offsets returned for a single document.
+     */
+    private static final int MAX_OFFSETS_PER_DOC = 100;
+
+    private final RegexScanRequest request;
+    private final String index;
+    private final FieldValues.Loader loader;
+    private final XCharacterRunAutomaton charRun;
+    private final XCharacterRunAutomaton anchoredRun;
+    /**
+     * Filter for the ngram prefilter or null if every document is a
+     * candidate.
+     */
+    private final Filter prefilter;
+    /**
+     * Candidates in each segment keyed on the segment's core cache key. The
+     * keys are weak so closed segments drop out. Deletes don't change the
+     * candidates because they are filtered with the live docs while walking.
+     */
+    private final Cache<Object, SegmentCandidates> candidates = CacheBuilder.newBuilder().weakKeys().build();
+
+    public RegexScanner(RegexScanRequest request, String index) {
+        this.request = request;
+        this.index = index;
+        // Scans read every candidate once so they skip the field value cache
+        // rather than flushing it.
+        this.loader = request.loadFromSource() ? FieldValues.loadFromSource() : FieldValues.loadFromStoredField();
+        this.charRun = SourceRegexFilter.runAutomaton(request.regex(), request.caseSensitive(), request.locale(),
+                request.maxDeterminizedStates());
+        if (request.offsets()) {
+            String regex = request.caseSensitive() ? request.regex() : request.regex().toLowerCase(request.locale());
+            anchoredRun = new XCharacterRunAutomaton(new XRegExp(regex, XRegExp.ALL ^ XRegExp.AUTOMATON).toAutomaton(request
+                    .maxDeterminizedStates()));
+        } else {
+            anchoredRun = null;
+        }
+        this.prefilter = prefilter();
+    }
+
+    /**
+     * Scan a page of the shard.
+     *
+     * @param reader top level reader for the shard
+     * @param page the request for this page. Only its size and limits are
+     *            used, everything else is the same as the request the scanner
+     *            was built for.
+     * @param after the _uid to start after or null to start at the beginning
+     */
+    public ShardRegexScanResponse scan(IndexReader reader, RegexScanRequest page, String after) throws IOException {
+        if (prefilter == null) {
+            return scanAllDocs(reader, page, after);
+        }
+        return scanCandidates(reader, page, after);
+    }
+
+    /**
+     * Scan a page by merging the _uid sorted candidates of each segment so
+     * the page only touches documents that passed the prefilter.
+     */
+    private ShardRegexScanResponse scanCandidates(IndexReader reader, RegexScanRequest page, String after) throws IOException {
+        List<RegexScanMatch> matches = new ArrayList<>();
+        List<AtomicReaderContext> leaves = reader.leaves();
+        SegmentCandidates[] segments = new SegmentCandidates[leaves.size()];
+        int[] positions = new int[leaves.size()];
+        BytesRef afterBytes = after == null ? null : new BytesRef(after);
+        for (int i = 0; i < leaves.size(); i++) {
+            segments[i] = candidates(leaves.get(i));
+            positions[i] = afterBytes == null ? 0 : segments[i].firstAfter(afterBytes);
+        }
+        int inspected = 0;
+        int walked = 0;
+        while (true) {
+            BytesRef uid = null;
+            for (int i = 0; i < segments.length; i++) {
+                if (positions[i] < segments[i].size) {
+                    BytesRef candidate = segments[i].uids[positions[i]];
+                    if (uid == null || candidate.compareTo(uid) < 0) {
+                        uid = candidate;
+                    }
+                }
+            }
+            if (uid == null) {
+                return new ShardRegexScanResponse(matches, null);
+            }
+            walked++;
+            // Updated documents leave deleted copies with the same _uid in
+            // older segments so consume every copy before the cursor can
+            // move past the _uid.
+            boolean found = false;
+            for (int i = 0; i < segments.length; i++) {
+                if (positions[i] >= segments[i].size || !segments[i].uids[positions[i]].bytesEquals(uid)) {
+                    continue;
+                }
+                int doc = segments[i].docs[positions[i]++];
+                AtomicReaderContext leaf = leaves.get(i);
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                if (found || (liveDocs != null && !liveDocs.get(doc))) {
+                    continue;
+                }
+                inspected++;
+                RegexScanMatch match = match(leaf, doc, uid);
+                if (match != null) {
+                    matches.add(match);
+                    found = true;
+                }
+            }
+            if (matches.size() >= page.size() || inspected >= page.maxInspect() || walked >= page.maxWalk()) {
+                return new ShardRegexScanResponse(matches, uid.utf8ToString());
+            }
+        }
+    }
+
+    /**
+     * Scan a page by walking the shard's _uids. Every document is a candidate
+     * without a prefilter so this is linear in the size of the shard.
+     */
+    private ShardRegexScanResponse scanAllDocs(IndexReader reader, RegexScanRequest page, String after) throws IOException {
+        List<RegexScanMatch> matches = new ArrayList<>();
+        Terms terms = MultiFields.getTerms(reader, UidFieldMapper.NAME);
+        if (terms == null) {
+            return new ShardRegexScanResponse(matches, null);
+        }
+        List<AtomicReaderContext> leaves = reader.leaves();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum termsEnum = terms.iterator(null);
+        BytesRef term;
+        if (after == null) {
+            term = termsEnum.next();
+        } else {
+            BytesRef afterBytes = new BytesRef(after);
+            TermsEnum.SeekStatus status = termsEnum.seekCeil(afterBytes);
+            switch (status) {
+            case END:
+                term = null;
+                break;
+            case FOUND:
+                term = termsEnum.next();
+                break;
+            default:
+                term = termsEnum.term();
+            }
+        }
+        int inspected = 0;
+        int walked = 0;
+        DocsEnum docsEnum = null;
+        for (; term != null; term = termsEnum.next()) {
+            walked++;
+            docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+            for (int doc = docsEnum.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docsEnum.nextDoc()) {
+                AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                inspected++;
+                RegexScanMatch match = match(leaf, doc - leaf.docBase, term);
+                if (match != null) {
+                    matches.add(match);
+                    break;
+                }
+            }
+            if (matches.size() >= page.size() || inspected >= page.maxInspect() || walked >= page.maxWalk()) {
+                return new ShardRegexScanResponse(matches, term.utf8ToString());
+            }
+        }
+        return new ShardRegexScanResponse(matches, null);
+    }
+
+    /**
+     * Run the regex against a document.
+     *
+     * @param doc the document's id in the segment
+     * @return the match or null if the document doesn't match
+     */
+    private RegexScanMatch match(AtomicReaderContext leaf, int doc, BytesRef uid) throws IOException {
+        List<String> values = loader.load(request.field(), leaf.reader(), doc);
+        int[] offsets = null;
+        boolean matched = false;
+        for (int v = 0; v < values.size(); v++) {
+            String value = values.get(v);
+            String lowered = request.caseSensitive() ? value : value.toLowerCase(request.locale());
+            if (!charRun.run(lowered)) {
+                continue;
+            }
+            matched = true;
+            if (anchoredRun == null) {
+                break;
+            }
+            offsets = findOffsets(value, lowered, v, offsets);
+        }
+        if (!matched) {
+            return null;
+        }
+        Uid parsed = Uid.createUid(uid.utf8ToString());
+        return new RegexScanMatch(index, parsed.type(), parsed.id(), offsets);
+    }
+
+    /**
+     * Build the filter for the ngram prefilter.
+     *
+     * @return the filter or null if every document is a candidate
+     */
+    private Filter prefilter() {
+        if (request.ngramField() == null) {
+            return null;
+        }
+        Expression<String> expression = SourceRegexFilter.ngramExpression(request.regex(), request.locale(), request.gramSize(),
+                request.maxExpand(), request.maxStatesTraced(), request.maxDeterminizedStates(), request.maxNgramsExtracted());
+        if (expression.alwaysTrue()) {
+            if (request.rejectUnaccelerated()) {
+                throw new UnableToAccelerateRegexException(request.regex(), request.gramSize(), request.ngramField());
+            }
+            return null;
+        }
+        return SourceRegexFilter.expressionToFilter(expression, request.ngramField());
+    }
+
+    /**
+     * The documents in a segment that pass the ngram prefilter, including
+     * deleted documents, sorted by _uid. Only call this if there is a
+     * prefilter.
+     */
+    private SegmentCandidates candidates(AtomicReaderContext leaf) throws IOException {
+        AtomicReader reader = leaf.reader();
+        SegmentCandidates segmentCandidates = candidates.getIfPresent(reader.getCoreCacheKey());
+        if (segmentCandidates != null) {
+            return segmentCandidates;
+        }
+        segmentCandidates = new SegmentCandidates();
+        if (prefilter != Queries.MATCH_NO_FILTER) {
+            DocIdSet set = prefilter.getDocIdSet(leaf, null);
+            DocIdSetIterator iterator = set == null ? null : set.iterator();
+            if (iterator != null) {
+                JustUidFieldsVisitor visitor = new JustUidFieldsVisitor();
+                for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+                    visitor.reset();
+                    reader.document(doc, visitor);
+                    segmentCandidates.add(doc, new BytesRef(visitor.uid().toString()));
+                }
+                segmentCandidates.sort();
+            }
+        }
+        // Two threads might build the same candidates at the same time but
+        // that is better than making one wait on the other.
+        candidates.put(reader.getCoreCacheKey(), segmentCandidates);
+        return segmentCandidates;
+    }
+
+    /**
+     * Find the leftmost longest non-overlapping matches in value and append
+     * them to offsets. The matches are found in lowered and are mapped back
+     * to value if lowering changed its length.
+     */
+    private int[] findOffsets(String value, String lowered, int valueIndex, int[] offsets) {
+        int[] starts = null;
+        int[] ends = null;
+        if (lowered.length() != value.length()) {
+            // Lowercasing expanded some characters so lower each code point
+            // on its own to find out which character each lowered one came
+            // from.
+            StringBuilder builder = new StringBuilder(lowered.length());
+            starts = new int[lowered.length()];
+            ends = new int[lowered.length()];
+            int i = 0;
+            while (i < value.length()) {
+                int next = i + Character.charCount(value.codePointAt(i));
+                String lower = value.substring(i, next).toLowerCase(request.locale());
+                for (int c = 0; c < lower.length(); c++) {
+                    // Lowering one code point at a time can differ from
+                    // lowering the whole string so we might need more room.
+                    starts = ArrayUtil.grow(starts, builder.length() + c + 1);
+                    ends = ArrayUtil.grow(ends, builder.length() + c + 1);
+                    starts[builder.length() + c] = i;
+                    ends[builder.length() + c] = next;
+                }
+                builder.append(lower);
+                i = next;
+            }
+            lowered = builder.toString();
+        }
+        int found = offsets == null ? 0 : offsets.length / 3;
+        List<Integer> added = new ArrayList<>();
+        int start = 0;
+        while (start <= lowered.length() && found < MAX_OFFSETS_PER_DOC) {
+            int end = longestMatch(lowered, start);
+            if (end < 0) {
+                if (start == lowered.length()) {
+                    break;
+                }
+                start += Character.charCount(lowered.codePointAt(start));
+                continue;
+            }
+            added.add(valueIndex);
+            if (starts == null) {
+                added.add(start);
+                added.add(end);
+            } else {
+                int originalStart = start == lowered.length() ? value.length() : starts[start];
+                added.add(originalStart);
+                added.add(end == start ? originalStart : ends[end - 1]);
+            }
+            found++;
+            if (end == start) {
+                if (start == lowered.length()) {
+                    break;
+                }
+                start += Character.charCount(lowered.codePointAt(start));
+            } else {
+                start = end;
+            }
+        }
+        int oldLength = offsets == null ? 0 : offsets.length;
+        int[] result = new int[oldLength + added.size()];
+        if (offsets != null) {
+            System.arraycopy(offsets, 0, result, 0, oldLength);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            result[oldLength + i] = added.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * End of the longest match starting at start or -1 if there isn't one.
+     */
+    private int longestMatch(String value, int start) {
+        int state = anchoredRun.getInitialState();
+        int end = anchoredRun.isAccept(state) ? start : -1;
+        int i = start;
+        while (i < value.length()) {
+            int cp = value.codePointAt(i);
+            state = anchoredRun.step(state, cp);
+            if (state == -1) {
+                break;
+            }
+            i += Character.charCount(cp);
+            if (anchoredRun.isAccept(state)) {
+                end = i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The candidates in a segment and their _uids, sorted by _uid.
+     */
+    private static final class SegmentCandidates {
+        private int[] docs = new int[0];
+        private BytesRef[] uids = new BytesRef[0];
+        private int size;
+
+        private void add(int doc, BytesRef uid) {
+            docs = ArrayUtil.grow(docs, size + 1);
+            uids = ArrayUtil.grow(uids, size + 1);
+            docs[size] = doc;
+            uids[size] = uid;
+            size++;
+        }
+
+        private void sort() {
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return uids[i].compareTo(uids[j]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    int doc = docs[i];
+                    docs[i] = docs[j];
+                    docs[j] = doc;
+                    BytesRef uid = uids[i];
+                    uids[i] = uids[j];
+                    uids[j] = uid;
+                }
+            }.sort(0, size);
+        }
+
+        /**
+         * Index of the first candidate whose _uid sorts after uid.
+         */
+        private int firstAfter(BytesRef uid) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (uids[mid].compareTo(uid) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.LocaleUtils;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * Exposes the regex scan over http as {index}/_regex_scan.
+ */
+public class RestRegexScanAction extends BaseRestHandler {
+    @Inject
+    public RestRegexScanAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_regex_scan", this);
+        controller.registerHandler(POST, "/_regex_scan", this);
+        controller.registerHandler(GET, "/{index}/_regex_scan", this);
+        controller.registerHandler(POST, "/{index}/_regex_scan", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        RegexScanRequest scanRequest = new RegexScanRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        scanRequest.indicesOptions(IndicesOptions.fromRequest(request, scanRequest.indicesOptions()));
+        scanRequest.listenerThreaded(false);
+        BytesReference content = RestActions.getRestContent(request);
+        if (content != null && content.length() > 0) {
+            parse(scanRequest, content);
+        }
+        client.execute(RegexScanAction.INSTANCE, scanRequest, new RestToXContentListener<RegexScanResponse>(channel));
+    }
+
+    private void parse(RegexScanRequest request, BytesReference content) throws IOException {
+        try (XContentParser parser = XContentFactory.xContent(content).createParser(content)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchIllegalArgumentException("[regex_scan] body must be an object");
+            }
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.START_OBJECT && "after".equals(currentFieldName)) {
+                    Map<String, String> after = new HashMap<>();
+                    for (Map.Entry<String, Object> e : parser.map().entrySet()) {
+                        after.put(e.getKey(), e.getValue().toString());
+                    }
+                    request.after(after);
+                } else if (token.isValue()) {
+                    parseValue(request, currentFieldName, parser);
+                } else {
+                    throw new ElasticsearchIllegalArgumentException("[regex_scan] does not support [" + currentFieldName + "]");
+                }
+            }
+        }
+    }
+
+    private void parseValue(RegexScanRequest request, String currentFieldName, XContentParser parser) throws IOException {
+        switch (currentFieldName) {
+        case "regex":
+            request.regex(parser.text());
+            break;
+        case "field":
+            request.field(parser.text());
+            break;
+        case "load_from_source":
+        case "loadFromSource":
+            request.loadFromSource(parser.booleanValue());
+            break;
+        case "ngram_field":
+        case "ngramField":
+            request.ngramField(parser.text());
+            break;
+        case "gram_size":
+        case "gramSize":
+            request.gramSize(parser.intValue());
+            break;
+        case "max_expand":
+        case "maxExpand":
+            request.maxExpand(parser.intValue());
+            break;
+        case "max_states_traced":
+        case "maxStatesTraced":
+            request.maxStatesTraced(parser.intValue());
+            break;
+        case "max_determinized_states":
+        case "maxDeterminizedStates":
+            request.maxDeterminizedStates(parser.intValue());
+            break;
+        case "max_ngrams_extracted":
+        case "maxNgramsExtracted":
+        case "maxNGramsExtracted":
+            request.maxNgramsExtracted(parser.intValue());
+            break;
+        case "case_sensitive":
+        case "caseSensitive":
+            request.caseSensitive(parser.booleanValue());
+            break;
+        case "locale":
+            request.locale(LocaleUtils.parse(parser.text()));
+            break;
+        case "reject_unaccelerated":
+        case "rejectUnaccelerated":
+            request.rejectUnaccelerated(parser.booleanValue());
+            break;
+        case "size":
+            request.size(parser.intValue());
+            break;
+        case "max_inspect":
+        case "maxInspect":
+            request.maxInspect(parser.intValue());
+            break;
+        case "max_walk":
+        case "maxWalk":
+            request.maxWalk(parser.intValue());
+            break;
+        case "offsets":
+            request.offsets(parser.booleanValue());
+            break;
+        case "concurrency":
+            request.concurrency(parser.intValue());
+            break;
+        default:
+            throw new ElasticsearchIllegalArgumentException("[regex_scan] does not support [" + currentFieldName + "]");
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * Request to scan a single shard.
+ */
+public class ShardRegexScanRequest extends TransportRequest {
+    private ShardId shardId;
+    private RegexScanRequest request;
+    private String after;
+
+    ShardRegexScanRequest() {
+    }
+
+    ShardRegexScanRequest(ShardId shardId, RegexScanRequest request, String after) {
+        super(request);
+        this.shardId = shardId;
+        this.request = request;
+        this.after = after;
+    }
+
+    public ShardId shardId() {
+        return shardId;
+    }
+
+    public RegexScanRequest request() {
+        return request;
+    }
+
+    /**
+     * The _uid to start after or null to start at the beginning of the shard.
+     */
+    public String after() {
+        return after;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        shardId = ShardId.readShardId(in);
+        request = new RegexScanRequest();
+        request.readFrom(in);
+        after = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        shardId.writeTo(out);
+        request.writeTo(out);
+        out.writeOptionalString(after);
+    }
+}
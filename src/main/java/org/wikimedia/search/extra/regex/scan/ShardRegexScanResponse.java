@@ -0,0 +1,58 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/**
+ * Result of scanning a single shard.
+ */
+public class ShardRegexScanResponse extends TransportResponse {
+    private List<RegexScanMatch> matches;
+    private String next;
+
+    ShardRegexScanResponse() {
+    }
+
+    ShardRegexScanResponse(List<RegexScanMatch> matches, String next) {
+        this.matches = matches;
+        this.next = next;
+    }
+
+    public List<RegexScanMatch> matches() {
+        return matches;
+    }
+
+    /**
+     * The _uid to continue after or null if the shard has been completely
+     * scanned.
+     */
+    public String next() {
+        return next;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        matches = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            matches.add(RegexScanMatch.readMatch(in));
+        }
+        next = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(matches.size());
+        for (RegexScanMatch match : matches) {
+            match.writeTo(out);
+        }
+        out.writeOptionalString(next);
+    }
+}
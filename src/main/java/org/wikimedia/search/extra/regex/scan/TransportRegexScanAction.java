@@ -0,0 +1,266 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.NoShardAvailableActionException;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Coordinates a page of a regex scan. Sends a request to at most
+ * concurrency shards at a time and collects the matches and next cursor
+ * from each one.
+ */
+public class TransportRegexScanAction extends HandledTransportAction<RegexScanRequest, RegexScanResponse> {
+    private static final String SHARD_ACTION_NAME = RegexScanAction.NAME + "[s]";
+    /**
+     * Cursor value for shards that have yet to return a page. Kept in the
+     * cursor when a shard fails on the first page so the next page retries
+     * it.
+     */
+    private static final String START = "";
+
+    private final ClusterService clusterService;
+    private final TransportService transportService;
+    private final IndicesService indicesService;
+    private final RegexScanCache scanCache;
+
+    @Inject
+    public TransportRegexScanAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, IndicesService indicesService, ActionFilters actionFilters, RegexScanCache scanCache) {
+        super(settings, RegexScanAction.NAME, threadPool, transportService, actionFilters);
+        this.clusterService = clusterService;
+        this.transportService = transportService;
+        this.indicesService = indicesService;
+        this.scanCache = scanCache;
+        transportService.registerHandler(SHARD_ACTION_NAME, new ShardTransportHandler());
+    }
+
+    @Override
+    public RegexScanRequest newRequestInstance() {
+        return new RegexScanRequest();
+    }
+
+    @Override
+    protected void doExecute(RegexScanRequest request, ActionListener<RegexScanResponse> listener) {
+        AsyncAction action;
+        try {
+            action = new AsyncAction(request, listener);
+        } catch (Throwable t) {
+            listener.onFailure(t);
+            return;
+        }
+        action.start();
+    }
+
+    /**
+     * Key for a shard in the cursor.
+     */
+    static String cursorKey(ShardId shardId) {
+        return shardId.getIndex() + "/" + shardId.getId();
+    }
+
+    private ShardRegexScanResponse scanShard(ShardRegexScanRequest request) throws IOException {
+        ShardId shardId = request.shardId();
+        RegexScanner scanner = scanCache.scanner(request.request(), shardId.getIndex());
+        Engine.Searcher searcher = indicesService.indexServiceSafe(shardId.getIndex()).shardSafe(shardId.getId())
+                .acquireSearcher("regex_scan");
+        try {
+            return scanner.scan(searcher.reader(), request.request(), request.after());
+        } finally {
+            searcher.close();
+        }
+    }
+
+    private class AsyncAction {
+        private final RegexScanRequest request;
+        private final ActionListener<RegexScanResponse> listener;
+        private final ClusterState state;
+        private final List<ShardIterator> shards = new ArrayList<>();
+        private final AtomicInteger nextShard = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final ShardRegexScanResponse[] responses;
+        private final ShardOperationFailedException[] failures;
+
+        public AsyncAction(RegexScanRequest request, ActionListener<RegexScanResponse> listener) {
+            this.request = request;
+            this.listener = listener;
+            state = clusterService.state();
+            state.blocks().globalBlockedRaiseException(ClusterBlockLevel.READ);
+            String[] concreteIndices = state.metaData().concreteIndices(request.indicesOptions(), request.indices());
+            GroupShardsIterator groups = clusterService.operationRouting().searchShards(state, request.indices(), concreteIndices, null,
+                    null);
+            for (ShardIterator shard : groups) {
+                if (request.after() == null || request.after().containsKey(cursorKey(shard.shardId()))) {
+                    shards.add(shard);
+                }
+            }
+            responses = new ShardRegexScanResponse[shards.size()];
+            failures = new ShardOperationFailedException[shards.size()];
+        }
+
+        public void start() {
+            if (shards.isEmpty()) {
+                finish();
+                return;
+            }
+            int initial = Math.min(request.concurrency(), shards.size());
+            for (int i = 0; i < initial; i++) {
+                startNextShard();
+            }
+        }
+
+        private void startNextShard() {
+            int index = nextShard.getAndIncrement();
+            if (index >= shards.size()) {
+                return;
+            }
+            ShardIterator shard = shards.get(index);
+            String after = request.after() == null ? null : request.after().get(cursorKey(shard.shardId()));
+            if (START.equals(after)) {
+                after = null;
+            }
+            performOnShard(index, shard, new ShardRegexScanRequest(shard.shardId(), request, after), null);
+        }
+
+        private void performOnShard(final int index, final ShardIterator shard, final ShardRegexScanRequest shardRequest,
+                Throwable lastFailure) {
+            ShardRouting routing = shard.nextOrNull();
+            if (routing == null) {
+                if (lastFailure == null) {
+                    lastFailure = new NoShardAvailableActionException(shard.shardId());
+                }
+                failures[index] = new DefaultShardOperationFailedException(shard.shardId().getIndex(), shard.shardId().getId(),
+                        lastFailure);
+                onShardDone();
+                return;
+            }
+            DiscoveryNode node = state.nodes().get(routing.currentNodeId());
+            if (node == null) {
+                performOnShard(index, shard, shardRequest, new NoShardAvailableActionException(shard.shardId()));
+                return;
+            }
+            if (node.id().equals(state.nodes().localNodeId())) {
+                // Run local shards directly on the search thread pool rather
+                // than serializing the request through the transport service.
+                threadPool.executor(ThreadPool.Names.SEARCH).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            responses[index] = scanShard(shardRequest);
+                        } catch (Throwable t) {
+                            logger.debug("Failed to scan {}", t, shard.shardId());
+                            performOnShard(index, shard, shardRequest, t);
+                            return;
+                        }
+                        onShardDone();
+                    }
+                });
+                return;
+            }
+            transportService.sendRequest(node, SHARD_ACTION_NAME, shardRequest,
+                    new BaseTransportResponseHandler<ShardRegexScanResponse>() {
+                        @Override
+                        public ShardRegexScanResponse newInstance() {
+                            return new ShardRegexScanResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(ShardRegexScanResponse response) {
+                            responses[index] = response;
+                            onShardDone();
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            logger.debug("Failed to scan {}", exp, shard.shardId());
+                            performOnShard(index, shard, shardRequest, exp);
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+
+        private void onShardDone() {
+            if (completed.incrementAndGet() == shards.size()) {
+                finish();
+            } else {
+                startNextShard();
+            }
+        }
+
+        private void finish() {
+            try {
+                List<RegexScanMatch> matches = new ArrayList<>();
+                List<ShardOperationFailedException> shardFailures = new ArrayList<>();
+                Map<String, String> cursor = new HashMap<>();
+                int successful = 0;
+                for (int i = 0; i < shards.size(); i++) {
+                    String key = cursorKey(shards.get(i).shardId());
+                    if (responses[i] == null) {
+                        // Failed shards stay in the cursor so they are retried
+                        // from the same spot on the next page.
+                        shardFailures.add(failures[i]);
+                        String after = request.after() == null ? START : request.after().get(key);
+                        cursor.put(key, after);
+                        continue;
+                    }
+                    successful++;
+                    matches.addAll(responses[i].matches());
+                    if (responses[i].next() != null) {
+                        cursor.put(key, responses[i].next());
+                    }
+                }
+                listener.onResponse(new RegexScanResponse(shards.size(), successful, shardFailures, matches, cursor));
+            } catch (Throwable t) {
+                listener.onFailure(t);
+            }
+        }
+    }
+
+    private class ShardTransportHandler extends BaseTransportRequestHandler<ShardRegexScanRequest> {
+        @Override
+        public ShardRegexScanRequest newInstance() {
+            return new ShardRegexScanRequest();
+        }
+
+        @Override
+        public void messageReceived(ShardRegexScanRequest request, TransportChannel channel) throws Exception {
+            channel.sendResponse(scanShard(request));
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SEARCH;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Paged regex scan over every document in some indices.
+ */
+package org.wikimedia.search.extra.regex.scan;
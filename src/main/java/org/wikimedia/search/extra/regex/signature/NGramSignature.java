@@ -0,0 +1,213 @@
+package org.wikimedia.search.extra.regex.signature;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.wikimedia.search.extra.regex.expression.Expression;
+
+/**
+ * Bloom filter of the ngrams in a document. The first byte holds the number
+ * of hashes per ngram and the rest are the bits so signatures can be checked
+ * without knowing how the field was configured.
+ */
+public final class NGramSignature {
+    /**
+     * Seed for the second hash. Any odd constant will do.
+     */
+    private static final int SECOND_SEED = 0x9E3779B9;
+
+    private NGramSignature() {
+        // Util class
+    }
+
+    /**
+     * Build an empty signature.
+     *
+     * @param bits number of bits in the signature. Must be a positive multiple
+     *            of 8.
+     * @param hashes number of bits set for each ngram. Must be between 1 and
+     *            255.
+     */
+    public static byte[] empty(int bits, int hashes) {
+        if (bits <= 0 || bits % Byte.SIZE != 0) {
+            throw new IllegalArgumentException("bits must be a positive multiple of 8 but was " + bits);
+        }
+        if (hashes < 1 || hashes > 255) {
+            throw new IllegalArgumentException("hashes must be between 1 and 255 but was " + hashes);
+        }
+        byte[] signature = new byte[1 + bits / Byte.SIZE];
+        signature[0] = (byte) hashes;
+        return signature;
+    }
+
+    /**
+     * Hash an ngram for {@link #add(byte[], long)} and
+     * {@link #mightContain(BytesRef, long)}.
+     */
+    public static long hash(BytesRef ngram) {
+        int first = StringHelper.murmurhash3_x86_32(ngram, 0);
+        int second = StringHelper.murmurhash3_x86_32(ngram, SECOND_SEED);
+        return ((long) first << Integer.SIZE) | (second & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add an ngram to a signature.
+     */
+    public static void add(byte[] signature, long hash) {
+        int hashes = signature[0] & 0xFF;
+        int bits = (signature.length - 1) * Byte.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(hash, i, bits);
+            signature[1 + (bit >>> 3)] |= 1 << (bit & 7);
+        }
+    }
+
+    /**
+     * Add all the ngrams in another signature with the same configuration to
+     * this one.
+     */
+    public static void or(byte[] signature, BytesRef other) {
+        if (signature.length != other.length || signature[0] != other.bytes[other.offset]) {
+            throw new IllegalArgumentException("Can't combine signatures with different configurations");
+        }
+        for (int i = 1; i < signature.length; i++) {
+            signature[i] |= other.bytes[other.offset + i];
+        }
+    }
+
+    /**
+     * Might the signature contain the ngram? Empty signatures, like the ones
+     * returned for documents without a signature, might contain anything.
+     */
+    public static boolean mightContain(BytesRef signature, long hash) {
+        if (signature.length < 2) {
+            return true;
+        }
+        int hashes = signature.bytes[signature.offset] & 0xFF;
+        int bits = (signature.length - 1) * Byte.SIZE;
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(hash, i, bits);
+            if ((signature.bytes[signature.offset + 1 + (bit >>> 3)] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a matcher that checks signatures against an ngram expression.
+     */
+    public static Matcher matcher(Expression<String> expression) {
+        return expression.transform(MatcherBuilder.INSTANCE);
+    }
+
+    /**
+     * The ith bit for a hash. Uses the two halves of the hash to simulate
+     * as many hash functions as we need.
+     */
+    private static int bit(long hash, int i, int bits) {
+        int first = (int) (hash >>> Integer.SIZE);
+        int second = (int) hash;
+        return ((first + i * second) & Integer.MAX_VALUE) % bits;
+    }
+
+    /**
+     * Checks signatures against an expression. False means the document
+     * can't match the expression. True means it might.
+     */
+    public abstract static class Matcher {
+        public abstract boolean matches(BytesRef signature);
+    }
+
+    private static final Matcher ALWAYS = new Matcher() {
+        @Override
+        public boolean matches(BytesRef signature) {
+            return true;
+        }
+    };
+
+    private static final Matcher NEVER = new Matcher() {
+        @Override
+        public boolean matches(BytesRef signature) {
+            return false;
+        }
+    };
+
+    private static class LeafMatcher extends Matcher {
+        private final long hash;
+
+        LeafMatcher(long hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean matches(BytesRef signature) {
+            return mightContain(signature, hash);
+        }
+    }
+
+    private static class AndMatcher extends Matcher {
+        private final Matcher[] components;
+
+        AndMatcher(Matcher[] components) {
+            this.components = components;
+        }
+
+        @Override
+        public boolean matches(BytesRef signature) {
+            for (Matcher component : components) {
+                if (!component.matches(signature)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class OrMatcher extends Matcher {
+        private final Matcher[] components;
+
+        OrMatcher(Matcher[] components) {
+            this.components = components;
+        }
+
+        @Override
+        public boolean matches(BytesRef signature) {
+            for (Matcher component : components) {
+                if (component.matches(signature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class MatcherBuilder implements Expression.Transformer<String, Matcher> {
+        private static final MatcherBuilder INSTANCE = new MatcherBuilder();
+
+        @Override
+        public Matcher alwaysTrue() {
+            return ALWAYS;
+        }
+
+        @Override
+        public Matcher alwaysFalse() {
+            return NEVER;
+        }
+
+        @Override
+        public Matcher leaf(String t) {
+            return new LeafMatcher(hash(new BytesRef(t)));
+        }
+
+        @Override
+        public Matcher and(ImmutableSet<Matcher> js) {
+            return new AndMatcher(js.toArray(new Matcher[js.size()]));
+        }
+
+        @Override
+        public Matcher or(ImmutableSet<Matcher> js) {
+            return new OrMatcher(js.toArray(new Matcher[js.size()]));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.wikimedia.search.extra.regex.signature;
+
+import static org.elasticsearch.index.mapper.core.TypeParsers.parseField;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.codec.docvaluesformat.DocValuesFormatProvider;
+import org.elasticsearch.index.codec.postingsformat.PostingsFormatProvider;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.MergeContext;
+import org.elasticsearch.index.mapper.MergeMappingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.core.AbstractFieldMapper;
+import org.elasticsearch.index.mapper.core.BinaryFieldMapper;
+import org.elasticsearch.index.mapper.core.StringFieldMapper;
+
+/**
+ * Field mapper that runs the field's value through an analyzer and stores a
+ * {@link NGramSignature} of the tokens in binary doc values. Use the same
+ * analyzer as the ngram field so the signature contains the same ngrams.
+ * Multivalued fields get a single signature containing the ngrams of all the
+ * values.
+ */
+public class NGramSignatureFieldMapper extends BinaryFieldMapper {
+    public static final String CONTENT_TYPE = "ngram_signature";
+
+    public static class Defaults extends BinaryFieldMapper.Defaults {
+        public static final int BITS = 512;
+        public static final int HASHES = 3;
+    }
+
+    public static class Builder extends AbstractFieldMapper.Builder<Builder, NGramSignatureFieldMapper> {
+        private NamedAnalyzer analyzer;
+        private int bits = Defaults.BITS;
+        private int hashes = Defaults.HASHES;
+
+        public Builder(String name) {
+            super(name, new FieldType(Defaults.FIELD_TYPE));
+            builder = this;
+        }
+
+        public Builder analyzer(NamedAnalyzer analyzer) {
+            this.analyzer = analyzer;
+            return this;
+        }
+
+        public Builder bits(int bits) {
+            this.bits = bits;
+            return this;
+        }
+
+        public Builder hashes(int hashes) {
+            this.hashes = hashes;
+            return this;
+        }
+
+        @Override
+        public NGramSignatureFieldMapper build(BuilderContext context) {
+            // Fail early on bad configuration
+            NGramSignature.empty(bits, hashes);
+            return new NGramSignatureFieldMapper(buildNames(context), fieldType, docValues, analyzer, bits, hashes, postingsProvider,
+                    docValuesProvider, fieldDataSettings, multiFieldsBuilder.build(this, context), copyTo);
+        }
+    }
+
+    public static class TypeParser implements Mapper.TypeParser {
+        @Override
+        public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext)
+                throws MapperParsingException {
+            Builder builder = new Builder(name);
+            parseField(builder, name, node, parserContext);
+            for (Map.Entry<String, Object> entry : node.entrySet()) {
+                String propName = Strings.toUnderscoreCase(entry.getKey());
+                Object propNode = entry.getValue();
+                switch (propName) {
+                case "analyzer":
+                    NamedAnalyzer analyzer = parserContext.analysisService().analyzer(propNode.toString());
+                    if (analyzer == null) {
+                        throw new MapperParsingException("Analyzer [" + propNode.toString() + "] not found for field [" + name + "]");
+                    }
+                    builder.analyzer(analyzer);
+                    break;
+                case "bits":
+                    builder.bits(XContentMapValues.nodeIntegerValue(propNode));
+                    break;
+                case "hashes":
+                    builder.hashes(XContentMapValues.nodeIntegerValue(propNode));
+                    break;
+                default:
+                }
+            }
+            if (builder.analyzer == null) {
+                throw new MapperParsingException("Analyzer must be set for field [" + name + "] but wasn't.");
+            }
+            return builder;
+        }
+    }
+
+    private final NamedAnalyzer analyzer;
+    private final int bits;
+    private final int hashes;
+
+    protected NGramSignatureFieldMapper(Names names, FieldType fieldType, Boolean docValues, NamedAnalyzer analyzer, int bits,
+            int hashes, PostingsFormatProvider postingsProvider, DocValuesFormatProvider docValuesProvider, Settings fieldDataSettings,
+            MultiFields multiFields, CopyTo copyTo) {
+        super(names, fieldType, docValues, null, -1, postingsProvider, docValuesProvider, fieldDataSettings, multiFields, copyTo);
+        this.analyzer = analyzer;
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<Field> fields) throws IOException {
+        String value = StringFieldMapper.parseCreateFieldForString(context, null, boost).value();
+        if (value == null) {
+            return;
+        }
+        byte[] signature = NGramSignature.empty(bits, hashes);
+        try (TokenStream ts = analyzer.analyzer().tokenStream(names.indexName(), value)) {
+            TermToBytesRefAttribute term = ts.addAttribute(TermToBytesRefAttribute.class);
+            BytesRef bytes = term.getBytesRef();
+            ts.reset();
+            while (ts.incrementToken()) {
+                term.fillBytesRef();
+                NGramSignature.add(signature, NGramSignature.hash(bytes));
+            }
+            ts.end();
+        }
+        // Doc values only allow one value per document so merge with the
+        // signature of any earlier values
+        IndexableField existing = context.doc().getField(names.indexName());
+        if (existing != null) {
+            NGramSignature.or(signature, existing.binaryValue());
+            ((Field) existing).setBytesValue(new BytesRef(signature));
+            return;
+        }
+        fields.add(new BinaryDocValuesField(names.indexName(), new BytesRef(signature)));
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void merge(Mapper mergeWith, MergeContext mergeContext) throws MergeMappingException {
+        super.merge(mergeWith, mergeContext);
+        if (!getClass().equals(mergeWith.getClass())) {
+            return;
+        }
+        NGramSignatureFieldMapper other = (NGramSignatureFieldMapper) mergeWith;
+        if (!analyzer.name().equals(other.analyzer.name())) {
+            mergeContext.addConflict("mapper [" + names.fullName() + "] has a different analyzer");
+        }
+        if (bits != other.bits) {
+            mergeContext.addConflict("mapper [" + names.fullName() + "] has a different number of bits");
+        }
+        if (hashes != other.hashes) {
+            mergeContext.addConflict("mapper [" + names.fullName() + "] has a different number of hashes");
+        }
+    }
+
+    @Override
+    protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, Params params) throws IOException {
+        super.doXContentBody(builder, includeDefaults, params);
+        builder.field("analyzer", analyzer.name());
+        if (includeDefaults || bits != Defaults.BITS) {
+            builder.field("bits", bits);
+        }
+        if (includeDefaults || hashes != Defaults.HASHES) {
+            builder.field("hashes", hashes);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.wikimedia.search.extra.regex.signature;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.AbstractIndexComponent;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.settings.IndexSettings;
+
+/**
+ * Registers the ngram_signature field type with each index's mapper service.
+ */
+public class RegisterNGramSignatureType extends AbstractIndexComponent {
+    @Inject
+    public RegisterNGramSignatureType(Index index, @IndexSettings Settings indexSettings, MapperService mapperService) {
+        super(index, indexSettings);
+        mapperService.documentMapperParser().putTypeParser(NGramSignatureFieldMapper.CONTENT_TYPE,
+                new NGramSignatureFieldMapper.TypeParser());
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Per document Bloom signatures of ngrams that let regex filters reject
+ * candidates without loading them. See docs/source_regex.md for how to use it.
+ */
+package org.wikimedia.search.extra.regex.signature;
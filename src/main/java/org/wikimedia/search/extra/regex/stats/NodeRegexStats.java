@@ -0,0 +1,137 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.search.extra.util.FieldValueCache;
+import org.wikimedia.search.extra.util.Log2Histogram;
+
+/**
+ * Regex stats from a single node.
+ */
+public class NodeRegexStats extends NodeOperationResponse implements ToXContent {
+    private Log2Histogram.Snapshot[] histograms;
+    private List<RegexProfile> recentProfiles;
+    private boolean fieldValueCacheEnabled;
+    private long fieldValueCacheEntries;
+    private long fieldValueCacheHits;
+    private long fieldValueCacheMisses;
+    private long fieldValueCacheEvictions;
+
+    NodeRegexStats() {
+    }
+
+    NodeRegexStats(DiscoveryNode node, RegexStats stats, FieldValueCache fieldValueCache) {
+        super(node);
+        histograms = stats.histograms();
+        recentProfiles = stats.recentProfiles();
+        fieldValueCacheEnabled = fieldValueCache.enabled();
+        fieldValueCacheEntries = fieldValueCache.size();
+        CacheStats cacheStats = fieldValueCache.stats();
+        fieldValueCacheHits = cacheStats.hitCount();
+        fieldValueCacheMisses = cacheStats.missCount();
+        fieldValueCacheEvictions = cacheStats.evictionCount();
+    }
+
+    static NodeRegexStats readNodeStats(StreamInput in) throws IOException {
+        NodeRegexStats stats = new NodeRegexStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    /**
+     * Histogram by name. See {@link RegexStats#HISTOGRAMS} for the names.
+     */
+    public Log2Histogram.Snapshot histogram(String name) {
+        for (int i = 0; i < RegexStats.HISTOGRAMS.length; i++) {
+            if (RegexStats.HISTOGRAMS[i].equals(name)) {
+                return histograms[i];
+            }
+        }
+        throw new IllegalArgumentException("No such histogram:  " + name);
+    }
+
+    public List<RegexProfile> recentProfiles() {
+        return recentProfiles;
+    }
+
+    public long fieldValueCacheHits() {
+        return fieldValueCacheHits;
+    }
+
+    public long fieldValueCacheMisses() {
+        return fieldValueCacheMisses;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(getNode().id());
+        builder.field("name", getNode().name());
+        builder.startObject("histograms");
+        for (int i = 0; i < histograms.length; i++) {
+            builder.field(RegexStats.HISTOGRAMS[i]);
+            histograms[i].toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.startObject("field_value_cache");
+        builder.field("enabled", fieldValueCacheEnabled);
+        builder.field("entries", fieldValueCacheEntries);
+        builder.field("hits", fieldValueCacheHits);
+        builder.field("misses", fieldValueCacheMisses);
+        builder.field("evictions", fieldValueCacheEvictions);
+        builder.endObject();
+        builder.startArray("recent_profiles");
+        for (RegexProfile profile : recentProfiles) {
+            profile.toXContent(builder, params);
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        histograms = new Log2Histogram.Snapshot[in.readVInt()];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Log2Histogram.Snapshot();
+            histograms[i].readFrom(in);
+        }
+        int size = in.readVInt();
+        recentProfiles = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            recentProfiles.add(RegexProfile.readProfile(in));
+        }
+        fieldValueCacheEnabled = in.readBoolean();
+        fieldValueCacheEntries = in.readVLong();
+        fieldValueCacheHits = in.readVLong();
+        fieldValueCacheMisses = in.readVLong();
+        fieldValueCacheEvictions = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(histograms.length);
+        for (Log2Histogram.Snapshot histogram : histograms) {
+            histogram.writeTo(out);
+        }
+        out.writeVInt(recentProfiles.size());
+        for (RegexProfile profile : recentProfiles) {
+            profile.writeTo(out);
+        }
+        out.writeBoolean(fieldValueCacheEnabled);
+        out.writeVLong(fieldValueCacheEntries);
+        out.writeVLong(fieldValueCacheHits);
+        out.writeVLong(fieldValueCacheMisses);
+        out.writeVLong(fieldValueCacheEvictions);
+    }
+}
@@ -0,0 +1,226 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * Where the time went while running a regex filter on one shard. Not thread
+ * safe - just like the filter it profiles.
+ */
+public class RegexProfile implements Streamable, ToXContent {
+    private String regex;
+    private String shard;
+    private boolean timed;
+    private long compileNanos;
+    private int expressionSize;
+    private long candidates;
+    private long inspected;
+    private long matched;
+    private long charsScanned;
+    private long loadNanos;
+    private long matchNanos;
+
+    RegexProfile() {
+    }
+
+    /**
+     * @param timed should each document's load and match be timed? If not
+     *            only the counts are kept.
+     */
+    public RegexProfile(String regex, boolean timed) {
+        this.regex = regex;
+        this.timed = timed;
+    }
+
+    static RegexProfile readProfile(StreamInput in) throws IOException {
+        RegexProfile profile = new RegexProfile();
+        profile.readFrom(in);
+        return profile;
+    }
+
+    public String regex() {
+        return regex;
+    }
+
+    /**
+     * The shard that was profiled as index/shard or null if unknown.
+     */
+    public String shard() {
+        return shard;
+    }
+
+    public void shard(String shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Were documents timed? If not then {@link #charsScanned()},
+     * {@link #loadNanos()}, and {@link #matchNanos()} are always 0.
+     */
+    public boolean timed() {
+        return timed;
+    }
+
+    /**
+     * Time spent turning the regex into automata and the ngram prefilter.
+     */
+    public long compileNanos() {
+        return compileNanos;
+    }
+
+    public void addCompileNanos(long nanos) {
+        compileNanos += nanos;
+    }
+
+    /**
+     * Number of distinct ngrams in the prefilter. 0 if the regex wasn't
+     * accelerated.
+     */
+    public int expressionSize() {
+        return expressionSize;
+    }
+
+    public void expressionSize(int expressionSize) {
+        this.expressionSize = expressionSize;
+    }
+
+    /**
+     * Documents that passed the prefilter and reached the verification step,
+     * including ones skipped because of max_inspect.
+     */
+    public long candidates() {
+        return candidates;
+    }
+
+    public void candidate() {
+        candidates++;
+    }
+
+    public void addCandidates(long count) {
+        candidates += count;
+    }
+
+    /**
+     * Documents loaded and run against the regex.
+     */
+    public long inspected() {
+        return inspected;
+    }
+
+    /**
+     * Documents that matched.
+     */
+    public long matched() {
+        return matched;
+    }
+
+    /**
+     * Characters the automaton ran over.
+     */
+    public long charsScanned() {
+        return charsScanned;
+    }
+
+    /**
+     * Time spent loading field values.
+     */
+    public long loadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * Time spent running the automaton.
+     */
+    public long matchNanos() {
+        return matchNanos;
+    }
+
+    /**
+     * Record inspecting a document without timing it.
+     */
+    public void inspected(boolean matched) {
+        inspected++;
+        if (matched) {
+            this.matched++;
+        }
+    }
+
+    /**
+     * Record inspecting a timed document.
+     */
+    public void inspected(boolean matched, long chars, long loadNanos, long matchNanos) {
+        inspected++;
+        if (matched) {
+            this.matched++;
+        }
+        charsScanned += chars;
+        this.loadNanos += loadNanos;
+        this.matchNanos += matchNanos;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("regex", regex);
+        if (shard != null) {
+            builder.field("shard", shard);
+        }
+        builder.field("compile_nanos", compileNanos);
+        builder.field("expression_size", expressionSize);
+        builder.field("candidates", candidates);
+        builder.field("inspected", inspected);
+        builder.field("matched", matched);
+        if (timed) {
+            builder.field("chars_scanned", charsScanned);
+            builder.field("load_nanos", loadNanos);
+            builder.field("match_nanos", matchNanos);
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toXContent(XContentFactory.jsonBuilder(), EMPTY_PARAMS).string();
+        } catch (IOException e) {
+            return "RegexProfile[" + regex + "]";
+        }
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        regex = in.readString();
+        shard = in.readOptionalString();
+        timed = in.readBoolean();
+        compileNanos = in.readVLong();
+        expressionSize = in.readVInt();
+        candidates = in.readVLong();
+        inspected = in.readVLong();
+        matched = in.readVLong();
+        charsScanned = in.readVLong();
+        loadNanos = in.readVLong();
+        matchNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(regex);
+        out.writeOptionalString(shard);
+        out.writeBoolean(timed);
+        out.writeVLong(compileNanos);
+        out.writeVInt(expressionSize);
+        out.writeVLong(candidates);
+        out.writeVLong(inspected);
+        out.writeVLong(matched);
+        out.writeVLong(charsScanned);
+        out.writeVLong(loadNanos);
+        out.writeVLong(matchNanos);
+    }
+}
@@ -0,0 +1,119 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.wikimedia.search.extra.util.Log2Histogram;
+
+/**
+ * Node level statistics about regex filters. Every finished profile is
+ * recorded into histograms and profiles that were explicitly requested are
+ * logged and kept around so they can be fetched with the regex stats api.
+ * Timing each document costs a few calls to System.nanoTime so only
+ * explicitly requested profiles and a sample of the rest are timed.
+ */
+public class RegexStats extends AbstractComponent {
+    /**
+     * Number of explicitly requested profiles to keep.
+     */
+    public static final String RECENT_PROFILES_SETTING = "wikimedia.extra.regex.profile.recent";
+    /**
+     * Fraction of profiles that weren't explicitly requested that time each
+     * document. Defaults to 0.
+     */
+    public static final String TIMED_SAMPLE_SETTING = "wikimedia.extra.regex.profile.timed_sample";
+    /**
+     * Names of the histograms in the order they are reported.
+     */
+    static final String[] HISTOGRAMS = new String[] {"compile_micros", "expression_size", "candidates", "inspected", "matched",
+            "chars_scanned", "load_micros", "match_micros"};
+
+    private static final ESLogger PROFILE_LOGGER = ESLoggerFactory.getLogger("wikimedia.extra.regex.profile");
+
+    private final Log2Histogram[] histograms = new Log2Histogram[HISTOGRAMS.length];
+    private final int recentProfilesSize;
+    private final Deque<RegexProfile> recentProfiles;
+    private final double timedSample;
+
+    @Inject
+    public RegexStats(Settings settings) {
+        super(settings);
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Log2Histogram();
+        }
+        recentProfilesSize = settings.getAsInt(RECENT_PROFILES_SETTING, 20);
+        recentProfiles = new ArrayDeque<>(Math.max(1, recentProfilesSize));
+        timedSample = settings.getAsDouble(TIMED_SAMPLE_SETTING, 0.0);
+    }
+
+    /**
+     * Should a profile time each document?
+     *
+     * @param requested was the profile explicitly requested? If so it is
+     *            always timed.
+     */
+    public boolean timed(boolean requested) {
+        return requested || (timedSample > 0 && ThreadLocalRandom.current().nextDouble() < timedSample);
+    }
+
+    /**
+     * Record a finished profile.
+     *
+     * @param keep was this profile explicitly requested? If so it is logged
+     *            and kept in the recent profiles.
+     */
+    public void record(RegexProfile profile, boolean keep) {
+        histograms[0].record(TimeUnit.NANOSECONDS.toMicros(profile.compileNanos()));
+        histograms[1].record(profile.expressionSize());
+        histograms[2].record(profile.candidates());
+        histograms[3].record(profile.inspected());
+        histograms[4].record(profile.matched());
+        if (profile.timed()) {
+            histograms[5].record(profile.charsScanned());
+            histograms[6].record(TimeUnit.NANOSECONDS.toMicros(profile.loadNanos()));
+            histograms[7].record(TimeUnit.NANOSECONDS.toMicros(profile.matchNanos()));
+        }
+        if (!keep) {
+            return;
+        }
+        PROFILE_LOGGER.info("{}", profile);
+        if (recentProfilesSize <= 0) {
+            return;
+        }
+        synchronized (recentProfiles) {
+            if (recentProfiles.size() >= recentProfilesSize) {
+                recentProfiles.removeFirst();
+            }
+            recentProfiles.addLast(profile);
+        }
+    }
+
+    /**
+     * Snapshot the histograms in the order of {@link #HISTOGRAMS}.
+     */
+    public Log2Histogram.Snapshot[] histograms() {
+        Log2Histogram.Snapshot[] snapshots = new Log2Histogram.Snapshot[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            snapshots[i] = histograms[i].snapshot();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Explicitly requested profiles, oldest first.
+     */
+    public List<RegexProfile> recentProfiles() {
+        synchronized (recentProfiles) {
+            return new ArrayList<>(recentProfiles);
+        }
+    }
+}
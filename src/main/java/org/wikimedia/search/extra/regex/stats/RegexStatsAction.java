@@ -0,0 +1,26 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * Fetches regex stats from nodes.
+ */
+public class RegexStatsAction extends ClusterAction<RegexStatsRequest, RegexStatsResponse, RegexStatsRequestBuilder> {
+    public static final RegexStatsAction INSTANCE = new RegexStatsAction();
+    public static final String NAME = "cluster:monitor/nodes/regex_stats";
+
+    private RegexStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RegexStatsResponse newResponse() {
+        return new RegexStatsResponse();
+    }
+
+    @Override
+    public RegexStatsRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+        return new RegexStatsRequestBuilder(client);
+    }
+}
@@ -0,0 +1,12 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ * Request regex stats from some nodes.
+ */
+public class RegexStatsRequest extends NodesOperationRequest<RegexStatsRequest> {
+    public RegexStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
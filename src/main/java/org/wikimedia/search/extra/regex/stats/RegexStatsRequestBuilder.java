@@ -0,0 +1,19 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ * Builds regex stats requests.
+ */
+public class RegexStatsRequestBuilder extends NodesOperationRequestBuilder<RegexStatsRequest, RegexStatsResponse, RegexStatsRequestBuilder> {
+    public RegexStatsRequestBuilder(ClusterAdminClient client) {
+        super(client, new RegexStatsRequest());
+    }
+
+    @Override
+    protected void doExecute(ActionListener<RegexStatsResponse> listener) {
+        client.execute(RegexStatsAction.INSTANCE, request, listener);
+    }
+}
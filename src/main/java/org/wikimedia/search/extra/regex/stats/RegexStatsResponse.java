@@ -0,0 +1,53 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Regex stats from some nodes.
+ */
+public class RegexStatsResponse extends NodesOperationResponse<NodeRegexStats> implements ToXContent {
+    RegexStatsResponse() {
+    }
+
+    RegexStatsResponse(ClusterName clusterName, NodeRegexStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("nodes");
+        for (NodeRegexStats node : this) {
+            node.toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeRegexStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = NodeRegexStats.readNodeStats(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (NodeRegexStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+}
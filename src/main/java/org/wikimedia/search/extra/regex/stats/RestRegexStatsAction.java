@@ -0,0 +1,32 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * Exposes regex stats over http as _nodes/regex_stats.
+ */
+public class RestRegexStatsAction extends BaseRestHandler {
+    @Inject
+    public RestRegexStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_nodes/regex_stats", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/regex_stats", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        RegexStatsRequest statsRequest = new RegexStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.listenerThreaded(false);
+        client.admin().cluster().execute(RegexStatsAction.INSTANCE, statsRequest, new RestToXContentListener<RegexStatsResponse>(channel));
+    }
+}
@@ -0,0 +1,90 @@
+package org.wikimedia.search.extra.regex.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.extra.util.FieldValueCache;
+
+/**
+ * Collects regex stats from each node.
+ */
+public class TransportRegexStatsAction extends
+        TransportNodesOperationAction<RegexStatsRequest, RegexStatsResponse, TransportRegexStatsAction.NodeRequest, NodeRegexStats> {
+    private final RegexStats regexStats;
+    private final FieldValueCache fieldValueCache;
+
+    @Inject
+    public TransportRegexStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool, ClusterService clusterService,
+            TransportService transportService, ActionFilters actionFilters, RegexStats regexStats, FieldValueCache fieldValueCache) {
+        super(settings, RegexStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters);
+        this.regexStats = regexStats;
+        this.fieldValueCache = fieldValueCache;
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected RegexStatsRequest newRequest() {
+        return new RegexStatsRequest();
+    }
+
+    @Override
+    protected RegexStatsResponse newResponse(RegexStatsRequest request, AtomicReferenceArray responses) {
+        List<NodeRegexStats> stats = new ArrayList<>(responses.length());
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof NodeRegexStats) {
+                stats.add((NodeRegexStats) response);
+            }
+        }
+        return new RegexStatsResponse(clusterName, stats.toArray(new NodeRegexStats[stats.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest() {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, RegexStatsRequest request) {
+        return new NodeRequest(request, nodeId);
+    }
+
+    @Override
+    protected NodeRegexStats newNodeResponse() {
+        return new NodeRegexStats();
+    }
+
+    @Override
+    protected NodeRegexStats nodeOperation(NodeRequest request) throws ElasticsearchException {
+        return new NodeRegexStats(clusterService.localNode(), regexStats, fieldValueCache);
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeRequest extends NodeOperationRequest {
+        NodeRequest() {
+        }
+
+        NodeRequest(RegexStatsRequest request, String nodeId) {
+            super(request, nodeId);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Profiles regex filters and collects node level stats about them.
+ */
+package org.wikimedia.search.extra.regex.stats;
@@ -0,0 +1,170 @@
+package org.wikimedia.search.extra.util;
+
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReader.CoreClosedListener;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Node level cache of field values keyed on segment, document, path, and the
+ * loader that loaded them.
+ * Segments are immutable so the values loaded for a document never change
+ * until the segment is closed and then they are removed from the cache. The
+ * cache is bounded by the approximate number of bytes the cached strings take
+ * up. Use {@link FieldValues#cache(FieldValues.Loader, FieldValueCache)} to
+ * wrap a loader with the cache.
+ */
+public class FieldValueCache {
+    /**
+     * Setting controlling the maximum size of the cache. Defaults to 0 which
+     * disables the cache entirely.
+     */
+    public static final String SIZE_SETTING = "wikimedia.extra.field_value_cache.size";
+    /**
+     * Rough guess at the overhead of each entry in the cache including the
+     * key and list.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    /**
+     * Rough guess at the overhead of each string in a cached list.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    private final Cache<Key, List<String>> cache;
+    private final SegmentCacheKeys<Key> keys = new SegmentCacheKeys<>();
+    private final CoreClosedListener invalidator = new CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            invalidate(ownerCoreCacheKey);
+        }
+    };
+
+    @Inject
+    public FieldValueCache(Settings settings) {
+        this(settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(0)));
+    }
+
+    public FieldValueCache(ByteSizeValue size) {
+        if (size.bytes() <= 0) {
+            cache = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder().removalListener(keys).maximumWeight(size.bytes()).weigher(new Weigher<Key, List<String>>() {
+            @Override
+            public int weigh(Key key, List<String> values) {
+                int weight = ENTRY_OVERHEAD + key.path.length() * 2;
+                for (String value : values) {
+                    weight += STRING_OVERHEAD + value.length() * 2;
+                }
+                return weight;
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * Is the cache enabled?
+     */
+    public boolean enabled() {
+        return cache != null;
+    }
+
+    /**
+     * Hit, miss, and eviction statistics.
+     */
+    public CacheStats stats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0);
+        }
+        return cache.stats();
+    }
+
+    /**
+     * Approximate number of entries in the cache.
+     */
+    public long size() {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.size();
+    }
+
+    /**
+     * Fetch values from the cache.
+     *
+     * @return the cached values or null if they aren't cached
+     */
+    List<String> get(AtomicReader reader, int docId, String path, FieldValues.Loader loader) {
+        return cache.getIfPresent(new Key(reader.getCoreCacheKey(), docId, path, loader));
+    }
+
+    /**
+     * Store values in the cache.
+     */
+    void put(AtomicReader reader, int docId, String path, FieldValues.Loader loader, List<String> values) {
+        Key key = new Key(reader.getCoreCacheKey(), docId, path, loader);
+        if (!keys.track(reader, invalidator, key)) {
+            // We'd never hear about the segment closing so we can't cache it.
+            return;
+        }
+        cache.put(key, values);
+    }
+
+    /**
+     * Remove all entries for a segment.
+     */
+    private void invalidate(Object coreKey) {
+        cache.invalidateAll(keys.remove(coreKey));
+    }
+
+    private static final class Key implements SegmentCacheKeys.Key {
+        private final Object coreKey;
+        private final int docId;
+        private final String path;
+        /**
+         * The loader that loaded the values. Different loaders can load
+         * different values for the same path.
+         */
+        private final FieldValues.Loader loader;
+
+        private Key(Object coreKey, int docId, String path, FieldValues.Loader loader) {
+            this.coreKey = coreKey;
+            this.docId = docId;
+            this.path = path;
+            this.loader = loader;
+        }
+
+        @Override
+        public Object coreKey() {
+            return coreKey;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = System.identityHashCode(coreKey);
+            result = prime * result + docId;
+            result = prime * result + path.hashCode();
+            result = prime * result + loader.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            return coreKey == other.coreKey && docId == other.docId && path.equals(other.path) && loader.equals(other.loader);
+        }
+    }
+}
@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.IndexReader;
 import org.elasticsearch.common.base.Function;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableList;
 import org.elasticsearch.common.collect.ImmutableSet;
 import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.xcontent.XContentHelper;
@@ -19,7 +21,7 @@ import org.elasticsearch.index.fieldvisitor.JustSourceFieldsVisitor;
  */
 public abstract class FieldValues {
     /**
-     * Loads field values.
+     * Loads field values. Loaders are equal if they load the same values.
      */
     public interface Loader {
         /**
@@ -53,6 +55,17 @@ public abstract class FieldValues {
         return new Transformed(next, transformer);
     }
 
+    /**
+     * Wraps a loader in a cache. Only loads from segment readers are cached.
+     * If the cache is disabled then this just returns next.
+     */
+    public static FieldValues.Loader cache(FieldValues.Loader next, FieldValueCache cache) {
+        if (!cache.enabled()) {
+            return next;
+        }
+        return new Cached(next, cache);
+    }
+
     private FieldValues() {
         // Util class
     }
@@ -66,6 +79,16 @@ public abstract class FieldValues {
             Map<String, Object> map = XContentHelper.convertToMap(source, false).v2();
             return Lists.transform(XContentMapValues.extractRawValues(path, map), Functions.toStringFunction());
         }
+
+        @Override
+        public int hashCode() {
+            return Source.class.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Source;
+        }
     }
 
     private static class Stored implements FieldValues.Loader {
@@ -75,6 +98,16 @@ public abstract class FieldValues {
             reader.document(docId, visitor);
             return Lists.transform(visitor.fields().get(path), Functions.toStringFunction());
         }
+
+        @Override
+        public int hashCode() {
+            return Stored.class.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Stored;
+        }
     }
 
     private static class Transformed implements FieldValues.Loader {
@@ -90,5 +123,56 @@ public abstract class FieldValues {
         public List<String> load(String path, IndexReader reader, int docId) throws IOException {
             return Lists.transform(next.load(path, reader, docId), transformer);
         }
+
+        @Override
+        public int hashCode() {
+            return 31 * next.hashCode() + transformer.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Transformed)) {
+                return false;
+            }
+            Transformed other = (Transformed) obj;
+            return next.equals(other.next) && transformer.equals(other.transformer);
+        }
+    }
+
+    private static class Cached implements FieldValues.Loader {
+        private final FieldValues.Loader next;
+        private final FieldValueCache cache;
+
+        public Cached(FieldValues.Loader next, FieldValueCache cache) {
+            this.next = next;
+            this.cache = cache;
+        }
+
+        @Override
+        public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+            if (!(reader instanceof AtomicReader)) {
+                return next.load(path, reader, docId);
+            }
+            AtomicReader atomicReader = (AtomicReader) reader;
+            List<String> values = cache.get(atomicReader, docId, path, next);
+            if (values != null) {
+                return values;
+            }
+            // Copy the values so we don't cache a lazy view
+            values = ImmutableList.copyOf(next.load(path, reader, docId));
+            cache.put(atomicReader, docId, path, next, values);
+            return values;
+        }
+
+        @Override
+        public int hashCode() {
+            // Caching doesn't change the values
+            return next.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Cached && next.equals(((Cached) obj).next);
+        }
     }
 }
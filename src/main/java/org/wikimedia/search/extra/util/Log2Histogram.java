@@ -0,0 +1,157 @@
+package org.wikimedia.search.extra.util;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Lock free histogram of non-negative longs with power of two buckets. Bucket
+ * 0 holds 0, bucket n holds values in [2^(n-1), 2^n). Cheap enough to record
+ * into on every query at the cost of only knowing values within a factor of
+ * two.
+ */
+public class Log2Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray sum = new AtomicLongArray(1);
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        sum.addAndGet(0, value);
+    }
+
+    /**
+     * Copy the current state of the histogram.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.get(0));
+    }
+
+    static int bucket(long value) {
+        return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Largest value that can land in a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * Point in time copy of a histogram.
+     */
+    public static class Snapshot implements Streamable, ToXContent {
+        private long[] counts;
+        private long sum;
+
+        public Snapshot() {
+        }
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+        }
+
+        public long count() {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        /**
+         * Upper bound on the value at the given percentile (0 to 100).
+         */
+        public long percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        /**
+         * Add another snapshot to this one.
+         */
+        public void add(Snapshot other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            sum += other.sum;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            long count = count();
+            builder.field("count", count);
+            builder.field("sum", sum);
+            builder.field("mean", count == 0 ? 0 : sum / count);
+            builder.field("p50", percentile(50));
+            builder.field("p90", percentile(90));
+            builder.field("p99", percentile(99));
+            builder.startObject("buckets");
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    builder.field(Long.toString(upperBound(i)), counts[i]);
+                }
+            }
+            builder.endObject();
+            builder.endObject();
+            return builder;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = in.readVLong();
+            }
+            sum = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            for (long count : counts) {
+                out.writeVLong(count);
+            }
+            out.writeVLong(sum);
+        }
+    }
+}
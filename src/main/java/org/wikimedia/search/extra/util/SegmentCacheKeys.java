@@ -0,0 +1,85 @@
+package org.wikimedia.search.extra.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReader.CoreClosedListener;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.lucene.SegmentReaderUtils;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Index of the keys a node level cache holds for each segment so all of a
+ * segment's entries can be invalidated when it closes without scanning the
+ * whole cache. Register this as the cache's removal listener so keys the cache
+ * evicts on its own are dropped from the index.
+ */
+public class SegmentCacheKeys<K extends SegmentCacheKeys.Key> implements RemovalListener<K, Object> {
+    /**
+     * Cache key belonging to a segment.
+     */
+    public interface Key {
+        /**
+         * The core cache key of the segment.
+         */
+        Object coreKey();
+    }
+
+    private final ConcurrentMap<Object, Set<K>> keys = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Record that key is about to be cached. Registers invalidator to hear
+     * about the segment closing the first time a key is tracked for it.
+     *
+     * @return false if we'd never hear about the segment closing so the key
+     *         shouldn't be cached
+     */
+    public boolean track(AtomicReader reader, CoreClosedListener invalidator, K key) {
+        Set<K> segmentKeys = keys.get(key.coreKey());
+        if (segmentKeys == null) {
+            if (!SegmentReaderUtils.registerCoreListener(reader, invalidator)) {
+                return false;
+            }
+            Set<K> newKeys = ConcurrentCollections.newConcurrentSet();
+            segmentKeys = keys.putIfAbsent(key.coreKey(), newKeys);
+            if (segmentKeys == null) {
+                segmentKeys = newKeys;
+            }
+        }
+        segmentKeys.add(key);
+        return true;
+    }
+
+    /**
+     * Stop tracking a segment.
+     *
+     * @return the keys that were tracked for the segment
+     */
+    public Set<K> remove(Object coreKey) {
+        Set<K> segmentKeys = keys.remove(coreKey);
+        if (segmentKeys == null) {
+            return Collections.emptySet();
+        }
+        return segmentKeys;
+    }
+
+    @Override
+    public void onRemoval(RemovalNotification<K, Object> notification) {
+        if (!notification.wasEvicted()) {
+            // Replaced entries are still cached and invalidated entries have
+            // already been removed from the index.
+            return;
+        }
+        K key = notification.getKey();
+        if (key == null) {
+            return;
+        }
+        Set<K> segmentKeys = keys.get(key.coreKey());
+        if (segmentKeys != null) {
+            segmentKeys.remove(key);
+        }
+    }
+}
@@ -509,6 +509,62 @@ public class TestAutomaton extends LuceneTestCase {
       DEFAULT_MAX_DETERMINIZED_STATES), -1)); 
   }
 
+  public void testStartPointsRandom() throws Exception {
+    int iters = atLeast(100);
+    for (int iter = 0; iter < iters; iter++) {
+      XAutomaton a = XAutomatonTestUtil.randomAutomaton(random());
+      Set<Integer> expected = new HashSet<>();
+      expected.add(Character.MIN_CODE_POINT);
+      XTransition t = new XTransition();
+      for (int s = 0; s < a.getNumStates(); s++) {
+        int count = a.initTransition(s, t);
+        for (int i = 0; i < count; i++) {
+          a.getNextTransition(t);
+          expected.add(t.min);
+          if (t.max < Character.MAX_CODE_POINT) {
+            expected.add(t.max + 1);
+          }
+        }
+      }
+      int[] points = a.getStartPoints();
+      assertEquals(expected.size(), points.length);
+      for (int i = 0; i < points.length; i++) {
+        assertTrue(expected.contains(points[i]));
+        if (i > 0) {
+          assertTrue(points[i - 1] < points[i]);
+        }
+      }
+    }
+  }
+
+  /** step binary searches deterministic states with many transitions. */
+  public void testStepRandom() throws Exception {
+    int iters = atLeast(100);
+    for (int iter = 0; iter < iters; iter++) {
+      XAutomaton a = XOperations.determinize(XAutomatonTestUtil.randomAutomaton(random()),
+        DEFAULT_MAX_DETERMINIZED_STATES);
+      int[] points = a.getStartPoints();
+      XTransition t = new XTransition();
+      for (int s = 0; s < a.getNumStates(); s++) {
+        for (int p = 0; p < points.length; p++) {
+          int[] labels = new int[] {points[p], p + 1 < points.length ? points[p + 1] - 1 : Character.MAX_CODE_POINT};
+          for (int label : labels) {
+            int expected = -1;
+            int count = a.initTransition(s, t);
+            for (int i = 0; i < count; i++) {
+              a.getNextTransition(t);
+              if (t.min <= label && label <= t.max) {
+                expected = t.dest;
+                break;
+              }
+            }
+            assertEquals(expected, a.step(s, label));
+          }
+        }
+      }
+    }
+  }
+
   public void testConcatenatePreservesDet() throws Exception {
     XAutomaton a1 = XAutomata.makeString("foobar");
     assertTrue(a1.isDeterministic());
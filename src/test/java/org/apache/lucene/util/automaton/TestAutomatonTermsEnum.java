@@ -0,0 +1,123 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Checks that {@link XCompiledAutomaton#getTermsEnum} finds exactly the terms
+ * the automaton accepts.
+ */
+public class TestAutomatonTermsEnum extends LuceneTestCase {
+  public void testRegexes() throws IOException {
+    String[] terms = new String[] {"", "a", "ab", "abc", "abd", "b", "bc", "cat", "catalog", "dog", "hotdog", "zzz", "é", "éa"};
+    try (Directory dir = newDirectory()) {
+      AtomicReader reader = index(dir, terms);
+      try {
+        Terms indexed = reader.terms("field");
+        assertTerms(indexed, "ab", "ab");
+        assertTerms(indexed, "ab.*", "ab", "abc", "abd");
+        assertTerms(indexed, ".*dog", "dog", "hotdog");
+        assertTerms(indexed, ".*", terms);
+        assertTerms(indexed, "q.*");
+        assertTerms(indexed, "[a-c]", "a", "b");
+        assertTerms(indexed, "é.?", "é", "éa");
+        assertTerms(indexed, "(cat|dog).*", "cat", "catalog", "dog");
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  public void testRandom() throws IOException {
+    int numTerms = atLeast(200);
+    String[] terms = new String[numTerms];
+    for (int i = 0; i < numTerms; i++) {
+      terms[i] = random().nextBoolean() ? TestUtil.randomUnicodeString(random(), 8) : TestUtil.randomSimpleString(random(), 6);
+    }
+    try (Directory dir = newDirectory()) {
+      AtomicReader reader = index(dir, terms);
+      try {
+        Terms indexed = reader.terms("field");
+        int iters = atLeast(50);
+        for (int i = 0; i < iters; i++) {
+          XAutomaton automaton = random().nextBoolean() ? XAutomatonTestUtil.randomAutomaton(random())
+              : new XRegExp(TestUtil.randomSimpleString(random(), 3) + ".*").toAutomaton();
+          List<BytesRef> expected = new ArrayList<>();
+          XByteRunAutomaton run = new XByteRunAutomaton(automaton);
+          TermsEnum all = indexed.iterator(null);
+          BytesRef term;
+          while ((term = all.next()) != null) {
+            if (run.run(term.bytes, term.offset, term.length)) {
+              expected.add(BytesRef.deepCopyOf(term));
+            }
+          }
+          assertEquals(expected, collect(new XCompiledAutomaton(automaton).getTermsEnum(indexed)));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private void assertTerms(Terms indexed, String regex, String... expected) throws IOException {
+    List<BytesRef> expectedRefs = new ArrayList<>();
+    for (String e : expected) {
+      expectedRefs.add(new BytesRef(e));
+    }
+    XCompiledAutomaton compiled = new XCompiledAutomaton(new XRegExp(regex).toAutomaton());
+    assertEquals(regex, expectedRefs, collect(compiled.getTermsEnum(indexed)));
+  }
+
+  private List<BytesRef> collect(TermsEnum termsEnum) throws IOException {
+    List<BytesRef> found = new ArrayList<>();
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      found.add(BytesRef.deepCopyOf(term));
+    }
+    return found;
+  }
+
+  private AtomicReader index(Directory dir, String... terms) throws IOException {
+    RandomIndexWriter writer = new RandomIndexWriter(random(), dir);
+    for (String term : terms) {
+      Document doc = new Document();
+      doc.add(new StringField("field", term, Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    writer.forceMerge(1);
+    DirectoryReader reader = writer.getReader();
+    writer.close();
+    return getOnlySegmentReader(reader);
+  }
+}
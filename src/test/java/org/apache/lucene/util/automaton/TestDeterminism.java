@@ -17,7 +17,11 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
 
 import static org.apache.lucene.util.automaton.XOperations.DEFAULT_MAX_DETERMINIZED_STATES;
 
@@ -47,6 +51,24 @@ public class TestDeterminism extends LuceneTestCase {
     }
   }
   
+  /** test subsets big enough that determinize counts states densely */
+  public void testLargeSubsets() throws Exception {
+    int num = atLeast(5);
+    for (int i = 0; i < num; i++) {
+      List<XAutomaton> words = new ArrayList<>();
+      int numWords = TestUtil.nextInt(random(), 40, 200);
+      for (int w = 0; w < numWords; w++) {
+        words.add(XAutomata.makeString(TestUtil.randomSimpleStringRange(random(), 'a', 'd', 8)));
+      }
+      XAutomaton a = XOperations.concatenate(XAutomata.makeAnyString(), XOperations.union(words));
+      XAutomaton b = XOperations.determinize(a, XAutomatonTestUtil.DEFAULT_MAX_DETERMINIZED_STATES);
+      assertTrue(b.isDeterministic());
+      XAutomaton simple = XAutomatonTestUtil.determinizeSimple(a);
+      assertTrue(XOperations.sameLanguage(simple, b));
+      assertEquals(simple.getNumStates(), b.getNumStates());
+    }
+  }
+
   private static void assertAutomaton(XAutomaton a) {
     a = XOperations.determinize(XOperations.removeDeadStates(a), DEFAULT_MAX_DETERMINIZED_STATES);
 
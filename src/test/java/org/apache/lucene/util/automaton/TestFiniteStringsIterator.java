@@ -0,0 +1,120 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+import static org.apache.lucene.util.automaton.XAutomatonTestUtil.DEFAULT_MAX_DETERMINIZED_STATES;
+
+/**
+ * Checks that {@link XFiniteStringsIterator} finds the same strings as the
+ * simple recursive implementation.
+ */
+public class TestFiniteStringsIterator extends LuceneTestCase {
+
+  public void testRandomFiniteStrings() {
+    int iters = atLeast(100);
+    for (int iter = 0; iter < iters; iter++) {
+      Set<BytesRef> terms = new TreeSet<>();
+      int numTerms = TestUtil.nextInt(random(), 1, 200);
+      while (terms.size() < numTerms) {
+        // The recursive implementation doesn't return the empty string
+        String term = TestUtil.randomUnicodeString(random(), 10);
+        if (term.isEmpty() == false) {
+          terms.add(new BytesRef(term));
+        }
+      }
+      XAutomaton a = XDaciukMihovAutomatonBuilder.build(terms);
+      if (random().nextBoolean()) {
+        a = XMinimizationOperations.minimize(a, DEFAULT_MAX_DETERMINIZED_STATES);
+      }
+      Set<IntsRef> expected = XAutomatonTestUtil.getFiniteStringsRecursive(a, -1);
+      assertEquals(terms.size(), expected.size());
+      assertEquals(expected, iterate(new XFiniteStringsIterator(a)));
+      assertEquals(expected, XOperations.getFiniteStrings(a, -1));
+    }
+  }
+
+  public void testEmptyString() {
+    XAutomaton a = XOperations.union(XAutomata.makeEmptyString(), XAutomata.makeString("cat"));
+    Set<IntsRef> actual = iterate(new XFiniteStringsIterator(a));
+    assertEquals(2, actual.size());
+    assertTrue(actual.contains(new IntsRef()));
+
+    assertEquals(1, iterate(new XFiniteStringsIterator(XAutomata.makeEmptyString())).size());
+    assertNull(new XFiniteStringsIterator(XAutomata.makeEmpty()).next());
+  }
+
+  public void testSharedResult() {
+    XAutomaton a = XOperations.determinize(new XRegExp("[ab][cd]").toAutomaton(), DEFAULT_MAX_DETERMINIZED_STATES);
+    XFiniteStringsIterator iterator = new XFiniteStringsIterator(a);
+    IntsRef first = iterator.next();
+    assertSame(first, iterator.next());
+  }
+
+  public void testCycles() {
+    XFiniteStringsIterator iterator = new XFiniteStringsIterator(new XRegExp("ab*").toAutomaton());
+    try {
+      while (iterator.next() != null) {
+        // Spin until we hit the cycle
+      }
+      fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      assertEquals("automaton has cycles", e.getMessage());
+    }
+  }
+
+  public void testByteBudget() {
+    XAutomaton a = XOperations.union(XAutomata.makeString("short"), XAutomata.makeString(TestUtil.randomSimpleString(random(), 1000, 1000)));
+    try {
+      iterate(new XFiniteStringsIterator(a, 1024));
+      fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("1024 bytes"));
+    }
+
+    XFiniteStringsIterator iterator = new XFiniteStringsIterator(a, 1024 * 1024);
+    assertEquals(2, iterate(iterator).size());
+    assertTrue(iterator.ramBytesUsed() < 1024 * 1024);
+  }
+
+  public void testBadBudget() {
+    try {
+      new XFiniteStringsIterator(XAutomata.makeString("cat"), 0);
+      fail("expected an exception");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static Set<IntsRef> iterate(XFiniteStringsIterator iterator) {
+    Set<IntsRef> strings = new HashSet<>();
+    IntsRef string;
+    while ((string = iterator.next()) != null) {
+      assertTrue("duplicate string " + string, strings.add(IntsRef.deepCopyOf(string)));
+    }
+    return strings;
+  }
+}
@@ -17,7 +17,11 @@ package org.apache.lucene.util.automaton;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
 
 import static org.apache.lucene.util.automaton.XOperations.DEFAULT_MAX_DETERMINIZED_STATES;
 
@@ -65,6 +69,64 @@ public class TestMinimize extends LuceneTestCase {
     }
   }
   
+  /** compare Valmari's minimization against Hopcroft's. */
+  public void testValmariAgainstHopcroft() {
+    int num = atLeast(200);
+    for (int i = 0; i < num; i++) {
+      XAutomaton a = XAutomatonTestUtil.randomAutomaton(random());
+      XAutomaton v = XMinimizationOperations.minimizeValmari(a,
+        DEFAULT_MAX_DETERMINIZED_STATES);
+      XAutomaton h = XMinimizationOperations.minimizeHopcroft(a,
+        DEFAULT_MAX_DETERMINIZED_STATES);
+      assertTrue(XOperations.sameLanguage(v, h));
+      assertEquals(h.getNumStates(), v.getNumStates());
+      assertEquals(h.getNumTransitions(), v.getNumTransitions());
+    }
+  }
+
+  /** finite languages are minimized without partition refinement. */
+  public void testFiniteAgainstHopcroft() {
+    int num = atLeast(200);
+    for (int i = 0; i < num; i++) {
+      List<XAutomaton> strings = new ArrayList<>();
+      int numStrings = TestUtil.nextInt(random(), 1, 30);
+      for (int s = 0; s < numStrings; s++) {
+        strings.add(XAutomata.makeString(TestUtil.randomSimpleStringRange(random(), 'a', 'd', 6)));
+      }
+      XAutomaton a = XOperations.union(strings);
+      if (random().nextBoolean()) {
+        a = XOperations.concatenate(a, XAutomata.makeCharRange('a', 'z'));
+      }
+      a = XOperations.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES);
+      XAutomaton acyclic = XMinimizationOperations.minimizeAcyclic(a);
+      assertNotNull(acyclic);
+      XAutomaton h = XMinimizationOperations.minimizeHopcroft(a,
+        DEFAULT_MAX_DETERMINIZED_STATES);
+      assertTrue(XOperations.sameLanguage(acyclic, h));
+      assertEquals(h.getNumStates(), acyclic.getNumStates());
+      assertEquals(h.getNumTransitions(), acyclic.getNumTransitions());
+    }
+  }
+
+  public void testAcyclicRejectsCycles() {
+    XAutomaton a = XOperations.determinize(XOperations.concatenate(XAutomata.makeString("foo"),
+        XAutomata.makeAnyString()), DEFAULT_MAX_DETERMINIZED_STATES);
+    assertNull(XMinimizationOperations.minimizeAcyclic(a));
+  }
+
+  /** minimizing a minimal automaton returns it as is. */
+  public void testAlreadyMinimal() {
+    int num = atLeast(50);
+    for (int i = 0; i < num; i++) {
+      XAutomaton a = XMinimizationOperations.minimize(XAutomatonTestUtil.randomAutomaton(random()),
+        DEFAULT_MAX_DETERMINIZED_STATES);
+      if (a.getNumStates() == 0) {
+        continue;
+      }
+      assertSame(a, XMinimizationOperations.minimize(a, DEFAULT_MAX_DETERMINIZED_STATES));
+    }
+  }
+
   /** n^2 space usage in Hopcroft minimization? */
   public void testMinimizeHuge() {
     new XRegExp("+-*(A|.....|BC)*]", XRegExp.NONE).toAutomaton(1000000);
@@ -253,6 +253,23 @@ public class TestOperations extends LuceneTestCase {
     }
   }
 
+  public void testLimitWithCycle() {
+    // The limit is reached before the cycle is noticed
+    Set<IntsRef> strings = XOperations.getFiniteStrings(new XRegExp("ab*").toAutomaton(), 2);
+    assertEquals(2, strings.size());
+    XIntsRefBuilder scratch = new XIntsRefBuilder();
+    XUtil.toUTF32("a".toCharArray(), 0, 1, scratch);
+    assertTrue(strings.contains(scratch.get()));
+    XUtil.toUTF32("ab".toCharArray(), 0, 2, scratch);
+    assertTrue(strings.contains(scratch.get()));
+    try {
+      XOperations.getFiniteStrings(new XRegExp("ab*").toAutomaton(), 3);
+      fail("did not hit exception");
+    } catch (IllegalArgumentException iae) {
+      // expected
+    }
+  }
+
   public void testRandomFiniteStrings2() {
     // Just makes sure we can run on any random finite
     // automaton:
@@ -0,0 +1,145 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.lucene.util.automaton.XOperations.DEFAULT_MAX_DETERMINIZED_STATES;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+/**
+ * Checks that determinizing on more than one thread builds exactly the same
+ * automaton as determinizing on one.
+ */
+public class TestParallelDeterminize extends LuceneTestCase {
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    super.tearDown();
+  }
+
+  /** test a bunch of random automata, forcing every level to be parallel */
+  public void testRandomAutomata() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(executor, 4, 1);
+    int num = atLeast(200);
+    for (int i = 0; i < num; i++) {
+      XAutomaton a = XAutomatonTestUtil.randomAutomaton(random());
+      assertIdentical(XOperations.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES),
+        parallel.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES));
+    }
+  }
+
+  /** test automata with levels wide enough to be split into many chunks */
+  public void testWideLevels() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(executor, 4, TestUtil.nextInt(random(), 1, 64));
+    int num = atLeast(5);
+    for (int i = 0; i < num; i++) {
+      XAutomaton a = XOperations.concatenate(XAutomata.makeAnyString(), randomWords());
+      assertIdentical(XOperations.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES),
+        parallel.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES));
+    }
+  }
+
+  /** test regexes built with and without parallel determinizing */
+  public void testRegexps() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(executor, 2, 1);
+    int num = atLeast(200);
+    for (int i = 0; i < num; i++) {
+      XRegExp regex = new XRegExp(XAutomatonTestUtil.randomRegexp(random()), XRegExp.NONE);
+      XAutomaton serial = regex.toAutomaton(DEFAULT_MAX_DETERMINIZED_STATES);
+      assertIdentical(serial, regex.toAutomaton(DEFAULT_MAX_DETERMINIZED_STATES, parallel));
+    }
+  }
+
+  /** the calling thread does all the work if the executor won't */
+  public void testRejectingExecutor() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    }, 4, 1);
+    XAutomaton a = XOperations.concatenate(XAutomata.makeAnyString(), randomWords());
+    assertIdentical(XOperations.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES),
+      parallel.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES));
+  }
+
+  public void testTooComplex() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(executor, 4, 1);
+    XAutomaton a = XOperations.concatenate(XAutomata.makeAnyString(), randomWords());
+    int states = XOperations.determinize(a, DEFAULT_MAX_DETERMINIZED_STATES).getNumStates();
+    try {
+      parallel.determinize(a, states - 1);
+      fail("Expected XTooComplexToDeterminizeException");
+    } catch (XTooComplexToDeterminizeException e) {
+      // expected
+    }
+  }
+
+  public void testRunAutomaton() {
+    XParallelDeterminizer parallel = new XParallelDeterminizer(executor, 4, 1);
+    XAutomaton a = XOperations.concatenate(XAutomata.makeAnyString(), XAutomata.makeString("foo"));
+    XCharacterRunAutomaton run = new XCharacterRunAutomaton(a, DEFAULT_MAX_DETERMINIZED_STATES, parallel);
+    assertTrue(run.run("barfoo"));
+    assertFalse(run.run("foobar"));
+  }
+
+  private XAutomaton randomWords() {
+    List<XAutomaton> words = new ArrayList<>();
+    int numWords = TestUtil.nextInt(random(), 40, 200);
+    for (int w = 0; w < numWords; w++) {
+      words.add(XAutomata.makeString(TestUtil.randomSimpleStringRange(random(), 'a', 'd', 8)));
+    }
+    return XOperations.union(words);
+  }
+
+  private static void assertIdentical(XAutomaton expected, XAutomaton actual) {
+    assertEquals(expected.getNumStates(), actual.getNumStates());
+    XTransition expectedTransition = new XTransition();
+    XTransition actualTransition = new XTransition();
+    for (int s = 0; s < expected.getNumStates(); s++) {
+      assertEquals(expected.isAccept(s), actual.isAccept(s));
+      int count = expected.initTransition(s, expectedTransition);
+      assertEquals(count, actual.initTransition(s, actualTransition));
+      for (int t = 0; t < count; t++) {
+        expected.getNextTransition(expectedTransition);
+        actual.getNextTransition(actualTransition);
+        assertEquals(expectedTransition.dest, actualTransition.dest);
+        assertEquals(expectedTransition.min, actualTransition.min);
+        assertEquals(expectedTransition.max, actualTransition.max);
+      }
+    }
+  }
+}
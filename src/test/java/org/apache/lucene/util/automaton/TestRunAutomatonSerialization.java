@@ -0,0 +1,105 @@
+package org.apache.lucene.util.automaton;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Round trips run automata through their serialized form.
+ */
+public class TestRunAutomatonSerialization extends LuceneTestCase {
+  public void testCharacterRoundTrip() throws IOException {
+    try (Directory dir = new MMapDirectory(createTempDir("run_automata"))) {
+      int num = atLeast(50);
+      XCharacterRunAutomaton[] written = new XCharacterRunAutomaton[num];
+      try (IndexOutput out = dir.createOutput("automata", IOContext.DEFAULT)) {
+        for (int i = 0; i < num; i++) {
+          written[i] = new XCharacterRunAutomaton(XAutomatonTestUtil.randomAutomaton(random()));
+          written[i].writeTo(out);
+        }
+      }
+      try (IndexInput in = dir.openInput("automata", IOContext.READONCE)) {
+        for (int i = 0; i < num; i++) {
+          XCharacterRunAutomaton read = new XCharacterRunAutomaton(in);
+          assertEquals(written[i], read);
+          assertEquals(written[i].ramBytesUsed(), read.ramBytesUsed());
+          for (int s = 0; s < 20; s++) {
+            String str = TestUtil.randomUnicodeString(random());
+            assertEquals(written[i].run(str), read.run(str));
+          }
+        }
+        assertEquals(in.length(), in.getFilePointer());
+      }
+    }
+  }
+
+  public void testByteRoundTrip() throws IOException {
+    try (Directory dir = new MMapDirectory(createTempDir("run_automata"))) {
+      XAutomaton a = XAutomatonTestUtil.randomAutomaton(random());
+      XByteRunAutomaton written = new XByteRunAutomaton(a);
+      try (IndexOutput out = dir.createOutput("automaton", IOContext.DEFAULT)) {
+        written.writeTo(out);
+      }
+      XByteRunAutomaton read;
+      try (IndexInput in = dir.openInput("automaton", IOContext.READONCE)) {
+        read = new XByteRunAutomaton(in);
+      }
+      assertEquals(written, read);
+      XAutomatonTestUtil.RandomAcceptedStrings accepted = null;
+      if (a.getNumStates() > 0 && !XOperations.isEmpty(a)) {
+        accepted = new XAutomatonTestUtil.RandomAcceptedStrings(a);
+      }
+      for (int i = 0; i < 100; i++) {
+        String str;
+        if (accepted != null && random().nextBoolean()) {
+          int[] codePoints = accepted.getRandomAcceptedString(random());
+          str = UnicodeUtil.newString(codePoints, 0, codePoints.length);
+        } else {
+          str = TestUtil.randomUnicodeString(random());
+        }
+        BytesRef bytes = new BytesRef(str);
+        assertEquals(written.run(bytes.bytes, bytes.offset, bytes.length), read.run(bytes.bytes, bytes.offset, bytes.length));
+      }
+    }
+  }
+
+  public void testWrongKind() throws IOException {
+    try (Directory dir = new MMapDirectory(createTempDir("run_automata"))) {
+      try (IndexOutput out = dir.createOutput("automaton", IOContext.DEFAULT)) {
+        new XByteRunAutomaton(XAutomata.makeString("cat")).writeTo(out);
+      }
+      try (IndexInput in = dir.openInput("automaton", IOContext.READONCE)) {
+        new XCharacterRunAutomaton(in);
+        fail("expected CorruptIndexException");
+      } catch (CorruptIndexException e) {
+        // expected
+      }
+    }
+  }
+}
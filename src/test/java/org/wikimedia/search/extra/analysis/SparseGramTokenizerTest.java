@@ -0,0 +1,57 @@
+package org.wikimedia.search.extra.analysis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.test.ElasticsearchTokenStreamTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.ngram.SparseGrams;
+
+public class SparseGramTokenizerTest extends ElasticsearchTokenStreamTestCase {
+    @Test
+    public void trigrams() throws IOException {
+        assertTokenStreamContents(new SparseGramTokenizer(new StringReader("abcde"), 3), new String[] {"abc", "bcd", "cde"},
+                new int[] {0, 1, 2}, new int[] {3, 4, 5}, 5);
+        assertTokenStreamContents(new SparseGramTokenizer(new StringReader("ab"), 3), new String[0], new int[0], new int[0], 2);
+    }
+
+    @Test
+    public void surrogates() throws IOException {
+        assertTokenStreamContents(new SparseGramTokenizer(new StringReader("a𐐀bc"), 3),
+                new String[] {"a𐐀b", "𐐀bc"}, new int[] {0, 1}, new int[] {4, 5}, 5);
+    }
+
+    @Test
+    public void sameGramsInAnyCase() throws IOException {
+        String text = "The Hero Of Legend Rode Out Of The Forest";
+        List<String> lower = new ArrayList<>();
+        for (String token : tokens(text)) {
+            lower.add(token.toLowerCase(Locale.ROOT));
+        }
+        assertEquals(tokens(text.toLowerCase(Locale.ROOT)), lower);
+    }
+
+    @Test
+    public void containsCoveringGrams() throws IOException {
+        String text = "the hero of legend rode out of the forest";
+        List<String> tokens = tokens(text);
+        assertTrue(tokens.containsAll(SparseGrams.covering("legend rode", SparseGrams.DEFAULT_MAX_GRAM)));
+    }
+
+    private List<String> tokens(String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (SparseGramTokenizer tokenizer = new SparseGramTokenizer(new StringReader(text), SparseGrams.DEFAULT_MAX_GRAM)) {
+            CharTermAttribute term = tokenizer.addAttribute(CharTermAttribute.class);
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            tokenizer.end();
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,86 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import org.apache.lucene.util.automaton.XCharacterRunAutomaton;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+public class CompiledRegexCacheTest extends ElasticsearchTestCase {
+    @Test
+    public void disabledByDefault() {
+        CompiledRegexCache cache = cache(0, 100, null);
+        assertFalse(cache.enabled());
+        XCharacterRunAutomaton first = cache.runAutomaton("cat", false, Locale.ROOT, 20000, null);
+        assertTrue(first.run("the cat"));
+        assertNotSame(first, cache.runAutomaton("cat", false, Locale.ROOT, 20000, null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void cachesByFoldedRegex() {
+        CompiledRegexCache cache = cache(1024 * 1024, 100, null);
+        XCharacterRunAutomaton lower = cache.runAutomaton("cat", false, Locale.ROOT, 20000, null);
+        assertSame(lower, cache.runAutomaton("CAT", false, Locale.ROOT, 20000, null));
+        assertSame(lower, cache.runAutomaton("cat", true, Locale.ROOT, 20000, null));
+        XCharacterRunAutomaton upper = cache.runAutomaton("CAT", true, Locale.ROOT, 20000, null);
+        assertNotSame(lower, upper);
+        assertTrue(upper.run("the CAT"));
+        assertFalse(upper.run("the cat"));
+        assertNotSame(lower, cache.runAutomaton("cat", false, Locale.ROOT, 10000, null));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void persistsMostUsed() throws IOException {
+        Path path = newTempDir().toPath().resolve("compiled");
+        CompiledRegexCache cache = cache(1024 * 1024, 2, path).start();
+        for (int i = 0; i < 3; i++) {
+            cache.runAutomaton("cat", false, Locale.ROOT, 20000, null);
+        }
+        for (int i = 0; i < 2; i++) {
+            cache.runAutomaton("dog", false, Locale.ROOT, 20000, null);
+        }
+        XCharacterRunAutomaton before = cache.runAutomaton("fish", false, Locale.ROOT, 20000, null);
+        cache.stop();
+        cache.close();
+
+        cache = cache(1024 * 1024, 2, path).start();
+        assertEquals(2, cache.size());
+        XCharacterRunAutomaton cat = cache.runAutomaton("cat", false, Locale.ROOT, 20000, null);
+        assertTrue(cat.run("a cat"));
+        assertFalse(cat.run("a dog"));
+        assertEquals(2, cache.size());
+        assertEquals(before, cache.runAutomaton("fish", false, Locale.ROOT, 20000, null));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void ignoresCorruptFile() throws IOException {
+        Path path = newTempDir().toPath().resolve("compiled");
+        CompiledRegexCache cache = cache(1024 * 1024, 100, path).start();
+        cache.runAutomaton("cat", false, Locale.ROOT, 20000, null);
+        cache.stop();
+
+        byte[] bytes = Files.readAllBytes(path.resolve(CompiledRegexCache.FILE_NAME));
+        int corrupt = between(0, bytes.length - 1);
+        bytes[corrupt] = (byte) (bytes[corrupt] ^ 0xFF);
+        try (OutputStream out = Files.newOutputStream(path.resolve(CompiledRegexCache.FILE_NAME))) {
+            out.write(bytes);
+        }
+
+        cache = cache(1024 * 1024, 100, path).start();
+        assertEquals(0, cache.size());
+        assertTrue(cache.runAutomaton("cat", false, Locale.ROOT, 20000, null).run("a cat"));
+    }
+
+    private CompiledRegexCache cache(long size, int persist, Path path) {
+        return new CompiledRegexCache(ImmutableSettings.EMPTY, new ByteSizeValue(size), persist, path);
+    }
+}
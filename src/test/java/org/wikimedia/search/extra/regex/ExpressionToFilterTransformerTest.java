@@ -0,0 +1,101 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queries.BooleanFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.ExpressionToFilterTransformer.SharedFilter;
+import org.wikimedia.search.extra.regex.expression.And;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.ExpressionFactory;
+import org.wikimedia.search.extra.regex.expression.False;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.regex.expression.True;
+
+public class ExpressionToFilterTransformerTest extends ElasticsearchTestCase {
+    private final Expression<String> bOrC = new Or<String>(Leaf.leaves("b", "c"));
+    private final Expression<String> expression = new Or<String>(
+            new And<String>(new Leaf<>("a"), bOrC),
+            new And<String>(new Leaf<>("d"), new Or<String>(Leaf.leaves("c", "b"))));
+
+    @Test
+    public void sharesRepeatedSubExpressions() {
+        SharedFilter filter = (SharedFilter) expression.transform(new ExpressionToFilterTransformer("ngram"));
+        assertFalse(filter.shared());
+        BooleanFilter or = (BooleanFilter) filter.filter();
+        BooleanFilter first = (BooleanFilter) ((SharedFilter) or.clauses().get(0).getFilter()).filter();
+        BooleanFilter second = (BooleanFilter) ((SharedFilter) or.clauses().get(1).getFilter()).filter();
+        Filter firstBOrC = findShared(first);
+        assertTrue(firstBOrC + " should be shared", ((SharedFilter) firstBOrC).shared());
+        assertSame(firstBOrC, findShared(second));
+    }
+
+    @Test
+    public void sharedFiltersFindTheRightDocuments() throws IOException {
+        try (Directory dir = new RAMDirectory()) {
+            IndexWriterConfig config = new IndexWriterConfig(Lucene.VERSION, new WhitespaceAnalyzer(Lucene.VERSION));
+            try (IndexWriter writer = new IndexWriter(dir, config)) {
+                addDoc(writer, "a b");
+                addDoc(writer, "d c");
+                // Spread the documents across segments to check the cache per segment
+                writer.commit();
+                addDoc(writer, "a");
+                addDoc(writer, "b c");
+                addDoc(writer, "a c d");
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                Filter filter = expression.transform(new ExpressionToFilterTransformer("ngram"));
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(3, searcher.search(new ConstantScoreQuery(filter), 10).totalHits);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void overBudgetExpressionsBecomeFilters() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>(0);
+        Expression<String> overBudget = factory.or(factory.and(new Leaf<>("a"), True.<String> instance()),
+                factory.and(new Leaf<>("b"), False.<String> instance()), new Leaf<>("c")).simplify();
+        assertNotNull(SourceRegexFilter.expressionToFilter(overBudget, "ngram"));
+
+        overBudget = factory.or(factory.and(new Leaf<>("a"), new Leaf<>("b")), True.<String> instance()).simplify();
+        assertSame(Queries.MATCH_ALL_FILTER, SourceRegexFilter.expressionToFilter(overBudget, "ngram"));
+    }
+
+    /**
+     * Find the clause of an and that was built from bOrC.
+     */
+    private Filter findShared(BooleanFilter and) {
+        for (int i = 0; i < and.clauses().size(); i++) {
+            Filter clause = and.clauses().get(i).getFilter();
+            if (clause instanceof SharedFilter) {
+                return clause;
+            }
+        }
+        throw new AssertionError("No shared filter in " + and);
+    }
+
+    private void addDoc(IndexWriter writer, String ngrams) throws IOException {
+        Document doc = new Document();
+        doc.add(new TextField("ngram", ngrams, Field.Store.NO));
+        writer.addDocument(doc);
+    }
+}
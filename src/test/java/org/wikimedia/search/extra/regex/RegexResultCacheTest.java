@@ -0,0 +1,163 @@
+package org.wikimedia.search.extra.regex;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.WAH8DocIdSet;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.util.FieldValueCache;
+import org.wikimedia.search.extra.util.FieldValues;
+
+public class RegexResultCacheTest extends ElasticsearchTestCase {
+    private final RegexResultCache.RegexKey key = new RegexResultCache.RegexKey("foo", FieldValues.loadFromSource(), "Te.t", false,
+            Locale.ROOT);
+
+    @Test
+    public void disabledByDefault() {
+        assertFalse(new RegexResultCache(new ByteSizeValue(0), 10000).enabled());
+    }
+
+    @Test
+    public void cachesUntilSegmentCloses() throws IOException {
+        RegexResultCache cache = new RegexResultCache(new ByteSizeValue(1024 * 1024), 10000);
+        try (Directory dir = new RAMDirectory()) {
+            indexDoc(dir);
+            DirectoryReader reader = DirectoryReader.open(dir);
+            AtomicReader segment = reader.leaves().get(0).reader();
+
+            assertNull(cache.get(segment, key));
+            RegexResultCache.Matches matches = new RegexResultCache.Matches(new WAH8DocIdSet.Builder().add(0).build(), 1, 0);
+            cache.put(segment, key, matches);
+            assertSame(matches, cache.get(segment, key));
+            assertEquals(1, cache.stats().hitCount());
+            assertEquals(1, cache.size());
+
+            reader.close();
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void keyedOnEverythingThatChangesMatches() {
+        FieldValues.Loader source = FieldValues.loadFromSource();
+        assertEquals(key, new RegexResultCache.RegexKey("foo", source, "te.t", false, Locale.ROOT));
+        assertEquals(key, new RegexResultCache.RegexKey("foo", FieldValues.cache(source, new FieldValueCache(new ByteSizeValue(0))),
+                "te.t", false, Locale.ROOT));
+        assertNotEquals(key, new RegexResultCache.RegexKey("foo", source, "Te.t", true, Locale.ROOT));
+        assertNotEquals(key, new RegexResultCache.RegexKey("bar", source, "Te.t", false, Locale.ROOT));
+        assertNotEquals(key, new RegexResultCache.RegexKey("foo", FieldValues.loadFromStoredField(), "Te.t", false, Locale.ROOT));
+        assertNotEquals(key, new RegexResultCache.RegexKey("foo", source, "Te.t", false, Locale.ENGLISH));
+    }
+
+    @Test
+    public void boundedBySize() throws IOException {
+        RegexResultCache cache = new RegexResultCache(new ByteSizeValue(100), 10000);
+        try (Directory dir = new RAMDirectory()) {
+            indexDoc(dir);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                cache.put(segment, key, new RegexResultCache.Matches(new WAH8DocIdSet.Builder().add(0).build(), 1, 0));
+                assertEquals(0, cache.size());
+            }
+        }
+    }
+
+    /**
+     * Readers opened before a delete share the segment's core with readers
+     * opened after it but can still see the deleted document.
+     */
+    @Test
+    public void olderReadersDontLoseDeletedMatches() throws IOException {
+        RegexResultCache cache = new RegexResultCache(new ByteSizeValue(1024 * 1024), 10000);
+        try (Directory dir = new RAMDirectory();
+                IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+            indexDocs(writer);
+            try (DirectoryReader older = DirectoryReader.open(writer, true)) {
+                writer.deleteDocuments(new Term("id", "2"));
+                try (DirectoryReader newer = DirectoryReader.openIfChanged(older, writer, true)) {
+                    AtomicReaderContext olderSegment = older.leaves().get(0);
+                    AtomicReaderContext newerSegment = newer.leaves().get(0);
+                    assertSame(olderSegment.reader().getCoreCacheKey(), newerSegment.reader().getCoreCacheKey());
+
+                    assertEquals(1, matches(cache, newerSegment, "te.t", null));
+                    assertEquals(1, cache.size());
+                    assertEquals(2, matches(cache, olderSegment, "te.t", null));
+                    assertEquals(1, matches(cache, newerSegment, "te.t", null));
+                    assertEquals(2, matches(cache, olderSegment, "te.t", null));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void olderReadersDontUseNewerPreviousMatches() throws IOException {
+        RegexResultCache cache = new RegexResultCache(new ByteSizeValue(1024 * 1024), 10000);
+        try (Directory dir = new RAMDirectory();
+                IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+            indexDocs(writer);
+            try (DirectoryReader older = DirectoryReader.open(writer, true)) {
+                writer.deleteDocuments(new Term("id", "2"));
+                try (DirectoryReader newer = DirectoryReader.openIfChanged(older, writer, true)) {
+                    AtomicReaderContext olderSegment = older.leaves().get(0);
+                    AtomicReaderContext newerSegment = newer.leaves().get(0);
+
+                    assertEquals(1, matches(cache, newerSegment, "t..t", null));
+                    assertEquals(2, matches(cache, olderSegment, "te.t", "t..t"));
+                    assertEquals(1, matches(cache, newerSegment, "tes?t", "t..t"));
+                    assertEquals(2, matches(cache, olderSegment, "tes?t", "t..t"));
+                }
+            }
+        }
+    }
+
+    private void indexDocs(IndexWriter writer) throws IOException {
+        for (String id : new String[] {"1", "2"}) {
+            Document doc = new Document();
+            doc.add(new StringField("id", id, Field.Store.NO));
+            doc.add(new StoredField("foo", "test"));
+            writer.addDocument(doc);
+        }
+    }
+
+    private int matches(RegexResultCache cache, AtomicReaderContext segment, String regex, String previousRegex)
+            throws IOException {
+        SourceRegexFilter filter = new SourceRegexFilter("foo", FieldValues.loadFromStoredField(), regex,
+                new SourceRegexFilter.Options().previousRegex(previousRegex), null, null, null, cache);
+        DocIdSet matches = filter.getDocIdSet(segment, segment.reader().getLiveDocs());
+        DocIdSetIterator iterator = matches == null ? null : matches.iterator();
+        if (iterator == null) {
+            return 0;
+        }
+        int count = 0;
+        while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            count++;
+        }
+        return count;
+    }
+
+    private void indexDoc(Directory dir) throws IOException {
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+            Document doc = new Document();
+            doc.add(new StoredField("foo", "test"));
+            writer.addDocument(doc);
+        }
+    }
+}
@@ -8,21 +8,42 @@ import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFail
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.base.Joiner;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.RestStatus;
 import org.junit.Test;
 import org.wikimedia.search.extra.AbstractPluginIntegrationTest;
+import org.wikimedia.search.extra.regex.stats.NodeRegexStats;
+import org.wikimedia.search.extra.regex.stats.RegexProfile;
+import org.wikimedia.search.extra.regex.stats.RegexStatsRequestBuilder;
 
 public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
+    /**
+     * Randomly determinize on more than one thread and randomly cache.
+     */
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return ImmutableSettings.builder().put(super.nodeSettings(nodeOrdinal))
+                .put(SourceRegexFilterParser.DETERMINIZE_THREADS_SETTING, between(1, 3))
+                .put(CompiledRegexCache.SIZE_SETTING, randomFrom("0b", "1kb", "10mb"))
+                .put(RegexResultCache.SIZE_SETTING, randomFrom("0b", "1kb", "10mb")).build();
+    }
+
     @Test
     public void basicUnacceleratedRegex() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -41,6 +62,72 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         assertHitCount(response, 0);
     }
 
+    @Test
+    public void resultsStayCorrectAcrossRefreshes() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "test"), doc("chaff", "chaff"));
+        assertSearchHits(search(filter("t..t")).get(), "findme");
+
+        indexRandom(true, doc("new", "a new test"));
+        assertSearchHits(search(filter("t..t")).get(), "findme", "new");
+
+        client().prepareDelete("test", "test", "findme").get();
+        refresh();
+        assertSearchHits(search(filter("t..t")).get(), "new");
+    }
+
+    @Test
+    public void previousRegex() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("test", "test"), doc("text", "text"), doc("tent", "a tent"), doc("chaff", "chaff"));
+        assertSearchHits(search(filter("t..t")).get(), "test", "text", "tent");
+        // Narrowed so only the previous matches are checked
+        assertSearchHits(search(filter("te.t").previousRegex("t..t")).get(), "test", "text", "tent");
+        assertSearchHits(search(filter("tes?t").previousRegex("t..t")).get(), "test");
+
+        // Deleted docs are still cached as previous matches but aren't found
+        client().prepareDelete("test", "test", "text").get();
+        indexRandom(true, doc("new", "a new text"));
+        assertSearchHits(search(filter("te[sx]t").previousRegex("t..t")).get(), "test", "new");
+
+        // Broadened so the previous matches don't bound the results
+        assertSearchHits(search(filter("t.*t").previousRegex("tes?t")).get(), "test", "tent", "new");
+        assertSearchHits(search(filter("chaff").previousRegex("t..t")).get(), "chaff");
+    }
+
+    @Test
+    public void previousRegexLimitsVerification() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        // Index the chaff first so it comes before the matches in each shard
+        indexChaff(200);
+        indexRandom(true, doc("test", "test"), doc("text", "text"));
+        assertSearchHits(search(filter("t..t")).get(), "test", "text");
+        if (!resultCacheEnabled()) {
+            // previous_regex needs the cached matches
+            return;
+        }
+        // te.t can't be accelerated so every document is a candidate. Two
+        // inspections are only enough if just the previous matches are
+        // verified.
+        assertSearchHits(search(filter("te.t").previousRegex("t..t").maxInspect(2)).get(), "test", "text");
+        // The same regex without previous_regex runs out of inspections on
+        // the chaff. It is spelled differently so it isn't a cache hit.
+        assertThat(search(filter("t[e].t").maxInspect(2)).get().getHits().getTotalHits(), lessThan(2L));
+    }
+
+    @Test
+    public void refines() {
+        assertTrue(SourceRegexFilter.refines("test", "t..t", true, Locale.ROOT, 10000, null));
+        assertTrue(SourceRegexFilter.refines("te[sx]+t", "t.*t", true, Locale.ROOT, 10000, null));
+        assertTrue(SourceRegexFilter.refines("TEST", "t..t", false, Locale.ROOT, 10000, null));
+        assertTrue(SourceRegexFilter.refines("#", "test", true, Locale.ROOT, 10000, null));
+        assertFalse(SourceRegexFilter.refines("t..t", "test", true, Locale.ROOT, 10000, null));
+        assertFalse(SourceRegexFilter.refines("TEST", "t..t", true, Locale.ROOT, 10000, null));
+        assertFalse(SourceRegexFilter.refines("test", "#", true, Locale.ROOT, 10000, null));
+        // Too complex to tell
+        assertFalse(SourceRegexFilter.refines("test", "t.*t", true, Locale.ROOT, 1, null));
+    }
+
     @Test
     public void regexMatchesWholeString() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -113,6 +200,65 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         assertHitCount(response, 0);
     }
 
+    @Test
+    public void selectRareNgrams() throws IOException, InterruptedException, ExecutionException {
+        setup();
+        indexRandom(true, doc("findme", "common words and a rare zyzzyva"), doc("common", "common words and a rare thing"));
+        SearchResponse response = search(filter("common words and a rare z.*").maxNgramsExtracted(2).selectRareNgrams(true)).get();
+        assertSearchHits(response, "findme");
+        response = search(filter("common words and a rare z.*").maxNgramsExtracted(2).selectRareNgrams(false)).get();
+        assertSearchHits(response, "findme");
+    }
+
+    @Test
+    public void caseSensitiveNgramField() throws IOException, InterruptedException, ExecutionException {
+        setup();
+        indexRandom(true, doc("findme", "The Hero"), doc("lower", "the hero"), doc("upper", "THE HERO"));
+        // Only the case exact document is a candidate so inspecting one
+        // document is enough to find it
+        SearchResponse response = search(filter("Hero").caseSensitive(true).ngramFieldCaseSensitive("test.trigram_case").maxInspect(1))
+                .get();
+        assertSearchHits(response, "findme");
+        // Case insensitive regexes ignore the case sensitive field
+        response = search(filter("Hero").ngramFieldCaseSensitive("test.trigram_case")).get();
+        assertSearchHits(response, "findme", "lower", "upper");
+        // And the signature still works with lowercased ngrams
+        response = search(filter("The Hero").caseSensitive(true).ngramFieldCaseSensitive("test.trigram_case").maxNgramsExtracted(1)
+                .signatureField("test.trigram_signature")).get();
+        assertSearchHits(response, "findme");
+    }
+
+    @Test
+    public void sparseNgrams() throws IOException, InterruptedException, ExecutionException {
+        setup();
+        indexRandom(true, doc("findme", "The Hero of Legend rode out"), doc("almost", "the hero of leg end"), doc("other", "chaff"));
+        for (String regex : new String[] {"hero of legend", "her(o|a) of leg.nd", "HERO OF LEGEND", "o of legend", "gend r"}) {
+            SearchResponse response = search(new SourceRegexFilterBuilder("test", regex).ngramField("test.sparse").sparseNgrams(true)
+                    .gramSize(6).rejectUnaccelerated(true)).get();
+            assertSearchHits(response, "findme");
+        }
+    }
+
+    @Test
+    public void signatureRejectsCandidates() throws IOException, InterruptedException, ExecutionException {
+        setup();
+        indexRandom(true, doc("findme", "the quick brown fox"), doc("almost", "the quick brown cat"),
+                doc("other", "the quick brown fox jumped"));
+        // Only extract a single ngram for the term filters so everything is a
+        // candidate and the signature has to reject "almost". Rejecting by
+        // signature doesn't count against maxInspect.
+        SearchResponse response = search(filter("quick brown fox").maxNgramsExtracted(1).maxInspect(2)
+                .signatureField("test.trigram_signature")).get();
+        assertSearchHits(response, "findme", "other");
+        response = search(filter("quick brown fox").maxNgramsExtracted(1).signatureField("test.trigram_signature")
+                .maxSignatureNgrams(1)).get();
+        assertSearchHits(response, "findme", "other");
+        // The signature works without the ngram field too
+        response = search(new SourceRegexFilterBuilder("test", "brown cat").maxInspect(1)
+                .signatureField("test.trigram_signature")).get();
+        assertSearchHits(response, "almost");
+    }
+
     @Test
     public void maxInspectLimitsNumberOfMatches() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -127,6 +273,13 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         indexRandom(true, builders);
         response = search(filter("test").maxInspect(10)).get();
         assertHitCount(response, 10);
+
+        // Matches cached by a search that could inspect everything still
+        // count against maxInspect
+        response = search(filter("test")).get();
+        assertHitCount(response, 101);
+        response = search(filter("test").maxInspect(10)).get();
+        assertHitCount(response, 10);
     }
 
     @Test
@@ -185,6 +338,49 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         assertSearchHits(response, "findme");
     }
 
+    @Test
+    public void bigAlternation() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            words.add(randomAsciiOfLength(6).toLowerCase(Locale.ROOT));
+        }
+        indexRandom(true, doc("findme", "the word is " + randomFrom(words) + " ok"), doc("nope", "nothing to see"));
+        SearchResponse response = search(filter("(" + Joiner.on('|').join(words) + ")")).get();
+        assertSearchHits(response, "findme");
+    }
+
+    @Test
+    public void profile() throws Exception {
+        setup();
+        indexRandom(true, doc("findme", "I have the profile in me."), doc("chaff", "I have the test in me."));
+        final String regex = "prof[aeiou]le in";
+        SearchResponse response = search(filter(regex).profile(true)).get();
+        assertSearchHits(response, "findme");
+        // The profile is recorded when the search context is released which
+        // might be just after the response comes back.
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                RegexProfile found = null;
+                for (NodeRegexStats node : new RegexStatsRequestBuilder(client().admin().cluster()).get()) {
+                    for (RegexProfile profile : node.recentProfiles()) {
+                        if (profile.regex().equals(regex)) {
+                            found = profile;
+                        }
+                    }
+                }
+                assertNotNull(found);
+                assertEquals(1, found.matched());
+                assertEquals(1, found.inspected());
+                assertEquals(1, found.candidates());
+                assertThat(found.expressionSize(), greaterThan(0));
+                assertThat(found.charsScanned(), greaterThan(0L));
+                assertThat(found.shard(), startsWith("test/"));
+            }
+        });
+    }
+
     @Test
     public void changingGramSize() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -251,6 +447,15 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         logger.info("Accelerated:  {}", (System.currentTimeMillis() - start) / rounds);
     }
 
+    private boolean resultCacheEnabled() {
+        for (RegexResultCache cache : internalCluster().getInstances(RegexResultCache.class)) {
+            if (!cache.enabled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private IndexRequestBuilder doc(String id, String fieldValue) {
         return client().prepareIndex("test", "test", id).setSource("test", fieldValue);
     }
@@ -288,6 +493,12 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         buildSubfield(mapping, "bigram");
         buildSubfield(mapping, "trigram");
         buildSubfield(mapping, "quadgram");
+        buildSubfield(mapping, "sparse");
+        buildSubfield(mapping, "trigram_case");
+        mapping.startObject("trigram_signature");
+        mapping.field("type", "ngram_signature");
+        mapping.field("analyzer", "trigram");
+        mapping.endObject();
         mapping.endObject();
         mapping.endObject();
 
@@ -298,11 +509,20 @@ public class SourceRegexFilterTest extends AbstractPluginIntegrationTest {
         buildNgramAnalyzer(settings, "bigram");
         buildNgramAnalyzer(settings, "trigram");
         buildNgramAnalyzer(settings, "quadgram");
+        buildNgramAnalyzer(settings, "sparse");
+        settings.startObject("trigram_case");
+        settings.field("type", "custom");
+        settings.field("tokenizer", "trigram");
+        settings.endObject();
         settings.endObject();
         settings.startObject("tokenizer");
         buildNgramTokenizer(settings, "bigram", 2);
         buildNgramTokenizer(settings, "trigram", 3);
         buildNgramTokenizer(settings, "quadgram", 4);
+        settings.startObject("sparse");
+        settings.field("type", "sparse_gram");
+        settings.field("max_gram", 6);
+        settings.endObject();
         settings.endObject();
         settings.endObject().endObject();
 //        System.err.println(settings.string());
@@ -0,0 +1,135 @@
+package org.wikimedia.search.extra.regex;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.FilterBuilders.wrapperFilter;
+import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFailures;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+import org.wikimedia.search.extra.AbstractPluginIntegrationTest;
+
+public class SourceRegexSetFilterTest extends AbstractPluginIntegrationTest {
+    @Test
+    public void matchesAnyRegex() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "I have a cat."), doc("dog", "I have a dog."), doc("both", "I have a cat and a dog."),
+                doc("neither", "I have a fish."));
+        SearchResponse response = search(filter().regex("cat", "c[aeiou]t").regex("dog", "d.g")).get();
+        assertSearchHits(response, "cat", "dog", "both");
+    }
+
+    @Test
+    public void reportsMatchedRegexes() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "I have a cat."), doc("dog", "I have a dog."), doc("both", "I have a cat and a dog."));
+        SearchResponse response = search(filter().regex("cat", "c[aeiou]t").regex("dog", "d.g")).get();
+        assertHitCount(response, 3);
+        for (SearchHit hit : response.getHits()) {
+            switch (hit.getId()) {
+            case "cat":
+                assertThat(hit.getMatchedQueries(), arrayContainingInAnyOrder("cat"));
+                break;
+            case "dog":
+                assertThat(hit.getMatchedQueries(), arrayContainingInAnyOrder("dog"));
+                break;
+            case "both":
+                assertThat(hit.getMatchedQueries(), arrayContainingInAnyOrder("cat", "dog"));
+                break;
+            default:
+                fail("Unexpected hit:  " + hit.getId());
+            }
+        }
+    }
+
+    @Test
+    public void caseSensitiveMatching() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "I have the test in me."));
+        SearchResponse response = search(filter().regex("lower", "i h[ai]ve").regex("none", "TEST").caseSensitive(true)).get();
+        assertHitCount(response, 0);
+        response = search(filter().regex("upper", "I h[ai]ve").regex("none", "TEST").caseSensitive(true)).get();
+        assertSearchHits(response, "findme");
+    }
+
+    @Test
+    public void rejectUnacceleratedRejectsIfAnyRegexIsUnaccelerated() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "test"));
+        assertFailures(search(filter().regex("good", "test").regex("bad", "t.p").rejectUnaccelerated(true)),
+                RestStatus.INTERNAL_SERVER_ERROR, containsString("Unable to accelerate"));
+    }
+
+    @Test
+    public void rejectsRegexesThatArentStrings() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "test"));
+        XContentBuilder filter = jsonBuilder().startObject().startObject("source_regex_set");
+        filter.field("field", "test").field("ngram_field", "test.trigram");
+        filter.startObject("regexes").startObject("nested").field("regex", "test").endObject().endObject();
+        filter.endObject().endObject();
+        assertFailures(client().prepareSearch("test").setTypes("test").setQuery(filteredQuery(matchAllQuery(), wrapperFilter(filter.string()))),
+                RestStatus.BAD_REQUEST, containsString("must be strings"));
+    }
+
+    private IndexRequestBuilder doc(String id, String fieldValue) {
+        return client().prepareIndex("test", "test", id).setSource("test", fieldValue);
+    }
+
+    private SourceRegexSetFilterBuilder filter() {
+        return new SourceRegexSetFilterBuilder("test").ngramField("test.trigram");
+    }
+
+    private SearchRequestBuilder search(SourceRegexSetFilterBuilder builder) {
+        return client().prepareSearch("test").setTypes("test").setQuery(filteredQuery(matchAllQuery(), builder));
+    }
+
+    private void setup() throws IOException {
+        XContentBuilder mapping = jsonBuilder().startObject();
+        mapping.startObject("test").startObject("properties");
+        mapping.startObject("test");
+        mapping.field("type", "string");
+        mapping.startObject("fields");
+        mapping.startObject("trigram");
+        mapping.field("type", "string");
+        mapping.field("analyzer", "trigram");
+        mapping.endObject();
+        mapping.endObject();
+        mapping.endObject();
+
+        XContentBuilder settings = jsonBuilder().startObject().startObject("index");
+        settings.field("number_of_shards", 1);
+        settings.startObject("analysis");
+        settings.startObject("analyzer");
+        settings.startObject("trigram");
+        settings.field("type", "custom");
+        settings.field("tokenizer", "trigram");
+        settings.field("filter", new String[] {"lowercase"});
+        settings.endObject();
+        settings.endObject();
+        settings.startObject("tokenizer");
+        settings.startObject("trigram");
+        settings.field("type", "nGram");
+        settings.field("min_gram", 3);
+        settings.field("max_gram", 3);
+        settings.endObject();
+        settings.endObject();
+        settings.endObject().endObject();
+        assertAcked(prepareCreate("test").setSettings(settings).addMapping("test", mapping));
+        ensureYellow();
+    }
+}
@@ -0,0 +1,114 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.Test;
+import org.wikimedia.search.extra.AbstractPluginIntegrationTest;
+
+public class DictionaryRegexFilterTest extends AbstractPluginIntegrationTest {
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return ImmutableSettings.builder().put(super.nodeSettings(nodeOrdinal))
+                .put(TermFSTCache.SIZE_SETTING, randomFrom("0b", "100b", "10mb")).build();
+    }
+
+    @Test
+    public void matchesWholeTitle() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "Cat"), doc("catalog", "Catalog"), doc("dog", "Dog"), doc("hotdog", "Hot dog"));
+        assertSearchHits(search("Cat"), "cat");
+        assertSearchHits(search("Cat.*"), "cat", "catalog");
+        assertSearchHits(search(".*[dD]og"), "dog", "hotdog");
+        assertSearchHits(search("(Cat|Dog)"), "cat", "dog");
+        assertHitCount(search("cat"), 0);
+        assertHitCount(search("Fish.*"), 0);
+    }
+
+    @Test
+    public void matchesNonAscii() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cafe", "Café"), doc("cafes", "Cafés"), doc("snowman", "☃"));
+        assertSearchHits(search("Caf."), "cafe");
+        assertSearchHits(search("Caf[é]s?"), "cafe", "cafes");
+        assertSearchHits(search("."), "snowman");
+    }
+
+    @Test
+    public void multipleSegments() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(false, doc("cat", "Cat"));
+        refresh();
+        indexRandom(false, doc("catalog", "Catalog"));
+        refresh();
+        indexRandom(false, doc("dog", "Dog"));
+        refresh();
+        assertSearchHits(search("Cat.*"), "cat", "catalog");
+    }
+
+    @Test
+    public void termRegexAlias() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "Cat"), doc("catalog", "Catalog"), doc("dog", "Dog"));
+        SearchResponse response = client().prepareSearch("test").setTypes("test")
+                .setQuery("{\"filtered\": {\"filter\": {\"term_regex\": {\"field\": \"title\", \"regex\": \"Cat.*\"}}}}").get();
+        assertSearchHits(response, "cat", "catalog");
+    }
+
+    @Test
+    public void topN() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        // Index without random refreshes so everything ends up in one segment
+        client().prepareIndex("test", "test", "cat").setSource("title", "Cat", "popularity", 1).get();
+        client().prepareIndex("test", "test", "catalog").setSource("title", "Catalog", "popularity", 5).get();
+        client().prepareIndex("test", "test", "cathedral").setSource("title", "Cathedral", "popularity", 3).get();
+        client().prepareIndex("test", "test", "dog").setSource("title", "Dog", "popularity", 10).get();
+        refresh();
+        assertSearchHits(search(new DictionaryRegexFilterBuilder("title", "Cat.*").topN(2, "popularity")), "catalog", "cathedral");
+        assertSearchHits(search(new DictionaryRegexFilterBuilder("title", ".*a.*").topN(1, "popularity")), "catalog");
+        assertSearchHits(search(new DictionaryRegexFilterBuilder("title", ".*").topN(1, "popularity")), "dog");
+    }
+
+    private SearchResponse search(String regex) {
+        return search(new DictionaryRegexFilterBuilder("title", regex));
+    }
+
+    private SearchResponse search(DictionaryRegexFilterBuilder builder) {
+        return client().prepareSearch("test").setTypes("test").setQuery(filteredQuery(matchAllQuery(), builder)).get();
+    }
+
+    private IndexRequestBuilder doc(String id, String title) {
+        return client().prepareIndex("test", "test", id).setSource("title", title);
+    }
+
+    private void setup() throws IOException {
+        XContentBuilder mapping = jsonBuilder().startObject();
+        mapping.startObject("test").startObject("properties");
+        mapping.startObject("title");
+        mapping.field("type", "string");
+        mapping.field("index", "not_analyzed");
+        mapping.endObject();
+        mapping.startObject("popularity");
+        mapping.field("type", "long");
+        mapping.endObject();
+        mapping.endObject().endObject().endObject();
+
+        XContentBuilder settings = jsonBuilder().startObject().startObject("index");
+        settings.field("number_of_shards", 1);
+        settings.endObject().endObject();
+        assertAcked(prepareCreate("test").setSettings(settings).addMapping("test", mapping));
+        ensureYellow();
+    }
+}
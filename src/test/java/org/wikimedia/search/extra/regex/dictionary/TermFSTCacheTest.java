@@ -0,0 +1,98 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.XByteRunAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+public class TermFSTCacheTest extends ElasticsearchTestCase {
+    @Test
+    public void cachesUntilSegmentCloses() throws IOException {
+        TermFSTCache cache = new TermFSTCache(new ByteSizeValue(1024 * 1024));
+        assertTrue(cache.enabled());
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, "cat", "dog");
+            DirectoryReader reader = DirectoryReader.open(dir);
+            AtomicReader segment = reader.leaves().get(0).reader();
+
+            FST<Object> fst = cache.fst(segment, "title");
+            assertNotNull(fst);
+            assertSame(fst, cache.fst(segment, "title"));
+            assertNull(cache.fst(segment, "missing"));
+            assertEquals(1, cache.size());
+
+            reader.close();
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void boundedBySize() throws IOException {
+        TermFSTCache cache = new TermFSTCache(new ByteSizeValue(50));
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, "cat", "dog", "fish", "bird");
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                assertNotNull(cache.fst(reader.leaves().get(0).reader(), "title"));
+                assertEquals(0, cache.size());
+            }
+        }
+    }
+
+    @Test
+    public void intersectMatchesRunningEveryTerm() throws IOException {
+        String[] titles = new String[between(1, 500)];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = randomBoolean() ? randomRealisticUnicodeOfCodepointLengthBetween(0, 10) : randomFrom("a", "b", "c", "é")
+                    + randomAsciiOfLengthBetween(0, 6);
+        }
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, titles);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                FST<Object> fst = TermFSTCache.build(segment.terms("title").iterator(null));
+                for (String regex : new String[] { ".*", "a.*", ".*[aeiou]", "[abc][a-m]+", "(b|é).?.?", "", "c|.*x.*" }) {
+                    XByteRunAutomaton automaton = new XByteRunAutomaton(new XRegExp(regex).toAutomaton());
+                    List<BytesRef> expected = new ArrayList<>();
+                    TermsEnum terms = segment.terms("title").iterator(null);
+                    BytesRef term;
+                    while ((term = terms.next()) != null) {
+                        if (automaton.run(term.bytes, term.offset, term.length)) {
+                            expected.add(BytesRef.deepCopyOf(term));
+                        }
+                    }
+                    assertEquals(regex, expected, DictionaryRegexFilter.intersect(fst, automaton));
+                }
+            }
+        }
+    }
+
+    private void index(Directory dir, String... titles) throws IOException {
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+            for (String title : titles) {
+                Document doc = new Document();
+                doc.add(new StringField("title", title, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+    }
+}
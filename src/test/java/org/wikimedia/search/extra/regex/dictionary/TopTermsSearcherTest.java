@@ -0,0 +1,161 @@
+package org.wikimedia.search.extra.regex.dictionary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CollectionUtil;
+import org.apache.lucene.util.automaton.XByteRunAutomaton;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+public class TopTermsSearcherTest extends ElasticsearchTestCase {
+    @Test
+    public void findsUniversalStates() {
+        XByteRunAutomaton automaton = new XByteRunAutomaton(new XRegExp("Cat.*").toAutomaton());
+        TopTermsSearcher searcher = new TopTermsSearcher(automaton);
+        int state = automaton.getInitialState();
+        assertFalse(searcher.isUniversal(state));
+        for (char c : "Cat".toCharArray()) {
+            state = automaton.step(state, c);
+            assertFalse(searcher.isUniversal(state) && c != 't');
+        }
+        assertTrue(searcher.isUniversal(state));
+
+        automaton = new XByteRunAutomaton(new XRegExp("Ca[^é]*").toAutomaton());
+        searcher = new TopTermsSearcher(automaton);
+        state = automaton.step(automaton.step(automaton.getInitialState(), 'C'), 'a');
+        assertFalse(searcher.isUniversal(state));
+    }
+
+    @Test
+    public void matchesSortingEveryTerm() throws IOException {
+        String[] titles = new String[between(1, 500)];
+        long[] weights = new long[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = randomBoolean() ? randomRealisticUnicodeOfCodepointLengthBetween(0, 10) : randomFrom("a", "b", "c", "é")
+                    + randomAsciiOfLengthBetween(0, 6);
+            weights[i] = randomBoolean() ? between(0, 10) : randomLong();
+        }
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, titles, weights);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                FST<Long> fst = TermFSTCache.buildWeighted(segment.terms("title").iterator(null),
+                        segment.getSortedNumericDocValues("weight"));
+                for (String regex : new String[] { ".*", "a.*", ".*[aeiou]", "[abc][a-m]+", "(b|é).?.?", "", "c|.*x.*", "b.*|é" }) {
+                    XByteRunAutomaton automaton = new XByteRunAutomaton(new XRegExp(regex).toAutomaton());
+                    int topN = between(1, 20);
+                    List<BytesRef> expected = expected(titles, weights, automaton, topN);
+                    List<BytesRef> actual = new TopTermsSearcher(automaton).search(fst, topN, segment.terms("title").iterator(null),
+                            segment.getLiveDocs());
+                    assertEquals(regex, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void skipsDeletedTerms() throws IOException {
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, new String[] {"Cat", "Catalog", "Cathedral", "deleted"}, new long[] {1, 2, 3, 4}, "Cathedral");
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                FST<Long> fst = TermFSTCache.buildWeighted(segment.terms("title").iterator(null),
+                        segment.getSortedNumericDocValues("weight"));
+                XByteRunAutomaton automaton = new XByteRunAutomaton(new XRegExp("Cat.*").toAutomaton());
+                List<BytesRef> actual = new TopTermsSearcher(automaton).search(fst, 2, segment.terms("title").iterator(null),
+                        segment.getLiveDocs());
+                assertEquals(2, actual.size());
+                assertEquals(new BytesRef("Catalog"), actual.get(0));
+                assertEquals(new BytesRef("Cat"), actual.get(1));
+            }
+        }
+    }
+
+    @Test
+    public void givesUpWhenTooManyTopTermsAreDeleted() throws IOException {
+        String[] titles = new String[101];
+        long[] weights = new long[titles.length];
+        String[] deleted = new String[titles.length - 1];
+        titles[0] = "Cat";
+        weights[0] = 1;
+        for (int i = 1; i < titles.length; i++) {
+            titles[i] = "Cat" + i;
+            weights[i] = 100 + i;
+            deleted[i - 1] = titles[i];
+        }
+        try (Directory dir = new RAMDirectory()) {
+            index(dir, titles, weights, deleted);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                FST<Long> fst = TermFSTCache.buildWeighted(segment.terms("title").iterator(null),
+                        segment.getSortedNumericDocValues("weight"));
+                XByteRunAutomaton automaton = new XByteRunAutomaton(new XRegExp("Cat.*").toAutomaton());
+                assertNull(new TopTermsSearcher(automaton).search(fst, 1, segment.terms("title").iterator(null),
+                        segment.getLiveDocs()));
+            }
+        }
+    }
+
+    private List<BytesRef> expected(String[] titles, long[] weights, XByteRunAutomaton automaton, int topN) {
+        final Map<BytesRef, Long> best = new TreeMap<>();
+        for (int i = 0; i < titles.length; i++) {
+            BytesRef title = new BytesRef(titles[i]);
+            if (!automaton.run(title.bytes, title.offset, title.length)) {
+                continue;
+            }
+            Long weight = best.get(title);
+            best.put(title, Math.max(weight == null ? 0 : weight, Math.max(0, weights[i])));
+        }
+        List<BytesRef> terms = new ArrayList<>(best.keySet());
+        CollectionUtil.timSort(terms, new Comparator<BytesRef>() {
+            @Override
+            public int compare(BytesRef lhs, BytesRef rhs) {
+                int cmp = Long.compare(best.get(rhs), best.get(lhs));
+                if (cmp != 0) {
+                    return cmp;
+                }
+                return lhs.compareTo(rhs);
+            }
+        });
+        return terms.subList(0, Math.min(topN, terms.size()));
+    }
+
+    private void index(Directory dir, String[] titles, long[] weights, String... deleted) throws IOException {
+        // Not every randomly chosen codec supports sorted numeric doc values
+        IndexWriterConfig config = new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()).setCodec(Codec.forName("Lucene410"));
+        try (IndexWriter writer = new IndexWriter(dir, config)) {
+            for (int i = 0; i < titles.length; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("title", titles[i], Field.Store.NO));
+                doc.add(new SortedNumericDocValuesField("weight", weights[i]));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+            for (String title : deleted) {
+                writer.deleteDocuments(new Term("title", title));
+            }
+        }
+    }
+}
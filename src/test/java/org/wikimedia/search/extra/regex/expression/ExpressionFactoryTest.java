@@ -0,0 +1,82 @@
+package org.wikimedia.search.extra.regex.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExpressionFactoryTest {
+    private final Leaf<String> foo = new Leaf<>("foo");
+    private final Leaf<String> bar = new Leaf<>("bar");
+    private final Leaf<String> baz = new Leaf<>("baz");
+
+    @Test
+    public void interns() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>();
+        And<String> and = factory.and(foo, bar);
+        assertSame(and, factory.and(bar, new Leaf<>("foo")));
+        assertNotEquals(and, factory.or(foo, bar));
+        assertNotEquals(and, factory.and(foo, baz));
+        assertSame(factory.or(and, baz), factory.or(baz, factory.and(foo, bar)));
+        assertEquals(4, factory.size());
+    }
+
+    @Test
+    public void equalToUninterned() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>();
+        And<String> interned = factory.and(foo, bar);
+        And<String> uninterned = new And<>(foo, bar);
+        assertEquals(interned, uninterned);
+        assertEquals(uninterned, interned);
+        assertEquals(interned.hashCode(), uninterned.hashCode());
+        assertNotEquals(interned, new ExpressionFactory<String>().and(foo, baz));
+        assertEquals(interned, new ExpressionFactory<String>().and(foo, bar));
+    }
+
+    @Test
+    public void simplifiedResultsAreInterned() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>();
+        Expression<String> expression = factory.or(factory.and(foo, bar), factory.and(foo, baz));
+        Expression<String> simplified = expression.simplify();
+        assertEquals(new And<>(foo, new Or<>(bar, baz)), simplified);
+        assertSame(factory.and(foo, factory.or(bar, baz)), simplified);
+        assertSame(simplified, expression.simplify());
+        assertSame(simplified, factory.or(factory.and(foo, baz), factory.and(bar, foo)).simplify());
+    }
+
+    @Test
+    public void simplifyIsMemoizedWithoutFactory() {
+        Expression<String> expression = new Or<>(new And<>(foo, bar), new And<>(foo, baz));
+        Expression<String> simplified = expression.simplify();
+        assertNotSame(expression, simplified);
+        assertSame(simplified, expression.simplify());
+    }
+
+    @Test
+    public void boundsSimplification() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>(0);
+        Expression<String> expression = factory.or(factory.and(foo, bar), factory.and(foo, baz));
+        // Out of budget so foo isn't factored out
+        assertSame(expression, expression.simplify());
+    }
+
+    @Test
+    public void foldsConstantsOverBudget() {
+        ExpressionFactory<String> factory = new ExpressionFactory<>(0);
+        Expression<String> expression = factory.or(factory.and(foo, True.<String> instance()), baz);
+        assertEquals(new Or<>(foo, baz), expression.simplify());
+
+        expression = factory.or(factory.and(foo, bar), factory.and(baz, False.<String> instance()));
+        assertEquals(new And<>(foo, bar), expression.simplify());
+
+        expression = factory.or(factory.and(foo, bar), True.<String> instance());
+        assertTrue(expression.simplify().alwaysTrue());
+
+        factory = new ExpressionFactory<>();
+        expression = factory.or(factory.and(foo, True.<String> instance()), baz);
+        assertEquals(new Or<>(foo, baz), expression.simplify());
+    }
+}
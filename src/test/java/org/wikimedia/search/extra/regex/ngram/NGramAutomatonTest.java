@@ -2,6 +2,8 @@ package org.wikimedia.search.extra.regex.ngram;
 
 import static org.wikimedia.search.extra.regex.expression.Leaf.leaves;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.lucene.util.automaton.XAutomaton;
 import org.apache.lucene.util.automaton.XAutomatonTestUtil;
 import org.apache.lucene.util.automaton.XRegExp;
@@ -166,6 +168,58 @@ public class NGramAutomatonTest extends ElasticsearchTestCase {
         assertExpression("te.*me", 2, new And<String>(leaves("te", "me")));
     }
 
+    /**
+     * Grams too long to pack into a long go through the prefix dictionary.
+     */
+    @Test
+    public void longGrams() {
+        assertExpression("abcdef", 5, new And<String>(leaves("abcde", "bcdef")));
+        assertExpression("(abcde|bcdef)g", 5, new Or<String>(
+                new And<String>(leaves("abcde", "bcdeg")),
+                new And<String>(leaves("bcdef", "cdefg"))));
+    }
+
+    @Test
+    public void unigrams() {
+        assertExpression("ab[cd]", 1, new And<String>(
+                new Leaf<>("a"), new Leaf<>("b"), new Or<String>(leaves("c", "d"))));
+    }
+
+    @Test
+    public void dot() {
+        NGramAutomaton ngramAutomaton = new NGramAutomaton(new XRegExp("a[^b]c d").toAutomaton(), 3, 4, 10000, 500);
+        String dot = ngramAutomaton.toDot();
+        assertTrue(dot, dot.contains("a__2 -> __c3\n"));
+        assertTrue(dot, dot.contains("c___4 -> ___d5 [label=\"c_d\"]\n"));
+    }
+
+    /**
+     * Building the expression for a long chain of states shouldn't need a
+     * stack frame per state.
+     */
+    @Test
+    public void longChain() throws InterruptedException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            b.append("abcdefghij");
+        }
+        final XAutomaton automaton = new XRegExp(b.toString()).toAutomaton();
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(new NGramAutomaton(automaton, 3, 4, 10000, 10000).expression().simplify());
+                } catch (Throwable t) {
+                    result.set(t);
+                }
+            }
+        }, "long chain", 128 * 1024);
+        thread.start();
+        thread.join();
+        assertEquals(new And<String>(leaves("abc", "bcd", "cde", "def", "efg", "fgh", "ghi", "hij", "ija", "jab")), result.get());
+    }
+
     @Test(expected=XTooComplexToDeterminizeException.class)
     public void tooBig() {
         assertTrigramExpression("\\[\\[(Datei|File|Bild|Image):[^]]*alt=[^]|}]{50,200}",
@@ -238,8 +292,8 @@ public class NGramAutomatonTest extends ElasticsearchTestCase {
 //         System.err.println(ngramAutomaton.toDot());
         Expression<String> expression = ngramAutomaton.expression();
 //         System.err.println(expression);
-        expression = expression.simplify();
-//         System.err.println(expression);
+        // States simplify their expressions as they are built
+        assertEquals(expression, expression.simplify());
         if (expected != null) {
             // Null means skip the test here.
             assertEquals(expected, expression);
@@ -2,12 +2,16 @@ package org.wikimedia.search.extra.regex.ngram;
 
 import static org.wikimedia.search.extra.regex.expression.Leaf.leaves;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.lucene.util.automaton.XAutomaton;
 import org.apache.lucene.util.automaton.XRegExp;
 import org.elasticsearch.test.ElasticsearchTestCase;
 import org.junit.Test;
 import org.wikimedia.search.extra.regex.expression.And;
 import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
 import org.wikimedia.search.extra.regex.expression.True;
 import org.wikimedia.search.extra.regex.ngram.NGramExtractor;
 
@@ -38,4 +42,49 @@ public class NGramExtractorTest extends ElasticsearchTestCase {
                 new And<String>(leaves("her", "ero", "ro ")),
                 gram.extract(automaton));
     }
+
+    @Test
+    public void maxNgramsKeepsRarest() {
+        NGramExtractor gram = new NGramExtractor(3, 4, 10000, 3, frequencies("leg", 1, "gen", 2, "end", 3));
+        XAutomaton automaton = new XRegExp("hero of legend").toAutomaton();
+        assertEquals(new And<String>(leaves("leg", "gen", "end")), gram.extract(automaton));
+    }
+
+    @Test
+    public void maxNgramsSplitsBetweenOptions() {
+        NGramFrequencies frequencies = frequencies("def", 1, "cde", 2, "jkl", 1, "ijk", 2);
+        XAutomaton automaton = new XRegExp("(abcdef)|(ghijkl)").toAutomaton();
+        NGramExtractor gram = new NGramExtractor(3, 4, 10000, 4, frequencies);
+        assertEquals(new Or<String>(
+                new And<String>(leaves("cde", "def")),
+                new And<String>(leaves("ijk", "jkl"))), gram.extract(automaton));
+        // Not enough to keep something from both options
+        gram = new NGramExtractor(3, 4, 10000, 1, frequencies);
+        assertEquals(True.<String> instance(), gram.extract(automaton));
+    }
+
+    @Test
+    public void maxNgramsNotHitKeepsEverything() {
+        NGramExtractor gram = new NGramExtractor(3, 4, 10000, 100, frequencies());
+        XAutomaton automaton = new XRegExp("hero").toAutomaton();
+        assertEquals(new And<String>(leaves("her", "ero")), gram.extract(automaton));
+    }
+
+    /**
+     * Frequencies from pairs of ngram and frequency. Everything else has a
+     * frequency of 100.
+     */
+    private NGramFrequencies frequencies(Object... ngramsAndFrequencies) {
+        final Map<String, Long> frequencies = new HashMap<>();
+        for (int i = 0; i < ngramsAndFrequencies.length; i += 2) {
+            frequencies.put((String) ngramsAndFrequencies[i], ((Integer) ngramsAndFrequencies[i + 1]).longValue());
+        }
+        return new NGramFrequencies() {
+            @Override
+            public long docFreq(String ngram) {
+                Long frequency = frequencies.get(ngram);
+                return frequency == null ? 100 : frequency;
+            }
+        };
+    }
 }
@@ -0,0 +1,87 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.automaton.XRegExp;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.regex.expression.True;
+
+public class SparseGramExtractorTest extends ElasticsearchTestCase {
+    private final SparseGramExtractor extractor = new SparseGramExtractor(SparseGrams.DEFAULT_MAX_GRAM, 4, 10000, 100, null);
+
+    @Test
+    public void literalsBecomeTheirCoveringGrams() {
+        for (int i = 0; i < 100; i++) {
+            String literal = TestUtil.randomSimpleStringRange(getRandom(), 'a', 'z', 30);
+            Set<String> extracted = grams(extractor.extract(new XRegExp(literal).toAutomaton()));
+            List<String> covering = SparseGrams.covering(literal, SparseGrams.DEFAULT_MAX_GRAM);
+            assertTrue(covering.containsAll(extracted));
+            for (String gram : covering) {
+                boolean inside = false;
+                for (String other : extracted) {
+                    inside |= other.contains(gram);
+                }
+                assertTrue(gram + " isn't inside any of " + extracted, inside);
+            }
+        }
+    }
+
+    @Test
+    public void fallsBackToShorterGrams() {
+        assertEquals(True.<String> instance(), extractor.extract(new XRegExp("he").toAutomaton()));
+        assertEquals(new Leaf<>("her"), extractor.extract(new XRegExp("her").toAutomaton()));
+        assertEquals(new Or<>(new Leaf<>("her"), new Leaf<>("his")), extractor.extract(new XRegExp("her|his").toAutomaton()));
+    }
+
+    @Test
+    public void fewerTermsThanTrigrams() {
+        String regex = "hero of legend";
+        Expression<String> trigrams = new NGramExtractor(3, 4, 10000, 100).extract(new XRegExp(regex).toAutomaton());
+        Expression<String> sparse = extractor.extract(new XRegExp(regex).toAutomaton());
+        assertTrue(grams(sparse).size() <= grams(trigrams).size());
+    }
+
+    private Set<String> grams(Expression<String> expression) {
+        return expression.transform(new Expression.Transformer<String, ImmutableSet<String>>() {
+            @Override
+            public ImmutableSet<String> alwaysTrue() {
+                return ImmutableSet.of();
+            }
+
+            @Override
+            public ImmutableSet<String> alwaysFalse() {
+                return ImmutableSet.of();
+            }
+
+            @Override
+            public ImmutableSet<String> leaf(String t) {
+                return ImmutableSet.of(t);
+            }
+
+            @Override
+            public ImmutableSet<String> and(ImmutableSet<ImmutableSet<String>> js) {
+                return union(js);
+            }
+
+            @Override
+            public ImmutableSet<String> or(ImmutableSet<ImmutableSet<String>> js) {
+                return union(js);
+            }
+
+            private ImmutableSet<String> union(ImmutableSet<ImmutableSet<String>> js) {
+                ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+                for (ImmutableSet<String> j : js) {
+                    builder.addAll(j);
+                }
+                return builder.build();
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package org.wikimedia.search.extra.regex.ngram;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+public class SparseGramsTest extends ElasticsearchTestCase {
+    @Test
+    public void matchesDefinition() {
+        for (int i = 0; i < 1000; i++) {
+            String string = TestUtil.randomSimpleStringRange(getRandom(), 'a', 'e', 40);
+            int maxGram = between(SparseGrams.MIN_GRAM, 10);
+            List<String> grams = grams(string, maxGram);
+            assertEquals(bruteForce(string, maxGram), new HashSet<>(grams));
+            assertTrue(grams.size() <= 2 * string.length());
+        }
+    }
+
+    @Test
+    public void allTrigramsAreSparseGrams() {
+        String string = "hero of legend";
+        Set<String> grams = new HashSet<>(grams(string, SparseGrams.DEFAULT_MAX_GRAM));
+        for (int i = 0; i + 3 <= string.length(); i++) {
+            assertTrue(grams.contains(string.substring(i, i + 3)));
+        }
+        assertEquals(grams(string, 3), trigrams(string));
+    }
+
+    @Test
+    public void weightIgnoresCase() {
+        assertEquals(SparseGrams.weight('a', 'b'), SparseGrams.weight('A', 'B'));
+        assertEquals(SparseGrams.weight('λ', 'μ'), SparseGrams.weight('Λ', 'Μ'));
+    }
+
+    @Test
+    public void coveringGramsAreInContainingDocuments() {
+        for (int i = 0; i < 1000; i++) {
+            String string = TestUtil.randomSimpleStringRange(getRandom(), 'a', 'e', 20);
+            String document = TestUtil.randomSimpleString(getRandom(), 10) + string + TestUtil.randomSimpleString(getRandom(), 10);
+            Set<String> documentGrams = new HashSet<>(grams(document, SparseGrams.DEFAULT_MAX_GRAM));
+            List<String> covering = SparseGrams.covering(string, SparseGrams.DEFAULT_MAX_GRAM);
+            assertTrue(documentGrams.containsAll(covering));
+            // And they cover every character of the string
+            if (string.length() >= SparseGrams.MIN_GRAM) {
+                assertFalse(covering.isEmpty());
+            }
+            for (String gram : grams(string, SparseGrams.DEFAULT_MAX_GRAM)) {
+                boolean inside = false;
+                for (String cover : covering) {
+                    inside |= cover.contains(gram);
+                }
+                assertTrue(gram + " isn't inside any of " + covering, inside);
+            }
+        }
+    }
+
+    @Test
+    public void tooShort() {
+        assertEquals(0, grams("ab", 8).size());
+        assertEquals(0, SparseGrams.covering("ab", 8).size());
+        assertEquals(1, SparseGrams.covering("abc", 8).size());
+    }
+
+    private List<String> grams(final String string, int maxGram) {
+        final List<String> grams = new ArrayList<>();
+        int[] codePoints = new int[string.length()];
+        for (int i = 0; i < string.length(); i++) {
+            codePoints[i] = string.charAt(i);
+        }
+        SparseGrams.sparseGrams(codePoints, codePoints.length, maxGram, new SparseGrams.GramConsumer() {
+            @Override
+            public void gram(int start, int end) {
+                grams.add(string.substring(start, end));
+            }
+        });
+        return grams;
+    }
+
+    private List<String> trigrams(String string) {
+        List<String> trigrams = new ArrayList<>();
+        for (int i = 0; i + 3 <= string.length(); i++) {
+            trigrams.add(string.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private Set<String> bruteForce(String string, int maxGram) {
+        Set<String> grams = new HashSet<>();
+        for (int start = 0; start < string.length(); start++) {
+            for (int end = start + SparseGrams.MIN_GRAM; end <= Math.min(string.length(), start + maxGram); end++) {
+                int first = SparseGrams.weight(string.charAt(start), string.charAt(start + 1));
+                int last = SparseGrams.weight(string.charAt(end - 2), string.charAt(end - 1));
+                boolean sparse = true;
+                for (int bigram = start + 1; bigram < end - 2; bigram++) {
+                    int weight = SparseGrams.weight(string.charAt(bigram), string.charAt(bigram + 1));
+                    sparse &= weight < first && weight < last;
+                }
+                if (sparse) {
+                    grams.add(string.substring(start, end));
+                }
+            }
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,184 @@
+package org.wikimedia.search.extra.regex.scan;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.Test;
+import org.wikimedia.search.extra.AbstractPluginIntegrationTest;
+
+public class RegexScanTest extends AbstractPluginIntegrationTest {
+    @Test
+    public void pagesThroughEveryMatchOnce() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<IndexRequestBuilder> docs = new ArrayList<>();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                docs.add(doc(Integer.toString(i), "I have a cat number " + i));
+                expected.add(Integer.toString(i));
+            } else {
+                docs.add(doc(Integer.toString(i), "I have a dog number " + i));
+            }
+        }
+        indexRandom(true, docs);
+
+        Set<String> found = new HashSet<>();
+        for (RegexScanMatch match : scanAll(scan("c[aeiou]t").setSize(2).setConcurrency(2))) {
+            assertTrue("Duplicate match " + match.getId(), found.add(match.getId()));
+        }
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void sizeLimitsPage() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<IndexRequestBuilder> docs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            docs.add(doc(Integer.toString(i), "I have a cat number " + i));
+        }
+        indexRandom(true, docs);
+        RegexScanResponse response = scan("cat").setSize(1).get();
+        assertThat(response.getMatches().size(), lessThanOrEqualTo(response.getTotalShards()));
+        assertFalse(response.isDone());
+    }
+
+    @Test
+    public void maxInspectLimitsPageButNotScan() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<IndexRequestBuilder> docs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            docs.add(doc(Integer.toString(i), "I have a cat number " + i));
+        }
+        indexRandom(true, docs);
+
+        Set<String> found = new HashSet<>();
+        for (RegexScanMatch match : scanAll(scan("cat").setMaxInspect(1))) {
+            found.add(match.getId());
+        }
+        assertThat(found.size(), equalTo(20));
+    }
+
+    @Test
+    public void offsets() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "cat cot dog cut"), doc("nope", "dog"));
+        List<RegexScanMatch> matches = scanAll(scan("c[aeiou]t").setOffsets(true));
+        assertThat(matches.size(), equalTo(1));
+        RegexScanMatch match = matches.get(0);
+        assertThat(match.getId(), equalTo("findme"));
+        assertThat(match.getType(), equalTo("test"));
+        assertThat(match.getIndex(), equalTo("test"));
+        assertArrayEquals(new int[] {0, 0, 3, 0, 4, 7, 0, 12, 15}, match.getOffsets());
+    }
+
+    @Test
+    public void maxWalkLimitsPageButNotScan() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<IndexRequestBuilder> docs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            docs.add(doc(Integer.toString(i), (i % 5 == 0 ? "I have a cat number " : "I have a dog number ") + i));
+        }
+        indexRandom(true, docs);
+
+        RegexScanResponse response = scan("cat").setMaxWalk(1).get();
+        assertThat(response.getMatches().size(), lessThanOrEqualTo(response.getTotalShards()));
+        Set<String> found = new HashSet<>();
+        for (RegexScanMatch match : scanAll(scan("cat").setMaxWalk(1))) {
+            found.add(match.getId());
+        }
+        assertThat(found, containsInAnyOrder("0", "5", "10", "15"));
+    }
+
+    @Test
+    public void offsetsInOriginalValueWhenLowercasingChangesLength() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "\u0130 cat"));
+        List<RegexScanMatch> matches = scanAll(scan("cat").setOffsets(true));
+        assertThat(matches.size(), equalTo(1));
+        assertArrayEquals(new int[] {0, 2, 5}, matches.get(0).getOffsets());
+    }
+
+    @Test
+    public void withoutNgramField() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "I have a cat."), doc("dog", "I have a dog."));
+        List<String> ids = new ArrayList<>();
+        for (RegexScanMatch match : scanAll(new RegexScanRequestBuilder(client()).setIndices("test").setField("test").setRegex("d.g"))) {
+            ids.add(match.getId());
+        }
+        assertThat(ids, containsInAnyOrder("dog"));
+    }
+
+    /**
+     * Page through the whole scan. Shards that fail stay in the cursor so
+     * they are retried on the next page.
+     */
+    private List<RegexScanMatch> scanAll(RegexScanRequestBuilder builder) {
+        List<RegexScanMatch> matches = new ArrayList<>();
+        RegexScanResponse response = builder.get();
+        for (int page = 0; page < 1000; page++) {
+            matches.addAll(response.getMatches());
+            if (response.isDone()) {
+                return matches;
+            }
+            response = builder.setAfter(response.getCursor()).get();
+        }
+        fail("Scan didn't finish: " + response.getShardFailures());
+        return null;
+    }
+
+    private IndexRequestBuilder doc(String id, String fieldValue) {
+        return client().prepareIndex("test", "test", id).setSource("test", fieldValue);
+    }
+
+    private RegexScanRequestBuilder scan(String regex) {
+        return new RegexScanRequestBuilder(client()).setIndices("test").setField("test").setNgramField("test.trigram").setRegex(regex);
+    }
+
+    private void setup() throws IOException {
+        XContentBuilder mapping = jsonBuilder().startObject();
+        mapping.startObject("test").startObject("properties");
+        mapping.startObject("test");
+        mapping.field("type", "string");
+        mapping.startObject("fields");
+        mapping.startObject("trigram");
+        mapping.field("type", "string");
+        mapping.field("analyzer", "trigram");
+        mapping.endObject();
+        mapping.endObject();
+        mapping.endObject();
+
+        XContentBuilder settings = jsonBuilder().startObject().startObject("index");
+        settings.field("number_of_shards", 3);
+        settings.startObject("analysis");
+        settings.startObject("analyzer");
+        settings.startObject("trigram");
+        settings.field("type", "custom");
+        settings.field("tokenizer", "trigram");
+        settings.field("filter", new String[] {"lowercase"});
+        settings.endObject();
+        settings.endObject();
+        settings.startObject("tokenizer");
+        settings.startObject("trigram");
+        settings.field("type", "nGram");
+        settings.field("min_gram", 3);
+        settings.field("max_gram", 3);
+        settings.endObject();
+        settings.endObject();
+        settings.endObject().endObject();
+        assertAcked(prepareCreate("test").setSettings(settings).addMapping("test", mapping));
+        ensureGreen();
+    }
+}
@@ -0,0 +1,76 @@
+package org.wikimedia.search.extra.regex.signature;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.expression.And;
+import org.wikimedia.search.extra.regex.expression.False;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+import org.wikimedia.search.extra.regex.expression.True;
+
+public class NGramSignatureTest extends ElasticsearchTestCase {
+    @Test
+    public void containsAddedNgrams() {
+        byte[] signature = signature("abc", "bcd", "cde");
+        for (String ngram : new String[] {"abc", "bcd", "cde"}) {
+            assertTrue(NGramSignature.mightContain(new BytesRef(signature), hash(ngram)));
+        }
+        assertFalse(NGramSignature.mightContain(new BytesRef(signature), hash("xyz")));
+    }
+
+    @Test
+    public void emptySignatureMightContainAnything() {
+        assertTrue(NGramSignature.mightContain(new BytesRef(), hash("abc")));
+        assertTrue(NGramSignature.matcher(new Leaf<>("abc")).matches(new BytesRef()));
+    }
+
+    @Test
+    public void or() {
+        byte[] signature = signature("abc");
+        NGramSignature.or(signature, new BytesRef(signature("xyz")));
+        assertTrue(NGramSignature.mightContain(new BytesRef(signature), hash("abc")));
+        assertTrue(NGramSignature.mightContain(new BytesRef(signature), hash("xyz")));
+        try {
+            NGramSignature.or(signature, new BytesRef(NGramSignature.empty(64, 3)));
+            fail("expected an exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void badConfiguration() {
+        for (int[] config : new int[][] {{0, 3}, {12, 3}, {512, 0}, {512, 256}}) {
+            try {
+                NGramSignature.empty(config[0], config[1]);
+                fail("expected an exception");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void matcher() {
+        BytesRef signature = new BytesRef(signature("abc", "bcd"));
+        assertTrue(NGramSignature.matcher(True.<String> instance()).matches(signature));
+        assertFalse(NGramSignature.matcher(False.<String> instance()).matches(signature));
+        assertTrue(NGramSignature.matcher(new And<>(new Leaf<>("abc"), new Leaf<>("bcd"))).matches(signature));
+        assertFalse(NGramSignature.matcher(new And<>(new Leaf<>("abc"), new Leaf<>("xyz"))).matches(signature));
+        assertTrue(NGramSignature.matcher(new Or<>(new Leaf<>("xyz"), new Leaf<>("bcd"))).matches(signature));
+        assertFalse(NGramSignature.matcher(new Or<>(new Leaf<>("xyz"), new Leaf<>("qrs"))).matches(signature));
+    }
+
+    private byte[] signature(String... ngrams) {
+        byte[] signature = NGramSignature.empty(512, 3);
+        for (String ngram : ngrams) {
+            NGramSignature.add(signature, hash(ngram));
+        }
+        return signature;
+    }
+
+    private long hash(String ngram) {
+        return NGramSignature.hash(new BytesRef(ngram));
+    }
+}
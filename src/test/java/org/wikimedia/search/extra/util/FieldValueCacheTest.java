@@ -0,0 +1,99 @@
+package org.wikimedia.search.extra.util;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+public class FieldValueCacheTest extends ElasticsearchTestCase {
+    @Test
+    public void disabledByDefault() {
+        FieldValueCache cache = new FieldValueCache(new ByteSizeValue(0));
+        assertFalse(cache.enabled());
+        FieldValues.Loader loader = FieldValues.loadFromStoredField();
+        assertSame(loader, FieldValues.cache(loader, cache));
+    }
+
+    @Test
+    public void cachesUntilSegmentCloses() throws IOException {
+        FieldValueCache cache = new FieldValueCache(new ByteSizeValue(1024 * 1024));
+        FieldValues.Loader loader = FieldValues.cache(FieldValues.loadFromStoredField(), cache);
+        try (Directory dir = new RAMDirectory()) {
+            indexDoc(dir, "test");
+            DirectoryReader reader = DirectoryReader.open(dir);
+            AtomicReader segment = reader.leaves().get(0).reader();
+
+            assertEquals(ImmutableList.of("test"), loader.load("foo", segment, 0));
+            assertEquals(0, cache.stats().hitCount());
+            assertEquals(1, cache.stats().missCount());
+            List<String> cached = loader.load("foo", segment, 0);
+            assertEquals(ImmutableList.of("test"), cached);
+            assertEquals(1, cache.stats().hitCount());
+            assertEquals(1, cache.size());
+
+            reader.close();
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void keyedOnLoader() throws IOException {
+        FieldValueCache cache = new FieldValueCache(new ByteSizeValue(1024 * 1024));
+        FieldValues.Loader stored = FieldValues.cache(FieldValues.loadFromStoredField(), cache);
+        FieldValues.Loader source = FieldValues.cache(FieldValues.loadFromSource(), cache);
+        try (Directory dir = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+                Document doc = new Document();
+                doc.add(new StoredField("foo", "stored"));
+                doc.add(new StoredField("_source", new BytesRef("{\"foo\":\"source\"}")));
+                writer.addDocument(doc);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                assertEquals(ImmutableList.of("stored"), stored.load("foo", segment, 0));
+                assertEquals(ImmutableList.of("source"), source.load("foo", segment, 0));
+                assertEquals(ImmutableList.of("stored"), stored.load("foo", segment, 0));
+                assertEquals(2, cache.size());
+            }
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void boundedBySize() throws IOException {
+        FieldValueCache cache = new FieldValueCache(new ByteSizeValue(200));
+        FieldValues.Loader loader = FieldValues.cache(FieldValues.loadFromStoredField(), cache);
+        try (Directory dir = new RAMDirectory()) {
+            indexDoc(dir, randomRealisticUnicodeOfCodepointLength(500));
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                AtomicReader segment = reader.leaves().get(0).reader();
+                loader.load("foo", segment, 0);
+                assertEquals(0, cache.size());
+            }
+        }
+    }
+
+    private void indexDoc(Directory dir, String value) throws IOException {
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Lucene.VERSION, new KeywordAnalyzer()))) {
+            Document doc = new Document();
+            Field field = new StoredField("foo", value);
+            doc.add(field);
+            writer.addDocument(doc);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.wikimedia.search.extra.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class Log2HistogramTest {
+    @Test
+    public void empty() {
+        Log2Histogram.Snapshot snapshot = new Log2Histogram().snapshot();
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.sum());
+        assertEquals(0, snapshot.percentile(50));
+    }
+
+    @Test
+    public void buckets() {
+        assertEquals(0, Log2Histogram.bucket(0));
+        assertEquals(1, Log2Histogram.bucket(1));
+        assertEquals(2, Log2Histogram.bucket(2));
+        assertEquals(2, Log2Histogram.bucket(3));
+        assertEquals(3, Log2Histogram.bucket(4));
+        assertEquals(63, Log2Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(3, Log2Histogram.upperBound(2));
+        assertEquals(Long.MAX_VALUE, Log2Histogram.upperBound(63));
+    }
+
+    @Test
+    public void percentiles() {
+        Log2Histogram histogram = new Log2Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(5);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(-1);
+        Log2Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.count());
+        assertEquals(90 * 5 + 10 * 1000, snapshot.sum());
+        assertEquals(7, snapshot.percentile(50));
+        assertEquals(1023, snapshot.percentile(99));
+    }
+
+    @Test
+    public void add() {
+        Log2Histogram a = new Log2Histogram();
+        a.record(1);
+        Log2Histogram b = new Log2Histogram();
+        b.record(2);
+        Log2Histogram.Snapshot snapshot = a.snapshot();
+        snapshot.add(b.snapshot());
+        assertEquals(2, snapshot.count());
+        assertEquals(3, snapshot.sum());
+    }
+}